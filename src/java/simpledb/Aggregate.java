@@ -111,6 +111,34 @@ public class Aggregate extends Operator {
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
 
+        // an ungrouped COUNT, MIN or MAX over a B+ tree is read off the tuple
+        // count and key bounds it keeps, or off its subtree counts, instead of
+        // scanning the qualifying tuples
+        Field result = null;
+        if (this.gfield == -1 && this.child instanceof BTreeScan) {
+            BTreeScan scan = (BTreeScan) this.child;
+            if (this.aop == Aggregator.Op.COUNT) {
+                int count = scan.tupleCount();
+                if (count < 0)
+                    count = scan.count();
+                if (count > 0)
+                    result = new IntField(count);
+            } else if ((this.aop == Aggregator.Op.MIN || this.aop == Aggregator.Op.MAX)
+                    && child.getTupleDesc().getFieldType(afield) == Type.INT_TYPE) {
+                result = scan.keyBound(afield, this.aop == Aggregator.Op.MAX);
+            }
+        }
+        if (result != null)
+        {
+            super.open();
+            TupleDesc td = agg.iterator().getTupleDesc();
+            Tuple t = new Tuple(td);
+            t.setField(0, result);
+            this.aggIt = new TupleIterator(td, Collections.singletonList(t));
+            this.aggIt.open();
+            return;
+        }
+
         this.child.open();
         super.open();
 
@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BTreeBenchmark compares the I/O and running time of the modes of BTreeFile
+ * on random-key ingest and lookups, with a buffer pool much smaller than the
+ * tree so that pages are read and written back as they would be on a large
+ * table.
+ *
+ * @see BTreeFile#BTreeFile(File, int[], TupleDesc, boolean, boolean)
+ * @see BTreeFile#enableMemtable(int)
+ */
+public class BTreeBenchmark {
+
+	/**
+	 * Counts the pages read from and written to a B+ tree file
+	 */
+	private static class CountingBTreeFile extends BTreeFile {
+		int reads = 0;
+		int writes = 0;
+
+		CountingBTreeFile(File f, TupleDesc td, boolean buffered) {
+			super(f, new int[] {0}, td, false, buffered);
+		}
+
+		public Page readPage(PageId pid) {
+			reads++;
+			return super.readPage(pid);
+		}
+
+		public void writePage(Page page) throws IOException {
+			writes++;
+			super.writePage(page);
+		}
+	}
+
+	/**
+	 * Insert random keys into an empty tree of each mode, then look up random
+	 * keys with a cold buffer pool, and report the pages read and written and
+	 * the time taken by each phase.
+	 * Usage: BTreeBenchmark [rows [lookups [buffer pool pages [memtable size]]]]
+	 */
+	public static void main(String[] args) throws Exception {
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int poolPages = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		int memtableSize = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+
+		// every tree sees the same keys in the same order
+		Random r = new Random(1);
+		int[] keys = new int[rows];
+		for(int i = 0; i < rows; i++)
+			keys[i] = r.nextInt(BTreeUtility.MAX_RAND_VALUE);
+		int[] probes = new int[lookups];
+		for(int i = 0; i < lookups; i++)
+			probes[i] = keys[r.nextInt(rows)];
+
+		TupleDesc td = Utility.getTupleDesc(2);
+		String[] modes = new String[] {"plain", "buffered", "memtable"};
+		for(String name : modes) {
+			File file = File.createTempFile("benchmark", ".dat");
+			file.deleteOnExit();
+			new File(file.getPath() + ".memlog").deleteOnExit();
+			new File(file.getPath() + ".memlog.frozen").deleteOnExit();
+			CountingBTreeFile bf = new CountingBTreeFile(file, td, name.equals("buffered"));
+			Database.getCatalog().addTable(bf, name);
+			TransactionId tid = new TransactionId();
+			if(name.equals("memtable"))
+				bf.enableMemtable(memtableSize);
+
+			Database.resetBufferPool(poolPages);
+			long start = System.currentTimeMillis();
+			for(int i = 0; i < rows; i++)
+				Database.getBufferPool().insertTuple(tid, bf.getId(),
+						BTreeUtility.getBTreeTuple(new int[] {keys[i], i}));
+			// the memtable is merged into the tree, so that lookups read the tree
+			bf.flushMemtable();
+			Database.getBufferPool().flushAllPages();
+			long millis = System.currentTimeMillis() - start;
+			System.out.println(name + " ingest: " + bf.reads + " pages read, " + bf.writes
+					+ " pages written for " + rows + " inserts, " + millis + " ms");
+
+			Database.resetBufferPool(poolPages);
+			bf.reads = 0;
+			start = System.currentTimeMillis();
+			int found = 0;
+			for(int key : probes) {
+				DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(
+						Predicate.Op.EQUALS, new IntField(key)));
+				it.open();
+				while(it.hasNext()) {
+					it.next();
+					found++;
+				}
+				it.close();
+			}
+			millis = System.currentTimeMillis() - start;
+			System.out.println(name + " lookup: " + bf.reads + " pages read for " + lookups
+					+ " lookups returning " + found + " tuples, " + millis + " ms");
+			bf.disableMemtable();
+			Database.getBufferPool().transactionComplete(tid);
+		}
+	}
+}
@@ -0,0 +1,344 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BTreeCompactor defragments a BTreeFile online, a few pages at a time, so its
+ * steps can be interleaved with normal traffic. Each call to {@link #step()} does
+ * a bounded amount of work in its own transaction. Since other operations may
+ * merge, release or reuse any page between two steps, a step keeps no page ids
+ * from the one before; it finds its place in the leaves again by key. The
+ * BufferPool takes no page locks, so as with any other operation on the file, a
+ * step must not run at the same time as another operation from another thread.
+ * A full compaction runs in three phases:
+ * <ol>
+ * <li>Repack: walking the leaves in key order, each leaf is refilled to the target
+ * fill factor from its right siblings under the same parent; leaves that are
+ * drained completely are merged away.</li>
+ * <li>Relocate: walking the leaves in key order, each leaf is moved to the lowest
+ * empty page below it, so that the leaf chain is laid out towards the start of the
+ * file in key order; internal and header pages are then moved the same way. The
+ * walks are repeated until they move no page.</li>
+ * <li>Truncate: the empty pages left at the end of the file are cut off, and
+ * the Bloom filter of the file, if it has one, is rebuilt.</li>
+ * </ol>
+ *
+ * @see BTreeFile#repackLeafPage
+ * @see BTreeFile#relocatePage
+ * @see BTreeFile#truncateEmptyPages
+ */
+public class BTreeCompactor {
+
+	private static final int REPACK = 0;
+	private static final int RELOCATE_LEAVES = 1;
+	private static final int RELOCATE_INTERNAL = 2;
+	private static final int TRUNCATE = 3;
+	private static final int DONE = 4;
+
+	private final BTreeFile file;
+	private final double fillFactor;
+	private final int pagesPerStep;
+
+	private int phase = REPACK;
+	// true if the walk over the leaves of the current phase has started
+	private boolean walking = false;
+	// the largest key of the leaves handled so far in the walk, or null if none
+	private Field lastKey = null;
+	// the right sibling of the last leaf handled, where the walk would go on if
+	// the tree had not changed since
+	private BTreePageId nextLeaf = null;
+	private boolean movedLeaves = false;
+	private boolean movedInternal = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param file - the B+ tree to compact
+	 * @param fillFactor - the fraction of each leaf page to fill, greater than the
+	 *        file's merge threshold and at most 1
+	 * @param pagesPerStep - the number of pages to process in each step
+	 */
+	public BTreeCompactor(BTreeFile file, double fillFactor, int pagesPerStep) {
+		if(fillFactor <= file.getMergeThreshold() || fillFactor > 1)
+			throw new IllegalArgumentException("fill factor must be above the merge threshold and at most 1");
+		if(pagesPerStep < 1)
+			throw new IllegalArgumentException("pages per step must be positive");
+		this.file = file;
+		this.fillFactor = fillFactor;
+		this.pagesPerStep = pagesPerStep;
+	}
+
+	/**
+	 * @return true if the compaction has completed
+	 */
+	public boolean isDone() {
+		return phase == DONE;
+	}
+
+	/**
+	 * Run one increment of the compaction in a new transaction, which is committed
+	 * before returning.
+	 *
+	 * @return true if there is more work to do
+	 */
+	public boolean step() throws DbException, IOException, TransactionAbortedException {
+		if(phase == DONE)
+			return false;
+
+		TransactionId tid = new TransactionId();
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		boolean committed = false;
+		// keep the background rebalance pass of the file from running during the step
+		file.beginAccess();
+		try {
+			if(phase == TRUNCATE) {
+				Database.getBufferPool().updateDirtyPages(tid, file.truncateEmptyPages(tid));
+				file.rebuildBloomFilter(tid);
+				phase = DONE;
+			}
+			else {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+						tid, BTreeRootPtrPage.getId(file.getId()), Permissions.READ_ONLY);
+				if(rootPtr.getRootId() == null)
+					phase = TRUNCATE;
+				else if(phase == RELOCATE_INTERNAL)
+					relocateInternalPages(tid, dirtypages, rootPtr);
+				else
+					walkLeaves(tid, dirtypages, rootPtr);
+			}
+			Database.getBufferPool().updateDirtyPages(tid, new ArrayList<Page>(dirtypages.values()));
+			Database.getBufferPool().transactionComplete(tid);
+			committed = true;
+		} finally {
+			file.endAccess();
+			if(!committed)
+				Database.getBufferPool().transactionComplete(tid, false);
+		}
+		return phase != DONE;
+	}
+
+	/**
+	 * Run the compaction to completion
+	 */
+	public void run() throws DbException, IOException, TransactionAbortedException {
+		while(step());
+	}
+
+	private void walkLeaves(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeRootPtrPage rootPtr)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeLeafPage leaf = resume(tid, rootPtr.getRootId());
+		int target = leaf == null ? 0 : (int) (fillFactor * leaf.getMaxTuples());
+		BTreePageId cursor = leaf == null ? null : leaf.getId();
+		for(int i = 0; i < pagesPerStep && cursor != null; i++) {
+			BTreePageId handled;
+			if(phase == REPACK) {
+				file.repackLeafPage(tid, dirtypages, cursor, target);
+				handled = cursor;
+			}
+			else {
+				handled = file.relocatePage(tid, dirtypages, cursor);
+				movedLeaves |= !handled.equals(cursor);
+			}
+			BTreeLeafPage page = (BTreeLeafPage) Database.getBufferPool().getPage(
+					tid, handled, Permissions.READ_ONLY);
+			Iterator<Tuple> it = page.reverseIterator();
+			if(it.hasNext())
+				lastKey = file.keyOf(it.next());
+			cursor = page.getRightSiblingId();
+		}
+		walking = cursor != null;
+		nextLeaf = cursor;
+
+		if(cursor == null) {
+			lastKey = null;
+			if(phase == REPACK) {
+				phase = RELOCATE_LEAVES;
+			}
+			else {
+				phase = movedLeaves ? RELOCATE_LEAVES : RELOCATE_INTERNAL;
+				movedLeaves = false;
+			}
+		}
+	}
+
+	/**
+	 * Find the leaf the walk over the leaves goes on from: the leaf following the
+	 * last one handled, if it still follows the leaves holding the keys handled
+	 * so far, and otherwise the first leaf holding a larger key.
+	 *
+	 * @return the leaf to go on from, or null if every leaf has been handled
+	 */
+	private BTreeLeafPage resume(TransactionId tid, BTreePageId root)
+			throws DbException, TransactionAbortedException {
+		BTreeLeafPage leaf = file.findLeafPage(tid, root, Permissions.READ_ONLY, lastKey);
+		if(!walking)
+			return leaf;
+		while(!leaf.getId().equals(nextLeaf) && handled(leaf)) {
+			BTreePageId right = leaf.getRightSiblingId();
+			if(right == null)
+				return null;
+			leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, right, Permissions.READ_ONLY);
+		}
+		return leaf;
+	}
+
+	/**
+	 * @return true if a leaf holds no key above the last key handled, so that
+	 *         the walk has been past it
+	 */
+	private boolean handled(BTreeLeafPage leaf) {
+		Iterator<Tuple> it = leaf.reverseIterator();
+		if(!it.hasNext())
+			return true;
+		return lastKey != null && !file.keyOf(it.next()).compare(Predicate.Op.GREATER_THAN, lastKey);
+	}
+
+	private void relocateInternalPages(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeRootPtrPage rootPtr)
+			throws DbException, IOException, TransactionAbortedException {
+		// collect the internal pages breadth first, followed by the header pages
+		ArrayList<BTreePageId> pages = new ArrayList<BTreePageId>();
+		if(rootPtr.getRootId().pgcateg() == BTreePageId.INTERNAL)
+			pages.add(rootPtr.getRootId());
+		for(int i = 0; i < pages.size(); i++) {
+			BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+					tid, pages.get(i), Permissions.READ_ONLY);
+			Iterator<BTreeEntry> it = page.iterator();
+			boolean first = true;
+			while(it.hasNext()) {
+				BTreeEntry e = it.next();
+				if(e.getRightChild().pgcateg() != BTreePageId.INTERNAL)
+					break;
+				if(first)
+					pages.add(e.getLeftChild());
+				pages.add(e.getRightChild());
+				first = false;
+			}
+		}
+		BTreePageId headerId = rootPtr.getHeaderId();
+		while(headerId != null) {
+			pages.add(headerId);
+			headerId = ((BTreeHeaderPage) Database.getBufferPool().getPage(
+					tid, headerId, Permissions.READ_ONLY)).getNextPageId();
+		}
+
+		int moved = 0;
+		for(BTreePageId pid : pages) {
+			if(moved == pagesPerStep)
+				break;
+			if(!file.relocatePage(tid, dirtypages, pid).equals(pid))
+				moved++;
+		}
+		movedInternal |= moved > 0;
+
+		// once nothing is left to move, the pages released by moving internal
+		// pages may leave room to move leaves again
+		if(moved == 0) {
+			phase = movedInternal ? RELOCATE_LEAVES : TRUNCATE;
+			movedInternal = false;
+		}
+	}
+
+	/**
+	 * Statistics of a full scan of a B+ tree, used to measure the effect of compaction
+	 */
+	public static class ScanStats {
+		/** the number of tuples scanned */
+		public int tuples;
+		/** the number of leaf pages scanned */
+		public int leafPages;
+		/** the number of times the scan moved to a leaf page that does not follow the previous one on disk */
+		public int seeks;
+		/** the number of pages in the file */
+		public int filePages;
+		/** the time taken by the scan, in milliseconds */
+		public long millis;
+
+		/**
+		 * @return the scan throughput in tuples per second
+		 */
+		public double tuplesPerSecond() {
+			return tuples * 1000.0 / Math.max(1, millis);
+		}
+
+		public String toString() {
+			return tuples + " tuples in " + leafPages + " leaf pages (" + filePages + " pages in file), "
+					+ seeks + " seeks, " + millis + " ms, " + Math.round(tuplesPerSecond()) + " tuples/s";
+		}
+	}
+
+	/**
+	 * Scan a B+ tree in key order and measure the scan. For a cold measurement, the
+	 * buffer pool should be flushed and emptied beforehand.
+	 *
+	 * @param file - the B+ tree to scan
+	 * @return the statistics of the scan
+	 */
+	public static ScanStats measureScan(BTreeFile file)
+			throws DbException, IOException, TransactionAbortedException {
+		ScanStats stats = new ScanStats();
+		TransactionId tid = new TransactionId();
+		long start = System.currentTimeMillis();
+		DbFileIterator it = file.iterator(tid);
+		it.open();
+		PageId last = null;
+		while(it.hasNext()) {
+			PageId pid = it.next().getRecordId().getPageId();
+			if(!pid.equals(last)) {
+				stats.leafPages++;
+				if(last != null && pid.pageNumber() != last.pageNumber() + 1)
+					stats.seeks++;
+				last = pid;
+			}
+			stats.tuples++;
+		}
+		it.close();
+		stats.millis = System.currentTimeMillis() - start;
+		stats.filePages = file.numPages();
+		Database.getBufferPool().transactionComplete(tid);
+		return stats;
+	}
+
+	/**
+	 * Builds a random B+ tree, deletes most of it at random, and reports the
+	 * throughput of a cold scan before and after compaction.
+	 * Usage: BTreeCompactor [rows [fraction to delete [fill factor]]]
+	 */
+	public static void main(String[] args) throws Exception {
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		double deleteFraction = args.length > 1 ? Double.parseDouble(args[1]) : 0.8;
+		double fillFactor = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+		TransactionId tid = new TransactionId();
+		Random r = new Random();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		ArrayList<Field> victims = new ArrayList<Field>();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(r.nextDouble() < deleteFraction)
+				victims.add(bf.keyOf(t));
+		}
+		it.close();
+		// look each victim up again, since deletions move tuples between pages
+		for(Field key : victims) {
+			it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, key));
+			it.open();
+			Tuple t = it.next();
+			it.close();
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		Database.getBufferPool().flushAllPages();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		System.out.println("before: " + measureScan(bf));
+
+		new BTreeCompactor(bf, fillFactor, 64).run();
+
+		Database.getBufferPool().flushAllPages();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		System.out.println("after:  " + measureScan(bf));
+	}
+}
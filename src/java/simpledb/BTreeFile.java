@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.nio.channels.FileChannel;
 
 import simpledb.Predicate.Op;
@@ -24,8 +25,56 @@ public class BTreeFile implements DbFile {
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
+	private final int[] keyFields;
 	private int keyField;
 
+	// pages below this fraction of their capacity are rebalanced with a sibling
+	private double mergeThreshold = 0.5;
+	// if true, under-full leaf pages are only recorded by deleteTuple and
+	// rebalanced later by rebalance()
+	private boolean deferRebalance = false;
+	private final HashSet<BTreePageId> underFullPages = new HashSet<BTreePageId>();
+	// true once the leaves have been scanned for under-full pages left by an
+	// earlier deferred session, whose record is not kept in the file
+	private boolean underFullScanned = false;
+	// the thread running periodic rebalance passes, or null if there is none;
+	// this and the following fields are guarded by this
+	private Thread rebalancer = null;
+	// the thread in the middle of a rebalance pass, which every other operation
+	// on the tree waits for, or null if no pass is running
+	private Thread rebalancing = null;
+	// the number of operations and open iterators on the tree, which a pass waits out
+	private int accessors = 0;
+	private int rebalancePasses = 0;
+	private Exception rebalanceError = null;
+
+	// in-memory copy of the empty page bitmap kept in the header pages, with a bit 
+	// set for every empty page; null until it is first needed. Guarded by emptyPageLock
+	private long[] emptyPages = null;
+	// no page below this one is empty
+	private int emptyPageHint = 0;
+	// the ids of the header pages, in the order of the chain, so that the header
+	// page of a slot is found without walking the chain; null until first needed
+	private ArrayList<BTreePageId> headerPages = null;
+	private final Object emptyPageLock = new Object();
+	// the number of pages to add whenever the file runs out of empty pages
+	private int extentPages = 1;
+	// the number of levels of internal pages, from the root down, which are 
+	// pinned in the buffer pool together with the root pointer page
+	private int pinnedLevels = 1;
+	// if true, internal pages store the number of tuples below each child
+	private final boolean counted;
+	// if true, internal pages buffer inserted tuples and move them down in batches
+	private final boolean buffered;
+	// filter of the keys in the tree, or null if there is none
+	private volatile BloomFilter bloom = null;
+	// true if the filter has not changed since it was saved
+	private boolean bloomSaved = false;
+	// in-memory buffer of inserts and deletes in front of the tree, or null if there is none
+	private volatile BTreeMemtable memtable = null;
+	// the size of a memtable reopened from its logs
+	private static final int DEFAULT_MEMTABLE_ENTRIES = 10000;
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -35,10 +84,122 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] {key}, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on an ordered list of fields. Tuples are
+	 * ordered lexicographically on the key fields, and searches may give either
+	 * a complete key or a key prefix as a {@link CompositeField}.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, most significant first
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		this(f, keys, td, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file which may be counted. Each entry of the internal
+	 * pages of a counted B+ tree also stores the number of tuples in its child's
+	 * subtree, so that range counts, ranks and selecting the kth tuple take one
+	 * root-to-leaf descent instead of a scan. In exchange, every insert and delete
+	 * updates the internal pages along its path, and internal pages hold fewer
+	 * entries. Whether a file is counted is recorded in its root pointer page,
+	 * and opening it the other way fails.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, most significant first
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param counted - whether to maintain subtree counts
+	 * @throws IllegalArgumentException if the file exists and was created with
+	 *         a different value of counted
+	 * @see #countRange(TransactionId, Field, boolean, Field, boolean)
+	 * @see #rank(TransactionId, Field)
+	 * @see #selectKth(TransactionId, int)
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td, boolean counted) {
+		this(f, keys, td, counted, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file which may be counted or buffered. Each internal
+	 * page of a buffered B+ tree (a B-epsilon tree) holds about the square root
+	 * of the usual number of entries and uses the rest of its space as a buffer
+	 * of inserted tuples. A tuple is inserted into the buffer of the 
+	 * root; when a buffer fills, the tuples bound for the child with the most of
+	 * them are moved down into its buffer, or into the leaves if it is a leaf, 
+	 * so an insert costs a fraction of a root-to-leaf descent and leaves are 
+	 * written once per batch instead of once per tuple. Searches and scans merge
+	 * the buffered tuples along their paths with the tuples in the leaves. In
+	 * exchange, the tree is deeper. Deleting a tuple 
+	 * returned from a buffer removes it from the buffer; deleting a tuple stored 
+	 * in a leaf finds the leaf from the tuple's record id without a descent, so 
+	 * deletes are not buffered. Like counting, buffering is recorded in the 
+	 * file, and a tree cannot be both counted and buffered.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, most significant first
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param counted - whether to maintain subtree counts
+	 * @param buffered - whether to buffer inserts in the internal pages
+	 * @throws IllegalArgumentException if the file exists and was created with
+	 *         different values of counted or buffered
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td, boolean counted, boolean buffered) {
+		if(keys.length == 0)
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
+		if(counted && buffered)
+			throw new IllegalArgumentException("a B+ tree cannot be both counted and buffered");
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyFields = keys.clone();
+		this.keyField = keys[0];
 		this.td = td;
+		this.counted = counted;
+		this.buffered = buffered;
+		try {
+			int flags = BTreeRootPtrPage.readFlags(f);
+			if(flags != -1 && flags != formatFlags())
+				throw new IllegalArgumentException(f + " was created " 
+						+ ((flags & BTreeRootPtrPage.COUNTED) != 0 ? "counted" : "not counted") + " and "
+						+ ((flags & BTreeRootPtrPage.BUFFERED) != 0 ? "buffered" : "not buffered"));
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+		if(f.length() == 0) {
+			// metadata left by an earlier file of the same name does not describe this one
+			metaFile().delete();
+		}
+		if(bloomFile().exists()) {
+			try {
+				bloom = BloomFilter.load(bloomFile());
+				bloomSaved = true;
+			} catch(IOException e) {
+				// a filter which cannot be read is dropped, as if there was none
+				bloomFile().delete();
+			}
+		}
+		if(new File(f.getPath() + ".memlog").exists() || new File(f.getPath() + ".memlog.frozen").exists()) {
+			// changes which were never merged into the tree must not be lost
+			try {
+				memtable = new BTreeMemtable(this, DEFAULT_MEMTABLE_ENTRIES);
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * @return the flags recorded in the root pointer page of a file created by
+	 *         this BTreeFile
+	 */
+	private int formatFlags() {
+		return (counted ? BTreeRootPtrPage.COUNTED : 0) | (buffered ? BTreeRootPtrPage.BUFFERED : 0);
 	}
 
 	/**
@@ -82,6 +243,16 @@ public class BTreeFile implements DbFile {
 		BufferedInputStream bis = null;
 
 		try {
+			if(id.pgcateg() == BTreePageId.METADATA) {
+				// a tree whose metadata was never saved has none which is exact
+				byte pageBuf[] = BTreeMetadataPage.createUnknownPageData();
+				if(metaFile().length() == BTreeMetadataPage.getPageSize()) {
+					bis = new BufferedInputStream(new FileInputStream(metaFile()));
+					if(bis.read(pageBuf, 0, pageBuf.length) < pageBuf.length)
+						pageBuf = BTreeMetadataPage.createUnknownPageData();
+				}
+				return new BTreeMetadataPage(id, pageBuf);
+			}
 			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
@@ -114,11 +285,11 @@ public class BTreeFile implements DbFile {
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
+					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyFields, counted, buffered);
 					return p;
 				}
 				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
+					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyFields);
 					return p;
 				}
 				else { // id.pgcateg() == BTreePageId.HEADER
@@ -149,8 +320,8 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+		RandomAccessFile rf = new RandomAccessFile(id.pgcateg() == BTreePageId.METADATA ? metaFile() : f, "rw");
+		if(id.pgcateg() == BTreePageId.ROOT_PTR || id.pgcateg() == BTreePageId.METADATA) {
 			rf.write(data);
 			rf.close();
 		}
@@ -170,12 +341,523 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Returns the index of the field that this B+ tree is keyed on. For a
+	 * B+ tree keyed on several fields, this is the most significant one.
 	 */
 	public int keyField() {
 		return keyField;
 	}
 
+	/**
+	 * Returns the indexes of the fields that this B+ tree is keyed on, most
+	 * significant first
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns the key of a tuple in this B+ tree
+	 * @see CompositeField#keyOf(Tuple, int[])
+	 */
+	public Field keyOf(Tuple t) {
+		return CompositeField.keyOf(t, keyFields);
+	}
+
+	/**
+	 * @return true if the internal pages of this file store subtree counts
+	 * @see #BTreeFile(File, int[], TupleDesc, boolean)
+	 */
+	public boolean isCounted() {
+		return counted;
+	}
+
+	/**
+	 * @return true if the internal pages of this file buffer inserted tuples
+	 * @see #BTreeFile(File, int[], TupleDesc, boolean, boolean)
+	 */
+	public boolean isBuffered() {
+		return buffered;
+	}
+
+	/**
+	 * Returns the file the metadata page of this B+ tree is saved in
+	 * 
+	 * @see BTreeMetadataPage
+	 */
+	private File metaFile() {
+		return new File(f.getPath() + ".meta");
+	}
+
+	/**
+	 * Returns the file the Bloom filter of this B+ tree is saved in
+	 */
+	private File bloomFile() {
+		return new File(f.getPath() + ".bloom");
+	}
+
+	/**
+	 * Build a Bloom filter of the keys in this B+ tree, replacing any existing
+	 * filter, and save it next to the file. Equality searches for a complete key
+	 * which the filter rejects return no tuples without reading any page. The 
+	 * filter is sized for the keys in the tree when it is built; it is kept up to
+	 * date by inserts, and rebuilt by {@link #rebuildBloomFilter(TransactionId)},
+	 * which a {@link BTreeCompactor} calls when it completes.
+	 * <p>
+	 * The saved filter is removed as soon as the tree is changed, and saved again
+	 * by {@link #saveBloomFilter()}, which {@link BufferPool#flushAllPages()} 
+	 * calls. A file opened without its saved filter has no filter.
+	 *
+	 * @param tid - the transaction id
+	 * @param bitsPerKey - the number of bits of filter per key
+	 * @see BloomFilter
+	 */
+	public void enableBloomFilter(TransactionId tid, int bitsPerKey)
+			throws DbException, IOException, TransactionAbortedException {
+		// count the distinct keys, which are returned in order
+		long keys = 0;
+		Field last = null;
+		DbFileIterator it = iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			Field key = keyOf(it.next());
+			if(last == null || !key.equals(last))
+				keys++;
+			last = key;
+		}
+
+		BloomFilter filter = new BloomFilter(keys, bitsPerKey);
+		it.rewind();
+		while(it.hasNext())
+			filter.add(keyOf(it.next()));
+		it.close();
+
+		synchronized(this) {
+			bloom = filter;
+			bloomSaved = false;
+		}
+		saveBloomFilter();
+	}
+
+	/**
+	 * Rebuild the Bloom filter of this B+ tree, if it has one, sized for the keys 
+	 * now in the tree. This drops the keys which have been deleted, and keeps the
+	 * false positive rate down after the tree has grown.
+	 */
+	public void rebuildBloomFilter(TransactionId tid)
+			throws DbException, IOException, TransactionAbortedException {
+		BloomFilter filter = bloom;
+		if(filter != null)
+			enableBloomFilter(tid, filter.getBitsPerKey());
+	}
+
+	/**
+	 * Remove the Bloom filter of this B+ tree, and its saved copy
+	 */
+	public synchronized void disableBloomFilter() {
+		bloom = null;
+		bloomSaved = false;
+		bloomFile().delete();
+	}
+
+	/**
+	 * Save the Bloom filter of this B+ tree, if it has one which has changed
+	 * since it was last saved
+	 */
+	public synchronized void saveBloomFilter() throws IOException {
+		if(bloom != null && !bloomSaved) {
+			bloom.save(bloomFile());
+			bloomSaved = true;
+		}
+	}
+
+	/**
+	 * @return the Bloom filter of this B+ tree, or null if it has none
+	 */
+	public BloomFilter getBloomFilter() {
+		return bloom;
+	}
+
+	/**
+	 * Test whether this B+ tree may contain a key, without reading any page.
+	 * Callers doing many point lookups should skip the keys rejected here.
+	 *
+	 * @param key - a search key
+	 * @return false if the Bloom filter proves that no tuple has the key, true
+	 *         if there is no filter or the key is a prefix of a composite key
+	 */
+	public boolean mightContain(Field key) {
+		BloomFilter filter = bloom;
+		if(filter == null || !usesBloomFilter(key))
+			return true;
+		return filter.mightContain(key);
+	}
+
+	/**
+	 * @return true if this B+ tree has a Bloom filter which can test the search key
+	 */
+	boolean usesBloomFilter(Field key) {
+		if(bloom == null || key == null || !CompositeField.isKeyOf(key, td, keyFields))
+			return false;
+		// a one-field composite key hashes differently from the field stored in the tree
+		return keyFields.length > 1 || !(key instanceof CompositeField);
+	}
+
+	/**
+	 * Add the key of a newly inserted tuple to the Bloom filter. The saved filter
+	 * no longer covers every key, so it is removed.
+	 */
+	private synchronized void addToBloomFilter(Field key) {
+		if(bloom == null)
+			return;
+		bloom.add(key);
+		if(bloomSaved) {
+			bloomSaved = false;
+			bloomFile().delete();
+		}
+	}
+
+	/**
+	 * Put a memtable in front of this B+ tree, which takes inserts and deletes 
+	 * in memory and merges them into the tree in batches, in key order, on a 
+	 * background thread. The changes in the memtable are logged next to the file,
+	 * and a file reopened with unmerged changes gets a memtable again. The tree
+	 * must not be counted, since counts would not include the memtable.
+	 *
+	 * @param maxEntries - the number of changes at which the memtable is merged
+	 * @see BTreeMemtable
+	 */
+	public synchronized void enableMemtable(int maxEntries) throws DbException, IOException {
+		if(counted)
+			throw new DbException("a counted B+ tree cannot have a memtable");
+		if(memtable != null)
+			memtable.close();
+		memtable = new BTreeMemtable(this, maxEntries);
+	}
+
+	/**
+	 * Merge the changes in the memtable of this B+ tree into the tree, and 
+	 * remove the memtable and its logs. No iterator over the file may be open.
+	 */
+	public synchronized void disableMemtable() throws DbException, IOException {
+		if(memtable != null) {
+			memtable.close();
+			memtable = null;
+		}
+	}
+
+	/**
+	 * Merge the changes in the memtable of this B+ tree, if it has one, into 
+	 * the tree, and wait for the merge to finish. No iterator over the file may
+	 * be open.
+	 */
+	public void flushMemtable() throws DbException, IOException {
+		BTreeMemtable m = memtable;
+		if(m != null)
+			m.flush();
+	}
+
+	/**
+	 * @return the memtable in front of this B+ tree, or null if it has none
+	 */
+	public BTreeMemtable getMemtable() {
+		return memtable;
+	}
+
+	/**
+	 * Set the fill fraction below which a page is rebalanced with one of its 
+	 * siblings after a deletion. The default of 0.5 is the classic B+ tree 
+	 * invariant; a lower threshold (e.g. 0.25) lets pages drain further before
+	 * they are merged, which avoids split/merge oscillation on tables where
+	 * deletes and inserts alternate. A page is only merged with a sibling if
+	 * the sibling is itself at or below the threshold, so a merged page is 
+	 * never more than twice the threshold full.
+	 * 
+	 * @param threshold - the fill fraction, greater than 0 and at most 0.5
+	 */
+	public void setMergeThreshold(double threshold) {
+		if(threshold <= 0 || threshold > 0.5)
+			throw new IllegalArgumentException("merge threshold must be in (0, 0.5]");
+		this.mergeThreshold = threshold;
+	}
+
+	/**
+	 * Returns the fill fraction below which a page is rebalanced
+	 * @see #setMergeThreshold(double)
+	 */
+	public double getMergeThreshold() {
+		return mergeThreshold;
+	}
+
+	/**
+	 * Enable or disable deferred rebalancing. When enabled, deleteTuple never 
+	 * steals from or merges with siblings; leaf pages that drop below the merge
+	 * threshold are recorded instead, and rebalanced by a later call to 
+	 * {@link #rebalance(TransactionId)} or by a background pass started with 
+	 * {@link #startBackgroundRebalance(long)}. Pages refilled by inserts in the 
+	 * meantime are left alone.
+	 * <p>
+	 * The recorded pages are not kept in the file, so the first time deferred
+	 * rebalancing is enabled the leaves are scanned, in a transaction of their 
+	 * own, for under-full pages left by an earlier deferred session. The merge
+	 * threshold should be set before.
+	 */
+	public void setDeferredRebalance(boolean defer) 
+			throws DbException, IOException, TransactionAbortedException {
+		if(defer && !underFullScanned) {
+			findUnderFullPages();
+			underFullScanned = true;
+		}
+		this.deferRebalance = defer;
+	}
+
+	/**
+	 * Record every leaf page below the merge threshold as under-full
+	 */
+	private void findUnderFullPages() 
+			throws DbException, IOException, TransactionAbortedException {
+		TransactionId tid = new TransactionId();
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		beginAccess();
+		try {
+			BTreePageId root = getRootPtrPage(tid, dirtypages).getRootId();
+			// a root leaf page is never rebalanced
+			if(root == null || root.pgcateg() == BTreePageId.LEAF)
+				return;
+			BTreeLeafPage leaf = findLeafPage(tid, dirtypages, root, Permissions.READ_ONLY, null);
+			while(leaf != null) {
+				int maxEmptySlots = leaf.getMaxTuples() - minOccupancy(leaf.getMaxTuples(), false);
+				if(leaf.getNumEmptySlots() > maxEmptySlots) {
+					synchronized(this) {
+						underFullPages.add(leaf.getId());
+					}
+				}
+				BTreePageId next = leaf.getRightSiblingId();
+				leaf = next == null ? null 
+						: (BTreeLeafPage) getPage(tid, dirtypages, next, Permissions.READ_ONLY);
+			}
+		} finally {
+			endAccess();
+			Database.getBufferPool().transactionComplete(tid);
+		}
+	}
+
+	/**
+	 * Returns true if rebalancing after deletions is deferred
+	 * @see #setDeferredRebalance(boolean)
+	 */
+	public boolean isDeferredRebalance() {
+		return deferRebalance;
+	}
+
+	/**
+	 * Returns the number of under-full leaf pages waiting to be rebalanced
+	 * @see #setDeferredRebalance(boolean)
+	 */
+	public synchronized int numUnderFullPages() {
+		return underFullPages.size();
+	}
+
+	/**
+	 * Start a background thread which runs a rebalance pass over the recorded
+	 * under-full pages every intervalMillis milliseconds, each pass in its own 
+	 * transaction. The BufferPool does not lock pages, so a pass only starts 
+	 * when no other operation on the tree is running and no iterator over it
+	 * is open, and operations started during a pass wait for it to finish; an
+	 * iterator left open keeps the passes from running.
+	 * 
+	 * @param intervalMillis - the time between passes, in milliseconds
+	 * @see #setDeferredRebalance(boolean)
+	 */
+	public synchronized void startBackgroundRebalance(final long intervalMillis) {
+		if(intervalMillis <= 0)
+			throw new IllegalArgumentException("the rebalance interval must be positive");
+		if(rebalancer != null)
+			throw new IllegalStateException("background rebalancing is already running");
+		rebalancer = new Thread("rebalance " + f.getName()) {
+			public void run() {
+				rebalanceInBackground(intervalMillis);
+			}
+		};
+		rebalancer.setDaemon(true);
+		rebalancer.start();
+	}
+
+	/**
+	 * Stop the background rebalance passes, waiting for a running pass to finish
+	 * 
+	 * @throws DbException if a pass failed
+	 * @see #startBackgroundRebalance(long)
+	 */
+	public void stopBackgroundRebalance() throws DbException {
+		Thread t;
+		synchronized(this) {
+			t = rebalancer;
+			rebalancer = null;
+			notifyAll();
+		}
+		try {
+			if(t != null)
+				t.join();
+		} catch(InterruptedException e) {
+			throw new DbException("interrupted while stopping the rebalance passes");
+		}
+		synchronized(this) {
+			if(rebalanceError != null) {
+				Exception e = rebalanceError;
+				rebalanceError = null;
+				DbException dbe = new DbException("rebalancing " + f + " failed");
+				dbe.initCause(e);
+				throw dbe;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of background rebalance passes run so far
+	 * @see #startBackgroundRebalance(long)
+	 */
+	public synchronized int numRebalancePasses() {
+		return rebalancePasses;
+	}
+
+	/**
+	 * Run a rebalance pass every interval until the passes are stopped or one fails
+	 */
+	private void rebalanceInBackground(long intervalMillis) {
+		Thread self = Thread.currentThread();
+		try {
+			while(true) {
+				synchronized(this) {
+					if(rebalancer != self)
+						return;
+					wait(intervalMillis);
+					if(rebalancer != self)
+						return;
+					if(accessors > 0 || underFullPages.isEmpty())
+						continue;
+					rebalancing = self;
+				}
+				TransactionId tid = new TransactionId();
+				try {
+					Database.getBufferPool().updateDirtyPages(tid, rebalance(tid));
+					Database.getBufferPool().transactionComplete(tid);
+				} catch(TransactionAbortedException e) {
+					// the recorded pages are still there for the next pass
+					Database.getBufferPool().transactionComplete(tid, false);
+				} finally {
+					synchronized(this) {
+						rebalancing = null;
+						rebalancePasses++;
+						notifyAll();
+					}
+				}
+			}
+		} catch(Exception e) {
+			synchronized(this) {
+				rebalanceError = e;
+				if(rebalancer == self)
+					rebalancer = null;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Wait for a running rebalance pass to finish, and keep passes from starting
+	 * until {@link #endAccess()} is called. Every operation on the tree and every
+	 * open iterator over it is between the two.
+	 */
+	synchronized void beginAccess() throws DbException {
+		try {
+			while(rebalancing != null && rebalancing != Thread.currentThread())
+				wait();
+		} catch(InterruptedException e) {
+			throw new DbException("interrupted while waiting for a rebalance pass");
+		}
+		accessors++;
+	}
+
+	/**
+	 * Allow rebalance passes again once every operation has finished
+	 */
+	synchronized void endAccess() {
+		accessors--;
+		notifyAll();
+	}
+
+	/**
+	 * Set the number of pages the file grows by when it runs out of empty pages.
+	 * With an extent of more than one page, a split that needs a new page appends
+	 * the whole extent at once and marks the pages it did not use as empty, so 
+	 * the following allocations are served from memory.
+	 * 
+	 * @param pages - the number of pages to append at a time, at least 1
+	 */
+	public void setExtentPages(int pages) {
+		if(pages < 1)
+			throw new IllegalArgumentException("extent must be at least one page");
+		this.extentPages = pages;
+	}
+
+	/**
+	 * Returns the number of pages the file grows by when it runs out of empty pages
+	 * @see #setExtentPages(int)
+	 */
+	public int getExtentPages() {
+		return extentPages;
+	}
+
+	/**
+	 * Set the number of levels of internal pages, counting down from the root,
+	 * which are kept resident in the buffer pool. When levels is positive the root
+	 * pointer page is kept resident as well, so once the tree is warm a search only
+	 * has to fetch the pages below the pinned levels. The pinned pages are not
+	 * evicted by leaf traffic; the buffer pool only evicts them when it has no
+	 * other page to evict. A level holds up to the internal page fan-out times as 
+	 * many pages as the level above it, so levels should be chosen with the size
+	 * of the buffer pool in mind.
+	 * 
+	 * @param levels - the number of levels to pin, or 0 to pin no pages
+	 */
+	public void setPinnedLevels(int levels) {
+		if(levels < 0)
+			throw new IllegalArgumentException("the number of pinned levels must not be negative");
+		this.pinnedLevels = levels;
+		Database.getBufferPool().unpinPages(tableid);
+	}
+
+	/**
+	 * Returns the number of levels of internal pages kept resident in the buffer pool
+	 * @see #setPinnedLevels(int)
+	 */
+	public int getPinnedLevels() {
+		return pinnedLevels;
+	}
+
+	/**
+	 * Pin a page of the upper levels of the tree in the buffer pool, if it is
+	 * within the pinned levels. The root pointer page and the root page are at
+	 * level 0.
+	 * 
+	 * @param pid - the id of the root pointer page or of an internal page
+	 * @param level - the level of the page
+	 */
+	void pinUpperPage(BTreePageId pid, int level) {
+		if(level < pinnedLevels)
+			Database.getBufferPool().pinPage(pid);
+	}
+
+	/**
+	 * Returns the minimum number of tuples or entries a page with the given 
+	 * capacity should hold. Internal pages keep at least two entries so that a
+	 * page being rebalanced always has an entry left to rotate through its parent.
+	 */
+	private int minOccupancy(int max, boolean internal) {
+		int min = (int) (max * mergeThreshold);
+		return internal ? Math.max(2, min) : Math.max(1, min);
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
@@ -195,6 +877,19 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, dirtypages, pid, perm, f, 0);
+	}
+
+	/**
+	 * Recursive step of findLeafPage, which also pins the internal pages it passes 
+	 * through that are within the pinned levels.
+	 * 
+	 * @param level - the level of the page pid, with the root at level 0
+	 * @see #setPinnedLevels(int)
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+			Field f, int level) 
+					throws DbException, TransactionAbortedException {
 
 		// base case - page is a leaf, return it
 		if (pid.pgcateg()==BTreePageId.LEAF)
@@ -202,6 +897,7 @@ public class BTreeFile implements DbFile {
 
 		// get current page from id
 		BTreeInternalPage currpage = (BTreeInternalPage) this.getPage(tid,dirtypages,pid,Permissions.READ_ONLY);
+		pinUpperPage(pid, level);
 		// open iterator
 		Iterator<BTreeEntry> it = currpage.iterator();
 		// for current entry from iterator
@@ -213,7 +909,7 @@ public class BTreeFile implements DbFile {
 			if (it.hasNext())
 			{
 				currentry = it.next();
-				return this.findLeafPage(tid,dirtypages,currentry.getLeftChild(),perm,f);
+				return this.findLeafPage(tid,dirtypages,currentry.getLeftChild(),perm,f,level+1);
 			}
 		}
 
@@ -222,12 +918,12 @@ public class BTreeFile implements DbFile {
 		{
 			currentry = it.next();
 			if (f.compare(Op.LESS_THAN_OR_EQ,currentry.getKey()))
-				return this.findLeafPage(tid, dirtypages, currentry.getLeftChild(), perm, f);
+				return this.findLeafPage(tid, dirtypages, currentry.getLeftChild(), perm, f, level+1);
 		}
 
 		// if value is greater than last entry, search right child
 		if (currentry != null)
-			return this.findLeafPage(tid,dirtypages,currentry.getRightChild(),perm,f);
+			return this.findLeafPage(tid,dirtypages,currentry.getRightChild(),perm,f,level+1);
 
 
         throw new DbException("Shouldn't get here");
@@ -248,7 +944,19 @@ public class BTreeFile implements DbFile {
 	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafPage(tid, pid, perm, f, 0);
+	}
+
+	/**
+	 * Convenience method to find a leaf page below an internal page other than the root.
+	 * @see #findLeafPage(TransactionId, BTreePageId, Permissions, Field)
+	 * 
+	 * @param level - the level of the page pid, with the root at level 0
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
+			Field f, int level) 
+					throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, CompositeField.searchKey(f, keyFields), level);
 	}
 
 	/**
@@ -302,7 +1010,7 @@ public class BTreeFile implements DbFile {
 		}
 
 		// get value of tuple to copy up, create entry
-		Field finsert = curr.getField(this.keyField);
+		Field finsert = keyOf(curr);
 		BTreeEntry newentry = new BTreeEntry(finsert,page.getId(),newpage.getId());
 
 		// handle the parent recursive step
@@ -397,6 +1105,10 @@ public class BTreeFile implements DbFile {
 		page.deleteKeyAndRightChild(moved);
 		moved = new BTreeEntry(moved.getKey(),page.getId(),newpage.getId());
 
+		// buffered tuples follow their keys to the new page
+		for (Tuple t : page.takeMessagesAbove(fmoved))
+			newpage.addMessage(t);
+
 
 		// create the new parent page, handle recursive parent splits
 		BTreeInternalPage parentpage = this.getParentWithEmptySlots(tid,dirtypages,page.getParentId(),moved.getKey());
@@ -447,6 +1159,10 @@ public class BTreeFile implements DbFile {
 			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, 
 					BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
 			rootPtr.setRootId(parent.getId());		
+
+			// every page is now one level further from the root, so the pinned 
+			// pages are chosen again by the next searches
+			Database.getBufferPool().unpinPages(tableid);
 		}
 		else { 
 			// lock the parent page
@@ -558,10 +1274,56 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreeMemtable m = memtable;
+		if(m != null) {
+			m.insert(t);
+			addToBloomFilter(keyOf(t));
+			return new ArrayList<Page>();
+		}
+		ArrayList<Page> dirtyPagesArr = insertIntoTree(tid, t);
+		addToBloomFilter(keyOf(t));
+		return dirtyPagesArr;
+	}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+	/**
+	 * Insert a tuple into the pages of this BTreeFile, bypassing any memtable
+	 * 
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	ArrayList<Page> insertIntoTree(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+
+		beginAccess();
+		try {
+			if(buffered)
+				bufferTuple(tid, dirtypages, t);
+			else
+				insertIntoLeaf(tid, dirtypages, t);
+			getMetadataPage(tid, dirtypages).noteInsert(t.getField(keyField));
+			updateCounts(tid, dirtypages);
+		} finally {
+			endAccess();
+		}
+
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.addAll(dirtypages.values());
+		return dirtyPagesArr;
+	}
+
+	/**
+	 * Insert a tuple into the leaf page it belongs in, splitting pages as needed
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param t - the tuple to insert
+	 */
+	private void insertIntoLeaf(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		// get a read lock on the root pointer page and use it to locate the root page
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
 
 		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
@@ -572,17 +1334,141 @@ public class BTreeFile implements DbFile {
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, keyOf(t));
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, keyOf(t));	
 		}
 
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
+	}
 
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
+	/**
+	 * Insert a tuple into the buffer of the root page of a buffered B+ tree, 
+	 * first making room in the buffer if it is full. While the root is a leaf, 
+	 * the tuple is inserted into it directly.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param t - the tuple to insert
+	 * @see #flushMessages(TransactionId, HashMap, BTreeInternalPage)
+	 */
+	private void bufferTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		while(true) {
+			// moving tuples down may split the root, so look it up each time
+			BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+			if(rootId == null || rootId.pgcateg() == BTreePageId.LEAF) {
+				insertIntoLeaf(tid, dirtypages, t);
+				return;
+			}
+			BTreeInternalPage root = (BTreeInternalPage) getPage(tid, dirtypages, rootId, Permissions.READ_WRITE);
+			if(root.getNumMessages() < root.getMaxMessages()) {
+				root.addMessage(t);
+				return;
+			}
+			flushMessages(tid, dirtypages, root);
+		}
+	}
+
+	/**
+	 * Move buffered tuples down from an internal page until its buffer is at most
+	 * half full. Each round moves the tuples bound for the child with the most of 
+	 * them: into the child's buffer, after emptying that to half full in the same
+	 * way, or into the leaves if the child is a leaf. A leaf which fills up is 
+	 * split as usual, which may split this page and its ancestors, moving part of 
+	 * this page's buffer to its new sibling.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the page whose buffer to empty
+	 */
+	private void flushMessages(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeInternalPage page)
+			throws DbException, IOException, TransactionAbortedException {
+		while(page.getNumMessages() > page.getMaxMessages() / 2) {
+			BTreePageId child = page.getFullestChild();
+			if(child.pgcateg() == BTreePageId.LEAF) {
+				for(Tuple t : page.takeMessages(child, Integer.MAX_VALUE))
+					insertIntoLeaf(tid, dirtypages, t);
+			}
+			else {
+				BTreeInternalPage childPage = (BTreeInternalPage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
+				if(childPage.getNumMessages() > childPage.getMaxMessages() / 2)
+					flushMessages(tid, dirtypages, childPage);
+				int room = childPage.getMaxMessages() - childPage.getNumMessages();
+				for(Tuple t : page.takeMessages(child, room))
+					childPage.addMessage(t);
+			}
+		}
+	}
+
+	/**
+	 * Take the buffered tuples out of an internal page whose entries are about to 
+	 * be merged with or redistributed to a sibling. They are inserted again from 
+	 * the root by {@link #reinsertDisplaced(TransactionId, HashMap, ArrayList)} once
+	 * the tree is consistent.
+	 * 
+	 * @param page - the internal page
+	 * @param displaced - the tuples displaced so far by the current operation
+	 */
+	private void displaceMessages(BTreeInternalPage page, ArrayList<Tuple> displaced) {
+		if(buffered)
+			displaced.addAll(page.takeMessagesAbove(null));
+	}
+
+	/**
+	 * Insert the tuples displaced from the buffers of merged or rebalanced pages
+	 * again from the root. Called at the end of every operation which may merge
+	 * or rebalance internal pages.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param displaced - the tuples displaced by the operation
+	 */
+	private void reinsertDisplaced(TransactionId tid, HashMap<PageId, Page> dirtypages, ArrayList<Tuple> displaced)
+			throws DbException, IOException, TransactionAbortedException {
+		while(!displaced.isEmpty())
+			bufferTuple(tid, dirtypages, displaced.remove(displaced.size() - 1));
+	}
+
+	/**
+	 * Delete a tuple returned from the buffer of an internal page. The tuple may 
+	 * have been moved down since it was read, so it is looked for in the buffers
+	 * on the path to its key, and then in the leaves.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param displaced - the tuples taken out of the buffers of internal pages by the operation
+	 * @param t - the tuple to delete
+	 * @throws DbException if no tuple with the same fields is in the tree
+	 */
+	private void deleteBufferedTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, ArrayList<Tuple> displaced, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Field key = keyOf(t);
+		BTreePageId pid = getRootPtrPage(tid, dirtypages).getRootId();
+		while(pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			if(page.deleteMessage(t))
+				return;
+			pid = page.getChild(key);
+		}
+
+		// tuples with the key may continue into the right siblings of the leaf
+		while(pid != null) {
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			Iterator<Tuple> it = page.iterator();
+			while(it.hasNext()) {
+				Tuple leafTuple = it.next();
+				if(keyOf(leafTuple).compare(Op.GREATER_THAN, key))
+					throw new DbException("tried to delete tuple which is not in the tree");
+				if(BTreeInternalPage.sameFields(leafTuple, t)) {
+					deleteLeafTuple(tid, dirtypages, displaced, leafTuple);
+					return;
+				}
+			}
+			pid = page.getRightSiblingId();
+		}
+		throw new DbException("tried to delete tuple which is not in the tree");
 	}
 	
 	/**
@@ -592,15 +1478,16 @@ public class BTreeFile implements DbFile {
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param displaced - the tuples taken out of the buffers of internal pages by the operation
 	 * @param page - the page which is less than half full
-	 * @see #handleMinOccupancyLeafPage(TransactionId, HashMap, BTreeLeafPage, BTreeInternalPage, BTreeEntry, BTreeEntry)
-	 * @see #handleMinOccupancyInternalPage(TransactionId, HashMap, BTreeInternalPage, BTreeInternalPage, BTreeEntry, BTreeEntry)
+	 * @see #handleMinOccupancyLeafPage(TransactionId, HashMap, ArrayList, BTreeLeafPage, BTreeInternalPage, BTreeEntry, BTreeEntry)
+	 * @see #handleMinOccupancyInternalPage(TransactionId, HashMap, ArrayList, BTreeInternalPage, BTreeInternalPage, BTreeEntry, BTreeEntry)
 	 * 
 	 * @throws DbException
 	 * @throws IOException
 	 * @throws TransactionAbortedException
 	 */
-	private void handleMinOccupancyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePage page) 
+	private void handleMinOccupancyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, ArrayList<Tuple> displaced, BTreePage page) 
 			throws DbException, IOException, TransactionAbortedException {
 		BTreePageId parentId = page.getParentId();
 		BTreeEntry leftEntry = null;
@@ -626,10 +1513,10 @@ public class BTreeFile implements DbFile {
 		}
 		
 		if(page.getId().pgcateg() == BTreePageId.LEAF) {
-			handleMinOccupancyLeafPage(tid, dirtypages, (BTreeLeafPage) page, parent, leftEntry, rightEntry);
+			handleMinOccupancyLeafPage(tid, dirtypages, displaced, (BTreeLeafPage) page, parent, leftEntry, rightEntry);
 		}
 		else { // BTreePageId.INTERNAL
-			handleMinOccupancyInternalPage(tid, dirtypages, (BTreeInternalPage) page, parent, leftEntry, rightEntry);
+			handleMinOccupancyInternalPage(tid, dirtypages, displaced, (BTreeInternalPage) page, parent, leftEntry, rightEntry);
 		}
 	}
 	
@@ -640,18 +1527,19 @@ public class BTreeFile implements DbFile {
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param displaced - the tuples taken out of the buffers of internal pages by the operation
 	 * @param page - the leaf page which is less than half full
 	 * @param parent - the parent of the leaf page
 	 * @param leftEntry - the entry in the parent pointing to the given page and its left-sibling
 	 * @param rightEntry - the entry in the parent pointing to the given page and its right-sibling
-	 * @see #mergeLeafPages(TransactionId, HashMap, BTreeLeafPage, BTreeLeafPage, BTreeInternalPage, BTreeEntry)
+	 * @see #mergeLeafPages(TransactionId, HashMap, ArrayList, BTreeLeafPage, BTreeLeafPage, BTreeInternalPage, BTreeEntry)
 	 * stealFromLeafPage(BTreeLeafPage, BTreeLeafPage, Iterator, BTreeInternalPage, BTreeEntry)
 	 * 
 	 * @throws DbException
 	 * @throws IOException
 	 * @throws TransactionAbortedException
 	 */
-	private void handleMinOccupancyLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, 
+	private void handleMinOccupancyLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, ArrayList<Tuple> displaced, BTreeLeafPage page, 
 			BTreeInternalPage parent, BTreeEntry leftEntry, BTreeEntry rightEntry) 
 			throws DbException, IOException, TransactionAbortedException {
 		BTreePageId leftSiblingId = null;
@@ -659,13 +1547,17 @@ public class BTreeFile implements DbFile {
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 		
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+		int minTuples = minOccupancy(page.getMaxTuples(), false);
+		int maxEmptySlots = page.getMaxTuples() - minTuples;
 		if(leftSiblingId != null) {
 			BTreeLeafPage leftSibling = (BTreeLeafPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
-			// if the left sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some tuples from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
-				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
+			// if the left sibling is at minimum occupancy, or the two pages are too
+			// empty for both to be at minimum occupancy after stealing, as when a
+			// page has drained while rebalancing was deferred, merge with it.
+			// Otherwise steal some tuples from it
+			if(leftSibling.getNumEmptySlots() >= maxEmptySlots 
+					|| leftSibling.getNumTuples() + page.getNumTuples() < 2 * minTuples) {
+				mergeLeafPages(tid, dirtypages, displaced, leftSibling, page, parent, leftEntry);
 			}
 			else {
 				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);				
@@ -673,10 +1565,11 @@ public class BTreeFile implements DbFile {
 		}
 		else if(rightSiblingId != null) {	
 			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
-			// if the right sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some tuples from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
-				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
+			// if the right sibling is at minimum occupancy, or the two pages are
+			// too empty, merge with it. Otherwise steal some tuples from it
+			if(rightSibling.getNumEmptySlots() >= maxEmptySlots 
+					|| rightSibling.getNumTuples() + page.getNumTuples() < 2 * minTuples) {
+				mergeLeafPages(tid, dirtypages, displaced, page, rightSibling, parent, rightEntry);
 			}
 			else {
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
@@ -728,7 +1621,7 @@ public class BTreeFile implements DbFile {
 			curr = it.next();
 
 		// get field from tuple
-		Field insert = curr.getField(this.keyField);
+		Field insert = keyOf(curr);
 
 		// update parent entry
 		entry.setKey(insert);
@@ -742,19 +1635,20 @@ public class BTreeFile implements DbFile {
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param displaced - the tuples taken out of the buffers of internal pages by the operation
 	 * @param page - the internal page which is less than half full
 	 * @param parent - the parent of the internal page
 	 * @param leftEntry - the entry in the parent pointing to the given page and its left-sibling
 	 * @param rightEntry - the entry in the parent pointing to the given page and its right-sibling
-	 * @see #mergeInternalPages(TransactionId, HashMap, BTreeInternalPage, BTreeInternalPage, BTreeInternalPage, BTreeEntry)
-	 * @see #stealFromLeftInternalPage(TransactionId, HashMap, BTreeInternalPage, BTreeInternalPage, BTreeInternalPage, BTreeEntry)
-	 * @see #stealFromRightInternalPage(TransactionId, HashMap, BTreeInternalPage, BTreeInternalPage, BTreeInternalPage, BTreeEntry)
+	 * @see #mergeInternalPages(TransactionId, HashMap, ArrayList, BTreeInternalPage, BTreeInternalPage, BTreeInternalPage, BTreeEntry)
+	 * @see #stealFromLeftInternalPage(TransactionId, HashMap, ArrayList, BTreeInternalPage, BTreeInternalPage, BTreeInternalPage, BTreeEntry)
+	 * @see #stealFromRightInternalPage(TransactionId, HashMap, ArrayList, BTreeInternalPage, BTreeInternalPage, BTreeInternalPage, BTreeEntry)
 	 * 
 	 * @throws DbException
 	 * @throws IOException
 	 * @throws TransactionAbortedException
 	 */
-	private void handleMinOccupancyInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
+	private void handleMinOccupancyInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, ArrayList<Tuple> displaced, 
 			BTreeInternalPage page, BTreeInternalPage parent, BTreeEntry leftEntry, BTreeEntry rightEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 		BTreePageId leftSiblingId = null;
@@ -762,16 +1656,16 @@ public class BTreeFile implements DbFile {
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 		
-		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
+		int maxEmptySlots = page.getMaxEntries() - minOccupancy(page.getMaxEntries(), true);
 		if(leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
 			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
-				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
+				mergeInternalPages(tid, dirtypages, displaced, leftSibling, page, parent, leftEntry);
 			}
 			else {
-				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
+				stealFromLeftInternalPage(tid, dirtypages, displaced, page, leftSibling, parent, leftEntry);
 			}
 		}
 		else if(rightSiblingId != null) {
@@ -779,10 +1673,10 @@ public class BTreeFile implements DbFile {
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
 			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
-				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
+				mergeInternalPages(tid, dirtypages, displaced, page, rightSibling, parent, rightEntry);
 			}
 			else {
-				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
+				stealFromRightInternalPage(tid, dirtypages, displaced, page, rightSibling, parent, rightEntry);
 			}
 		}
 	}
@@ -808,12 +1702,29 @@ public class BTreeFile implements DbFile {
 	protected void stealFromLeftInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent, 
 			BTreeEntry leftEntry) throws DbException, IOException, TransactionAbortedException {
+		ArrayList<Tuple> displaced = new ArrayList<Tuple>();
+		stealFromLeftInternalPage(tid, dirtypages, displaced, page, leftSibling, parent, leftEntry);
+		reinsertDisplaced(tid, dirtypages, displaced);
+	}
+
+	/**
+	 * Same as {@link #stealFromLeftInternalPage(TransactionId, HashMap, BTreeInternalPage, BTreeInternalPage, BTreeInternalPage, BTreeEntry)}, as one step of a larger
+	 * operation: the tuples taken out of the buffers of internal pages are added
+	 * to displaced, to be inserted again once the whole operation is done.
+	 * 
+	 * @param displaced - the tuples displaced so far by the operation
+	 */
+	private void stealFromLeftInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
+			ArrayList<Tuple> displaced, BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent, 
+			BTreeEntry leftEntry) throws DbException, IOException, TransactionAbortedException {
         // Move some of the entries from the left sibling to the page so
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
 
 		int evenNumber = (page.getNumEntries() + leftSibling.getNumEntries()) / 2;
+		displaceMessages(page, displaced);
+		displaceMessages(leftSibling, displaced);
 
 		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
 
@@ -865,12 +1776,29 @@ public class BTreeFile implements DbFile {
 	protected void stealFromRightInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent, 
 			BTreeEntry rightEntry) throws DbException, IOException, TransactionAbortedException {
+		ArrayList<Tuple> displaced = new ArrayList<Tuple>();
+		stealFromRightInternalPage(tid, dirtypages, displaced, page, rightSibling, parent, rightEntry);
+		reinsertDisplaced(tid, dirtypages, displaced);
+	}
+
+	/**
+	 * Same as {@link #stealFromRightInternalPage(TransactionId, HashMap, BTreeInternalPage, BTreeInternalPage, BTreeInternalPage, BTreeEntry)}, as one step of a larger
+	 * operation: the tuples taken out of the buffers of internal pages are added
+	 * to displaced, to be inserted again once the whole operation is done.
+	 * 
+	 * @param displaced - the tuples displaced so far by the operation
+	 */
+	private void stealFromRightInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
+			ArrayList<Tuple> displaced, BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent, 
+			BTreeEntry rightEntry) throws DbException, IOException, TransactionAbortedException {
         // Move some of the entries from the right sibling to the page so
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
 
 		int evenNumber = (page.getNumEntries() + rightSibling.getNumEntries()) / 2;
+		displaceMessages(page, displaced);
+		displaceMessages(rightSibling, displaced);
 
 		// iterator to go through first entries
 		Iterator<BTreeEntry> it = rightSibling.iterator();
@@ -916,7 +1844,7 @@ public class BTreeFile implements DbFile {
 	 * @param rightPage - the right leaf page
 	 * @param parent - the parent of the two pages
 	 * @param parentEntry - the entry in the parent corresponding to the leftPage and rightPage
-	 * @see #deleteParentEntry(TransactionId, HashMap, BTreePage, BTreeInternalPage, BTreeEntry)
+	 * @see #deleteParentEntry(TransactionId, HashMap, ArrayList, BTreePage, BTreeInternalPage, BTreeEntry)
 	 * 
 	 * @throws DbException
 	 * @throws IOException
@@ -925,6 +1853,21 @@ public class BTreeFile implements DbFile {
 	protected void mergeLeafPages(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
+		ArrayList<Tuple> displaced = new ArrayList<Tuple>();
+		mergeLeafPages(tid, dirtypages, displaced, leftPage, rightPage, parent, parentEntry);
+		reinsertDisplaced(tid, dirtypages, displaced);
+	}
+
+	/**
+	 * Same as {@link #mergeLeafPages(TransactionId, HashMap, BTreeLeafPage, BTreeLeafPage, BTreeInternalPage, BTreeEntry)}, as one step of a larger
+	 * operation: the tuples taken out of the buffers of internal pages are added
+	 * to displaced, to be inserted again once the whole operation is done.
+	 * 
+	 * @param displaced - the tuples displaced so far by the operation
+	 */
+	private void mergeLeafPages(TransactionId tid, HashMap<PageId, Page> dirtypages, 
+			ArrayList<Tuple> displaced, BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
+					throws DbException, IOException, TransactionAbortedException {
 		// Move all the tuples from the right page to the left page, update
 		// the sibling pointers, and make the right page available for reuse.
 		// Delete the entry in the parent corresponding to the two pages that are merging -
@@ -943,12 +1886,18 @@ public class BTreeFile implements DbFile {
 			leftPage.insertTuple(curr);
 		}
 
-		// set left page's right sibling to right page's right sibling
+		// set left page's right sibling to right page's right sibling, and point 
+		// that page back to the left page
 		leftPage.setRightSiblingId(rightPage.getRightSiblingId());
+		if(rightPage.getRightSiblingId() != null) {
+			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, 
+					rightPage.getRightSiblingId(), Permissions.READ_WRITE);
+			rightSibling.setLeftSiblingId(leftPage.getId());
+		}
 		// make right page available for use
 		this.setEmptyPage(tid,dirtypages,rightPage.getId().pageNumber());
 		// delete the parent entry and right child pointer
-		this.deleteParentEntry(tid,dirtypages,leftPage,parent,parentEntry);
+		this.deleteParentEntry(tid,dirtypages,displaced,leftPage,parent,parentEntry);
 	}
 
 	/**
@@ -964,7 +1913,7 @@ public class BTreeFile implements DbFile {
 	 * @param rightPage - the right internal page
 	 * @param parent - the parent of the two pages
 	 * @param parentEntry - the entry in the parent corresponding to the leftPage and rightPage
-	 * @see #deleteParentEntry(TransactionId, HashMap, BTreePage, BTreeInternalPage, BTreeEntry)
+	 * @see #deleteParentEntry(TransactionId, HashMap, ArrayList, BTreePage, BTreeInternalPage, BTreeEntry)
 	 * @see #updateParentPointers(TransactionId, HashMap, BTreeInternalPage)
 	 * 
 	 * @throws DbException
@@ -974,12 +1923,30 @@ public class BTreeFile implements DbFile {
 	protected void mergeInternalPages(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
+		ArrayList<Tuple> displaced = new ArrayList<Tuple>();
+		mergeInternalPages(tid, dirtypages, displaced, leftPage, rightPage, parent, parentEntry);
+		reinsertDisplaced(tid, dirtypages, displaced);
+	}
+
+	/**
+	 * Same as {@link #mergeInternalPages(TransactionId, HashMap, BTreeInternalPage, BTreeInternalPage, BTreeInternalPage, BTreeEntry)}, as one step of a larger
+	 * operation: the tuples taken out of the buffers of internal pages are added
+	 * to displaced, to be inserted again once the whole operation is done.
+	 * 
+	 * @param displaced - the tuples displaced so far by the operation
+	 */
+	private void mergeInternalPages(TransactionId tid, HashMap<PageId, Page> dirtypages, 
+			ArrayList<Tuple> displaced, BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
+					throws DbException, IOException, TransactionAbortedException {
         // Move all the entries from the right page to the left page, update
 		// the parent pointers of the children in the entries that were moved, 
 		// and make the right page available for reuse
 		// Delete the entry in the parent corresponding to the two pages that are merging -
 		// deleteParentEntry() will be useful here
 
+		displaceMessages(leftPage, displaced);
+		displaceMessages(rightPage, displaced);
+
 		// create iterator
 		Iterator<BTreeEntry> it = rightPage.iterator();
 
@@ -1004,7 +1971,7 @@ public class BTreeFile implements DbFile {
 		this.updateParentPointers(tid,dirtypages,leftPage);
 
 		// delete the entry and right child in parent
-		this.deleteParentEntry(tid,dirtypages,leftPage,parent,parentEntry);
+		this.deleteParentEntry(tid,dirtypages,displaced,leftPage,parent,parentEntry);
 	}
 	
 	/**
@@ -1016,16 +1983,17 @@ public class BTreeFile implements DbFile {
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param displaced - the tuples taken out of the buffers of internal pages by the operation
 	 * @param leftPage - the child remaining after the key and right child are deleted
 	 * @param parent - the parent containing the entry to be deleted
 	 * @param parentEntry - the entry to be deleted
-	 * @see #handleMinOccupancyPage(TransactionId, HashMap, BTreePage)
+	 * @see #handleMinOccupancyPage(TransactionId, HashMap, ArrayList, BTreePage)
 	 * 
 	 * @throws DbException
 	 * @throws IOException
 	 * @throws TransactionAbortedException
 	 */
-	private void deleteParentEntry(TransactionId tid, HashMap<PageId, Page> dirtypages, 
+	private void deleteParentEntry(TransactionId tid, HashMap<PageId, Page> dirtypages, ArrayList<Tuple> displaced, 
 			BTreePage leftPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {		
 		
@@ -1033,7 +2001,7 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
+		int maxEmptySlots = parent.getMaxEntries() - minOccupancy(parent.getMaxEntries(), true);
 		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
@@ -1045,30 +2013,137 @@ public class BTreeFile implements DbFile {
 			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
 			leftPage.setParentId(rootPtrId);
 			rootPtr.setRootId(leftPage.getId());
+			Database.getBufferPool().unpinPages(tableid);
+			displaceMessages(parent, displaced);
 
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().pageNumber());
 		}
 		else if(parent.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, parent);
+			handleMinOccupancyPage(tid, dirtypages, displaced, parent);
 		}
 	}
 
 	/**
 	 * Delete a tuple from this BTreeFile. 
 	 * May cause pages to merge or redistribute entries/tuples if the pages 
-	 * become less than half full.
+	 * drop below the merge threshold, unless rebalancing is deferred. A tuple
+	 * read from the buffer of an internal page is deleted from the buffer it is
+	 * in now, or from a leaf if it has since been moved down. If the tree has a
+	 * memtable, the delete is made in the memtable and no page is dirtied.
 	 * 
 	 * @param tid - the transaction id
 	 * @param t - the tuple to delete
 	 * @return a list of all pages that were dirtied by this operation. Could include
 	 * many pages since parent pointers will need to be updated when an internal node merges.
-	 * @see #handleMinOccupancyPage(TransactionId, HashMap, BTreePage)
+	 * @see #handleMinOccupancyPage(TransactionId, HashMap, ArrayList, BTreePage)
+	 * @see #setMergeThreshold(double)
+	 * @see #setDeferredRebalance(boolean)
 	 */
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
+		BTreeMemtable m = memtable;
+		if(m != null) {
+			m.delete(t);
+			return new ArrayList<Page>();
+		}
+		return deleteFromTree(tid, t);
+	}
+
+	/**
+	 * Delete a tuple from the pages of this BTreeFile, bypassing any memtable
+	 * 
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	ArrayList<Page> deleteFromTree(TransactionId tid, Tuple t) 
+			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		ArrayList<Tuple> displaced = new ArrayList<Tuple>();
+
+		if(BTreeMemtable.inMemtable(t))
+			throw new DbException("tried to delete tuple which is not in the tree");
+		PageId pid = t.getRecordId().getPageId();
+		beginAccess();
+		try {
+			if(pid instanceof BTreePageId && ((BTreePageId) pid).pgcateg() == BTreePageId.INTERNAL)
+				deleteBufferedTuple(tid, dirtypages, displaced, t);
+			else
+				deleteLeafTuple(tid, dirtypages, displaced, t);
+			Field key = t.getField(keyField);
+			getMetadataPage(tid, dirtypages).noteDelete(1, key, key);
+			reinsertDisplaced(tid, dirtypages, displaced);
+			updateCounts(tid, dirtypages);
+		} finally {
+			endAccess();
+		}
+
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.addAll(dirtypages.values());
+		return dirtyPagesArr;
+	}
+
+	/**
+	 * Delete a tuple with the same fields as a given tuple from the pages of this
+	 * BTreeFile, bypassing any memtable, and mark the dirtied pages in the 
+	 * buffer pool. Used to apply the tombstones of a memtable.
+	 * 
+	 * @param tid - the transaction id
+	 * @param t - a tuple with the fields of the tuple to delete
+	 * @return false if the tree has no such tuple
+	 */
+	boolean deleteMatchingFromTree(TransactionId tid, Tuple t) 
+			throws DbException, IOException, TransactionAbortedException {
+		DbFileIterator it = treeIndexIterator(tid, new IndexPredicate(Op.EQUALS, keyOf(t)));
+		Tuple match = null;
+		it.open();
+		while(match == null && it.hasNext()) {
+			Tuple candidate = it.next();
+			if(BTreeInternalPage.sameFields(candidate, t))
+				match = candidate;
+		}
+		it.close();
+		if(match == null)
+			return false;
+		Database.getBufferPool().updateDirtyPages(tid, deleteFromTree(tid, match));
+		return true;
+	}
+
+	/**
+	 * Count the tuples with the same fields as a given tuple in the pages of this
+	 * BTreeFile, bypassing any memtable. Used to merge a memtable.
+	 * 
+	 * @param tid - the transaction id
+	 * @param t - a tuple with the fields to look for
+	 * @return the number of tuples in the tree with those fields
+	 */
+	int countMatchingInTree(TransactionId tid, Tuple t) 
+			throws DbException, TransactionAbortedException {
+		if(f.length() == 0)
+			return 0;
+		DbFileIterator it = treeIndexIterator(tid, new IndexPredicate(Op.EQUALS, keyOf(t)));
+		int n = 0;
+		it.open();
+		while(it.hasNext()) {
+			if(BTreeInternalPage.sameFields(it.next(), t))
+				n++;
+		}
+		it.close();
+		return n;
+	}
 
+	/**
+	 * Delete a tuple from the leaf page given by its record id, and rebalance the
+	 * page if it falls below the merge threshold
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param displaced - the tuples taken out of the buffers of internal pages by the operation
+	 * @param t - the tuple to delete
+	 */
+	private void deleteLeafTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, ArrayList<Tuple> displaced, Tuple t) 
+			throws DbException, IOException, TransactionAbortedException {
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(), 
 				BTreePageId.LEAF);
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
@@ -1076,9 +2151,62 @@ public class BTreeFile implements DbFile {
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+		int maxEmptySlots = page.getMaxTuples() - minOccupancy(page.getMaxTuples(), false);
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+			if(deferRebalance) {
+				synchronized(this) {
+					underFullPages.add(pageId);
+				}
+			}
+			else {
+				handleMinOccupancyPage(tid, dirtypages, displaced, page);
+			}
+		}
+	}
+
+	/**
+	 * Rebalance the leaf pages recorded as under-full by deleteTuple while 
+	 * rebalancing was deferred. Each page that is still below the merge threshold
+	 * steals from or merges with one of its siblings, exactly as it would have 
+	 * during the delete. A page is only dropped from the record once it has been
+	 * rebalanced. Intended to be run periodically as a maintenance pass in its
+	 * own transaction, see {@link #startBackgroundRebalance(long)}.
+	 * 
+	 * @param tid - the transaction id
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see #setDeferredRebalance(boolean)
+	 */
+	public ArrayList<Page> rebalance(TransactionId tid) 
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		ArrayList<Tuple> displaced = new ArrayList<Tuple>();
+		ArrayList<BTreePageId> pending;
+		synchronized(this) {
+			pending = new ArrayList<BTreePageId>(underFullPages);
+		}
+
+		beginAccess();
+		try {
+			for(BTreePageId pid : pending) {
+				// an earlier merge in this pass may already have released the page
+				synchronized(this) {
+					if(!underFullPages.contains(pid))
+						continue;
+				}
+				BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+				int maxEmptySlots = page.getMaxTuples() - minOccupancy(page.getMaxTuples(), false);
+				if(page.getNumEmptySlots() > maxEmptySlots) {
+					handleMinOccupancyPage(tid, dirtypages, displaced, page);
+				}
+				// the page stays recorded if it could not be rebalanced
+				synchronized(this) {
+					underFullPages.remove(pid);
+				}
+			}
+			reinsertDisplaced(tid, dirtypages, displaced);
+			updateCounts(tid, dirtypages);
+		} finally {
+			endAccess();
 		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -1087,213 +2215,1683 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Get a read lock on the root pointer page. Create the root pointer page and root page
-	 * if necessary.
+	 * Delete the tuples whose key lies in a range. The tree is descended along
+	 * the two ends of the range; the children of the pages on these two paths 
+	 * which lie entirely inside the range are detached, and their subtrees are 
+	 * released with {@link #setEmptyPage(TransactionId, HashMap, int)} without 
+	 * being modified. Only the tuples of the two boundary leaves are deleted one
+	 * at a time, and only pages on the two paths are then merged or rebalanced,
+	 * so separator keys change nowhere else. Pages below the merge threshold 
+	 * afterwards are rebalanced as they would be by deleteTuple, or recorded 
+	 * if rebalancing is deferred.
+	 * <p>
+	 * Changes held in a memtable are merged into the tree first. The leaves of 
+	 * released subtrees are read to count their tuples unless the tree is 
+	 * counted. The dirtied pages are marked dirty in the buffer pool; covering
+	 * indexes over the table are not updated.
 	 * 
 	 * @param tid - the transaction id
-	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages 
-	 * @return the root pointer page
-	 * @throws DbException
-	 * @throws IOException
-	 * @throws TransactionAbortedException
+	 * @param lower - the lower end of the range, or null if the range is unbounded below
+	 * @param lowerInclusive - whether tuples with key equal to lower are in the range
+	 * @param upper - the upper end of the range, or null if the range is unbounded above
+	 * @param upperInclusive - whether tuples with key equal to upper are in the range
+	 * @return the number of tuples deleted
+	 * @see #countRange(TransactionId, Field, boolean, Field, boolean)
 	 */
-	private BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+	public int deleteRange(TransactionId tid, Field lower, boolean lowerInclusive, 
+			Field upper, boolean upperInclusive) 
+					throws DbException, IOException, TransactionAbortedException {
+		flushMemtable();
+		beginAccess();
+		try {
+			return deleteRangeFromTree(tid, lower, lowerInclusive, upper, upperInclusive);
+		} finally {
+			endAccess();
+		}
+	}
+
+	/**
+	 * Delete the tuples whose key lies in a range from the pages of this BTreeFile
+	 * @see #deleteRange(TransactionId, Field, boolean, Field, boolean)
+	 */
+	private int deleteRangeFromTree(TransactionId tid, Field lower, boolean lowerInclusive, 
+			Field upper, boolean upperInclusive) 
+					throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		ArrayList<Tuple> displaced = new ArrayList<Tuple>();
+		IndexPredicate lowPred = lower == null ? null : new IndexPredicate(
+				lowerInclusive ? Op.GREATER_THAN_OR_EQ : Op.GREATER_THAN, CompositeField.searchKey(lower, keyFields));
+		IndexPredicate highPred = upper == null ? null : new IndexPredicate(
+				upperInclusive ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN, CompositeField.searchKey(upper, keyFields));
+
+		BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+		if(rootId == null)
+			return 0;
+		ArrayList<BTreeLeafPage> leaves = new ArrayList<BTreeLeafPage>();
+		int deleted = deleteRange(tid, dirtypages, rootId, null, null, lowPred, highPred, leaves);
+
+		if(!leaves.isEmpty()) {
+			// link the boundary leaves past the released ones
+			BTreeLeafPage first = leaves.get(0);
+			BTreeLeafPage last = leaves.get(leaves.size() - 1);
+			if(lowPred == null)
+				first.setLeftSiblingId(null);
+			if(highPred == null)
+				last.setRightSiblingId(null);
+			if(first != last) {
+				first.setRightSiblingId(last.getId());
+				last.setLeftSiblingId(first.getId());
 			}
+
+			// first remove the pages left with a single child from both paths, so
+			// that every page has a sibling with entries when pages below the
+			// merge threshold are rebalanced
+			while(repairRangePath(tid, dirtypages, displaced, lowPred, false, false)
+					|| repairRangePath(tid, dirtypages, displaced, highPred, true, false));
+			while(repairRangePath(tid, dirtypages, displaced, lowPred, false, true)
+					|| repairRangePath(tid, dirtypages, displaced, highPred, true, true));
 		}
+		getMetadataPage(tid, dirtypages).noteDelete(deleted, leadingKey(lower), leadingKey(upper));
+		reinsertDisplaced(tid, dirtypages, displaced);
+		updateCounts(tid, dirtypages);
 
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		Database.getBufferPool().updateDirtyPages(tid, new ArrayList<Page>(dirtypages.values()));
+		return deleted;
 	}
 
 	/**
-	 * Get the page number of the first empty page in this BTreeFile.
-	 * Creates a new page if none of the existing pages are empty.
+	 * Recursive function which deletes the tuples in a range from a subtree 
+	 * which lies partly inside the range. Children entirely inside the range 
+	 * are released and their entries deleted, and the children which lie 
+	 * partly inside are recursed into.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @return the page number of the first empty page
-	 * 
-	 * @throws DbException
-	 * @throws IOException
-	 * @throws TransactionAbortedException
+	 * @param pid - the root of the subtree
+	 * @param low - the lowest key of the subtree, or null if it is unbounded
+	 * @param high - the highest key of the subtree, or null if it is unbounded
+	 * @param lowPred - the lower end of the range, or null if it is unbounded
+	 * @param highPred - the upper end of the range, or null if it is unbounded
+	 * @param leaves - the list the leaves recursed into are added to, in key order
+	 * @return the number of tuples deleted
 	 */
-	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages) 
-			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		int emptyPageNo = 0;
-
-		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
-				}
-				else {
-					headerPage = null;
-				}
+	private int deleteRange(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, 
+			Field low, Field high, IndexPredicate lowPred, IndexPredicate highPred, 
+			ArrayList<BTreeLeafPage> leaves) 
+					throws DbException, IOException, TransactionAbortedException {
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			ArrayList<Tuple> inRange = new ArrayList<Tuple>();
+			Iterator<Tuple> it = leaf.iterator();
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				Field key = keyOf(t);
+				if(inRange(key, key, lowPred, highPred))
+					inRange.add(t);
 			}
+			for(Tuple t : inRange)
+				leaf.deleteTuple(t);
+			leaves.add(leaf);
+			return inRange.size();
+		}
+
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		int deleted = 0;
+		for(Tuple t : page.getMessages()) {
+			Field key = keyOf(t);
+			if(inRange(key, key, lowPred, highPred) && page.deleteMessage(t))
+				deleted++;
+		}
 
-			// if headerPage is not null, it must have an empty slot
-			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
-				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while(it.hasNext())
+			entries.add(it.next());
+
+		// child i lies between the keys of entries i - 1 and i; the children
+		// entirely inside the range are consecutive
+		int n = entries.size();
+		int first = -1;
+		int last = -1;
+		for(int i = 0; i <= n; i++) {
+			Field lower = i == 0 ? low : entries.get(i - 1).getKey();
+			Field upper = i == n ? high : entries.get(i).getKey();
+			if(inRange(lower, upper, lowPred, highPred)) {
+				if(first == -1)
+					first = i;
+				last = i;
+			}
+		}
+		// only the root can lie entirely inside the range; its left-most child 
+		// is kept so that the tree still has a leaf
+		if(first == 0 && last == n)
+			first = 1;
+
+		for(int i = 0; i <= n; i++) {
+			BTreePageId child = i == 0 ? entries.get(0).getLeftChild() : entries.get(i - 1).getRightChild();
+			Field lower = i == 0 ? low : entries.get(i - 1).getKey();
+			Field upper = i == n ? high : entries.get(i).getKey();
+			if(first != -1 && i >= first && i <= last) {
+				int released = releaseSubtree(tid, dirtypages, child, !counted);
+				deleted += counted ? page.getChildCount(child) : released;
+			}
+			else if((lowPred == null || mayMatch(lowPred.getOp(), lowPred.getField(), lower, upper))
+					&& (highPred == null || mayMatch(highPred.getOp(), highPred.getField(), lower, upper))) {
+				deleted += deleteRange(tid, dirtypages, child, lower, upper, lowPred, highPred, leaves);
 			}
 		}
 
-		// at this point if headerId is null, either there are no header pages 
-		// or there are no free slots
-		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+		// detach the released children
+		if(first != -1 && first <= last) {
+			if(first > 0) {
+				for(int i = first; i <= last; i++)
+					page.deleteKeyAndRightChild(entries.get(i - 1));
+			}
+			else {
+				for(int i = 0; i <= last; i++)
+					page.deleteKeyAndLeftChild(entries.get(i));
 			}
 		}
+		return deleted;
+	}
 
-		return emptyPageNo; 
+	/**
+	 * @param lower - the lowest key of a subtree, or null if it is unbounded
+	 * @param upper - the highest key of a subtree, or null if it is unbounded
+	 * @param lowPred - the lower end of a range, or null if it is unbounded
+	 * @param highPred - the upper end of a range, or null if it is unbounded
+	 * @return true if every key between the bounds lies in the range
+	 */
+	private static boolean inRange(Field lower, Field upper, IndexPredicate lowPred, IndexPredicate highPred) {
+		return (lowPred == null || (lower != null && lower.compare(lowPred.getOp(), lowPred.getField())))
+				&& (highPred == null || (upper != null && upper.compare(highPred.getOp(), highPred.getField())));
 	}
-	
+
 	/**
-	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
-	 * and creates a new page if none are available.  It wipes the page on disk and in the cache and 
-	 * returns a clean copy locked with read-write permission
+	 * Release every page of a subtree detached from the tree for reuse
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pgcateg - the BTreePageId category of the new page.  Either LEAF, INTERNAL, or HEADER
-	 * @return the new empty page
-	 * @see #getEmptyPageNo(TransactionId, HashMap)
-	 * @see #setEmptyPage(TransactionId, HashMap, int)
-	 * 
-	 * @throws DbException
-	 * @throws IOException
-	 * @throws TransactionAbortedException
+	 * @param pid - the root of the subtree
+	 * @param countLeaves - whether to read the leaves to count their tuples
+	 * @return the number of tuples in the buffers of the subtree, plus those in
+	 *         its leaves if they were counted
 	 */
-	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
-			throws DbException, IOException, TransactionAbortedException {
-		// create the new page
-		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
-		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
-		
-		// write empty page to disk
+	private int releaseSubtree(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, 
+			boolean countLeaves) throws DbException, IOException, TransactionAbortedException {
+		int released = 0;
+		if(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			released += page.getNumMessages();
+			Iterator<BTreeEntry> it = page.iterator();
+			BTreeEntry e = null;
+			while(it.hasNext()) {
+				e = it.next();
+				released += releaseSubtree(tid, dirtypages, e.getLeftChild(), countLeaves);
+			}
+			if(e != null)
+				released += releaseSubtree(tid, dirtypages, e.getRightChild(), countLeaves);
+		}
+		else if(countLeaves) {
+			released += ((BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY)).getNumTuples();
+		}
+		setEmptyPage(tid, dirtypages, pid.pageNumber());
+		return released;
+	}
+
+	/**
+	 * Walk down one of the two paths of a range delete and repair the first 
+	 * page on it which needs it: an internal page left with a single child or,
+	 * if underFull is set, a page below the merge threshold. Pages are repaired
+	 * top-down, so the parent of a repaired page always has other entries.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param displaced - the tuples taken out of the buffers of internal pages by the operation
+	 * @param pred - the end of the range the path leads to, or null if it is unbounded
+	 * @param right - whether the path leads to the upper end of the range
+	 * @param underFull - whether to rebalance pages below the merge threshold
+	 * @return true if a page was repaired, which may have changed the path
+	 */
+	private boolean repairRangePath(TransactionId tid, HashMap<PageId, Page> dirtypages, ArrayList<Tuple> displaced, 
+			IndexPredicate pred, boolean right, boolean underFull) 
+					throws DbException, IOException, TransactionAbortedException {
+		BTreePageId pid = getRootPtrPage(tid, dirtypages).getRootId();
+		boolean root = true;
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			int maxEmptySlots = page.getMaxEntries() - minOccupancy(page.getMaxEntries(), true);
+			if(page.getNumEntries() == 0) {
+				removeSingleChildPage(tid, dirtypages, displaced, 
+						(BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE));
+				return true;
+			}
+			if(underFull && !root && page.getNumEmptySlots() > maxEmptySlots) {
+				handleMinOccupancyPage(tid, dirtypages, displaced, 
+						(BTreePage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE));
+				return true;
+			}
+
+			// follow the first child holding keys above the lower end, or the 
+			// last child holding keys below the upper end
+			Iterator<BTreeEntry> it = right ? page.reverseIterator() : page.iterator();
+			BTreeEntry e = null;
+			BTreePageId next = null;
+			while(next == null && it.hasNext()) {
+				e = it.next();
+				if(pred == null || e.getKey().compare(pred.getOp(), pred.getField()))
+					next = right ? e.getRightChild() : e.getLeftChild();
+			}
+			pid = next != null ? next : right ? e.getLeftChild() : e.getRightChild();
+			root = false;
+		}
+
+		if(!underFull || root)
+			return false;
+		BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		int maxEmptySlots = leaf.getMaxTuples() - minOccupancy(leaf.getMaxTuples(), false);
+		if(leaf.getNumEmptySlots() <= maxEmptySlots)
+			return false;
+		if(deferRebalance) {
+			synchronized(this) {
+				underFullPages.add(pid);
+			}
+			return false;
+		}
+		handleMinOccupancyPage(tid, dirtypages, displaced, (BTreePage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE));
+		return true;
+	}
+
+	/**
+	 * Remove an internal page which a range delete left with a single child and
+	 * no entries. The root is replaced by its child. Any other page hands its 
+	 * child to a sibling through the parent entry between them or, if the 
+	 * sibling is full, takes the sibling's nearest child in exchange for the 
+	 * key of the parent entry.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param displaced - the tuples taken out of the buffers of internal pages by the operation
+	 * @param page - the internal page with no entries
+	 */
+	private void removeSingleChildPage(TransactionId tid, HashMap<PageId, Page> dirtypages, ArrayList<Tuple> displaced, 
+			BTreeInternalPage page) throws DbException, IOException, TransactionAbortedException {
+		BTreePageId childId = page.getChildId(0);
+		BTreePageId parentId = page.getParentId();
+		displaceMessages(page, displaced);
+
+		if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+			BTreePage child = (BTreePage) getPage(tid, dirtypages, childId, Permissions.READ_WRITE);
+			child.setParentId(parentId);
+			rootPtr.setRootId(childId);
+			Database.getBufferPool().unpinPages(tableid);
+			setEmptyPage(tid, dirtypages, page.getId().pageNumber());
+			return;
+		}
+
+		BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+		BTreeEntry leftEntry = null;
+		BTreeEntry rightEntry = null;
+		Iterator<BTreeEntry> it = parent.iterator();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			if(e.getLeftChild().equals(page.getId())) {
+				rightEntry = e;
+				break;
+			}
+			else if(e.getRightChild().equals(page.getId())) {
+				leftEntry = e;
+			}
+		}
+
+		if(leftEntry != null) {
+			BTreeInternalPage sibling = (BTreeInternalPage) getPage(tid, dirtypages, 
+					leftEntry.getLeftChild(), Permissions.READ_WRITE);
+			if(sibling.getNumEmptySlots() > 0) {
+				BTreePageId siblingLast = sibling.getNumEntries() == 0 ? sibling.getChildId(0) 
+						: sibling.reverseIterator().next().getRightChild();
+				insertEntry(tid, dirtypages, sibling, new BTreeEntry(leftEntry.getKey(), siblingLast, childId));
+				parent.deleteKeyAndRightChild(leftEntry);
+				updateParentPointer(tid, dirtypages, sibling.getId(), childId);
+				setEmptyPage(tid, dirtypages, page.getId().pageNumber());
+			}
+			else {
+				displaceMessages(sibling, displaced);
+				BTreeEntry moved = sibling.reverseIterator().next();
+				sibling.deleteKeyAndRightChild(moved);
+				insertEntry(tid, dirtypages, page, new BTreeEntry(leftEntry.getKey(), moved.getRightChild(), childId));
+				leftEntry.setKey(moved.getKey());
+				parent.updateEntry(leftEntry);
+				updateParentPointer(tid, dirtypages, page.getId(), moved.getRightChild());
+			}
+		}
+		else {
+			BTreeInternalPage sibling = (BTreeInternalPage) getPage(tid, dirtypages, 
+					rightEntry.getRightChild(), Permissions.READ_WRITE);
+			if(sibling.getNumEmptySlots() > 0) {
+				BTreePageId siblingFirst = sibling.getNumEntries() == 0 ? sibling.getChildId(0) 
+						: sibling.iterator().next().getLeftChild();
+				insertEntry(tid, dirtypages, sibling, new BTreeEntry(rightEntry.getKey(), childId, siblingFirst));
+				parent.deleteKeyAndLeftChild(rightEntry);
+				updateParentPointer(tid, dirtypages, sibling.getId(), childId);
+				setEmptyPage(tid, dirtypages, page.getId().pageNumber());
+			}
+			else {
+				displaceMessages(sibling, displaced);
+				BTreeEntry moved = sibling.iterator().next();
+				sibling.deleteKeyAndLeftChild(moved);
+				insertEntry(tid, dirtypages, page, new BTreeEntry(rightEntry.getKey(), childId, moved.getLeftChild()));
+				rightEntry.setKey(moved.getKey());
+				parent.updateEntry(rightEntry);
+				updateParentPointer(tid, dirtypages, page.getId(), moved.getLeftChild());
+			}
+		}
+	}
+
+	/**
+	 * Insert an entry into an internal page. In a counted tree the two children
+	 * of the entry are marked dirty, so that updateCounts restores the counts 
+	 * insertEntry resets.
+	 */
+	private void insertEntry(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeInternalPage page, 
+			BTreeEntry e) throws DbException, IOException, TransactionAbortedException {
+		page.insertEntry(e);
+		if(counted) {
+			getPage(tid, dirtypages, e.getLeftChild(), Permissions.READ_WRITE);
+			getPage(tid, dirtypages, e.getRightChild(), Permissions.READ_WRITE);
+		}
+	}
+
+	/**
+	 * Get a read lock on the root pointer page. Create the root pointer page and root page
+	 * if necessary.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages 
+	 * @return the root pointer page
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		synchronized(this) {
+			if(f.length() == 0) {
+				// create the root pointer page and the root page
+				BufferedOutputStream bw = new BufferedOutputStream(
+						new FileOutputStream(f, true));
+				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData(formatFlags());
+				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+				bw.write(emptyRootPtrData);
+				bw.write(emptyLeafData);
+				bw.close();
+				// replace any metadata left by an earlier file of the same name
+				FileOutputStream meta = new FileOutputStream(metaFile());
+				meta.write(BTreeMetadataPage.createEmptyPageData());
+				meta.close();
+			}
+		}
+
+		// get a read lock on the root pointer page
+		pinUpperPage(BTreeRootPtrPage.getId(tableid), 0);
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Get the page number of the first empty page in this BTreeFile.
+	 * Creates a new page if none of the existing pages are empty.
+	 * <p>
+	 * Empty pages are found in an in-memory bitmap that mirrors the header pages
+	 * and is built from them the first time it is needed, so finding an empty page
+	 * does not scan the header pages. The slot of the page is still updated in its
+	 * header page, which is found from the cached ids of the header pages without
+	 * reading the root pointer page or walking the chain. A page the bitmap wrongly
+	 * shows as empty is skipped, and a page whose slot could not be updated is 
+	 * put back in the bitmap.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the page number of the first empty page
+	 * @see #setExtentPages(int)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages) 
+			throws DbException, IOException, TransactionAbortedException {
+		loadEmptyPages(tid, dirtypages);
+		int emptyPageNo;
+		while((emptyPageNo = takeEmptyPage()) != -1) {
+			boolean marked = false;
+			try {
+				boolean wasUsed = markPageUsed(tid, dirtypages, emptyPageNo, true);
+				marked = true;
+				if(!wasUsed)
+					return emptyPageNo;
+			} finally {
+				// the page was not claimed, so it is still empty
+				if(!marked)
+					setEmptyPageBit(emptyPageNo, true);
+			}
+		}
+
+		// there are no empty pages, so extend the file. The rest of the extent is 
+		// available to the next allocations
+		int extent = extentPages;
+		emptyPageNo = appendPages(extent);
+		markPagesEmpty(tid, dirtypages, emptyPageNo + 1, emptyPageNo + extent);
+
+		return emptyPageNo; 
+	}
+
+	/**
+	 * Append empty pages to the end of the file.
+	 * 
+	 * @param n - the number of pages to append
+	 * @return the page number of the first new page
+	 * @throws IOException
+	 */
+	private int appendPages(int n) throws IOException {
+		synchronized(this) {
+			// create the new pages
+			BufferedOutputStream bw = new BufferedOutputStream(
+					new FileOutputStream(f, true));
+			byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+			for(int i = 0; i < n; i++)
+				bw.write(emptyData);
+			bw.close();
+			return numPages() - n + 1;
+		}
+	}
+
+	/**
+	 * Build the in-memory empty page bitmap from the header pages, if it has not been 
+	 * built yet.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void loadEmptyPages(TransactionId tid, HashMap<PageId, Page> dirtypages) 
+			throws DbException, IOException, TransactionAbortedException {
+		synchronized(emptyPageLock) {
+			if(emptyPages != null)
+				return;
+		}
+
+		long[] bits = new long[1];
+		ArrayList<BTreePageId> headerIds = loadHeaderPages(tid, dirtypages);
+		for(int headerPageCount = 0; headerPageCount < headerIds.size(); headerPageCount++) {
+			BTreePageId headerId;
+			synchronized(emptyPageLock) {
+				headerId = headerIds.get(headerPageCount);
+			}
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			int slot = headerPage.getEmptySlot(0);
+			while(slot != -1) {
+				int pageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + slot;
+				if(pageNo >> 6 >= bits.length)
+					bits = Arrays.copyOf(bits, Math.max(bits.length * 2, (pageNo >> 6) + 1));
+				bits[pageNo >> 6] |= 1L << pageNo;
+				slot = headerPage.getEmptySlot(slot + 1);
+			}
+		}
+
+		synchronized(emptyPageLock) {
+			if(emptyPages == null) {
+				emptyPages = bits;
+				emptyPageHint = 0;
+			}
+		}
+	}
+
+	/**
+	 * Read the ids of the header pages from the chain starting at the root pointer
+	 * page, if they have not been read yet.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the cached ids of the header pages, in the order of the chain
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private ArrayList<BTreePageId> loadHeaderPages(TransactionId tid, HashMap<PageId, Page> dirtypages) 
+			throws DbException, IOException, TransactionAbortedException {
+		synchronized(emptyPageLock) {
+			if(headerPages != null)
+				return headerPages;
+		}
+
+		ArrayList<BTreePageId> ids = new ArrayList<BTreePageId>();
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		while(headerId != null) {
+			ids.add(headerId);
+			headerId = ((BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY)).getNextPageId();
+		}
+
+		synchronized(emptyPageLock) {
+			if(headerPages == null)
+				headerPages = ids;
+			return headerPages;
+		}
+	}
+
+	/**
+	 * Get the header page with the given position in the chain of header pages,
+	 * appending header pages to the chain if it is shorter. Only appending a 
+	 * header page reads the root pointer page or the header page before it.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param index - the position of the header page in the chain, from 0
+	 * @return the header page, locked with read-write permission
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private BTreeHeaderPage getHeaderPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int index) 
+			throws DbException, IOException, TransactionAbortedException {
+		ArrayList<BTreePageId> ids = loadHeaderPages(tid, dirtypages);
+		while(true) {
+			BTreePageId headerId = null;
+			BTreePageId prevId = null;
+			synchronized(emptyPageLock) {
+				if(index < ids.size())
+					headerId = ids.get(index);
+				else if(!ids.isEmpty())
+					prevId = ids.get(ids.size() - 1);
+			}
+			if(headerId != null)
+				return (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+
+			// header pages are always appended, since allocating them from the 
+			// empty pages they track could recurse back here
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) initEmptyPage(tid, dirtypages, appendPages(1), BTreePageId.HEADER);
+			headerPage.init();
+			if(prevId == null) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, 
+						BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setHeaderId(headerPage.getId());
+			}
+			else {
+				BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
+				headerPage.setPrevPageId(prevId);
+				prevPage.setNextPageId(headerPage.getId());
+			}
+			synchronized(emptyPageLock) {
+				ids.add(headerPage.getId());
+			}
+		}
+	}
+
+	/**
+	 * Remove the lowest-numbered page from the in-memory empty page bitmap.
+	 * 
+	 * @return the page number, or -1 if the bitmap has no empty pages
+	 */
+	private int takeEmptyPage() {
+		synchronized(emptyPageLock) {
+			for(int i = emptyPageHint >> 6; i < emptyPages.length; i++) {
+				if(emptyPages[i] != 0) {
+					int pageNo = (i << 6) + Long.numberOfTrailingZeros(emptyPages[i]);
+					emptyPages[i] &= ~(1L << pageNo);
+					emptyPageHint = pageNo + 1;
+					return pageNo;
+				}
+			}
+			emptyPageHint = emptyPages.length << 6;
+			return -1;
+		}
+	}
+
+	/**
+	 * @return whether the in-memory empty page bitmap, which must have been built,
+	 *         shows a page as empty
+	 */
+	private boolean isEmptyPageBit(int pageNo) {
+		synchronized(emptyPageLock) {
+			return pageNo >> 6 < emptyPages.length && (emptyPages[pageNo >> 6] & (1L << pageNo)) != 0;
+		}
+	}
+
+	/**
+	 * Record in the in-memory empty page bitmap, if it has been built, whether a 
+	 * page is empty.
+	 * 
+	 * @param pageNo - the page number
+	 * @param empty - whether the page is empty
+	 */
+	private void setEmptyPageBit(int pageNo, boolean empty) {
+		synchronized(emptyPageLock) {
+			if(emptyPages == null)
+				return;
+			if(empty) {
+				if(pageNo >> 6 >= emptyPages.length)
+					emptyPages = Arrays.copyOf(emptyPages, Math.max(emptyPages.length * 2, (pageNo >> 6) + 1));
+				emptyPages[pageNo >> 6] |= 1L << pageNo;
+				emptyPageHint = Math.min(emptyPageHint, pageNo);
+			}
+			else if(pageNo >> 6 < emptyPages.length) {
+				emptyPages[pageNo >> 6] &= ~(1L << pageNo);
+			}
+		}
+	}
+	
+	/**
+	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
+	 * and creates a new page if none are available.  It wipes the page on disk and in the cache and 
+	 * returns a clean copy locked with read-write permission
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pgcateg - the BTreePageId category of the new page.  Either LEAF, INTERNAL, or HEADER
+	 * @return the new empty page
+	 * @see #getEmptyPageNo(TransactionId, HashMap)
+	 * @see #setEmptyPage(TransactionId, HashMap, int)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
+			throws DbException, IOException, TransactionAbortedException {
+		return initEmptyPage(tid, dirtypages, getEmptyPageNo(tid, dirtypages), pgcateg);
+	}
+
+	/**
+	 * Wipe a page that has just been claimed, on disk and in the cache, and return a 
+	 * clean copy locked with read-write permission.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param emptyPageNo - the page number of the claimed page
+	 * @param pgcateg - the BTreePageId category of the new page.  Either LEAF, INTERNAL, or HEADER
+	 * @return the new empty page
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private Page initEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int emptyPageNo, int pgcateg)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
+		
+		// write empty page to disk
 		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
 		rf.write(BTreePage.createEmptyPageData());
 		rf.close();
 		
-		// make sure the page is not in the buffer pool	or in the local cache		
-		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
+		// make sure the page is not in the buffer pool	or in the local cache, 
+		// including stale copies from when the page had a different category
+		discardPageNo(dirtypages, emptyPageNo);
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
 
 	/**
-	 * Mark a page in this BTreeFile as empty. Find the corresponding header page 
-	 * (create it if needed), and mark the corresponding slot in the header page as empty.
+	 * Remove every cached copy of the given page number from the buffer pool and 
+	 * from the local cache, whatever page category it was cached as.
+	 * 
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pageNo - the page number
+	 */
+	private void discardPageNo(HashMap<PageId, Page> dirtypages, int pageNo) {
+		int[] categs = {BTreePageId.LEAF, BTreePageId.INTERNAL, BTreePageId.HEADER};
+		for(int pgcateg : categs) {
+			BTreePageId pid = new BTreePageId(tableid, pageNo, pgcateg);
+			Database.getBufferPool().discardPage(pid);
+			dirtypages.remove(pid);
+		}
+	}
+
+	/**
+	 * Mark a page in this BTreeFile as empty. Find the corresponding header page 
+	 * (create it if needed), and mark the corresponding slot in the header page as empty.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param emptyPageNo - the page number of the empty page
+	 * @see #getEmptyPage(TransactionId, HashMap, int)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	protected void setEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int emptyPageNo) 
+			throws DbException, IOException, TransactionAbortedException {
+
+		// if this is the last page in the file (and not the only page), just 
+		// truncate the file
+		// @TODO: Commented out because we should probably do this somewhere else in case the transaction aborts....
+//		synchronized(this) {
+//			if(emptyPageNo == numPages()) {
+//				if(emptyPageNo <= 1) {
+//					// if this is the only page in the file, just return.
+//					// It just means we have an empty root page
+//					return;
+//				}
+//				long newSize = f.length() - BufferPool.getPageSize();
+//				FileOutputStream fos = new FileOutputStream(f, true);
+//				FileChannel fc = fos.getChannel();
+//				fc.truncate(newSize);
+//				fc.close();
+//				fos.close();
+//				return;
+//			}
+//		}
+
+		markPageUsed(tid, dirtypages, emptyPageNo, false);
+		Database.getBufferPool().unpinPage(new BTreePageId(tableid, emptyPageNo, BTreePageId.INTERNAL));
+
+		// a released page no longer needs rebalancing
+		synchronized(this) {
+			underFullPages.remove(new BTreePageId(tableid, emptyPageNo, BTreePageId.LEAF));
+		}
+	}
+
+	/**
+	 * Mark a page in this BTreeFile as used or empty. Find the corresponding header page 
+	 * (create it if needed), and set the corresponding slot in the header page.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pageNo - the page number
+	 * @param used - whether the page is in use
+	 * @return whether the page was in use before
+	 * @see #setEmptyPage(TransactionId, HashMap, int)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private boolean markPageUsed(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo, boolean used) 
+			throws DbException, IOException, TransactionAbortedException {
+		int index = headerIndex(pageNo);
+		BTreeHeaderPage headerPage = getHeaderPage(tid, dirtypages, index);
+		int slot = pageNo - index * BTreeHeaderPage.getNumSlots();
+		boolean wasUsed = headerPage.isSlotUsed(slot);
+		headerPage.markSlotUsed(slot, used);
+		setEmptyPageBit(pageNo, !used);
+		return wasUsed;
+	}
+
+	/**
+	 * Mark a run of pages in this BTreeFile as empty, updating each header page
+	 * once for all of its slots in the run.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param first - the page number of the first page of the run
+	 * @param end - the page number after the last page of the run
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void markPagesEmpty(TransactionId tid, HashMap<PageId, Page> dirtypages, int first, int end) 
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeHeaderPage headerPage = null;
+		int index = -1;
+		for(int pageNo = first; pageNo < end; pageNo++) {
+			if(headerIndex(pageNo) != index) {
+				index = headerIndex(pageNo);
+				headerPage = getHeaderPage(tid, dirtypages, index);
+			}
+			headerPage.markSlotUsed(pageNo - index * BTreeHeaderPage.getNumSlots(), false);
+			setEmptyPageBit(pageNo, true);
+		}
+	}
+
+	/**
+	 * Returns the position in the chain of header pages of the header page 
+	 * holding the slot of a page
+	 */
+	private static int headerIndex(int pageNo) {
+		return pageNo / BTreeHeaderPage.getNumSlots();
+	}
+
+	/**
+	 * Find the lowest-numbered empty page in this BTreeFile, without claiming it.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param limit - only pages numbered below limit are considered
+	 * @return the page number of the lowest empty page, or -1 if there is none below limit
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private int findEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages, int limit) 
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		BTreePageId headerId = rootPtr.getHeaderId();
+		int headerPageCount = 0;
+		while(headerId != null && headerPageCount * BTreeHeaderPage.getNumSlots() < limit) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			int emptySlot = headerPage.getEmptySlot();
+			if(emptySlot != -1) {
+				int emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+				return emptyPageNo < limit ? emptyPageNo : -1;
+			}
+			headerId = headerPage.getNextPageId();
+			headerPageCount++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Check whether a page in this BTreeFile is marked empty in the header pages.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pageNo - the page number
+	 * @return true if the page is empty
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private boolean isEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo) 
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		BTreePageId headerId = rootPtr.getHeaderId();
+		int headerPageCount = 0;
+		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() <= pageNo) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			headerId = headerPage.getNextPageId();
+			headerPageCount++;
+		}
+		if(headerId == null)
+			return false;
+		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+		int slot = pageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
+		return slot < BTreeHeaderPage.getNumSlots() && !headerPage.isSlotUsed(slot);
+	}
+
+	/**
+	 * Repack a leaf page to the target number of tuples by moving tuples into it from 
+	 * the right siblings that share its parent, in key order. Right siblings that are 
+	 * drained completely are merged into the page and released. Used by online compaction.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the leaf page to repack
+	 * @param target - the number of tuples the page should hold
+	 * @return the id of the next leaf page in key order, or null if this was the last one
+	 * @see BTreeCompactor
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	protected BTreePageId repackLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
+			BTreePageId pid, int target) 
+					throws DbException, IOException, TransactionAbortedException {
+		ArrayList<Tuple> displaced = new ArrayList<Tuple>();
+		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		while(page.getNumTuples() < target && page.getRightSiblingId() != null) {
+			BTreeLeafPage rightPage = (BTreeLeafPage) getPage(tid, dirtypages, 
+					page.getRightSiblingId(), Permissions.READ_WRITE);
+			if(!rightPage.getParentId().equals(page.getParentId())) 
+				break;
+
+			// find the entry in the parent separating the two pages
+			BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, 
+					page.getParentId(), Permissions.READ_WRITE);
+			BTreeEntry entry = null;
+			Iterator<BTreeEntry> ite = parent.iterator();
+			while(ite.hasNext()) {
+				BTreeEntry e = ite.next();
+				if(e.getLeftChild().equals(page.getId())) {
+					entry = e;
+					break;
+				}
+			}
+			if(entry == null)
+				throw new DbException("leaf page " + page.getId() + " not found in its parent");
+
+			Iterator<Tuple> it = rightPage.iterator();
+			while(it.hasNext() && page.getNumTuples() < target) {
+				Tuple t = it.next();
+				rightPage.deleteTuple(t);
+				page.insertTuple(t);
+			}
+
+			if(rightPage.getNumTuples() == 0) {
+				mergeLeafPages(tid, dirtypages, displaced, page, rightPage, parent, entry);
+			}
+			else {
+				entry.setKey(keyOf(rightPage.iterator().next()));
+				parent.updateEntry(entry);
+			}
+		}
+		reinsertDisplaced(tid, dirtypages, displaced);
+		updateCounts(tid, dirtypages);
+		return page.getRightSiblingId();
+	}
+
+	/**
+	 * Move a page of this BTreeFile to a lower-numbered empty page, if there is one.
+	 * The page's contents are copied to the lowest empty page, every pointer to the 
+	 * page (from its parent or the root pointer, its siblings, its children, or the 
+	 * neighbouring header pages) is redirected to the copy, and the old page is 
+	 * released. Used by online compaction to pack the file towards its start.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the page to move
+	 * @return the id of the page after the move, which is pid if no lower page was empty
+	 * @see BTreeCompactor
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	protected BTreePageId relocatePage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid) 
+			throws DbException, IOException, TransactionAbortedException {
+		int newPageNo = findEmptyPageNo(tid, dirtypages, pid.pageNumber());
+		if(newPageNo == -1)
+			return pid;
+
+		Page page = getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		markPageUsed(tid, dirtypages, newPageNo, true);
+
+		// write a copy of the page to disk and read it back under its new id
+		BTreePageId newId = new BTreePageId(tableid, newPageNo, pid.pgcateg());
+		RandomAccessFile rf = new RandomAccessFile(f, "rw");
+		rf.seek(BTreeRootPtrPage.getPageSize() + (newPageNo-1) * BufferPool.getPageSize());
+		rf.write(page.getPageData());
+		rf.close();
+		discardPageNo(dirtypages, newPageNo);
+		Page moved = getPage(tid, dirtypages, newId, Permissions.READ_WRITE);
+
+		if(pid.pgcateg() == BTreePageId.HEADER) {
+			synchronized(emptyPageLock) {
+				if(headerPages != null)
+					headerPages.set(headerPages.indexOf(pid), newId);
+			}
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) moved;
+			if(headerPage.getPrevPageId() == null) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, 
+						BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setHeaderId(newId);
+			}
+			else {
+				BTreeHeaderPage prev = (BTreeHeaderPage) getPage(tid, dirtypages, 
+						headerPage.getPrevPageId(), Permissions.READ_WRITE);
+				prev.setNextPageId(newId);
+			}
+			if(headerPage.getNextPageId() != null) {
+				BTreeHeaderPage next = (BTreeHeaderPage) getPage(tid, dirtypages, 
+						headerPage.getNextPageId(), Permissions.READ_WRITE);
+				next.setPrevPageId(newId);
+			}
+		}
+		else {
+			BTreePage treePage = (BTreePage) moved;
+			BTreePageId parentId = treePage.getParentId();
+			if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+				rootPtr.setRootId(newId);
+			}
+			else {
+				BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+				Iterator<BTreeEntry> it = parent.iterator();
+				while(it.hasNext()) {
+					BTreeEntry e = it.next();
+					if(e.getLeftChild().equals(pid))
+						e.setLeftChild(newId);
+					else if(e.getRightChild().equals(pid))
+						e.setRightChild(newId);
+					else
+						continue;
+					parent.updateEntry(e);
+				}
+			}
+
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				BTreeLeafPage leafPage = (BTreeLeafPage) moved;
+				if(leafPage.getLeftSiblingId() != null) {
+					BTreeLeafPage left = (BTreeLeafPage) getPage(tid, dirtypages, 
+							leafPage.getLeftSiblingId(), Permissions.READ_WRITE);
+					left.setRightSiblingId(newId);
+				}
+				if(leafPage.getRightSiblingId() != null) {
+					BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, 
+							leafPage.getRightSiblingId(), Permissions.READ_WRITE);
+					right.setLeftSiblingId(newId);
+				}
+			}
+			else {
+				updateParentPointers(tid, dirtypages, (BTreeInternalPage) moved);
+			}
+		}
+
+		// release the old page, dropping any cached copies so they are never written back
+		setEmptyPage(tid, dirtypages, pid.pageNumber());
+		discardPageNo(dirtypages, pid.pageNumber());
+		return newId;
+	}
+
+	/**
+	 * Shrink the file by cutting off the empty pages at its end. The slots of the 
+	 * removed pages are marked used in the header pages, as for pages past the end 
+	 * of the file, so that they are not handed out again. The file is truncated 
+	 * immediately, so this should run in its own transaction after the pages 
+	 * being cut off were released by committed transactions.
+	 * 
+	 * @param tid - the transaction id
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see BTreeCompactor
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	public ArrayList<Page> truncateEmptyPages(TransactionId tid) 
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		beginAccess();
+		try {
+			truncateEmptyPages(tid, dirtypages);
+		} finally {
+			endAccess();
+		}
+
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.addAll(dirtypages.values());
+		return dirtyPagesArr;
+	}
+
+	/**
+	 * Release the empty pages at the end of the file and truncate it
+	 * @see #truncateEmptyPages(TransactionId)
+	 */
+	private void truncateEmptyPages(TransactionId tid, HashMap<PageId, Page> dirtypages) 
+			throws DbException, IOException, TransactionAbortedException {
+		synchronized(this) {
+			int oldNumPages = numPages();
+			int lastPageNo = oldNumPages;
+			while(lastPageNo > 1 && isEmptyPage(tid, dirtypages, lastPageNo))
+				lastPageNo--;
+
+			for(int pageNo = lastPageNo + 1; pageNo <= oldNumPages; pageNo++) {
+				markPageUsed(tid, dirtypages, pageNo, true);
+				discardPageNo(dirtypages, pageNo);
+			}
+			if(lastPageNo < oldNumPages) {
+				RandomAccessFile rf = new RandomAccessFile(f, "rw");
+				rf.setLength(BTreeRootPtrPage.getPageSize() + (long) lastPageNo * BufferPool.getPageSize());
+				rf.close();
+			}
+		}
+	}
+
+	/**
+	 * Walk the tree and the header pages and gather statistics about the shape
+	 * of the tree. The upper levels of the tree are read until there are enough
+	 * subtrees to keep every thread busy, and the subtrees are then walked
+	 * concurrently on a fork-join pool. Tuples held in a memtable or in the
+	 * message buffers of a buffered tree are not counted.
+	 * 
+	 * @param tid - the transaction id
+	 * @param parallelism - the number of threads to walk the tree with
+	 * @return the statistics of the tree
+	 * @see BTreeStats
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	public BTreeStats analyze(final TransactionId tid, int parallelism) 
+			throws DbException, IOException, TransactionAbortedException {
+		if(parallelism < 1)
+			throw new IllegalArgumentException("parallelism must be positive");
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+
+		// the height of the tree is the length of its left-most path
+		int height = 0;
+		BTreePageId pid = rootPtr.getRootId();
+		while(pid != null) {
+			height++;
+			if(pid.pgcateg() == BTreePageId.LEAF)
+				break;
+			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			pid = page.iterator().next().getLeftChild();
+		}
+		final BTreeStats stats = new BTreeStats(height);
+		stats.filePages = numPages();
+
+		BTreePageId headerId = rootPtr.getHeaderId();
+		while(headerId != null) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			int first = stats.headerPages * BTreeHeaderPage.getNumSlots();
+			for(int slot = 0; slot < BTreeHeaderPage.getNumSlots() && first + slot <= stats.filePages; slot++) {
+				if(first + slot > 0 && !headerPage.isSlotUsed(slot))
+					stats.freePages++;
+			}
+			headerId = headerPage.getNextPageId();
+			stats.headerPages++;
+		}
+		if(height == 0)
+			return stats;
+
+		// read the upper levels until there are enough subtrees
+		ArrayList<BTreePageId> subtrees = new ArrayList<BTreePageId>();
+		subtrees.add(rootPtr.getRootId());
+		int level = 0;
+		while(parallelism > 1 && subtrees.size() < parallelism * 4 && level < height - 1) {
+			ArrayList<BTreePageId> children = new ArrayList<BTreePageId>();
+			for(BTreePageId id : subtrees) {
+				BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, id, Permissions.READ_ONLY);
+				stats.addPage(level, page);
+				children.addAll(childIds(page));
+			}
+			subtrees = children;
+			level++;
+		}
+
+		final int subtreeLevel = level;
+		ArrayList<Callable<BTreeStats>> tasks = new ArrayList<Callable<BTreeStats>>();
+		for(final BTreePageId id : subtrees) {
+			tasks.add(new Callable<BTreeStats>() {
+				public BTreeStats call() throws Exception {
+					BTreeStats partial = new BTreeStats(stats.height);
+					analyzeSubtree(tid, id, subtreeLevel, partial);
+					return partial;
+				}
+			});
+		}
+		ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, subtrees.size()));
+		try {
+			for(Future<BTreeStats> result : pool.invokeAll(tasks))
+				stats.merge(result.get());
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DbException("interrupted while analyzing the tree");
+		} catch(ExecutionException e) {
+			throw new DbException("failed to analyze the tree: " + e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		return stats;
+	}
+
+	/**
+	 * @return the ids of the children of an internal page, in key order
+	 */
+	private static ArrayList<BTreePageId> childIds(BTreeInternalPage page) {
+		ArrayList<BTreePageId> children = new ArrayList<BTreePageId>();
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			children.add(e.getLeftChild());
+		}
+		if(e != null)
+			children.add(e.getRightChild());
+		return children;
+	}
+
+	/**
+	 * Add the pages of a subtree to the statistics, depth first
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the root of the subtree
+	 * @param level - the level of the root of the subtree
+	 * @param stats - the statistics to add the pages to
+	 */
+	private void analyzeSubtree(TransactionId tid, BTreePageId pid, int level, BTreeStats stats) 
+			throws DbException, TransactionAbortedException {
+		BTreePage page = (BTreePage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+		stats.addPage(level, page);
+		if(page instanceof BTreeInternalPage) {
+			for(BTreePageId child : childIds((BTreeInternalPage) page))
+				analyzeSubtree(tid, child, level + 1, stats);
+		}
+	}
+
+	/**
+	 * Bring the subtree counts of a counted B+ tree up to date after the pages in 
+	 * dirtypages were modified. The modified pages are visited once each, deepest
+	 * first: the count each parent records for a page is compared with the page's
+	 * own total and corrected if they differ, and a corrected parent is queued in
+	 * turn, so a parent is only visited after all of its modified children. An 
+	 * insert or delete which changes one leaf thus corrects one entry on each 
+	 * level of its path. Released pages, found in the empty page bitmap, are
+	 * skipped. Splits, merges and steals leave the counts of the pages they touch
+	 * stale, and insertTuple and deleteTuple change the count of a leaf, so every 
+	 * operation which modifies the tree ends with this pass.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void updateCounts(TransactionId tid, HashMap<PageId, Page> dirtypages) 
+			throws DbException, IOException, TransactionAbortedException {
+		if(!counted)
+			return;
+		loadEmptyPages(tid, dirtypages);
+		final HashMap<BTreePageId, Integer> depths = new HashMap<BTreePageId, Integer>();
+		PriorityQueue<BTreePageId> queue = new PriorityQueue<BTreePageId>(16, new Comparator<BTreePageId>() {
+			public int compare(BTreePageId a, BTreePageId b) {
+				return depths.get(b) - depths.get(a);
+			}
+		});
+		for(Page p : new ArrayList<Page>(dirtypages.values())) {
+			BTreePageId pid = (BTreePageId) p.getId();
+			if((pid.pgcateg() == BTreePageId.LEAF || pid.pgcateg() == BTreePageId.INTERNAL)
+					&& !isEmptyPageBit(pid.pageNumber())) {
+				depth(tid, dirtypages, pid, depths);
+				queue.add(pid);
+			}
+		}
+
+		HashSet<BTreePageId> visited = new HashSet<BTreePageId>();
+		while(!queue.isEmpty()) {
+			BTreePageId pid = queue.poll();
+			if(!visited.add(pid))
+				continue;
+			BTreePage page = (BTreePage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			BTreePageId parentId = page.getParentId();
+			if(parentId.pgcateg() != BTreePageId.INTERNAL || isEmptyPageBit(parentId.pageNumber()))
+				continue;
+			BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_ONLY);
+			int count = subtreeCount(page);
+			int recorded = parent.getChildCount(pid);
+			if(recorded != -1 && recorded != count) {
+				parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+				parent.setChildCount(pid, count);
+				depths.put(parentId, depths.get(pid) - 1);
+				queue.add(parentId);
+			}
+		}
+	}
+
+	/**
+	 * Find the depth of a page below the root by following its parent pointers,
+	 * remembering the depth of each page on the way.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the page
+	 * @param depths - the depths found so far, updated with the pages on the path
+	 * @return the number of internal pages above the page
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private int depth(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, 
+			HashMap<BTreePageId, Integer> depths) 
+			throws DbException, IOException, TransactionAbortedException {
+		Integer known = depths.get(pid);
+		if(known != null)
+			return known;
+		BTreePageId parentId = ((BTreePage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY)).getParentId();
+		int depth = parentId.pgcateg() == BTreePageId.INTERNAL ? depth(tid, dirtypages, parentId, depths) + 1 : 0;
+		depths.put(pid, depth);
+		return depth;
+	}
+
+	/**
+	 * @return the number of tuples below a page of a counted B+ tree
+	 */
+	private int subtreeCount(BTreePage page) {
+		if(page instanceof BTreeLeafPage)
+			return ((BTreeLeafPage) page).getNumTuples();
+		return ((BTreeInternalPage) page).getTotalCount();
+	}
+
+	private BTreePageId getCountedRootId(TransactionId tid) 
+			throws DbException, IOException, TransactionAbortedException {
+		if(!counted)
+			throw new DbException("subtree counts are only kept by counted B+ trees");
+		return getRootPtrPage(tid, new HashMap<PageId, Page>()).getRootId();
+	}
+
+	/**
+	 * Count the tuples of a counted B+ tree whose key is below the given key, by
+	 * descending along the path to the key. At each internal page the children
+	 * entirely below the key are counted from their subtree counts.
+	 * 
+	 * @param tid - the transaction id
+	 * @param key - the key or key prefix to compare with
+	 * @param inclusive - whether to also count the tuples whose key equals key
+	 * @return the number of tuples whose key is less than (or equal to) key
+	 */
+	private int countBelow(TransactionId tid, Field key, boolean inclusive) 
+			throws DbException, IOException, TransactionAbortedException {
+		beginAccess();
+		try {
+			BTreePageId pid = getCountedRootId(tid);
+			if(pid == null)
+				return 0;
+			key = CompositeField.searchKey(key, keyFields);
+			Op stop = inclusive ? Op.GREATER_THAN : Op.GREATER_THAN_OR_EQ;
+			int below = 0;
+			while(pid.pgcateg() == BTreePageId.INTERNAL) {
+				BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+						tid, pid, Permissions.READ_ONLY);
+				int[] counts = page.getChildCounts();
+				Iterator<BTreeEntry> it = page.iterator();
+				BTreePageId next = null;
+				BTreeEntry e = null;
+				int i = 0;
+				while(it.hasNext()) {
+					e = it.next();
+					// the left child holds keys up to this entry's key; any later 
+					// child only holds keys from this entry's key on
+					if(e.getKey().compare(stop, key)) {
+						next = e.getLeftChild();
+						break;
+					}
+					below += counts[i++];
+				}
+				pid = next != null ? next : e.getRightChild();
+			}
+
+			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+			Op op = inclusive ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN;
+			Iterator<Tuple> it = leaf.iterator();
+			while(it.hasNext()) {
+				if(!keyOf(it.next()).compare(op, key))
+					break;
+				below++;
+			}
+			return below;
+		} finally {
+			endAccess();
+		}
+	}
+
+	/**
+	 * @return the most significant field of a key or key prefix, or null if f is null
+	 */
+	private static Field leadingKey(Field f) {
+		return f instanceof CompositeField ? ((CompositeField) f).getField(0) : f;
+	}
+
+	/**
+	 * Get the metadata page with read-write permission, to update the tuple
+	 * count and key bounds it keeps.
+	 */
+	private BTreeMetadataPage getMetadataPage(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		return (BTreeMetadataPage) getPage(tid, dirtypages, BTreeMetadataPage.getId(tableid), Permissions.READ_WRITE);
+	}
+
+	/**
+	 * Get the metadata page with an exact tuple count and exact key bounds.
+	 * The count and bounds are kept up to date by inserts and deletes; the bounds
+	 * are recomputed here after a bound was deleted, with a descent to each end
+	 * of the tree, and the count and bounds of a file written without them are
+	 * recomputed with a scan of the tree. They describe the tuples in the pages
+	 * of the tree, not those in a memtable.
+	 * 
+	 * @param tid - the transaction id
+	 * @return the metadata page
+	 */
+	private BTreeMetadataPage getMetadata(TransactionId tid) 
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreeMetadataPage meta = (BTreeMetadataPage) getPage(tid, dirtypages, 
+				BTreeMetadataPage.getId(tableid), Permissions.READ_ONLY);
+		if(meta.hasCount() && meta.hasKeyBounds())
+			return meta;
+
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+
+		Field min = null;
+		Field max = null;
+		if(rootPtr.getRootId() == null) {
+			getMetadataPage(tid, dirtypages).setCount(0);
+		}
+		else if(meta.hasCount() && !buffered) {
+			DbFileIterator it = treeIterator(tid);
+			it.open();
+			if(it.hasNext())
+				min = it.next().getField(keyField);
+			it.close();
+			max = lastKey(tid, rootPtr.getRootId());
+		}
+		else {
+			int count = 0;
+			DbFileIterator it = treeIterator(tid);
+			it.open();
+			while(it.hasNext()) {
+				Field key = it.next().getField(keyField);
+				if(min == null)
+					min = key;
+				max = key;
+				count++;
+			}
+			it.close();
+			getMetadataPage(tid, dirtypages).setCount(count);
+		}
+		getMetadataPage(tid, dirtypages).setKeyBounds(min, max);
+		Database.getBufferPool().updateDirtyPages(tid, new ArrayList<Page>(dirtypages.values()));
+		return (BTreeMetadataPage) dirtypages.get(BTreeMetadataPage.getId(tableid));
+	}
+
+	/**
+	 * Find the largest key in the leaves of the tree, by descending along the
+	 * right-most entries and walking left past any empty leaves.
+	 * 
+	 * @param tid - the transaction id
+	 * @param rootId - the root page of the tree, or null if there is none
+	 * @return the most significant key field of the last tuple, or null if the tree is empty
+	 */
+	private Field lastKey(TransactionId tid, BTreePageId rootId) 
+			throws DbException, TransactionAbortedException {
+		BTreePageId pid = rootId;
+		while(pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+					tid, pid, Permissions.READ_ONLY);
+			Iterator<BTreeEntry> it = page.reverseIterator();
+			pid = it.hasNext() ? it.next().getRightChild() : null;
+		}
+		while(pid != null) {
+			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(
+					tid, pid, Permissions.READ_ONLY);
+			Iterator<Tuple> it = leaf.reverseIterator();
+			if(it.hasNext())
+				return it.next().getField(keyField);
+			pid = leaf.getLeftSiblingId();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of tuples in the pages of this B+ tree, kept in its
+	 * metadata page.
+	 * 
+	 * @param tid - the transaction id
+	 * @see #getMetadata(TransactionId)
+	 */
+	public int getTupleCount(TransactionId tid) 
+			throws DbException, IOException, TransactionAbortedException {
+		return getMetadata(tid).getCount();
+	}
+
+	/**
+	 * Returns the smallest value of the most significant key field in the pages
+	 * of this B+ tree, kept in its metadata page.
+	 * 
+	 * @param tid - the transaction id
+	 * @return the smallest key, or null if the tree is empty
+	 * @see #getMetadata(TransactionId)
+	 */
+	public Field getMinKey(TransactionId tid) 
+			throws DbException, IOException, TransactionAbortedException {
+		return getMetadata(tid).getMinKey();
+	}
+
+	/**
+	 * Returns the largest value of the most significant key field in the pages
+	 * of this B+ tree, kept in its metadata page.
+	 * 
+	 * @param tid - the transaction id
+	 * @return the largest key, or null if the tree is empty
+	 * @see #getMetadata(TransactionId)
+	 */
+	public Field getMaxKey(TransactionId tid) 
+			throws DbException, IOException, TransactionAbortedException {
+		return getMetadata(tid).getMaxKey();
+	}
+
+	/**
+	 * Returns the number of tuples in a counted B+ tree, read from the root page.
+	 * 
+	 * @param tid - the transaction id
+	 * @throws DbException if this B+ tree is not counted
+	 */
+	public int countTuples(TransactionId tid) 
+			throws DbException, IOException, TransactionAbortedException {
+		beginAccess();
+		try {
+			BTreePageId rootId = getCountedRootId(tid);
+			if(rootId == null)
+				return 0;
+			return subtreeCount((BTreePage) Database.getBufferPool().getPage(tid, rootId, Permissions.READ_ONLY));
+		} finally {
+			endAccess();
+		}
+	}
+
+	/**
+	 * Returns the rank of a key in a counted B+ tree: the number of tuples whose
+	 * key is strictly less than key, which is also the position the first tuple 
+	 * with that key has in a scan of the tree.
+	 * 
+	 * @param tid - the transaction id
+	 * @param key - the key or key prefix
+	 * @throws DbException if this B+ tree is not counted
+	 */
+	public int rank(TransactionId tid, Field key) 
+			throws DbException, IOException, TransactionAbortedException {
+		return countBelow(tid, key, false);
+	}
+
+	/**
+	 * Count the tuples of a counted B+ tree whose key lies in a range, with two 
+	 * root-to-leaf descents.
+	 * 
+	 * @param tid - the transaction id
+	 * @param lower - the lower end of the range, or null if the range is unbounded below
+	 * @param lowerInclusive - whether tuples with key equal to lower are in the range
+	 * @param upper - the upper end of the range, or null if the range is unbounded above
+	 * @param upperInclusive - whether tuples with key equal to upper are in the range
+	 * @return the number of tuples in the range
+	 * @throws DbException if this B+ tree is not counted
+	 */
+	public int countRange(TransactionId tid, Field lower, boolean lowerInclusive, 
+			Field upper, boolean upperInclusive) 
+					throws DbException, IOException, TransactionAbortedException {
+		int high = upper == null ? countTuples(tid) : countBelow(tid, upper, upperInclusive);
+		int low = lower == null ? 0 : countBelow(tid, lower, !lowerInclusive);
+		return Math.max(0, high - low);
+	}
+
+	/**
+	 * Count the tuples of a counted B+ tree which satisfy a predicate on the key.
 	 * 
 	 * @param tid - the transaction id
-	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param emptyPageNo - the page number of the empty page
-	 * @see #getEmptyPage(TransactionId, HashMap, int)
-	 * 
-	 * @throws DbException
-	 * @throws IOException
-	 * @throws TransactionAbortedException
+	 * @param ipred - the predicate, or null to count all tuples
+	 * @return the number of tuples an index scan with the same predicate would return
+	 * @throws DbException if this B+ tree is not counted, or the predicate is LIKE
+	 * @see #countRange(TransactionId, Field, boolean, Field, boolean)
 	 */
-	protected void setEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int emptyPageNo) 
+	public int count(TransactionId tid, IndexPredicate ipred) 
 			throws DbException, IOException, TransactionAbortedException {
-
-		// if this is the last page in the file (and not the only page), just 
-		// truncate the file
-		// @TODO: Commented out because we should probably do this somewhere else in case the transaction aborts....
-//		synchronized(this) {
-//			if(emptyPageNo == numPages()) {
-//				if(emptyPageNo <= 1) {
-//					// if this is the only page in the file, just return.
-//					// It just means we have an empty root page
-//					return;
-//				}
-//				long newSize = f.length() - BufferPool.getPageSize();
-//				FileOutputStream fos = new FileOutputStream(f, true);
-//				FileChannel fc = fos.getChannel();
-//				fc.truncate(newSize);
-//				fc.close();
-//				fos.close();
-//				return;
-//			}
-//		}
-
-		// otherwise, get a read lock on the root pointer page and use it to locate 
-		// the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		BTreePageId prevId = null;
-		int headerPageCount = 0;
-
-		// if there are no header pages, create the first header page and update
-		// the header pointer in the BTreeRootPtrPage
-		if(headerId == null) {
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
-			headerPage.init();
-			rootPtr.setHeaderId(headerId);
+		if(ipred == null)
+			return countTuples(tid);
+		Field key = ipred.getField();
+		switch(ipred.getOp()) {
+		case EQUALS:
+			return countRange(tid, key, true, key, true);
+		case NOT_EQUALS:
+			return countTuples(tid) - countRange(tid, key, true, key, true);
+		case LESS_THAN:
+			return countRange(tid, null, false, key, false);
+		case LESS_THAN_OR_EQ:
+			return countRange(tid, null, false, key, true);
+		case GREATER_THAN:
+			return countRange(tid, key, false, null, false);
+		case GREATER_THAN_OR_EQ:
+			return countRange(tid, key, true, null, false);
+		default:
+			throw new DbException("cannot count tuples matching " + ipred.getOp());
 		}
+	}
 
-		// iterate through all the existing header pages to find the one containing the slot
-		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			prevId = headerId;
-			headerId = headerPage.getNextPageId();
-			headerPageCount++;
-		}
+	/**
+	 * Find the kth tuple of a counted B+ tree in key order, by descending into the 
+	 * child whose subtree holds it at each internal page. Selecting the tuple at
+	 * half the number of tuples finds the median; the tuple's record id gives the
+	 * leaf page a scan starting from the kth tuple starts at.
+	 * 
+	 * @param tid - the transaction id
+	 * @param k - the position of the tuple, starting from 0
+	 * @return the kth tuple
+	 * @throws NoSuchElementException if k is negative or not less than the number of tuples
+	 * @throws DbException if this B+ tree is not counted
+	 */
+	public Tuple selectKth(TransactionId tid, int k) 
+			throws DbException, IOException, TransactionAbortedException {
+		beginAccess();
+		try {
+			BTreePageId pid = getCountedRootId(tid);
+			if(pid == null || k < 0)
+				throw new NoSuchElementException();
+			while(pid.pgcateg() == BTreePageId.INTERNAL) {
+				BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+						tid, pid, Permissions.READ_ONLY);
+				int[] counts = page.getChildCounts();
+				Iterator<BTreeEntry> it = page.iterator();
+				BTreePageId next = null;
+				BTreeEntry e = null;
+				int i = 0;
+				while(it.hasNext()) {
+					e = it.next();
+					if(k < counts[i]) {
+						next = e.getLeftChild();
+						break;
+					}
+					k -= counts[i++];
+				}
+				if(next == null) {
+					if(e == null || k >= counts[i])
+						throw new NoSuchElementException();
+					next = e.getRightChild();
+				}
+				pid = next;
+			}
 
-		// at this point headerId should either be null or set with 
-		// the headerPage containing the slot corresponding to emptyPageNo.
-		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
-			
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
-			headerPage.init();
-			headerPage.setPrevPageId(prevId);
-			prevPage.setNextPageId(headerId);
-			
-			headerPageCount++;
-			prevId = headerId;
+			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+			Iterator<Tuple> it = leaf.iterator();
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				if(k-- == 0)
+					return t;
+			}
+			throw new NoSuchElementException();
+		} finally {
+			endAccess();
 		}
-
-		// now headerId should be set with the headerPage containing the slot corresponding to 
-		// emptyPageNo
-		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
-		headerPage.markSlotUsed(emptySlot, false);
 	}
 
 	/**
@@ -1307,7 +3905,118 @@ public class BTreeFile implements DbFile {
 	 * @return an iterator for the filtered tuples
 	 */
 	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
-		return new BTreeSearchIterator(this, tid, ipred);
+		return withMemtable(ipred, treeIndexIterator(tid, ipred), true);
+	}
+
+	/**
+	 * Get the tuples in the pages of this file satisfying a predicate, without
+	 * the changes in any memtable
+	 */
+	DbFileIterator treeIndexIterator(TransactionId tid, IndexPredicate ipred) {
+		DbFileIterator it = new BTreeSearchIterator(this, tid, ipred);
+		return buffered ? new BTreeBufferedIterator(this, tid, ipred, it, true) : it;
+	}
+
+	/**
+	 * Merge the changes in the memtable of this file, if it has one, into an
+	 * iterator over the tree
+	 */
+	private DbFileIterator withMemtable(IndexPredicate ipred, DbFileIterator it, boolean ordered) {
+		BTreeMemtable m = memtable;
+		return m != null ? new BTreeMemtableIterator(this, m, ipred, it, ordered) : it;
+	}
+
+	/**
+	 * Collect the tuples in the buffers of the internal pages of a buffered B+ 
+	 * tree which satisfy a predicate. Only the subtrees whose key ranges may 
+	 * satisfy the predicate are visited.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null for all buffered tuples
+	 * @return the matching buffered tuples, in no particular order
+	 */
+	ArrayList<Tuple> bufferedTuples(TransactionId tid, IndexPredicate ipred) 
+			throws DbException, TransactionAbortedException {
+		ArrayList<Tuple> result = new ArrayList<Tuple>();
+		Field key = ipred == null ? null : CompositeField.searchKey(ipred.getField(), keyFields);
+		if(!buffered || (ipred != null && ipred.getOp() == Op.EQUALS && !mightContain(key)))
+			return result;
+		pinUpperPage(BTreeRootPtrPage.getId(tableid), 0);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		BTreePageId root = rootPtr.getRootId();
+		if(root != null && root.pgcateg() == BTreePageId.INTERNAL)
+			bufferedTuples(tid, root, 0, ipred, key, null, null, result);
+		return result;
+	}
+
+	private void bufferedTuples(TransactionId tid, BTreePageId pid, int level, IndexPredicate ipred, 
+			Field key, Field lower, Field upper, ArrayList<Tuple> result) 
+					throws DbException, TransactionAbortedException {
+		BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid, pid, Permissions.READ_ONLY);
+		pinUpperPage(pid, level);
+		for(Tuple t : page.getMessages()) {
+			if(ipred == null || keyOf(t).compare(ipred.getOp(), key))
+				result.add(t);
+		}
+
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(e.getLeftChild().pgcateg() != BTreePageId.INTERNAL)
+				return;
+			if(ipred == null || mayMatch(ipred.getOp(), key, lower, e.getKey()))
+				bufferedTuples(tid, e.getLeftChild(), level + 1, ipred, key, lower, e.getKey(), result);
+			lower = e.getKey();
+		}
+		if(e != null && (ipred == null || mayMatch(ipred.getOp(), key, lower, upper)))
+			bufferedTuples(tid, e.getRightChild(), level + 1, ipred, key, lower, upper, result);
+	}
+
+	/**
+	 * @param op - the operator of an index predicate
+	 * @param key - the search key of the predicate
+	 * @param lower - the lowest key of a subtree, or null if it is unbounded
+	 * @param upper - the highest key of a subtree, or null if it is unbounded
+	 * @return false if no key between the bounds satisfies the predicate
+	 */
+	static boolean mayMatch(Op op, Field key, Field lower, Field upper) {
+		switch(op) {
+		case EQUALS:
+			return (lower == null || lower.compare(Op.LESS_THAN_OR_EQ, key))
+					&& (upper == null || upper.compare(Op.GREATER_THAN_OR_EQ, key));
+		case GREATER_THAN:
+			return upper == null || upper.compare(Op.GREATER_THAN, key);
+		case GREATER_THAN_OR_EQ:
+			return upper == null || upper.compare(Op.GREATER_THAN_OR_EQ, key);
+		case LESS_THAN:
+			return lower == null || lower.compare(Op.LESS_THAN, key);
+		case LESS_THAN_OR_EQ:
+			return lower == null || lower.compare(Op.LESS_THAN_OR_EQ, key);
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Get an iterator which scans the tuples satisfying a predicate on several threads.
+	 * The tree is split into subtrees which are scanned concurrently.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null to scan all tuples
+	 * @param parallelism - the number of threads to scan with
+	 * @param ordered - whether the tuples must be returned in key order
+	 * @return an iterator over the matching tuples
+	 * @see BTreeParallelScan
+	 */
+	public DbFileIterator parallelIterator(TransactionId tid, IndexPredicate ipred, 
+			int parallelism, boolean ordered) {
+		DbFileIterator it = new BTreeParallelScan(this, tid, ipred, parallelism, ordered);
+		if(buffered)
+			it = new BTreeBufferedIterator(this, tid, ipred, it, ordered);
+		return withMemtable(ipred, it, ordered);
 	}
 
 	/**
@@ -1319,7 +4028,46 @@ public class BTreeFile implements DbFile {
 	 * @return an iterator for all the tuples in this file
 	 */
 	public DbFileIterator iterator(TransactionId tid) {
-		return new BTreeFileIterator(this, tid);
+		return withMemtable(null, treeIterator(tid), true);
+	}
+
+	/**
+	 * @return true if this file can be read in descending key order by
+	 * {@link #reverseIterator(TransactionId, IndexPredicate)}, which is when it
+	 * keeps all of its tuples in its leaves: it neither buffers tuples in its
+	 * internal pages nor has a memtable
+	 */
+	public boolean isReversible() {
+		return !buffered && memtable == null;
+	}
+
+	/**
+	 * Get an iterator for the tuples of this B+ tree file in descending key order,
+	 * which walks the leaves from right to left. This method will acquire a read
+	 * lock on the affected pages of the file, and may block until the lock can be
+	 * acquired.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null for all tuples
+	 * @return an iterator for the matching tuples, in descending key order
+	 * @throws IllegalStateException if the file is not reversible
+	 * @see #isReversible()
+	 */
+	public DbFileIterator reverseIterator(TransactionId tid, IndexPredicate ipred) {
+		if(!isReversible())
+			throw new IllegalStateException("a buffered B+ tree or one with a memtable cannot be read in reverse");
+		return new BTreeReverseIterator(this, tid, ipred);
+	}
+
+	/**
+	 * Get an iterator for all tuples in the pages of this file in sorted order,
+	 * without the changes in any memtable
+	 */
+	DbFileIterator treeIterator(TransactionId tid) {
+		DbFileIterator it = new BTreeFileIterator(this, tid);
+		if(buffered)
+			it = new BTreeBufferedIterator(this, tid, null, it, true);
+		return it;
 	}
 
 }
@@ -1331,6 +4079,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// true while the iterator keeps rebalance passes over the file from running
+	boolean accessing = false;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1349,6 +4099,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
+		if(!accessing) {
+			f.beginAccess();
+			accessing = true;
+		}
+		f.pinUpperPage(BTreeRootPtrPage.getId(f.getId()), 0);
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
@@ -1399,6 +4154,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		if(accessing) {
+			accessing = false;
+			f.endAccess();
+		}
 		it = null;
 		curp = null;
 	}
@@ -1412,10 +4171,15 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// true while the iterator keeps rebalance passes over the file from running
+	boolean accessing = false;
 
 	TransactionId tid;
 	BTreeFile f;
 	IndexPredicate ipred;
+	Field key;
+	// the Bloom filter which passed the key, until the search returns a tuple
+	BloomFilter filter = null;
 
 	/**
 	 * Constructor for this iterator
@@ -1427,6 +4191,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		this.key = CompositeField.searchKey(ipred.getField(), f.keyFields());
 	}
 
 	/**
@@ -1434,12 +4199,25 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
+		if(!accessing) {
+			f.beginAccess();
+			accessing = true;
+		}
+		filter = ipred.getOp() == Op.EQUALS && f.usesBloomFilter(key) ? f.getBloomFilter() : null;
+		if(filter != null && !filter.mightContain(key)) {
+			// the key is not in the tree, so there is nothing to read
+			filter = null;
+			curp = null;
+			it = null;
+			return;
+		}
+		f.pinUpperPage(BTreeRootPtrPage.getId(f.getId()), 0);
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, key);
 		}
 		else {
 			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
@@ -1456,11 +4234,23 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
+		Tuple t = search();
+		if(filter != null) {
+			// the filter passed a key which is not in the tree, unless the
+			// tuples with the key are still in the buffers of internal pages
+			if(t == null && !f.isBuffered() && f.getMemtable() == null)
+				filter.recordFalsePositive();
+			filter = null;
+		}
+		return t;
+	}
+
+	private Tuple search() throws TransactionAbortedException, DbException {
 		while (it != null) {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				if (f.keyOf(t).compare(ipred.getOp(), key)) {
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1469,7 +4259,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						f.keyOf(t).compare(Op.GREATER_THAN, key)) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
@@ -1504,6 +4294,248 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		if(accessing) {
+			accessing = false;
+			f.endAccess();
+		}
+		it = null;
+		filter = null;
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for the tuples of a B+ Tree
+ * File in descending key order, optionally matching a predicate. It starts at
+ * the right-most leaf which may hold a matching tuple and follows the left
+ * sibling pointers.
+ */
+class BTreeReverseIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+	// true while the iterator keeps rebalance passes over the file from running
+	boolean accessing = false;
+
+	TransactionId tid;
+	BTreeFile f;
+	IndexPredicate ipred;
+	Field key;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null for all tuples
+	 */
+	public BTreeReverseIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+		this.key = ipred == null ? null : CompositeField.searchKey(ipred.getField(), f.keyFields());
+	}
+
+	/**
+	 * Open this iterator by getting a reverse iterator on the last leaf page
+	 * which may hold a tuple matching the predicate
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		if(!accessing) {
+			f.beginAccess();
+			accessing = true;
+		}
+		f.pinUpperPage(BTreeRootPtrPage.getId(f.getId()), 0);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		BTreePageId pid = rootPtr.getRootId();
+		curp = null;
+		it = null;
+		if(pid == null)
+			return;
+		if(ipred != null && (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN 
+				|| ipred.getOp() == Op.LESS_THAN_OR_EQ)) {
+			// find the left-most leaf which may hold the key, and walk right
+			// to the last leaf which starts at or below it
+			curp = f.findLeafPage(tid, pid, Permissions.READ_ONLY, key);
+			BTreePageId nextp = curp.getRightSiblingId();
+			while(nextp != null) {
+				BTreeLeafPage next = (BTreeLeafPage) Database.getBufferPool().getPage(
+						tid, nextp, Permissions.READ_ONLY);
+				Iterator<Tuple> first = next.iterator();
+				if(first.hasNext() && f.keyOf(first.next()).compare(Op.GREATER_THAN, key))
+					break;
+				curp = next;
+				nextp = curp.getRightSiblingId();
+			}
+		}
+		else {
+			// descend along the right-most entries to the last leaf
+			while(pid.pgcateg() == BTreePageId.INTERNAL) {
+				BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+						tid, pid, Permissions.READ_ONLY);
+				Iterator<BTreeEntry> entries = page.reverseIterator();
+				if(!entries.hasNext())
+					throw new DbException("internal page " + pid + " has no entries");
+				pid = entries.next().getRightChild();
+			}
+			curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+		}
+		it = curp.reverseIterator();
+	}
+
+	/**
+	 * Read the next tuple either from the current page if it has more tuples matching
+	 * the predicate or from the previous page by following the left sibling pointer.
+	 * 
+	 * @return the next tuple matching the predicate, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (it != null) {
+
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (ipred == null || f.keyOf(t).compare(ipred.getOp(), key)) {
+					return t;
+				}
+				else if(ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
+					// every tuple to the left is smaller still, so we have hit the end
+					return null;
+				}
+				else if(ipred.getOp() == Op.EQUALS && 
+						f.keyOf(t).compare(Op.LESS_THAN, key)) {
+					// the tuple is now less than the field passed in, so we have hit the end
+					return null;
+				}
+			}
+
+			BTreePageId prevp = curp.getLeftSiblingId();
+			// if there are no more pages to the left, end the iteration
+			if(prevp == null) {
+				it = null;
+				curp = null;
+			}
+			else {
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						prevp, Permissions.READ_ONLY);
+				it = curp.reverseIterator();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		if(accessing) {
+			accessing = false;
+			f.endAccess();
+		}
 		it = null;
+		curp = null;
+	}
+}
+
+/**
+ * Helper class that merges the tuples in the buffers of the internal pages of a
+ * buffered BTreeFile into an iterator over the tuples in its leaf pages
+ */
+class BTreeBufferedIterator extends AbstractDbFileIterator {
+
+	final BTreeFile f;
+	final TransactionId tid;
+	final IndexPredicate ipred;
+	final DbFileIterator leaves;
+	final boolean ordered;
+
+	// the buffered tuples matching the predicate, sorted by key if ordered
+	ArrayList<Tuple> buffered = null;
+	int nextBuffered;
+	// the next tuple from the leaves, read ahead to compare with the buffered tuples
+	Tuple nextLeaf;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the buffered BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null for all tuples
+	 * @param leaves - an iterator over the tuples in the leaves matching the predicate
+	 * @param ordered - whether the tuples from the leaves are in key order, and
+	 *        the merged tuples should be too
+	 */
+	public BTreeBufferedIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred, 
+			DbFileIterator leaves, boolean ordered) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+		this.leaves = leaves;
+		this.ordered = ordered;
+	}
+
+	/**
+	 * Open this iterator by collecting the matching buffered tuples and opening
+	 * the iterator over the leaves
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		buffered = f.bufferedTuples(tid, ipred);
+		if(ordered) {
+			Collections.sort(buffered, new Comparator<Tuple>() {
+				public int compare(Tuple t1, Tuple t2) {
+					Field k1 = f.keyOf(t1);
+					Field k2 = f.keyOf(t2);
+					return k1.compare(Op.LESS_THAN, k2) ? -1 : k1.compare(Op.GREATER_THAN, k2) ? 1 : 0;
+				}
+			});
+		}
+		nextBuffered = 0;
+		nextLeaf = null;
+		leaves.open();
+	}
+
+	/**
+	 * Read the next tuple from the leaves or the buffers, whichever has the lower key
+	 * 
+	 * @return the next tuple, or null if both are exhausted
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		if(buffered == null)
+			return null;
+		if(nextLeaf == null && leaves.hasNext())
+			nextLeaf = leaves.next();
+		if(nextBuffered < buffered.size() && (nextLeaf == null || !ordered 
+				|| f.keyOf(buffered.get(nextBuffered)).compare(Op.LESS_THAN, f.keyOf(nextLeaf))))
+			return buffered.get(nextBuffered++);
+		Tuple t = nextLeaf;
+		nextLeaf = null;
+		return t;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		leaves.close();
+		buffered = null;
+		nextLeaf = null;
 	}
 }
@@ -111,7 +111,7 @@ public class BTreeFileEncoder {
 	 * comparator to sort Tuples by key field
 	 */
 	public static class TupleComparator implements Comparator<Tuple> {
-		private int keyField;
+		private int[] keyFields;
 
 		/** 
 		 * Construct a TupleComparator
@@ -119,7 +119,17 @@ public class BTreeFileEncoder {
 		 * @param keyField - the index of the field the tuples are keyed on
 		 */
 		public TupleComparator(int keyField) {
-			this.keyField = keyField;
+			this(new int[] {keyField});
+		}
+
+		/** 
+		 * Construct a TupleComparator that orders tuples lexicographically
+		 * on several fields
+		 * 
+		 * @param keyFields - the fields the tuples are keyed on, most significant first
+		 */
+		public TupleComparator(int[] keyFields) {
+			this.keyFields = keyFields;
 		}
 
 		/**
@@ -128,11 +138,13 @@ public class BTreeFileEncoder {
 		 * @return -1 if t1 < t2, 1 if t1 > t2, 0 if t1 == t2
 		 */
 		public int compare(Tuple t1, Tuple t2) {
+			Field k1 = CompositeField.keyOf(t1, keyFields);
+			Field k2 = CompositeField.keyOf(t2, keyFields);
 			int cmp = 0;
-			if(t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
+			if(k1.compare(Op.LESS_THAN, k2)) {
 				cmp = -1;
 			}
-			else if(t1.getField(keyField).compare(Op.GREATER_THAN, t2.getField(keyField))) {
+			else if(k1.compare(Op.GREATER_THAN, k2)) {
 				cmp = 1;
 			}
 			return cmp;
@@ -156,6 +168,27 @@ public class BTreeFileEncoder {
 			File bFile, int npagebytes,
 			int numFields, Type[] typeAr, char fieldSeparator, int keyField) 
 					throws IOException, DbException, TransactionAbortedException {
+		return convert(tuples, hFile, bFile, npagebytes, numFields, typeAr, fieldSeparator,
+				new int[] {keyField});
+	}
+
+	/**
+	 * Faster method to encode a B+ tree file keyed on several fields
+	 * 
+	 * @param tuples - list of tuples to add to the file
+	 * @param hFile - the file to temporarily store the data as a heap file on disk
+	 * @param bFile - the file on disk to back the resulting BTreeFile
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields per tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param fieldSeparator - character separating fields in the raw data file
+	 * @param keyFields - the fields of the tuples the B+ tree will be keyed on, most significant first
+	 * @return the BTreeFile
+	 */
+	public static BTreeFile convert(ArrayList<ArrayList<Integer>> tuples, File hFile, 
+			File bFile, int npagebytes,
+			int numFields, Type[] typeAr, char fieldSeparator, int[] keyFields) 
+					throws IOException, DbException, TransactionAbortedException {
 		File tempInput = File.createTempFile("tempTable", ".txt");
 		tempInput.deleteOnExit();
 		BufferedWriter bw = new BufferedWriter(new FileWriter(tempInput));
@@ -177,7 +210,7 @@ public class BTreeFileEncoder {
 		}
 		bw.close();
 		return convert(tempInput, hFile, bFile, npagebytes,
-				numFields, typeAr, fieldSeparator, keyField);
+				numFields, typeAr, fieldSeparator, keyFields);
 	}
 
 	/** 
@@ -199,6 +232,31 @@ public class BTreeFileEncoder {
 	public static BTreeFile convert(File inFile, File hFile, File bFile, int npagebytes,
 			int numFields, Type[] typeAr, char fieldSeparator, int keyField) 
 					throws IOException, DbException, TransactionAbortedException {
+		return convert(inFile, hFile, bFile, npagebytes, numFields, typeAr, fieldSeparator,
+				new int[] {keyField});
+	}
+
+	/** 
+	 * Faster method to encode a B+ tree file keyed on several fields. Tuples are
+	 * sorted lexicographically on the key fields, and internal pages store each key
+	 * as the concatenation of its components.
+	 * 
+	 * @param inFile - the file containing the raw data
+	 * @param hFile - the data file for the HeapFile to be used as an intermediate conversion step
+	 * @param bFile - the data file for the BTreeFile
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields per tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param fieldSeparator - character separating fields in the raw data file
+	 * @param keyFields - the fields of the tuples the B+ tree will be keyed on, most significant first
+	 * @return the B+ tree file
+	 * @throws IOException
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	public static BTreeFile convert(File inFile, File hFile, File bFile, int npagebytes,
+			int numFields, Type[] typeAr, char fieldSeparator, int[] keyFields) 
+					throws IOException, DbException, TransactionAbortedException {
 		// convert the inFile to HeapFile first.
 		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
 		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
@@ -213,11 +271,14 @@ public class BTreeFileEncoder {
 			tuples.add(tup);
 		}
 		it.close();
-		Collections.sort(tuples, new TupleComparator(keyField));
+		Collections.sort(tuples, new TupleComparator(keyFields));
 
 		// add the tuples to B+ tree file
-		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
-		Type keyType = typeAr[keyField];
+		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyFields);
+		int keySize = 0;
+		for (int k : keyFields) {
+			keySize += typeAr[k].getLen();
+		}
 		int tableid = bf.getId();
 
 		int nrecbytes = 0;
@@ -228,7 +289,7 @@ public class BTreeFileEncoder {
 		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		int nentrybytes = keySize + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -256,17 +317,17 @@ public class BTreeFileEncoder {
 			}
 			else {
 				// write out a page of records
-				byte[] leafPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyField);
+				byte[] leafPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyFields);
 				BTreePageId leafPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-				BTreeLeafPage leafPage = new BTreeLeafPage(leafPid, leafPageBytes, keyField);
+				BTreeLeafPage leafPage = new BTreeLeafPage(leafPid, leafPageBytes, keyFields);
 				leafPage.setLeftSiblingId(leftSiblingId);
 				bf.writePage(leafPage);
 				leftSiblingId = leafPid;
 
 				// update the parent by "copying up" the next key
-				BTreeEntry copyUpEntry = new BTreeEntry(page2.get(0).getField(keyField), leafPid, null);
+				BTreeEntry copyUpEntry = new BTreeEntry(CompositeField.keyOf(page2.get(0), keyFields), leafPid, null);
 				updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
-						keyType, tableid, keyField);
+						keySize, tableid, keyFields);
 
 				page1 = page2;
 				page2 = new ArrayList<Tuple>();
@@ -284,9 +345,9 @@ public class BTreeFileEncoder {
 		BTreePageId lastPid = null;
 		if(page2.size() == 0) {
 			// write out a page of records - this is the root page
-			byte[] lastPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyField);
+			byte[] lastPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyFields);
 			lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyField);
+			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyFields);
 			lastPage.setLeftSiblingId(leftSiblingId);
 			bf.writePage(lastPage);
 		}
@@ -300,26 +361,26 @@ public class BTreeFileEncoder {
 			lastPg.addAll(page2);
 
 			// write out the last two pages of records
-			byte[] secondToLastPageBytes = convertToLeafPage(secondToLastPg, npagebytes, numFields, typeAr, keyField);
+			byte[] secondToLastPageBytes = convertToLeafPage(secondToLastPg, npagebytes, numFields, typeAr, keyFields);
 			BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage secondToLastPage = new BTreeLeafPage(secondToLastPid, secondToLastPageBytes, keyField);
+			BTreeLeafPage secondToLastPage = new BTreeLeafPage(secondToLastPid, secondToLastPageBytes, keyFields);
 			secondToLastPage.setLeftSiblingId(leftSiblingId);
 			bf.writePage(secondToLastPage);
 
-			byte[] lastPageBytes = convertToLeafPage(lastPg, npagebytes, numFields, typeAr, keyField);
+			byte[] lastPageBytes = convertToLeafPage(lastPg, npagebytes, numFields, typeAr, keyFields);
 			lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyField);
+			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyFields);
 			lastPage.setLeftSiblingId(secondToLastPid);
 			bf.writePage(lastPage);
 
 			// update the parent by "copying up" the next key
-			BTreeEntry copyUpEntry = new BTreeEntry(lastPg.get(0).getField(keyField), secondToLastPid, lastPid);
+			BTreeEntry copyUpEntry = new BTreeEntry(CompositeField.keyOf(lastPg.get(0), keyFields), secondToLastPid, lastPid);
 			updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
-					keyType, tableid, keyField);
+					keySize, tableid, keyFields);
 		}
 
 		// Write out the remaining internal pages
-		cleanUpEntries(entries, bf, nentries, npagebytes, keyType, tableid, keyField);
+		cleanUpEntries(entries, bf, nentries, npagebytes, keySize, tableid, keyFields);
 
 		// update the root pointer to point to the last page of the file
 		int root = bf.numPages();
@@ -327,6 +388,9 @@ public class BTreeFileEncoder {
 		byte[] rootPtrBytes = convertToRootPtrPage(root, rootCategory, 0);
 		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), rootPtrBytes));
 
+		// the tuple count and key bounds are not known, and are computed when first needed
+		new File(bFile.getPath() + ".meta").delete();
+
 		// set all the parent and sibling pointers
 		setParents(bf, new BTreePageId(tableid, root, rootCategory), BTreeRootPtrPage.getId(tableid));
 		setRightSiblingPtrs(bf, lastPid, null);
@@ -395,14 +459,14 @@ public class BTreeFileEncoder {
 	 * @param bf - the BTreeFile
 	 * @param nentries - number of entries per page
 	 * @param npagebytes - number of bytes per page
-	 * @param keyType - the type of the key field
+	 * @param keySize - the number of bytes in a key
 	 * @param tableid - the table id of this BTreeFile
-	 * @param keyField - the index of the key field
+	 * @param keyFields - the indexes of the key fields
 	 * @throws IOException
 	 */
 	private static void cleanUpEntries(ArrayList<ArrayList<BTreeEntry>> entries,
-			BTreeFile bf, int nentries, int npagebytes, Type keyType, int tableid, 
-			int keyField) throws IOException {
+			BTreeFile bf, int nentries, int npagebytes, int keySize, int tableid, 
+			int[] keyFields) throws IOException {
 		// As with the leaf pages, there are two options:
 		// 1. We have less than or equal to a full page of entries. Because of the way the code
 		//    was written, we know this must be the root page
@@ -415,9 +479,9 @@ public class BTreeFileEncoder {
 			int size = entries.get(i).size();
 			if(size <= nentries) {
 				// write out a page of entries
-				byte[] internalPageBytes = convertToInternalPage(entries.get(i), npagebytes, keyType, childPageCategory);
+				byte[] internalPageBytes = convertToInternalPage(entries.get(i), npagebytes, keySize, childPageCategory);
 				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
+				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyFields));
 			}
 			else {
 				// split the remaining entries in half
@@ -427,18 +491,18 @@ public class BTreeFileEncoder {
 				lastPg.addAll(entries.get(i).subList(size/2 + 1, size));
 
 				// write out the last two pages of entries
-				byte[] secondToLastPageBytes = convertToInternalPage(secondToLastPg, npagebytes, keyType, childPageCategory);
+				byte[] secondToLastPageBytes = convertToInternalPage(secondToLastPg, npagebytes, keySize, childPageCategory);
 				BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(secondToLastPid, secondToLastPageBytes, keyField));
+				bf.writePage(new BTreeInternalPage(secondToLastPid, secondToLastPageBytes, keyFields));
 
-				byte[] lastPageBytes = convertToInternalPage(lastPg, npagebytes, keyType, childPageCategory);
+				byte[] lastPageBytes = convertToInternalPage(lastPg, npagebytes, keySize, childPageCategory);
 				BTreePageId lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(lastPid, lastPageBytes, keyField));
+				bf.writePage(new BTreeInternalPage(lastPid, lastPageBytes, keyFields));
 
 				// update the parent by "pushing up" the next key
 				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(i).get(size/2).getKey(), secondToLastPid, lastPid);
 				updateEntries(entries, bf, pushUpEntry, i+1, nentries, npagebytes, 
-						keyType, tableid, keyField);
+						keySize, tableid, keyFields);
 			}
 
 		}
@@ -453,14 +517,14 @@ public class BTreeFileEncoder {
 	 * @param level - the level of the new entry (0 is closest to the leaf pages)
 	 * @param nentries - number of entries per page
 	 * @param npagebytes - number of bytes per page
-	 * @param keyType - the type of the key field
+	 * @param keySize - the number of bytes in a key
 	 * @param tableid - the table id of this BTreeFile
-	 * @param keyField - the index of the key field
+	 * @param keyFields - the indexes of the key fields
 	 * @throws IOException
 	 */
 	private static void updateEntries(ArrayList<ArrayList<BTreeEntry>> entries, 
-			BTreeFile bf, BTreeEntry e, int level, int nentries, int npagebytes, Type keyType, 
-			int tableid, int keyField) throws IOException {
+			BTreeFile bf, BTreeEntry e, int level, int nentries, int npagebytes, int keySize, 
+			int tableid, int[] keyFields) throws IOException {
 		while(entries.size() <= level) {
 			entries.add(new ArrayList<BTreeEntry>());
 		}
@@ -475,14 +539,14 @@ public class BTreeFileEncoder {
 				// write out a page of entries
 				ArrayList<BTreeEntry> pageEntries = new ArrayList<BTreeEntry>();
 				pageEntries.addAll(entries.get(level).subList(0, nentries));
-				byte[] internalPageBytes = convertToInternalPage(pageEntries, npagebytes, keyType, childPageCategory);
+				byte[] internalPageBytes = convertToInternalPage(pageEntries, npagebytes, keySize, childPageCategory);
 				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
+				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyFields));
 
 				// update the parent by "pushing up" the next key
 				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(level).get(nentries).getKey(), internalPid, null);
 				updateEntries(entries, bf, pushUpEntry, level + 1, nentries, npagebytes, 
-						keyType, tableid, keyField);
+						keySize, tableid, keyFields);
 				ArrayList<BTreeEntry> remainingEntries = new ArrayList<BTreeEntry>();
 				remainingEntries.addAll(entries.get(level).subList(nentries+1, size));
 				entries.get(level).clear();
@@ -506,6 +570,24 @@ public class BTreeFileEncoder {
 	public static byte[] convertToLeafPage(ArrayList<Tuple> tuples, int npagebytes,
 			int numFields, Type[] typeAr, int keyField)
 					throws IOException {
+		return convertToLeafPage(tuples, npagebytes, numFields, typeAr, new int[] {keyField});
+	}
+
+	/**
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
+	 * keyed on several fields
+	 * 
+	 * @param tuples - the set of tuples
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields in each tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param keyFields - the fields of the tuples the B+ tree will be keyed on, most significant first
+	 * @return a byte array which can be passed to the BTreeLeafPage constructor
+	 * @throws IOException
+	 */
+	public static byte[] convertToLeafPage(ArrayList<Tuple> tuples, int npagebytes,
+			int numFields, Type[] typeAr, int[] keyFields)
+					throws IOException {
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
@@ -554,7 +636,7 @@ public class BTreeFileEncoder {
 		if (i % 8 > 0)
 			dos.writeByte(headerbyte);
 
-		Collections.sort(tuples, new TupleComparator(keyField));
+		Collections.sort(tuples, new TupleComparator(keyFields));
 		for(int t = 0; t < recordcount; t++) {
 			TupleDesc td = tuples.get(t).getTupleDesc();
 			for(int j = 0; j < td.numFields(); j++) {
@@ -624,7 +706,24 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		return convertToInternalPage(entries, npagebytes, keyType.getLen(), childPageCategory);
+	}
+
+	/**
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage
+	 * whose keys take keySize bytes, e.g. the keys of a B+ tree keyed on several fields
+	 * 
+	 * @param entries - the set of entries
+	 * @param npagebytes - number of bytes per page
+	 * @param keySize - the number of bytes in a key
+	 * @param childPageCategory - the category of the child pages (either internal or leaf)
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IOException
+	 */
+	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
+			int keySize, int childPageCategory)
+					throws IOException {
+		int nentrybytes = keySize + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -673,7 +772,7 @@ public class BTreeFileEncoder {
 		}
 
 		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<keyType.getLen(); j++) {
+			for (int j=0; j<keySize; j++) {
 				dos.writeByte(0);
 			}
 		}
@@ -292,13 +292,22 @@ public class BTreeHeaderPage implements Page {
 	 * @return the index of the first empty slot or -1 if none exists
 	 */
 	public int getEmptySlot() {
-		for (int i=0; i<header.length; i++) {
-			if((int) header[i] != 0xFF) {
-				for(int j = 0; j < 8; j++) {
-					if(!isSlotUsed(i*8 + j)) {
-						return i*8 + j;
-					}
-				}
+		return getEmptySlot(0);
+	}
+
+	/**
+	 * get the index of the first empty slot at or after the given slot. Whole bytes 
+	 * of used slots are skipped at once.
+	 * @param from - the slot to start searching from
+	 * @return the index of the first empty slot at or after from, or -1 if none exists
+	 */
+	public int getEmptySlot(int from) {
+		for (int i=from/8; i<header.length; i++) {
+			int free = ~header[i] & 0xFF;
+			if(i == from/8)
+				free &= 0xFF << (from % 8);
+			if(free != 0) {
+				return i*8 + Integer.numberOfTrailingZeros(free);
 			}
 		}
 		return -1;
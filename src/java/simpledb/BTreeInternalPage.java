@@ -17,7 +17,16 @@ public class BTreeInternalPage extends BTreePage {
 	private final byte header[];
 	private final Field keys[];
 	private final int children[];
+	// the number of tuples below each child, or null if the tree is not counted
+	private final int counts[];
+	private final boolean counted;
+	// tuples inserted into the subtree of this page which have not yet been 
+	// moved down to a leaf, or null if the tree is not buffered
+	private final ArrayList<Tuple> messages;
+	private final boolean buffered;
 	private final int numSlots;
+	// the fewest entries a page of a buffered tree holds, however small the page
+	private final static int MIN_BUFFERED_ENTRIES = 4;
 	
 	private int childCategory; // either leaf or internal
 	
@@ -46,7 +55,59 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] {key});
+	}
+
+	/**
+	 * Create a BTreeInternalPage of a B+ tree keyed on an ordered list of fields.
+	 * Each key is stored as the concatenation of its components, so the entry size
+	 * is the sum of the key field sizes plus the child pointer.
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int)
+	 * @see CompositeField
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		this(id, data, keyFields, false);
+	}
+
+	/**
+	 * Create a BTreeInternalPage of a B+ tree which may be counted. A page of a 
+	 * counted B+ tree also stores, after the child pointers, the number of tuples 
+	 * in the subtree of each child, so it holds fewer entries.
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 * @param counted - whether the page stores the number of tuples below each child
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int[])
+	 * @see BTreeFile#isCounted()
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields, boolean counted) throws IOException {
+		this(id, data, keyFields, counted, false);
+	}
+
+	/**
+	 * Create a BTreeInternalPage of a B+ tree which may be counted or buffered.
+	 * A page of a buffered B+ tree holds fewer entries and uses the rest of the
+	 * page as a buffer of tuples inserted into its subtree, stored at the end of
+	 * the page as the number of tuples followed by the tuples.
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 * @param counted - whether the page stores the number of tuples below each child
+	 * @param buffered - whether the page has a buffer of inserted tuples
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int[], boolean)
+	 * @see BTreeFile#isBuffered()
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields, boolean counted, 
+			boolean buffered) throws IOException {
+		super(id, keyFields);
+		this.counted = counted;
+		this.buffered = buffered;
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -86,24 +147,85 @@ public class BTreeInternalPage extends BTreePage {
 		}catch(NoSuchElementException e){
 			e.printStackTrace();
 		}
+
+		if(counted) {
+			// read the subtree counts, which are zero for empty slots
+			counts = new int[numSlots];
+			for (int i=0; i<counts.length; i++)
+				counts[i] = dis.readInt();
+		}
+		else {
+			counts = null;
+		}
 		dis.close();
 
+		if(buffered) {
+			// read the buffered tuples from the end of the page
+			messages = new ArrayList<Tuple>();
+			DataInputStream bis = new DataInputStream(new ByteArrayInputStream(
+					data, data.length - getBufferSize(), getBufferSize()));
+			int n = bis.readInt();
+			try {
+				for (int i=0; i<n; i++) {
+					Tuple t = new Tuple(td);
+					for (int j=0; j<td.numFields(); j++)
+						t.setField(j, td.getFieldType(j).parse(bis));
+					messages.add(t);
+				}
+			} catch (java.text.ParseException e) {
+				e.printStackTrace();
+				throw new NoSuchElementException("parsing error!");
+			}
+			bis.close();
+		}
+		else {
+			messages = null;
+		}
+
 		setBeforeImage();
 	}
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * A page of a buffered B+ tree holds about the square root of the entries of
+	 * an unbuffered page, leaving the rest of the page to its buffer.
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		int keySize = CompositeField.keySize(td, keyFields);
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
 		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
-		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
+		if(counted) {
+			// one subtree count per child pointer
+			bitsPerEntryIncludingHeader += INDEX_SIZE * 8;
+			extraBits += INDEX_SIZE * 8;
+		}
+		int pageBits = BufferPool.getPageSize() * 8;
+		int entriesPerPage = (pageBits - extraBits) / bitsPerEntryIncludingHeader; //round down
+		if(buffered)
+			return Math.max(MIN_BUFFERED_ENTRIES, (int) Math.sqrt(entriesPerPage));
 		return entriesPerPage;
 	}
 
+	/**
+	 * @return the number of bytes at the end of the page set aside for buffered 
+	 *         tuples, which is zero if the tree is not buffered
+	 */
+	private int getBufferSize() {
+		return buffered ? BufferPool.getPageSize() - getEntriesSize() : 0;
+	}
+
+	/**
+	 * @return the number of bytes used by the parent pointer, child category, 
+	 *         header, keys, child pointers and subtree counts of this page
+	 */
+	private int getEntriesSize() {
+		int slots = getMaxEntries() + 1;
+		return INDEX_SIZE + 1 + getHeaderSize() + CompositeField.keySize(td, keyFields) * (slots - 1) 
+				+ INDEX_SIZE * slots + (counted ? INDEX_SIZE * slots : 0);
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
 	 * @return the number of bytes in the header
@@ -125,7 +247,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields,counted,buffered);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -148,7 +270,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<CompositeField.keySize(td, keyFields); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -161,7 +283,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = CompositeField.parseKey(td, keyFields, dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -249,7 +371,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<CompositeField.keySize(td, keyFields); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -294,9 +416,19 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
+		// create the subtree counts
+		if (counts != null) {
+			for (int i=0; i<counts.length; i++) {
+				try {
+					dos.writeInt(isSlotUsed(i) ? counts[i] : 0);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+		int zerolen = BufferPool.getPageSize() - getEntriesSize() - getBufferSize(); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -304,6 +436,20 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		// create the buffered tuples, padded to the end of the page
+		if (messages != null) {
+			try {
+				dos.writeInt(messages.size());
+				for (Tuple t : messages) {
+					for (int j=0; j<td.numFields(); j++)
+						t.getField(j).serialize(dos);
+				}
+				dos.write(new byte[getBufferSize() - INDEX_SIZE - messages.size() * td.getSize()]);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
 		try {
 			dos.flush();
 		} catch (IOException e) {
@@ -339,6 +485,8 @@ public class BTreeInternalPage extends BTreePage {
 			for(int i = rid.tupleno() - 1; i >= 0; i--) {
 				if(isSlotUsed(i)) {
 					children[i] = children[rid.tupleno()];
+					if(counts != null)
+						counts[i] = counts[rid.tupleno()];
 					markSlotUsed(rid.tupleno(), false); 
 					break;
 				}	
@@ -421,7 +569,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!CompositeField.isKeyOf(e.getKey(), td, keyFields))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -441,6 +589,10 @@ public class BTreeInternalPage extends BTreePage {
 			children[0] = e.getLeftChild().pageNumber();
 			children[1] = e.getRightChild().pageNumber();
 			keys[1] = e.getKey();
+			if(counts != null) {
+				counts[0] = 0;
+				counts[1] = 0;
+			}
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
 			e.setRecordId(new RecordId(pid, 1));
@@ -461,6 +613,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// find the child pointer matching the left or right child in this entry
 		int lessOrEqKey = -1;
+		int rightCount = -1;
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
 				if(children[i] == e.getLeftChild().pageNumber() || children[i] == e.getRightChild().pageNumber()) {
@@ -475,6 +628,11 @@ public class BTreeInternalPage extends BTreePage {
 					lessOrEqKey = i;
 					if(children[i] == e.getRightChild().pageNumber()) {
 						children[i] = e.getLeftChild().pageNumber();
+						// the right child keeps its count in the new slot
+						if(counts != null) {
+							rightCount = counts[i];
+							counts[i] = 0;
+						}
 					}
 				}
 				else if(lessOrEqKey != -1) {
@@ -522,6 +680,8 @@ public class BTreeInternalPage extends BTreePage {
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
 		keys[goodSlot] = e.getKey();
 		children[goodSlot] = e.getRightChild().pageNumber();
+		if(counts != null)
+			counts[goodSlot] = Math.max(0, rightCount);
 		e.setRecordId(new RecordId(pid, goodSlot));
 	}
 
@@ -534,10 +694,266 @@ public class BTreeInternalPage extends BTreePage {
 			markSlotUsed(to, true);
 			keys[to] = keys[from];
 			children[to] = children[from];
+			if(counts != null)
+				counts[to] = counts[from];
 			markSlotUsed(from, false);
 		}
 	}
 
+	/**
+	 * @return true if this page stores the number of tuples below each child
+	 */
+	public boolean isCounted() {
+		return counts != null;
+	}
+
+	/**
+	 * Returns the number of tuples in the subtree of the specified child, as
+	 * recorded on this page. The count of a child added by insertEntry is zero
+	 * until it is set with setChildCount.
+	 * 
+	 * @param child - the id of a child of this page
+	 * @return the number of tuples below the child, or -1 if it is not a child of this page
+	 * @throws IllegalStateException if this page is not counted
+	 */
+	public int getChildCount(BTreePageId child) {
+		if(counts == null)
+			throw new IllegalStateException("page is not counted");
+		int slot = findChild(child);
+		return slot == -1 ? -1 : counts[slot];
+	}
+
+	/**
+	 * Set the number of tuples in the subtree of the specified child
+	 * 
+	 * @param child - the id of a child of this page
+	 * @param count - the number of tuples below the child
+	 * @throws DbException if child is not a child of this page
+	 * @throws IllegalStateException if this page is not counted
+	 */
+	public void setChildCount(BTreePageId child, int count) throws DbException {
+		if(counts == null)
+			throw new IllegalStateException("page is not counted");
+		int slot = findChild(child);
+		if(slot == -1)
+			throw new DbException("tried to set the count of a page which is not a child");
+		counts[slot] = count;
+	}
+
+	/**
+	 * @return the number of tuples below each child of this page, in key order,
+	 *         so that the counts of the children of the ith entry returned by the
+	 *         iterator are at positions i and i + 1
+	 * @throws IllegalStateException if this page is not counted
+	 */
+	public int[] getChildCounts() {
+		if(counts == null)
+			throw new IllegalStateException("page is not counted");
+		int[] result = new int[getNumEntries() + 1];
+		int n = 0;
+		for(int i = 0; i < numSlots && n < result.length; i++) {
+			if(isSlotUsed(i))
+				result[n++] = counts[i];
+		}
+		return result;
+	}
+
+	/**
+	 * @return the number of tuples below this page
+	 * @throws IllegalStateException if this page is not counted
+	 */
+	public int getTotalCount() {
+		if(counts == null)
+			throw new IllegalStateException("page is not counted");
+		int total = 0;
+		for(int i = 0; i < numSlots; i++) {
+			if(isSlotUsed(i))
+				total += counts[i];
+		}
+		return total;
+	}
+
+	/**
+	 * @return true if this page has a buffer of inserted tuples
+	 */
+	public boolean isBuffered() {
+		return messages != null;
+	}
+
+	/**
+	 * @return the number of tuples the buffer of this page can hold, which is
+	 *         zero if the page is not buffered
+	 */
+	public int getMaxMessages() {
+		return buffered ? (getBufferSize() - INDEX_SIZE) / td.getSize() : 0;
+	}
+
+	/**
+	 * @return the number of tuples in the buffer of this page
+	 */
+	public int getNumMessages() {
+		return messages == null ? 0 : messages.size();
+	}
+
+	/**
+	 * Add a tuple to the buffer of this page. The tuple's record id is set to 
+	 * its position in the buffer.
+	 * 
+	 * @param t - the tuple, whose key must lie in the subtree of this page
+	 * @throws DbException if the page is not buffered, the buffer is full or
+	 *         the tuple descriptor does not match
+	 */
+	public void addMessage(Tuple t) throws DbException {
+		if (messages == null)
+			throw new DbException("page is not buffered");
+		if (messages.size() >= getMaxMessages())
+			throw new DbException("called addMessage on page with full buffer");
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in addMessage");
+		t.setRecordId(new RecordId(pid, messages.size()));
+		messages.add(t);
+	}
+
+	/**
+	 * @return the tuples in the buffer of this page, in the order they were
+	 *         added, with their record ids set to their positions in the buffer
+	 */
+	public List<Tuple> getMessages() {
+		if (messages == null)
+			return Collections.emptyList();
+		for (int i = 0; i < messages.size(); i++)
+			messages.get(i).setRecordId(new RecordId(pid, i));
+		return new ArrayList<Tuple>(messages);
+	}
+
+	/**
+	 * Delete a tuple with the same fields as t from the buffer of this page,
+	 * preferring the one at the position given by t's record id
+	 * 
+	 * @return true if a tuple was deleted
+	 */
+	public boolean deleteMessage(Tuple t) {
+		if (messages == null)
+			return false;
+		RecordId rid = t.getRecordId();
+		int slot = -1;
+		if (rid != null && rid.getPageId().equals(pid) && rid.tupleno() < messages.size()
+				&& sameFields(messages.get(rid.tupleno()), t))
+			slot = rid.tupleno();
+		for (int i = 0; i < messages.size() && slot == -1; i++) {
+			if (sameFields(messages.get(i), t))
+				slot = i;
+		}
+		if (slot == -1)
+			return false;
+		messages.remove(slot).setRecordId(null);
+		t.setRecordId(null);
+		return true;
+	}
+
+	/**
+	 * @return true if two tuples have equal fields
+	 */
+	static boolean sameFields(Tuple t1, Tuple t2) {
+		for (int j = 0; j < t1.getTupleDesc().numFields(); j++) {
+			if (!t1.getField(j).equals(t2.getField(j)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the child of this page whose subtree holds a key, following the
+	 * same path as a search for the left-most page possibly containing it
+	 * 
+	 * @param key - a complete key
+	 * @return the id of the child, or null if this page has no entries
+	 */
+	public BTreePageId getChild(Field key) {
+		Iterator<BTreeEntry> it = iterator();
+		BTreeEntry e = null;
+		while (it.hasNext()) {
+			e = it.next();
+			if (key.compare(Op.LESS_THAN_OR_EQ, e.getKey()))
+				return e.getLeftChild();
+		}
+		return e == null ? null : e.getRightChild();
+	}
+
+	/**
+	 * @return the child of this page which the most buffered tuples belong to,
+	 *         or null if the buffer is empty
+	 */
+	public BTreePageId getFullestChild() {
+		HashMap<BTreePageId, Integer> perChild = new HashMap<BTreePageId, Integer>();
+		BTreePageId fullest = null;
+		int most = 0;
+		for (Tuple t : getMessages()) {
+			BTreePageId child = getChild(keyOf(t));
+			Integer n = perChild.get(child);
+			n = n == null ? 1 : n + 1;
+			perChild.put(child, n);
+			if (n > most) {
+				most = n;
+				fullest = child;
+			}
+		}
+		return fullest;
+	}
+
+	/**
+	 * Remove up to max of the buffered tuples which belong to a child's subtree
+	 * 
+	 * @return the tuples removed, with their record ids cleared
+	 */
+	public ArrayList<Tuple> takeMessages(BTreePageId child, int max) {
+		ArrayList<Tuple> taken = new ArrayList<Tuple>();
+		if (messages == null)
+			return taken;
+		Iterator<Tuple> it = messages.iterator();
+		while (it.hasNext() && taken.size() < max) {
+			Tuple t = it.next();
+			if (child.equals(getChild(keyOf(t)))) {
+				it.remove();
+				t.setRecordId(null);
+				taken.add(t);
+			}
+		}
+		return taken;
+	}
+
+	/**
+	 * Remove the buffered tuples whose keys are greater than a key, or all of
+	 * them if the key is null
+	 * 
+	 * @return the tuples removed, with their record ids cleared
+	 */
+	public ArrayList<Tuple> takeMessagesAbove(Field key) {
+		ArrayList<Tuple> taken = new ArrayList<Tuple>();
+		if (messages == null)
+			return taken;
+		Iterator<Tuple> it = messages.iterator();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (key == null || keyOf(t).compare(Op.GREATER_THAN, key)) {
+				it.remove();
+				t.setRecordId(null);
+				taken.add(t);
+			}
+		}
+		return taken;
+	}
+
+	private int findChild(BTreePageId child) {
+		if(child.getTableId() != pid.getTableId() || child.pgcateg() != childCategory)
+			return -1;
+		for(int i = 0; i < numSlots; i++) {
+			if(isSlotUsed(i) && children[i] == child.pageNumber())
+				return i;
+		}
+		return -1;
+	}
+
 	/**
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
@@ -749,7 +1165,8 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 					nextToReturn = new BTreeEntry(key, nextChildId, childId);
 					nextToReturn.setRecordId(recordId);
 					childId = nextChildId;
-					key = p.getKey(entry);
+					// slot 0 only holds a child, so the first entry has no predecessor
+					key = entry > 0 ? p.getKey(entry) : null;
 					recordId = new RecordId(p.pid, entry);
 					return true;
 				}
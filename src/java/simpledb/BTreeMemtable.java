@@ -0,0 +1,656 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import simpledb.Predicate.Op;
+
+/**
+ * BTreeMemtable is an in-memory write buffer in front of a BTreeFile, in the
+ * manner of the memtable of a log-structured merge tree. Inserts and deletes
+ * go into a concurrent skip list sorted by key, and are appended to a log next
+ * to the file so that they survive a restart, without touching any page of
+ * the tree. A delete of a tuple in the memtable removes its insert; a delete
+ * of any other tuple is recorded as a tombstone.
+ * <p>
+ * When the memtable holds its maximum number of changes it is frozen, and a
+ * new memtable takes the following changes while a background thread merges
+ * the frozen one into the tree in key order, so that the leaves are written in
+ * batches and in order rather than one random leaf per change. Iterators over
+ * the file merge the memtables with the tree.
+ * <p>
+ * A merge waits until no iterator over the file is open, so that no iterator
+ * sees a tuple both in the frozen memtable and in the tree, and iterators
+ * opened during a merge wait for it to finish. Inserts never wait; if the
+ * merge is held up by an open iterator, the new memtable grows past its size.
+ * <p>
+ * Every change is synced to its log before it is acknowledged. A merge applies
+ * the frozen changes in batches: before a batch, the number of tuples in the
+ * tree with the fields of each tuple it changes is synced to the frozen log;
+ * after it, the pages of the file are written. The changes to a tuple are
+ * applied by inserting or deleting copies of it until the tree holds the number
+ * of them the changes lead to from that count, so a merge which stopped, even
+ * after some pages of its last batch reached the file, is resumed from its last
+ * batch without applying any change twice.
+ *
+ * @see BTreeFile#enableMemtable(int)
+ */
+public class BTreeMemtable {
+
+	// the types of log records
+	private static final byte INSERT = 0;
+	private static final byte DELETE = 1;
+	private static final byte REMOVE = 2;
+	private static final byte MERGE = 3;
+
+	// the number of changes merged between writes of the pages of the file
+	private static final int MERGE_BATCH = 256;
+
+	/**
+	 * An insert of a tuple or a tombstone deleting one, ordered by key and then
+	 * by the order the changes were made in
+	 */
+	static class Entry {
+		final Field key;
+		final int seq;
+		final Tuple tuple;
+		final boolean delete;
+
+		Entry(Field key, int seq, Tuple tuple, boolean delete) {
+			this.key = key;
+			this.seq = seq;
+			this.tuple = tuple;
+			this.delete = delete;
+		}
+	}
+
+	private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+		public int compare(Entry e1, Entry e2) {
+			if(e1.key.compare(Op.LESS_THAN, e2.key))
+				return -1;
+			if(e1.key.compare(Op.GREATER_THAN, e2.key))
+				return 1;
+			return e1.seq < e2.seq ? -1 : e1.seq > e2.seq ? 1 : 0;
+		}
+	};
+
+	/**
+	 * The changes of one memtable and the log they are written to
+	 */
+	private static class Table {
+		final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<Entry>(ORDER);
+		// the number of entries, since the size of a skip list takes a scan
+		final AtomicInteger size = new AtomicInteger();
+		// the entry of each insert by sequence number, to find the inserts to remove
+		final HashMap<Integer, Entry> inserts = new HashMap<Integer, Entry>();
+		// the log, which is renamed when the table is frozen
+		File log;
+		FileOutputStream stream = null;
+		DataOutputStream out = null;
+		// the first and last change of the last batch a merge started, and the
+		// counts in the tree before it, or -1 if no merge started
+		int batchFirst = -1;
+		int batchLast = -1;
+		int[] batchCounts = null;
+
+		Table(File log) {
+			this.log = log;
+		}
+
+		void add(Entry e) {
+			entries.add(e);
+			size.incrementAndGet();
+			if(!e.delete)
+				inserts.put(e.seq, e);
+		}
+
+		Entry remove(int seq) {
+			Entry e = inserts.remove(seq);
+			if(e != null) {
+				entries.remove(e);
+				size.decrementAndGet();
+			}
+			return e;
+		}
+	}
+
+	private final BTreeFile file;
+	private final TupleDesc td;
+	private final int maxEntries;
+
+	// guarded by this, although readers read them without locking
+	private volatile Table active;
+	private volatile Table frozen = null;
+	private int nextSeq = 0;
+
+	// guarded by this
+	private int readers = 0;
+	private boolean merging = false;
+	private Thread merger = null;
+	private Exception mergeError = null;
+	private int merges = 0;
+	private long mergedEntries = 0;
+
+	/**
+	 * Constructor. Changes logged by an earlier memtable of the file are read
+	 * back; the frozen changes among them are merged by the next insert, delete
+	 * or {@link #flush()}.
+	 *
+	 * @param file - the B+ tree the memtable is in front of
+	 * @param maxEntries - the number of changes at which a memtable is frozen
+	 */
+	BTreeMemtable(BTreeFile file, int maxEntries) throws IOException {
+		if(maxEntries < 1)
+			throw new IllegalArgumentException("a memtable must hold at least one change");
+		this.file = file;
+		this.td = file.getTupleDesc();
+		this.maxEntries = maxEntries;
+		if(frozenLog().exists()) {
+			frozen = new Table(frozenLog());
+			replay(frozen);
+			if(frozen.size.get() == 0) {
+				frozenLog().delete();
+				frozen = null;
+			}
+		}
+		active = new Table(activeLog());
+		if(activeLog().exists())
+			replay(active);
+	}
+
+	private File activeLog() {
+		return new File(file.getFile().getPath() + ".memlog");
+	}
+
+	private File frozenLog() {
+		return new File(file.getFile().getPath() + ".memlog.frozen");
+	}
+
+	/**
+	 * Read the changes in the log of a table back into it
+	 */
+	private void replay(Table table) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(table.log)));
+		try {
+			while(true) {
+				int type = dis.read();
+				if(type == -1)
+					break;
+				int seq = dis.readInt();
+				nextSeq = Math.max(nextSeq, seq + 1);
+				if(type == REMOVE) {
+					table.remove(seq);
+					continue;
+				}
+				if(type == MERGE) {
+					int last = dis.readInt();
+					int[] counts = new int[dis.readInt()];
+					for(int j = 0; j < counts.length; j++)
+						counts[j] = dis.readInt();
+					table.batchFirst = seq;
+					table.batchLast = last;
+					table.batchCounts = counts;
+					continue;
+				}
+				Tuple t = new Tuple(td);
+				for(int j = 0; j < td.numFields(); j++)
+					t.setField(j, td.getFieldType(j).parse(dis));
+				table.add(new Entry(file.keyOf(t), seq, t, type == DELETE));
+			}
+		} catch(EOFException e) {
+			// the last record was only partly written, so its change never happened
+		} catch(java.text.ParseException e) {
+			throw new IOException("corrupt memtable log " + table.log, e);
+		} finally {
+			dis.close();
+		}
+	}
+
+	/**
+	 * Append a record of a change to the log of a table and sync it to disk
+	 */
+	private void log(Table table, byte type, int seq, Tuple t) throws IOException {
+		DataOutputStream out = open(table);
+		out.writeByte(type);
+		out.writeInt(seq);
+		if(t != null) {
+			for(int j = 0; j < td.numFields(); j++)
+				t.getField(j).serialize(out);
+		}
+		sync(table);
+	}
+
+	/**
+	 * Append a record of the start of a batch of a merge to the log of a table
+	 * and sync it to disk
+	 *
+	 * @param first - the sequence number of the first change in the batch
+	 * @param last - the sequence number of the last change in the batch
+	 * @param counts - the number of tuples in the tree with the fields of each
+	 *        group of changes in the batch
+	 */
+	private void logMerge(Table table, int first, int last, int[] counts) throws IOException {
+		DataOutputStream out = open(table);
+		out.writeByte(MERGE);
+		out.writeInt(first);
+		out.writeInt(last);
+		out.writeInt(counts.length);
+		for(int count : counts)
+			out.writeInt(count);
+		sync(table);
+		// a merge retried after a failure resumes from this batch too
+		table.batchFirst = first;
+		table.batchLast = last;
+		table.batchCounts = counts;
+	}
+
+	private DataOutputStream open(Table table) throws IOException {
+		if(table.out == null) {
+			table.stream = new FileOutputStream(table.log, true);
+			table.out = new DataOutputStream(new BufferedOutputStream(table.stream));
+		}
+		return table.out;
+	}
+
+	private void sync(Table table) throws IOException {
+		table.out.flush();
+		table.stream.getFD().sync();
+	}
+
+	private void closeLog(Table table) throws IOException {
+		if(table.out != null) {
+			table.out.close();
+			table.out = null;
+			table.stream = null;
+		}
+	}
+
+	/**
+	 * @return the record id given to a tuple in a memtable, which is on no page
+	 */
+	private RecordId recordId(int seq) {
+		return new RecordId(new BTreePageId(file.getId(), 0, BTreePageId.ROOT_PTR), seq);
+	}
+
+	/**
+	 * @return true if the record id of a tuple says it was read from a memtable
+	 */
+	static boolean inMemtable(Tuple t) {
+		PageId pid = t.getRecordId() == null ? null : t.getRecordId().getPageId();
+		return pid instanceof BTreePageId && ((BTreePageId) pid).pgcateg() == BTreePageId.ROOT_PTR;
+	}
+
+	/**
+	 * Insert a tuple into the memtable
+	 */
+	synchronized void insert(Tuple t) throws DbException, IOException {
+		checkMergeError();
+		if(!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in addTuple");
+		Tuple copy = copy(t);
+		int seq = nextSeq++;
+		log(active, INSERT, seq, copy);
+		active.add(new Entry(file.keyOf(copy), seq, copy, false));
+		t.setRecordId(recordId(seq));
+		maybeMerge();
+	}
+
+	/**
+	 * Delete a tuple, either by removing its insert from the active memtable or
+	 * by recording a tombstone for it
+	 */
+	synchronized void delete(Tuple t) throws DbException, IOException {
+		checkMergeError();
+		if(t.getRecordId() == null)
+			throw new DbException("tried to delete tuple with null rid");
+		if(inMemtable(t) && active.inserts.containsKey(t.getRecordId().tupleno())) {
+			int seq = t.getRecordId().tupleno();
+			log(active, REMOVE, seq, null);
+			active.remove(seq);
+		}
+		else {
+			// the tuple is in the tree, in the frozen memtable, or was merged into the tree
+			Tuple copy = copy(t);
+			int seq = nextSeq++;
+			log(active, DELETE, seq, copy);
+			active.add(new Entry(file.keyOf(copy), seq, copy, true));
+		}
+		maybeMerge();
+	}
+
+	private Tuple copy(Tuple t) {
+		Tuple copy = new Tuple(td);
+		for(int j = 0; j < td.numFields(); j++)
+			copy.setField(j, t.getField(j));
+		return copy;
+	}
+
+	/**
+	 * Report a failed background merge to the next writer
+	 */
+	private void checkMergeError() throws DbException {
+		if(mergeError != null) {
+			Exception e = mergeError;
+			mergeError = null;
+			DbException dbe = new DbException("merging the memtable into " + file.getFile() + " failed");
+			dbe.initCause(e);
+			throw dbe;
+		}
+	}
+
+	/**
+	 * Freeze the active memtable if it is full, and start a merge if there is a
+	 * frozen memtable and no merge running
+	 */
+	private void maybeMerge() throws IOException {
+		if(frozen == null && active.size.get() >= maxEntries)
+			freeze();
+		if(frozen != null && merger == null) {
+			merger = new Thread("memtable merge " + file.getFile().getName()) {
+				public void run() {
+					mergeInBackground();
+				}
+			};
+			merger.setDaemon(true);
+			merger.start();
+		}
+	}
+
+	/**
+	 * Make the active memtable the frozen one, and start a new active memtable
+	 */
+	private void freeze() throws IOException {
+		closeLog(active);
+		if(active.log.exists() && !active.log.renameTo(frozenLog()))
+			throw new IOException("could not rename " + active.log + " to " + frozenLog());
+		active.log = frozenLog();
+		frozen = active;
+		active = new Table(activeLog());
+	}
+
+	/**
+	 * Merge frozen memtables into the tree until the active memtable is not full
+	 */
+	private void mergeInBackground() {
+		try {
+			while(true) {
+				synchronized(this) {
+					if(frozen == null && active.size.get() >= maxEntries)
+						freeze();
+					if(frozen == null) {
+						merger = null;
+						notifyAll();
+						return;
+					}
+				}
+				mergeFrozen();
+			}
+		} catch(Exception e) {
+			synchronized(this) {
+				mergeError = e;
+				merger = null;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Apply the changes in the frozen memtable to the tree in key order, in
+	 * batches, with no iterator open, then drop the frozen memtable and its
+	 * log. If an earlier merge of the memtable stopped, the batches before the
+	 * last one it started are skipped, and that one is finished.
+	 */
+	private void mergeFrozen() throws DbException, IOException, TransactionAbortedException,
+			InterruptedException {
+		synchronized(this) {
+			while(readers > 0)
+				wait();
+			merging = true;
+		}
+		file.beginAccess();
+		try {
+			TransactionId tid = new TransactionId();
+			ArrayList<Entry> entries = new ArrayList<Entry>(frozen.entries);
+			int start = 0;
+			if(frozen.batchFirst != -1) {
+				while(entries.get(start).seq != frozen.batchFirst)
+					start++;
+				int end = start;
+				while(entries.get(end).seq != frozen.batchLast)
+					end++;
+				ArrayList<ArrayList<Entry>> groups = groups(entries.subList(start, end + 1));
+				int[] current = new int[groups.size()];
+				for(int i = 0; i < groups.size(); i++)
+					current[i] = file.countMatchingInTree(tid, groups.get(i).get(0).tuple);
+				mergeBatch(tid, groups, frozen.batchCounts, current);
+				start = end + 1;
+			}
+			while(start < entries.size()) {
+				int end = Math.min(start + MERGE_BATCH, entries.size());
+				// the changes to a tuple all have its key, and stay in one batch
+				while(end < entries.size() && entries.get(end).key.compare(Op.EQUALS, entries.get(end - 1).key))
+					end++;
+				ArrayList<ArrayList<Entry>> groups = groups(entries.subList(start, end));
+				int[] counts = new int[groups.size()];
+				for(int i = 0; i < groups.size(); i++)
+					counts[i] = file.countMatchingInTree(tid, groups.get(i).get(0).tuple);
+				logMerge(frozen, entries.get(start).seq, entries.get(end - 1).seq, counts);
+				mergeBatch(tid, groups, counts, counts);
+				start = end;
+			}
+			Database.getBufferPool().transactionComplete(tid);
+			closeLog(frozen);
+			frozen.log.delete();
+			synchronized(this) {
+				merges++;
+				mergedEntries += frozen.size.get();
+				frozen = null;
+			}
+		} finally {
+			file.endAccess();
+			synchronized(this) {
+				merging = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return the changes in a batch, grouped by the fields of their tuples, in
+	 *         the order of the first change to each tuple
+	 */
+	private ArrayList<ArrayList<Entry>> groups(List<Entry> batch) {
+		LinkedHashMap<List<Field>, ArrayList<Entry>> groups = new LinkedHashMap<List<Field>, ArrayList<Entry>>();
+		for(Entry e : batch) {
+			List<Field> fields = fields(e.tuple);
+			ArrayList<Entry> group = groups.get(fields);
+			if(group == null) {
+				group = new ArrayList<Entry>();
+				groups.put(fields, group);
+			}
+			group.add(e);
+		}
+		return new ArrayList<ArrayList<Entry>>(groups.values());
+	}
+
+	/**
+	 * Apply a batch of changes to the tree and write the pages of the file. The
+	 * changes to each tuple, applied in order to the number of copies of it the
+	 * tree held before the batch, give the number it should hold after; copies
+	 * are inserted or deleted until it does. A tombstone for a tuple with no
+	 * copy left does nothing.
+	 *
+	 * @param groups - the changes of the batch, grouped by tuple
+	 * @param before - the number of copies of each tuple before the batch
+	 * @param current - the number of copies of each tuple in the tree now
+	 */
+	private void mergeBatch(TransactionId tid, ArrayList<ArrayList<Entry>> groups, int[] before, int[] current)
+			throws DbException, IOException, TransactionAbortedException {
+		for(int i = 0; i < groups.size(); i++) {
+			int target = before[i];
+			for(Entry e : groups.get(i))
+				target = e.delete ? Math.max(0, target - 1) : target + 1;
+			Tuple t = groups.get(i).get(0).tuple;
+			for(int n = current[i]; n < target; n++)
+				Database.getBufferPool().updateDirtyPages(tid, file.insertIntoTree(tid, copy(t)));
+			for(int n = current[i]; n > target; n--)
+				file.deleteMatchingFromTree(tid, t);
+		}
+		Database.getBufferPool().flushTablePages(file.getId());
+	}
+
+	/**
+	 * Merge every change in the memtables into the tree, and wait for the merge
+	 * to finish. This must not be called while an iterator over the file is
+	 * open on any thread, since the merge waits for every iterator to close.
+	 */
+	public void flush() throws DbException, IOException {
+		synchronized(this) {
+			checkMergeError();
+			try {
+				while(active.size.get() > 0 || frozen != null || merger != null) {
+					if(merger == null) {
+						if(frozen == null)
+							freeze();
+						maybeMerge();
+					}
+					wait();
+					checkMergeError();
+				}
+			} catch(InterruptedException e) {
+				throw new DbException("interrupted while merging the memtable");
+			}
+		}
+	}
+
+	/**
+	 * Merge every change into the tree and close and remove the logs
+	 */
+	synchronized void close() throws DbException, IOException {
+		flush();
+		closeLog(active);
+		activeLog().delete();
+	}
+
+	/**
+	 * Wait for any running merge to finish, and keep merges from starting until
+	 * {@link #endRead()} is called
+	 */
+	synchronized void beginRead() throws DbException {
+		try {
+			while(merging)
+				wait();
+		} catch(InterruptedException e) {
+			throw new DbException("interrupted while waiting for a memtable merge");
+		}
+		readers++;
+	}
+
+	/**
+	 * Allow merges again once every reader has finished
+	 */
+	synchronized void endRead() {
+		readers--;
+		notifyAll();
+	}
+
+	/**
+	 * Collect the changes in the memtables whose keys satisfy a predicate. The
+	 * caller must be between {@link #beginRead()} and {@link #endRead()}.
+	 *
+	 * @param ipred - the predicate to filter on, or null for every change
+	 * @param inserts - the inserted tuples, in key order, with their record ids set
+	 * @param deletes - the number of tombstones for the fields of each deleted tuple
+	 */
+	void matching(IndexPredicate ipred, ArrayList<Tuple> inserts, HashMap<List<Field>, Integer> deletes) {
+		Field key = ipred == null ? null : CompositeField.searchKey(ipred.getField(), file.keyFields());
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		Table f = frozen;
+		if(f != null)
+			entries.addAll(range(f, ipred == null ? null : ipred.getOp(), key));
+		entries.addAll(range(active, ipred == null ? null : ipred.getOp(), key));
+		Collections.sort(entries, ORDER);
+		for(Entry e : entries) {
+			if(ipred != null && !e.key.compare(ipred.getOp(), key))
+				continue;
+			if(e.delete) {
+				List<Field> fields = fields(e.tuple);
+				Integer n = deletes.get(fields);
+				deletes.put(fields, n == null ? 1 : n + 1);
+			}
+			else {
+				e.tuple.setRecordId(recordId(e.seq));
+				inserts.add(e.tuple);
+			}
+		}
+	}
+
+	/**
+	 * @return the entries of a table whose keys may satisfy a predicate
+	 */
+	private Collection<Entry> range(Table table, Op op, Field key) {
+		if(op == null)
+			return table.entries;
+		Entry first = new Entry(key, Integer.MIN_VALUE, null, false);
+		Entry last = new Entry(key, Integer.MAX_VALUE, null, false);
+		switch(op) {
+		case EQUALS:
+			return table.entries.subSet(first, true, last, true);
+		case GREATER_THAN:
+			return table.entries.tailSet(last, false);
+		case GREATER_THAN_OR_EQ:
+			return table.entries.tailSet(first, true);
+		case LESS_THAN:
+			return table.entries.headSet(first, false);
+		case LESS_THAN_OR_EQ:
+			return table.entries.headSet(last, true);
+		default:
+			return table.entries;
+		}
+	}
+
+	/**
+	 * @return the fields of a tuple, to match tuples against tombstones
+	 */
+	static List<Field> fields(Tuple t) {
+		ArrayList<Field> fields = new ArrayList<Field>();
+		for(int j = 0; j < t.getTupleDesc().numFields(); j++)
+			fields.add(t.getField(j));
+		return fields;
+	}
+
+	/**
+	 * @return the number of changes in the memtables which are not yet merged
+	 */
+	public int size() {
+		Table f = frozen;
+		return active.size.get() + (f == null ? 0 : f.size.get());
+	}
+
+	/**
+	 * @return the number of changes at which a memtable is frozen and merged
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * @return the number of memtables merged into the tree
+	 */
+	public synchronized int getMerges() {
+		return merges;
+	}
+
+	/**
+	 * @return the number of changes merged into the tree
+	 */
+	public synchronized long getMergedEntries() {
+		return mergedEntries;
+	}
+
+	public String toString() {
+		return size() + " changes buffered, " + getMergedEntries() + " merged in " + getMerges() + " merges";
+	}
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * Helper class that merges the changes in the memtables of a BTreeFile into an
+ * iterator over the tuples in the tree. Tuples inserted into a memtable are
+ * returned in key order with the tuples from the tree, and a tombstone hides
+ * one tuple with the same fields.
+ */
+class BTreeMemtableIterator extends AbstractDbFileIterator {
+
+	final BTreeFile f;
+	final BTreeMemtable memtable;
+	final IndexPredicate ipred;
+	final DbFileIterator tree;
+	final boolean ordered;
+
+	// the inserted tuples matching the predicate, in key order
+	ArrayList<Tuple> inserts = null;
+	int nextInsert;
+	// the number of tuples still to hide for the fields of each deleted tuple
+	HashMap<List<Field>, Integer> deletes;
+	// the next tuple from the tree, read ahead to compare with the inserted tuples
+	Tuple nextTree;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param memtable - the memtable of the file
+	 * @param ipred - the predicate to filter on, or null for all tuples
+	 * @param tree - an iterator over the tuples in the tree matching the predicate
+	 * @param ordered - whether the tuples from the tree are in key order, and
+	 *        the merged tuples should be too
+	 */
+	public BTreeMemtableIterator(BTreeFile f, BTreeMemtable memtable, IndexPredicate ipred,
+			DbFileIterator tree, boolean ordered) {
+		this.f = f;
+		this.memtable = memtable;
+		this.ipred = ipred;
+		this.tree = tree;
+		this.ordered = ordered;
+	}
+
+	/**
+	 * Open this iterator by collecting the matching changes and opening the
+	 * iterator over the tree. No merge runs until the iterator is closed.
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		if(inserts != null)
+			return;
+		memtable.beginRead();
+		inserts = new ArrayList<Tuple>();
+		deletes = new HashMap<List<Field>, Integer>();
+		memtable.matching(ipred, inserts, deletes);
+		nextInsert = 0;
+		nextTree = null;
+		try {
+			tree.open();
+		} catch(DbException e) {
+			close();
+			throw e;
+		} catch(TransactionAbortedException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read the next tuple from the tree or the memtables, whichever has the
+	 * lower key, skipping the tuples hidden by tombstones
+	 *
+	 * @return the next tuple, or null if both are exhausted
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		if(inserts == null)
+			return null;
+		while(true) {
+			if(nextTree == null && tree.hasNext())
+				nextTree = tree.next();
+			Tuple t;
+			if(nextInsert < inserts.size() && (nextTree == null || !ordered
+					|| f.keyOf(inserts.get(nextInsert)).compare(Op.LESS_THAN, f.keyOf(nextTree))))
+				t = inserts.get(nextInsert++);
+			else {
+				t = nextTree;
+				nextTree = null;
+			}
+			if(t == null || deletes.isEmpty())
+				return t;
+			List<Field> fields = BTreeMemtable.fields(t);
+			Integer n = deletes.get(fields);
+			if(n == null)
+				return t;
+			if(n == 1)
+				deletes.remove(fields);
+			else
+				deletes.put(fields, n - 1);
+		}
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator, allowing merges again
+	 */
+	public void close() {
+		super.close();
+		if(inserts != null) {
+			tree.close();
+			inserts = null;
+			deletes = null;
+			nextTree = null;
+			memtable.endRead();
+		}
+	}
+}
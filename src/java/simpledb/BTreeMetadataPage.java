@@ -0,0 +1,280 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * BTreeMetadataPage keeps the number of tuples in a B+ tree and the smallest
+ * and largest value of its most significant key field, so that the planner can
+ * answer MIN, MAX and COUNT without reading the tree. It implements the Page
+ * interface that is used by BufferPool, and is stored in a file next to the
+ * one backing the tree, which keeps the layout of that file unchanged.
+ *
+ * @see BTreeFile#getTupleCount(TransactionId)
+ * @see BufferPool
+ */
+public class BTreeMetadataPage implements Page {
+	// the size of the largest field, used to store the key bounds
+	private final static int KEY_SIZE = Type.STRING_LEN + 4;
+	// size of this page
+	public final static int PAGE_SIZE = 1 + 4 + 1 + 2 * KEY_SIZE;
+
+	private boolean dirty = false;
+	private TransactionId dirtier = null;
+
+	private BTreePageId pid;
+
+	// the number of tuples, only exact if countValid is set
+	private boolean countValid;
+	private int count;
+	// the smallest and largest key, or null if the tree is empty; only exact
+	// if boundsValid is set
+	private boolean boundsValid;
+	private Field minKey;
+	private Field maxKey;
+
+	private byte[] oldData;
+
+	/**
+	 * Constructor.
+	 * Construct the BTreeMetadataPage from a set of bytes of data read from
+	 * disk.
+	 * The format of a BTreeMetadataPage is a byte of flags telling whether the
+	 * tuple count and the key bounds are exact, followed by the tuple count, a
+	 * byte for the type of the key (or -1 if the tree is empty) and the smallest
+	 * and largest key, each padded to the size of the largest field.
+	 */
+	public BTreeMetadataPage(BTreePageId id, byte[] data) throws IOException {
+		this.pid = id;
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		int flags = dis.readByte();
+		countValid = (flags & 1) != 0;
+		boundsValid = (flags & 2) != 0;
+		count = dis.readInt();
+		int keyType = dis.readByte();
+		if(keyType >= 0) {
+			try {
+				Type type = Type.values()[keyType];
+				minKey = type.parse(dis);
+				dis.skipBytes(KEY_SIZE - type.getLen());
+				maxKey = type.parse(dis);
+			} catch (java.text.ParseException e) {
+				throw new IOException("invalid key bounds: " + e.getMessage());
+			}
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	public void setBeforeImage() {
+		oldData = getPageData().clone();
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public BTreePageId getId() {
+		return pid;
+	}
+
+	/**
+	 * There is only one instance of a BTreeMetadataPage per table.
+	 * @param tableid - the tableid of this table
+	 * @return the metadata page id for the given table
+	 */
+	public static BTreePageId getId(int tableid) {
+		return new BTreePageId(tableid, 0, BTreePageId.METADATA);
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this metadata page.
+	 * Used to serialize this metadata page to disk.
+	 *
+	 * @return A byte array corresponding to the bytes of this metadata page.
+	 */
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(PAGE_SIZE);
+		DataOutputStream dos = new DataOutputStream(baos);
+
+		// write out the tuple count and the key bounds, padded to the page size
+		try {
+			dos.writeByte((countValid ? 1 : 0) | (boundsValid ? 2 : 0));
+			dos.writeInt(count);
+			if(minKey == null) {
+				dos.writeByte(-1);
+			}
+			else {
+				dos.writeByte(minKey.getType().ordinal());
+				minKey.serialize(dos);
+				dos.write(new byte[KEY_SIZE - minKey.getType().getLen()]);
+				maxKey.serialize(dos);
+			}
+			dos.write(new byte[PAGE_SIZE - dos.size()]);
+			dos.flush();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to the
+	 * BTreeMetadataPage of an empty tree, with an exact tuple count of zero
+	 * and no keys.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		byte[] data = createUnknownPageData();
+		data[0] = 3;
+		return data;
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to a
+	 * BTreeMetadataPage with no exact tuple count and no exact key bounds, for
+	 * a tree whose metadata was never saved.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createUnknownPageData() {
+		byte[] data = new byte[PAGE_SIZE];
+		data[5] = -1;
+		return data;
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public BTreeMetadataPage getBeforeImage() {
+		try {
+			return new BTreeMetadataPage(pid, oldData);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the tuple count kept in this page is exact
+	 */
+	public boolean hasCount() {
+		return countValid;
+	}
+
+	/**
+	 * @return the number of tuples in the tree, if {@link #hasCount()}
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Set the number of tuples in the tree, and mark it exact
+	 * @param count - the number of tuples
+	 */
+	public void setCount(int count) {
+		this.count = count;
+		this.countValid = true;
+	}
+
+	/**
+	 * @return true if the key bounds kept in this page are exact
+	 */
+	public boolean hasKeyBounds() {
+		return boundsValid;
+	}
+
+	/**
+	 * @return the smallest value of the most significant key field in the tree,
+	 * or null if the tree is empty, if {@link #hasKeyBounds()}
+	 */
+	public Field getMinKey() {
+		return minKey;
+	}
+
+	/**
+	 * @return the largest value of the most significant key field in the tree,
+	 * or null if the tree is empty, if {@link #hasKeyBounds()}
+	 */
+	public Field getMaxKey() {
+		return maxKey;
+	}
+
+	/**
+	 * Set the key bounds of the tree, and mark them exact
+	 * @param min - the smallest key, or null if the tree is empty
+	 * @param max - the largest key, or null if the tree is empty
+	 */
+	public void setKeyBounds(Field min, Field max) {
+		this.minKey = min;
+		this.maxKey = max;
+		this.boundsValid = true;
+	}
+
+	/**
+	 * Mark the key bounds as no longer exact, when a bound may have been deleted
+	 */
+	public void invalidateKeyBounds() {
+		this.boundsValid = false;
+	}
+
+	/**
+	 * Update the tuple count and the key bounds for a tuple inserted into the tree
+	 * @param key - the value of the most significant key field of the tuple
+	 */
+	public void noteInsert(Field key) {
+		if(countValid)
+			count++;
+		if(boundsValid) {
+			if(minKey == null || key.compare(Predicate.Op.LESS_THAN, minKey))
+				minKey = key;
+			if(maxKey == null || key.compare(Predicate.Op.GREATER_THAN, maxKey))
+				maxKey = key;
+		}
+	}
+
+	/**
+	 * Update the tuple count and the key bounds for tuples deleted from the tree.
+	 * The bounds stop being exact if a deleted key may have been a bound.
+	 * @param n - the number of tuples deleted
+	 * @param lower - a key no greater than any deleted key, or null if unknown
+	 * @param upper - a key no less than any deleted key, or null if unknown
+	 */
+	public void noteDelete(int n, Field lower, Field upper) {
+		if(n == 0)
+			return;
+		if(countValid)
+			count -= n;
+		if(countValid && count == 0)
+			setKeyBounds(null, null);
+		else if(boundsValid && minKey != null
+				&& (lower == null || !minKey.compare(Predicate.Op.LESS_THAN, lower)
+				|| upper == null || !maxKey.compare(Predicate.Op.GREATER_THAN, upper)))
+			boundsValid = false;
+	}
+
+	/**
+	 * Get the page size of metadata pages
+	 * @return the page size
+	 */
+	public static int getPageSize() {
+		return PAGE_SIZE;
+	}
+
+}
@@ -21,7 +21,8 @@ public abstract class BTreePage implements Page {
 
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
-	protected final int keyField;
+	protected final int[] keyFields;
+	protected final int keyField; // the most significant key field
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -52,11 +53,32 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) throws IOException {
+		this(id, new int[] {key});
+	}
+
+	/**
+	 * Create a page of a B+ tree keyed on an ordered list of fields.
+	 * 
+	 * @param id - the id of this page
+	 * @param keys - the fields which the index is keyed on, most significant first
+	 * @see CompositeField
+	 */
+	public BTreePage(BTreePageId id, int[] keys) throws IOException {
 		this.pid = id;
-		this.keyField = key;
+		this.keyFields = keys.clone();
+		this.keyField = keys[0];
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
+	/**
+	 * Returns the key of a tuple stored in this index: the key field itself, or
+	 * a CompositeField of the key fields if the index is keyed on several fields.
+	 * @param t - the tuple
+	 */
+	public Field keyOf(Tuple t) {
+		return CompositeField.keyOf(t, keyFields);
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
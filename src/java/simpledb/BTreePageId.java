@@ -1,7 +1,7 @@
 package simpledb;
 
-/** Unique identifier for BTreeInternalPage, BTreeLeafPage, BTreeHeaderPage
- *  and BTreeRootPtrPage objects. 
+/** Unique identifier for BTreeInternalPage, BTreeLeafPage, BTreeHeaderPage,
+ *  BTreeRootPtrPage and BTreeMetadataPage objects. 
  */
 public class BTreePageId implements PageId {
 
@@ -9,6 +9,7 @@ public class BTreePageId implements PageId {
 	public final static int INTERNAL = 1;
 	public final static int LEAF = 2;
 	public final static int HEADER = 3;
+	public final static int METADATA = 4;
 
 	private final int tableId;
 	private final int pgNo;
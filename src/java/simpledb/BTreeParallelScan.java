@@ -0,0 +1,350 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import simpledb.Predicate.Op;
+
+/**
+ * BTreeParallelScan scans the tuples of a BTreeFile which satisfy an optional
+ * predicate on several threads. When the scan is opened, the tree is read from the
+ * root down, level by level, until there are enough subtrees to keep every thread
+ * busy. Each subtree covers a contiguous range of the key space and of the leaf
+ * chain, and is scanned as one partition by a task on a fork-join pool. Partitions
+ * whose key range cannot satisfy the predicate are skipped.
+ * <p>
+ * Tuples are handed from the tasks to the reading thread one leaf page at a
+ * time, through bounded queues. If the scan is ordered, each partition has its
+ * own queue and the partitions are read one after another, so the tuples are
+ * returned in key order; otherwise all partitions share a queue and tuples are
+ * returned as soon as they are found. Partitions are started in key order, so
+ * the partition being read is always being scanned.
+ */
+public class BTreeParallelScan extends AbstractDbFileIterator {
+
+	// the number of leaf pages of tuples a partition may scan ahead of the reader
+	private static final int QUEUE_PAGES = 4;
+	// the number of partitions to aim for per thread, to balance uneven subtrees
+	private static final int PARTITIONS_PER_THREAD = 4;
+	// how often blocked threads check whether the scan has been closed or has failed
+	private static final long POLL_MILLIS = 100;
+	// marks the end of a partition in a queue
+	private static final ArrayList<Tuple> END = new ArrayList<Tuple>();
+
+	private final BTreeFile f;
+	private final TransactionId tid;
+	private final IndexPredicate ipred;
+	private final Field key;
+	private final int parallelism;
+	private final boolean ordered;
+
+	// the state of the scan since it was last opened, or null if it is closed
+	private Scan scan = null;
+	// the reader's position
+	private int current;
+	private int finished;
+	private Iterator<Tuple> it;
+	// true while the scan keeps rebalance passes over the file from running
+	private boolean accessing = false;
+
+	/**
+	 * A subtree of the B+ tree, with the keys its entries lie between
+	 */
+	private static class Partition {
+		final BTreePageId root;
+		final int level;
+		final Field lower;
+		final Field upper;
+		// the first leaf page of the next partition, or null if this is the last one
+		BTreePageId end = null;
+
+		Partition(BTreePageId root, int level, Field lower, Field upper) {
+			this.root = root;
+			this.level = level;
+			this.lower = lower;
+			this.upper = upper;
+		}
+	}
+
+	/**
+	 * The state shared by the reader and the tasks of one opening of the scan. The
+	 * tasks of a scan that has been closed may still be finishing, so they never 
+	 * see the state of a later opening.
+	 */
+	private static class Scan {
+		final ArrayList<Partition> partitions;
+		final ArrayList<BlockingQueue<ArrayList<Tuple>>> queues;
+		final AtomicInteger nextPartition = new AtomicInteger();
+		volatile boolean closed = false;
+		volatile Exception error = null;
+		ForkJoinPool pool = null;
+
+		Scan(ArrayList<Partition> partitions, ArrayList<BlockingQueue<ArrayList<Tuple>>> queues) {
+			this.partitions = partitions;
+			this.queues = queues;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param f - the BTreeFile to scan
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null to scan all tuples
+	 * @param parallelism - the number of threads to scan with
+	 * @param ordered - whether the tuples must be returned in key order
+	 */
+	public BTreeParallelScan(BTreeFile f, TransactionId tid, IndexPredicate ipred,
+			int parallelism, boolean ordered) {
+		if(parallelism < 1)
+			throw new IllegalArgumentException("parallelism must be positive");
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+		this.key = ipred == null ? null : CompositeField.searchKey(ipred.getField(), f.keyFields());
+		this.parallelism = parallelism;
+		this.ordered = ordered;
+	}
+
+	/**
+	 * @return the number of partitions the scan was split into when it was opened,
+	 *         not counting the partitions skipped because of the predicate
+	 */
+	public int numPartitions() {
+		return scan == null ? 0 : scan.partitions.size();
+	}
+
+	/**
+	 * Split the tree into partitions and start scanning them
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		if(!accessing) {
+			f.beginAccess();
+			accessing = true;
+		}
+		ArrayList<Partition> partitions = new ArrayList<Partition>();
+		if(ipred != null && ipred.getOp() == Op.EQUALS && !f.mightContain(key)) {
+			// the key is not in the tree, so no partition is scanned
+			scan = new Scan(partitions, new ArrayList<BlockingQueue<ArrayList<Tuple>>>());
+			current = 0;
+			finished = 0;
+			it = null;
+			return;
+		}
+
+		f.pinUpperPage(BTreeRootPtrPage.getId(f.getId()), 0);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+
+		ArrayList<Partition> all = split(rootPtr.getRootId());
+		for(int i = 0; i < all.size(); i++) {
+			if(i + 1 < all.size())
+				all.get(i).end = firstLeaf(all.get(i + 1));
+			if(mayMatch(all.get(i)))
+				partitions.add(all.get(i));
+		}
+
+		ArrayList<BlockingQueue<ArrayList<Tuple>>> queues = new ArrayList<BlockingQueue<ArrayList<Tuple>>>();
+		if(ordered) {
+			for(int i = 0; i < partitions.size(); i++)
+				queues.add(new ArrayBlockingQueue<ArrayList<Tuple>>(QUEUE_PAGES));
+		}
+		else {
+			queues.add(new ArrayBlockingQueue<ArrayList<Tuple>>(QUEUE_PAGES * parallelism));
+		}
+
+		final Scan s = new Scan(partitions, queues);
+		scan = s;
+		current = 0;
+		finished = 0;
+		it = null;
+		int threads = Math.min(parallelism, partitions.size());
+		if(threads > 0) {
+			s.pool = new ForkJoinPool(threads);
+			for(int i = 0; i < threads; i++) {
+				s.pool.execute(new Runnable() {
+					public void run() {
+						scanPartitions(s);
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Descend from the root until there are enough subtrees for the threads, or
+	 * the subtrees are leaf pages.
+	 */
+	private ArrayList<Partition> split(BTreePageId root)
+			throws DbException, TransactionAbortedException {
+		ArrayList<Partition> result = new ArrayList<Partition>();
+		result.add(new Partition(root, 0, null, null));
+		int target = parallelism * PARTITIONS_PER_THREAD;
+		while(parallelism > 1 && result.size() < target
+				&& result.get(0).root.pgcateg() == BTreePageId.INTERNAL) {
+			ArrayList<Partition> children = new ArrayList<Partition>();
+			for(Partition p : result) {
+				BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+						tid, p.root, Permissions.READ_ONLY);
+				f.pinUpperPage(p.root, p.level);
+				Iterator<BTreeEntry> entries = page.iterator();
+				Field lower = p.lower;
+				BTreeEntry e = null;
+				while(entries.hasNext()) {
+					e = entries.next();
+					children.add(new Partition(e.getLeftChild(), p.level + 1, lower, e.getKey()));
+					lower = e.getKey();
+				}
+				if(e != null)
+					children.add(new Partition(e.getRightChild(), p.level + 1, lower, p.upper));
+			}
+			result = children;
+		}
+		return result;
+	}
+
+	private BTreePageId firstLeaf(Partition p) throws DbException, TransactionAbortedException {
+		return f.findLeafPage(tid, p.root, Permissions.READ_ONLY, null, p.level).getId();
+	}
+
+	/**
+	 * @return false if no key between the bounds of partition p satisfies the predicate
+	 */
+	private boolean mayMatch(Partition p) {
+		return ipred == null || BTreeFile.mayMatch(ipred.getOp(), key, p.lower, p.upper);
+	}
+
+	/**
+	 * Run by each task: scan partitions, in key order, until none are left
+	 */
+	private void scanPartitions(Scan s) {
+		int i;
+		while(!s.closed && (i = s.nextPartition.getAndIncrement()) < s.partitions.size()) {
+			BlockingQueue<ArrayList<Tuple>> queue = s.queues.get(ordered ? i : 0);
+			try {
+				scanPartition(s, s.partitions.get(i), queue);
+			} catch(Exception e) {
+				s.error = e;
+			}
+			put(s, queue, END);
+		}
+	}
+
+	private void scanPartition(Scan s, Partition p, BlockingQueue<ArrayList<Tuple>> queue)
+			throws DbException, TransactionAbortedException {
+		Field start = null;
+		if(ipred != null && (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
+				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ))
+			start = key;
+		BTreeLeafPage page = f.findLeafPage(tid, p.root, Permissions.READ_ONLY, start, p.level);
+		while(!s.closed) {
+			ArrayList<Tuple> batch = new ArrayList<Tuple>();
+			boolean done = false;
+			Iterator<Tuple> tuples = page.iterator();
+			while(tuples.hasNext()) {
+				Tuple t = tuples.next();
+				if(ipred == null || f.keyOf(t).compare(ipred.getOp(), key)) {
+					batch.add(t);
+				}
+				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ
+						|| (ipred.getOp() == Op.EQUALS && f.keyOf(t).compare(Op.GREATER_THAN, key))) {
+					// no later tuple satisfies the predicate
+					done = true;
+					break;
+				}
+			}
+			if(!batch.isEmpty() && !put(s, queue, batch))
+				return;
+
+			BTreePageId next = page.getRightSiblingId();
+			if(done || next == null || next.equals(p.end))
+				return;
+			page = (BTreeLeafPage) Database.getBufferPool().getPage(tid, next, Permissions.READ_ONLY);
+		}
+	}
+
+	/**
+	 * Add a batch of tuples to a queue, waiting for space
+	 *
+	 * @return false if the scan was closed before there was space
+	 */
+	private boolean put(Scan s, BlockingQueue<ArrayList<Tuple>> queue, ArrayList<Tuple> batch) {
+		try {
+			while(!s.closed) {
+				if(queue.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS))
+					return true;
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	/**
+	 * Read the next tuple from the batch at the head of the current queue, waiting
+	 * for the partitions to produce more tuples if necessary.
+	 *
+	 * @return the next tuple, or null if all partitions have been scanned
+	 */
+	@Override
+	protected Tuple readNext() throws DbException, TransactionAbortedException {
+		if(scan == null)
+			return null;
+		while(it == null || !it.hasNext()) {
+			if(finished == scan.partitions.size())
+				return null;
+			ArrayList<Tuple> batch = take(scan.queues.get(ordered ? current : 0));
+			if(batch == END) {
+				finished++;
+				current++;
+				it = null;
+			}
+			else {
+				it = batch.iterator();
+			}
+		}
+		return it.next();
+	}
+
+	private ArrayList<Tuple> take(BlockingQueue<ArrayList<Tuple>> queue) throws DbException {
+		try {
+			while(true) {
+				ArrayList<Tuple> batch = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if(scan.error != null)
+					throw new DbException("parallel scan failed: " + scan.error);
+				if(batch != null)
+					return batch;
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DbException("interrupted while waiting for a parallel scan");
+		}
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator and stop the partitions which are still being scanned
+	 */
+	public void close() {
+		super.close();
+		if(scan != null) {
+			scan.closed = true;
+			if(scan.pool != null)
+				scan.pool.shutdownNow();
+			scan = null;
+		}
+		it = null;
+		if(accessing) {
+			accessing = false;
+			f.endAccess();
+		}
+	}
+}
@@ -12,6 +12,14 @@ public class BTreeRootPtrPage implements Page {
 	// size of this page
 	public final static int PAGE_SIZE = 9;
 
+	// flag kept with the root page category of a tree whose internal pages 
+	// store subtree counts
+	public final static int COUNTED = 0x10;
+	// flag of a tree whose internal pages buffer inserted tuples
+	public final static int BUFFERED = 0x20;
+	// the bits of the root page category byte which hold flags
+	private final static int FLAG_MASK = 0xF0;
+
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
 
@@ -20,6 +28,7 @@ public class BTreeRootPtrPage implements Page {
 
 	private int root; 
 	private int rootCategory;
+	private int flags;
 	private int header;
 
 	private byte[] oldData;
@@ -30,7 +39,8 @@ public class BTreeRootPtrPage implements Page {
 	 * disk.
 	 * The format of an BTreeRootPtrPage is an integer for the page number
 	 * of the root node, followed by a byte to encode the category of the root page
-	 * (either leaf or internal), followed by an integer for the page number
+	 * (either leaf or internal) in its low bits and the flags the tree was 
+	 * created with in its high bits, followed by an integer for the page number
 	 * of the first header page
 	 */
 	public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
@@ -39,7 +49,9 @@ public class BTreeRootPtrPage implements Page {
 
 		// read in the root pointer
 		root = dis.readInt();
-		rootCategory = (int) dis.readByte();
+		int category = dis.readByte() & 0xFF;
+		rootCategory = category & ~FLAG_MASK;
+		flags = category & FLAG_MASK;
 
 		// read in the header pointer
 		header = dis.readInt();
@@ -89,9 +101,9 @@ public class BTreeRootPtrPage implements Page {
 			e.printStackTrace();
 		}
 
-		// write out the category of the root page (leaf or internal)
+		// write out the category of the root page (leaf or internal) and the flags
 		try{
-			dos.writeByte((byte) rootCategory);
+			dos.writeByte((byte) (rootCategory | flags));
 		}catch(IOException e){
 			e.printStackTrace();
 		}
@@ -122,8 +134,21 @@ public class BTreeRootPtrPage implements Page {
 	 * @return The returned ByteArray.
 	 */
 	public static byte[] createEmptyPageData() {
+		return createEmptyPageData(0);
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * BTreeRootPtrPage of a tree created with the given flags.
+	 * 
+	 * @param flags - the flags of the tree, such as {@link #COUNTED}
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData(int flags) {
 		int len = PAGE_SIZE;
-		return new byte[len]; //all 0
+		byte[] data = new byte[len];
+		data[4] = (byte) flags;
+		return data;
 	}
 
 	public void markDirty(boolean dirty, TransactionId tid){
@@ -183,6 +208,33 @@ public class BTreeRootPtrPage implements Page {
 		}
 	}
 
+	/**
+	 * @return the flags the tree was created with, such as {@link #COUNTED}
+	 */
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * Read the flags a B+ tree file was created with from its root pointer page,
+	 * without going through the buffer pool.
+	 * 
+	 * @param f - the file backing the B+ tree
+	 * @return the flags, or -1 if the file has no root pointer page yet
+	 * @throws IOException
+	 */
+	public static int readFlags(File f) throws IOException {
+		if(f.length() < 5)
+			return -1;
+		RandomAccessFile rf = new RandomAccessFile(f, "r");
+		try {
+			rf.seek(4);
+			return rf.readByte() & FLAG_MASK;
+		} finally {
+			rf.close();
+		}
+	}
+
 	/**
 	 * Get the id of the first header page, or null if none exists
 	 * @return the id of the first header page
@@ -17,6 +17,13 @@ public class BTreeScan implements DbIterator {
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
+	private int tableid;
+	private int parallelism = 1;
+	private boolean ordered = true;
+	private boolean descending = false;
+	// the filters pushed down by hash joins, and the next tuple that passed them
+	private ArrayList<RuntimeFilter> runtimeFilters = new ArrayList<RuntimeFilter>();
+	private Tuple nextTuple = null;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -43,6 +50,44 @@ public class BTreeScan implements DbIterator {
 		reset(tableid,tableAlias);
 	}
 
+	/**
+	 * Creates a B+ tree scan which reads the table on several threads.
+	 * 
+	 * @param parallelism
+	 *            the number of threads to scan with; 1 scans on the calling thread
+	 * @param ordered
+	 *            whether the tuples must be returned in sorted order. If false,
+	 *            tuples are returned in the order the threads find them
+	 * @see #BTreeScan(TransactionId, int, String, IndexPredicate)
+	 * @see BTreeParallelScan
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred,
+			int parallelism, boolean ordered) {
+		this.tid = tid;
+		this.ipred = ipred;
+		this.parallelism = parallelism;
+		this.ordered = ordered;
+		reset(tableid,tableAlias);
+	}
+
+	/**
+	 * Creates a B+ tree scan which returns tuples in descending key order, by
+	 * walking the leaves of the tree from right to left.
+	 * 
+	 * @param descending
+	 *            whether the tuples are returned in descending order; the tree
+	 *            must be reversible if so
+	 * @see #BTreeScan(TransactionId, int, String, IndexPredicate)
+	 * @see BTreeFile#isReversible()
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred,
+			boolean descending) {
+		this.tid = tid;
+		this.ipred = ipred;
+		this.descending = descending;
+		reset(tableid,tableAlias);
+	}
+
 	/**
 	 * @return
 	 *       return the table name of the table the operator scans. This should
@@ -75,8 +120,16 @@ public class BTreeScan implements DbIterator {
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
 		this.alias = tableAlias;
+		this.tableid = tableid;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
+		if(descending) {
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).reverseIterator(tid, ipred);
+		}
+		else if(parallelism > 1) {
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).parallelIterator(
+					tid, ipred, parallelism, ordered);
+		}
+		else if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
@@ -99,12 +152,129 @@ public class BTreeScan implements DbIterator {
 		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
 	}
 
+	/**
+	 * Count the tuples this scan returns without reading them, if the table is
+	 * a counted B+ tree.
+	 * 
+	 * @return the number of tuples, or -1 if the table does not keep subtree counts
+	 * @see BTreeFile#count(TransactionId, IndexPredicate)
+	 */
+	public int count() throws DbException, TransactionAbortedException {
+		BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+		if(!f.isCounted() || (ipred != null && ipred.getOp() == Predicate.Op.LIKE))
+			return -1;
+		try {
+			return f.count(tid, ipred);
+		} catch (java.io.IOException e) {
+			throw new DbException("failed to count tuples: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Find the number of tuples this scan returns from the tuple count the
+	 * B+ tree keeps, if the scan returns every tuple of a tree without a
+	 * memtable.
+	 * 
+	 * @return the number of tuples, or -1 if the scan has a predicate or the tree has a memtable
+	 * @see BTreeFile#getTupleCount(TransactionId)
+	 */
+	public int tupleCount() throws DbException, TransactionAbortedException {
+		BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+		if(ipred != null || f.getMemtable() != null)
+			return -1;
+		try {
+			return f.getTupleCount(tid);
+		} catch (java.io.IOException e) {
+			throw new DbException("failed to count tuples: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Find the smallest or largest value of a field among the tuples this scan
+	 * returns without reading them, if the field is the most significant key
+	 * field of the B+ tree and the scan returns every tuple of a tree without a
+	 * memtable.
+	 * 
+	 * @param field - the index of the field
+	 * @param max - true for the largest value, false for the smallest
+	 * @return the value, or null if it cannot be found without reading the tuples
+	 * @see BTreeFile#getMinKey(TransactionId)
+	 * @see BTreeFile#getMaxKey(TransactionId)
+	 */
+	public Field keyBound(int field, boolean max) throws DbException, TransactionAbortedException {
+		BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+		if(ipred != null || f.getMemtable() != null || field != f.keyField())
+			return null;
+		try {
+			return max ? f.getMaxKey(tid) : f.getMinKey(tid);
+		} catch (java.io.IOException e) {
+			throw new DbException("failed to read key bounds: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the index of the field whose ascending order this scan returns
+	 *         tuples in, which is the most significant key field of the B+ tree,
+	 *         or -1 if the scan does not return tuples in ascending order
+	 * @see BTreeFile#keyField()
+	 */
+	public int sortedField() {
+		DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+		if(!(f instanceof BTreeFile) || descending || (parallelism > 1 && !ordered))
+			return -1;
+		return ((BTreeFile) f).keyField();
+	}
+
+	/**
+	 * @return true if this scan returns tuples in descending key order
+	 */
+	public boolean isDescending() {
+		return descending;
+	}
+
+	/**
+	 * Create a scan which returns the tuples this scan returns in the opposite
+	 * order, if this scan returns them in ascending key order on a single thread.
+	 * 
+	 * @return a descending scan of the same tuples, or null if the tree is not
+	 *         reversible or this scan is not an ascending one
+	 * @see BTreeFile#isReversible()
+	 */
+	public BTreeScan reversed() {
+		DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+		if(sortedField() < 0 || parallelism > 1 || !((BTreeFile) f).isReversible())
+			return null;
+		return new BTreeScan(tid, tableid, alias, ipred, true);
+	}
+
+	/**
+	 * Drop the tuples a runtime filter rejects; see {@link RuntimeFilter}.
+	 */
+	public void addRuntimeFilter(RuntimeFilter f) {
+		RuntimeFilter.add(runtimeFilters, f);
+	}
+
+	/**
+	 * Stop applying the runtime filters pushed down by an operator
+	 */
+	public void removeRuntimeFilters(Object source) {
+		RuntimeFilter.remove(runtimeFilters, source);
+	}
+
+	/**
+	 * @return the runtime filters this scan applies
+	 */
+	public List<RuntimeFilter> getRuntimeFilters() {
+		return Collections.unmodifiableList(runtimeFilters);
+	}
+
 	public void open() throws DbException, TransactionAbortedException {
 		if (isOpen)
 			throw new DbException("double open on one DbIterator.");
 
 		it.open();
 		isOpen = true;
+		nextTuple = null;
 	}
 
 	/**
@@ -123,20 +293,29 @@ public class BTreeScan implements DbIterator {
 	public boolean hasNext() throws TransactionAbortedException, DbException {
 		if (!isOpen)
 			throw new IllegalStateException("iterator is closed");
-		return it.hasNext();
+		while (nextTuple == null && it.hasNext()) {
+			Tuple t = it.next();
+			if (RuntimeFilter.acceptAll(runtimeFilters, t))
+				nextTuple = t;
+		}
+		return nextTuple != null;
 	}
 
 	public Tuple next() throws NoSuchElementException,
 	TransactionAbortedException, DbException {
 		if (!isOpen)
 			throw new IllegalStateException("iterator is closed");
-
-		return it.next();
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Tuple t = nextTuple;
+		nextTuple = null;
+		return t;
 	}
 
 	public void close() {
 		it.close();
 		isOpen = false;
+		nextTuple = null;
 	}
 
 	public void rewind() throws DbException, NoSuchElementException,
@@ -0,0 +1,177 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BTreeStats describes the shape of a BTreeFile: its height, the number of
+ * pages on each level and how full they are, the free pages recorded in its
+ * header pages, and how the leaf chain is laid out in the file. The statistics
+ * are gathered by {@link BTreeFile#analyze(TransactionId, int)}, and can be
+ * used to estimate the cost of scans and to decide whether compacting or
+ * rebuilding the tree is worthwhile.
+ * <p>
+ * Levels are numbered from the root, which is level 0, down to the leaves,
+ * which are level {@code height - 1}.
+ *
+ * @see BTreeCompactor
+ */
+public class BTreeStats {
+
+	/** the number of levels of the tree, 0 if the tree is empty */
+	public int height;
+	/** the number of pages on each level */
+	public int[] pages;
+	/** the number of tuples or entries stored in the pages of each level */
+	public long[] used;
+	/** the number of tuples or entries the pages of each level can hold */
+	public long[] capacity;
+	/** the smallest fill factor of a page on each level, not counting the root */
+	public double[] minFill;
+	/** the number of leaf links that point to a page earlier in the file */
+	public int backwardJumps;
+	/** the number of leaf links that do not point to the next page in the file */
+	public int seeks;
+	/** the number of header pages */
+	public int headerPages;
+	/** the number of pages in the file that the header pages record as free */
+	public int freePages;
+	/** the number of pages in the file */
+	public int filePages;
+
+	BTreeStats(int height) {
+		this.height = height;
+		pages = new int[height];
+		used = new long[height];
+		capacity = new long[height];
+		minFill = new double[height];
+		Arrays.fill(minFill, 1.0);
+	}
+
+	/**
+	 * Add a page of the tree to the statistics
+	 *
+	 * @param level - the level of the page
+	 * @param page - the page
+	 */
+	void addPage(int level, BTreePage page) {
+		int n;
+		int max;
+		if(page instanceof BTreeLeafPage) {
+			BTreeLeafPage leaf = (BTreeLeafPage) page;
+			n = leaf.getNumTuples();
+			max = leaf.getMaxTuples();
+			BTreePageId next = leaf.getRightSiblingId();
+			if(next != null) {
+				if(next.pageNumber() < page.getId().pageNumber())
+					backwardJumps++;
+				if(next.pageNumber() != page.getId().pageNumber() + 1)
+					seeks++;
+			}
+		}
+		else {
+			BTreeInternalPage internal = (BTreeInternalPage) page;
+			n = internal.getNumEntries();
+			max = internal.getMaxEntries();
+		}
+		pages[level]++;
+		used[level] += n;
+		capacity[level] += max;
+		if(level > 0)
+			minFill[level] = Math.min(minFill[level], (double) n / max);
+	}
+
+	/**
+	 * Add the page counts of other, which describes a disjoint part of the same tree
+	 */
+	void merge(BTreeStats other) {
+		for(int level = 0; level < height; level++) {
+			pages[level] += other.pages[level];
+			used[level] += other.used[level];
+			capacity[level] += other.capacity[level];
+			minFill[level] = Math.min(minFill[level], other.minFill[level]);
+		}
+		backwardJumps += other.backwardJumps;
+		seeks += other.seeks;
+	}
+
+	/**
+	 * @return the number of leaf pages
+	 */
+	public int leafPages() {
+		return height == 0 ? 0 : pages[height - 1];
+	}
+
+	/**
+	 * @return the number of internal pages
+	 */
+	public int internalPages() {
+		int n = 0;
+		for(int level = 0; level < height - 1; level++)
+			n += pages[level];
+		return n;
+	}
+
+	/**
+	 * @return the number of tuples in the leaf pages
+	 */
+	public long tuples() {
+		return height == 0 ? 0 : used[height - 1];
+	}
+
+	/**
+	 * @return the average fill factor of the pages on a level
+	 */
+	public double averageFill(int level) {
+		return capacity[level] == 0 ? 0.0 : (double) used[level] / capacity[level];
+	}
+
+	/**
+	 * @return the number of pages a scan of the whole tree in key order reads:
+	 *         one page on each internal level, then every leaf
+	 */
+	public int scanPages() {
+		return Math.max(0, height - 1) + leafPages();
+	}
+
+	/**
+	 * @return the number of pages that would be freed if the leaves were packed
+	 *         full and the free pages were cut off the file
+	 */
+	public int reclaimablePages() {
+		if(height == 0)
+			return freePages;
+		long leafCapacity = capacity[height - 1] / pages[height - 1];
+		int packedLeaves = (int) ((tuples() + leafCapacity - 1) / leafCapacity);
+		return Math.max(0, leafPages() - Math.max(1, packedLeaves)) + freePages;
+	}
+
+	/**
+	 * @param threshold - the fraction of the file that must be reclaimable, or
+	 *        the fraction of leaf links that must jump backwards
+	 * @return true if compacting the tree would free at least threshold of the
+	 *         pages in the file, or would straighten at least threshold of the
+	 *         leaf chain
+	 * @see BTreeCompactor
+	 */
+	public boolean worthCompacting(double threshold) {
+		if(filePages > 0 && (double) reclaimablePages() / filePages >= threshold)
+			return true;
+		return leafPages() > 1 && (double) backwardJumps / (leafPages() - 1) >= threshold;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("height " + height + ", " + filePages + " pages in file, " + headerPages
+				+ " header pages, " + freePages + " free pages\n");
+		for(int level = 0; level < height; level++) {
+			sb.append("level " + level + ": " + pages[level] + (level == height - 1 ? " leaf" : " internal")
+					+ " pages, " + used[level] + (level == height - 1 ? " tuples" : " entries")
+					+ String.format(", fill %.2f average", averageFill(level)));
+			if(level > 0)
+				sb.append(String.format(", %.2f minimum", minFill[level]));
+			sb.append("\n");
+		}
+		sb.append("leaf chain: " + backwardJumps + " backward jumps, " + seeks + " seeks");
+		return sb.toString();
+	}
+}
@@ -151,6 +151,7 @@ public class BTreeUtility {
 
 		File bFile = File.createTempFile("table_index", ".dat");
 		bFile.deleteOnExit();
+		new File(bFile.getPath() + ".meta").deleteOnExit();
 
 		Type[] typeAr = new Type[columns];
 		Arrays.fill(typeAr, Type.INT_TYPE);
@@ -407,6 +408,7 @@ public class BTreeUtility {
 
 		File bFile = File.createTempFile("table_index", ".dat");
 		bFile.deleteOnExit();
+		new File(bFile.getPath() + ".meta").deleteOnExit();
 
 		Type[] typeAr = new Type[columns];
 		Arrays.fill(typeAr, Type.INT_TYPE);
@@ -429,6 +431,22 @@ public class BTreeUtility {
 		return bf;
 	}
 
+	/**
+	 * Opens a BTreeFile keyed on several fields and adds it to the catalog.
+	 *
+	 * @param cols number of columns in the table.
+	 * @param f location of the file storing the table.
+	 * @param keyFields the fields the B+ tree is keyed on, most significant first
+	 * @return the opened table.
+	 */
+	public static BTreeFile openBTreeFile(int cols, File f, int[] keyFields) {
+		// create the BTreeFile and add it to the catalog
+		TupleDesc td = Utility.getTupleDesc(cols);
+		BTreeFile bf = new BTreeFile(f, keyFields, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
 	public static BTreeFile openBTreeFile(int cols, String colPrefix, File f, int keyField) {
 		// create the BTreeFile and add it to the catalog
 		TupleDesc td = Utility.getTupleDesc(cols, colPrefix);
@@ -0,0 +1,239 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The BlockNestedLoopJoin operator joins two children on any predicate. It
+ * reads the outer (left) child a block at a time, as many tuples as fit in
+ * its memory budget, and scans the inner (right) child once per block,
+ * joining each inner tuple with every tuple of the block. The inner child is
+ * therefore rewound once per block rather than once per outer tuple, as
+ * {@link Join} does.
+ * <p>
+ * When the outer join field is an integer, its values in the block are also
+ * kept in an int array, so that the inner loop compares primitives without
+ * going through {@link Field#compare}.
+ * <p>
+ * The output tuples are the concatenation of the left (child1) and right
+ * (child2) tuples, as for {@link Join}, block by block; within a block they
+ * are in the order of the inner child.
+ */
+public class BlockNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate jpred;
+    private DbIterator child1;
+    private DbIterator child2;
+    private final int memoryPages;
+    private TupleDesc td;
+
+    // the outer tuples of the current block, and their join fields if they are integers
+    private transient Tuple[] block = null;
+    private transient int[] keys = null;
+    private transient int blockSize = 0;
+    // the inner tuple being joined, its join field if the outer join field is
+    // an integer, and the tuple of the block it is compared with next
+    private transient Tuple inner = null;
+    private transient int innerKey = 0;
+    private transient int blockPos = 0;
+    // whether the inner child has been read for a block, and must be rewound for the next
+    private transient boolean innerUsed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left (outer) relation to join
+     * @param child2
+     *            Iterator for the right (inner) relation to join
+     * @param memoryPages
+     *            the number of pages of outer tuples held in a block
+     */
+    public BlockNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int memoryPages) {
+        if (memoryPages < 1)
+            throw new IllegalArgumentException("a block needs at least one page of memory");
+        this.jpred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryPages = memoryPages;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return jpred;
+    }
+
+    /**
+     * @return the number of outer tuples read into each block
+     */
+    public int getBlockTuples() {
+        long tuples = (long) memoryPages * BufferPool.getPageSize() / child1.getTupleDesc().getSize();
+        return (int) Math.max(1, Math.min(tuples, Integer.MAX_VALUE - 8));
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(jpred.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(jpred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        this.child1.open();
+        this.child2.open();
+        block = null;
+        keys = null;
+        blockSize = 0;
+        inner = null;
+        innerUsed = false;
+    }
+
+    public void close() {
+        super.close();
+        this.child1.close();
+        this.child2.close();
+        block = null;
+        keys = null;
+        inner = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.child1.rewind();
+        if (innerUsed)
+            this.child2.rewind();
+        blockSize = 0;
+        inner = null;
+        innerUsed = false;
+    }
+
+    /**
+     * Read the next block of outer tuples, rewinding the inner child if the
+     * previous block has been joined with it.
+     *
+     * @return false if there are no more outer tuples
+     */
+    private boolean readBlock() throws DbException, TransactionAbortedException {
+        if (block == null) {
+            // allocated on the first block, and no larger than the outer child needs
+            int capacity = Math.min(getBlockTuples(), 1024);
+            block = new Tuple[capacity];
+            boolean intKeys = child1.getTupleDesc().getFieldType(jpred.getField1()) == Type.INT_TYPE
+                    && child2.getTupleDesc().getFieldType(jpred.getField2()) == Type.INT_TYPE;
+            keys = intKeys ? new int[capacity] : null;
+        }
+        int maxTuples = getBlockTuples();
+        blockSize = 0;
+        while (blockSize < maxTuples && child1.hasNext()) {
+            if (blockSize == block.length) {
+                int capacity = (int) Math.min((long) block.length * 2, maxTuples);
+                block = Arrays.copyOf(block, capacity);
+                if (keys != null)
+                    keys = Arrays.copyOf(keys, capacity);
+            }
+            Tuple t = child1.next();
+            if (keys != null)
+                keys[blockSize] = ((IntField) t.getField(jpred.getField1())).getValue();
+            block[blockSize++] = t;
+        }
+        // drop the references to the tuples of earlier, larger blocks
+        Arrays.fill(block, blockSize, block.length, null);
+        if (blockSize == 0)
+            return false;
+        if (innerUsed)
+            child2.rewind();
+        innerUsed = true;
+        return true;
+    }
+
+    private boolean matches(int i) {
+        if (keys == null)
+            return jpred.filter(block[i], inner);
+        int key = keys[i];
+        switch (jpred.getOperator()) {
+        case EQUALS:
+        case LIKE:
+            return key == innerKey;
+        case NOT_EQUALS:
+            return key != innerKey;
+        case GREATER_THAN:
+            return key > innerKey;
+        case GREATER_THAN_OR_EQ:
+            return key >= innerKey;
+        case LESS_THAN:
+            return key < innerKey;
+        case LESS_THAN_OR_EQ:
+            return key <= innerKey;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            while (inner != null && blockPos < blockSize) {
+                int i = blockPos++;
+                if (matches(i)) {
+                    Tuple left = block[i];
+                    Tuple t = new Tuple(td);
+                    int num = 0;
+                    for (int f = 0; f < left.getTupleDesc().numFields(); f++)
+                        t.setField(num++, left.getField(f));
+                    for (int f = 0; f < inner.getTupleDesc().numFields(); f++)
+                        t.setField(num++, inner.getField(f));
+                    return t;
+                }
+            }
+
+            if (blockSize > 0 && child2.hasNext()) {
+                inner = child2.next();
+                if (keys != null)
+                    innerKey = ((IntField) inner.getField(jpred.getField2())).getValue();
+                blockPos = 0;
+            } else {
+                inner = null;
+                if (!readBlock())
+                    return null;
+            }
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+}
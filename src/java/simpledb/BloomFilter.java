@@ -0,0 +1,303 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BloomFilter is a blocked Bloom filter over index keys. A key hashes to one
+ * block of 512 bits, the size of a cache line, and sets or tests a few bits
+ * inside that block, so each add or probe touches one block. A probe that finds
+ * any of its bits clear proves that the key was never added; a probe that finds
+ * them all set may be a false positive. Keys cannot be removed, so the filter
+ * of an index whose keys are deleted only becomes less selective until it is
+ * rebuilt.
+ * <p>
+ * The filter also counts its probes, the probes it rejected, and the false
+ * positives reported by its users, so that its effectiveness can be measured.
+ *
+ * @see BTreeFile#enableBloomFilter(TransactionId, int)
+ */
+public class BloomFilter {
+
+	// the number of 64-bit words in a block
+	private static final int BLOCK_WORDS = 8;
+	private static final int BLOCK_BITS = BLOCK_WORDS * 64;
+	// identifies a saved filter
+	private static final int MAGIC = 0x426c6f6d;
+
+	private final long[] bits;
+	private final int numBlocks;
+	private final int numHashes;
+	private final int bitsPerKey;
+	private long numKeys = 0;
+
+	private final AtomicLong probes = new AtomicLong();
+	private final AtomicLong negatives = new AtomicLong();
+	private final AtomicLong falsePositives = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param expectedKeys - the number of keys the filter is sized for
+	 * @param bitsPerKey - the number of bits to use per expected key; 10 bits
+	 *        gives a false positive rate of about 1%
+	 */
+	public BloomFilter(long expectedKeys, int bitsPerKey) {
+		if(bitsPerKey < 1)
+			throw new IllegalArgumentException("bits per key must be positive");
+		long blocks = (Math.max(expectedKeys, 1) * bitsPerKey + BLOCK_BITS - 1) / BLOCK_BITS;
+		if(blocks > Integer.MAX_VALUE / BLOCK_WORDS)
+			throw new IllegalArgumentException("too many keys for a Bloom filter");
+		this.numBlocks = (int) blocks;
+		this.bitsPerKey = bitsPerKey;
+		this.numHashes = Math.max(1, Math.min(16, (int) Math.round(bitsPerKey * Math.log(2))));
+		this.bits = new long[numBlocks * BLOCK_WORDS];
+	}
+
+	private BloomFilter(int numBlocks, int numHashes, int bitsPerKey, long numKeys, long[] bits) {
+		this.numBlocks = numBlocks;
+		this.numHashes = numHashes;
+		this.bitsPerKey = bitsPerKey;
+		this.numKeys = numKeys;
+		this.bits = bits;
+	}
+
+	/**
+	 * Mix the bits of the hash code of a key, since the hash codes of fields are
+	 * often their values.
+	 */
+	private static long hash(Field key) {
+		long h = key.hashCode() * 0x9e3779b97f4a7c15L;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Add a key to the filter
+	 */
+	public synchronized void add(Field key) {
+		long h = hash(key);
+		int base = (int) ((h >>> 1) % numBlocks) * BLOCK_WORDS;
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		for(int i = 0; i < numHashes; i++) {
+			int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+			bits[base + (bit >>> 6)] |= 1L << bit;
+		}
+		numKeys++;
+	}
+
+	/**
+	 * Test whether a key may have been added to the filter
+	 *
+	 * @return false if the key was never added, true if it may have been
+	 */
+	public boolean mightContain(Field key) {
+		probes.incrementAndGet();
+		long h = hash(key);
+		int base = (int) ((h >>> 1) % numBlocks) * BLOCK_WORDS;
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		for(int i = 0; i < numHashes; i++) {
+			int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+			if((bits[base + (bit >>> 6)] & (1L << bit)) == 0) {
+				negatives.incrementAndGet();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Record that a probe which this filter passed found no matching key
+	 */
+	public void recordFalsePositive() {
+		falsePositives.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of bits per key the filter was sized with
+	 */
+	public int getBitsPerKey() {
+		return bitsPerKey;
+	}
+
+	/**
+	 * @return the number of keys added to the filter, counting duplicates
+	 */
+	public synchronized long getNumKeys() {
+		return numKeys;
+	}
+
+	/**
+	 * @return the number of probes of the filter
+	 */
+	public long getProbes() {
+		return probes.get();
+	}
+
+	/**
+	 * @return the number of probes the filter rejected, each of which saved a
+	 *         search of the index
+	 */
+	public long getNegatives() {
+		return negatives.get();
+	}
+
+	/**
+	 * @return the number of probes the filter passed for keys which were absent
+	 */
+	public long getFalsePositives() {
+		return falsePositives.get();
+	}
+
+	/**
+	 * @return the fraction of the probes for absent keys which the filter passed
+	 */
+	public double observedFalsePositiveRate() {
+		long fp = falsePositives.get();
+		long absent = fp + negatives.get();
+		return absent == 0 ? 0.0 : (double) fp / absent;
+	}
+
+	/**
+	 * @return the false positive rate of a standard Bloom filter with the same
+	 *         size and number of keys; the blocked layout is slightly worse
+	 */
+	public synchronized double expectedFalsePositiveRate() {
+		double m = (double) numBlocks * BLOCK_BITS;
+		return Math.pow(1 - Math.exp(-numHashes * numKeys / m), numHashes);
+	}
+
+	/**
+	 * Write the filter to a file. The filter is written to a temporary file
+	 * first and renamed, so a reader never sees a partly written filter.
+	 */
+	public synchronized void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeInt(numBlocks);
+			dos.writeInt(numHashes);
+			dos.writeInt(bitsPerKey);
+			dos.writeLong(numKeys);
+			for(long word : bits)
+				dos.writeLong(word);
+		} finally {
+			dos.close();
+		}
+		if(!tmp.renameTo(file)) {
+			file.delete();
+			if(!tmp.renameTo(file))
+				throw new IOException("could not rename " + tmp + " to " + file);
+		}
+	}
+
+	/**
+	 * Read a filter written by {@link #save(File)}
+	 */
+	public static BloomFilter load(File file) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if(dis.readInt() != MAGIC)
+				throw new IOException(file + " is not a Bloom filter");
+			int numBlocks = dis.readInt();
+			int numHashes = dis.readInt();
+			int bitsPerKey = dis.readInt();
+			long numKeys = dis.readLong();
+			if(numBlocks < 1 || numBlocks > Integer.MAX_VALUE / BLOCK_WORDS || numHashes < 1)
+				throw new IOException(file + " is not a Bloom filter");
+			long[] bits = new long[numBlocks * BLOCK_WORDS];
+			for(int i = 0; i < bits.length; i++)
+				bits[i] = dis.readLong();
+			return new BloomFilter(numBlocks, numHashes, bitsPerKey, numKeys, bits);
+		} finally {
+			dis.close();
+		}
+	}
+
+	public String toString() {
+		return getProbes() + " probes, " + getNegatives() + " rejected without a search, "
+				+ getFalsePositives() + " false positives (observed rate "
+				+ String.format("%.4f", observedFalsePositiveRate()) + ", expected "
+				+ String.format("%.4f", expectedFalsePositiveRate()) + ")";
+	}
+
+	// the size of the buffer pool used by main
+	private static final int POOL_PAGES = 8;
+
+	/**
+	 * Counts the pages read from a B+ tree file
+	 */
+	private static class CountingBTreeFile extends BTreeFile {
+		int reads = 0;
+
+		CountingBTreeFile(File f, int key, TupleDesc td) {
+			super(f, key, td);
+		}
+
+		public Page readPage(PageId pid) {
+			reads++;
+			return super.readPage(pid);
+		}
+	}
+
+	/**
+	 * Look up absent keys in a random B+ tree with a cold buffer pool much smaller
+	 * than the tree, with and without a Bloom filter, and report the pages read
+	 * and the false positive rate.
+	 * Usage: BloomFilter [rows [lookups [bits per key]]]
+	 */
+	public static void main(String[] args) throws Exception {
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int bitsPerKey = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, null, tuples, 0);
+		CountingBTreeFile counting = new CountingBTreeFile(bf.getFile(), 0, bf.getTupleDesc());
+		Database.getCatalog().addTable(counting, "bloom");
+		TransactionId tid = new TransactionId();
+
+		// absent keys spread over the key range of the tree
+		HashSet<Integer> present = new HashSet<Integer>();
+		for(ArrayList<Integer> t : tuples)
+			present.add(t.get(0));
+		ArrayList<Integer> absent = new ArrayList<Integer>();
+		Random r = new Random();
+		while(absent.size() < lookups && present.size() < BTreeUtility.MAX_RAND_VALUE) {
+			int key = r.nextInt(BTreeUtility.MAX_RAND_VALUE);
+			if(!present.contains(key))
+				absent.add(key);
+		}
+
+		for(int pass = 0; pass < 2; pass++) {
+			if(pass == 1)
+				counting.enableBloomFilter(tid, bitsPerKey);
+			Database.getBufferPool().flushAllPages();
+			Database.resetBufferPool(POOL_PAGES);
+			counting.reads = 0;
+			long start = System.currentTimeMillis();
+			for(int key : absent) {
+				DbFileIterator it = counting.indexIterator(tid, new IndexPredicate(
+						Predicate.Op.EQUALS, new IntField(key)));
+				it.open();
+				while(it.hasNext())
+					it.next();
+				it.close();
+			}
+			long millis = System.currentTimeMillis() - start;
+			System.out.println((pass == 0 ? "without filter: " : "with filter:    ") + counting.reads
+					+ " pages read for " + absent.size() + " absent keys, " + millis + " ms");
+		}
+		System.out.println(counting.getBloomFilter());
+		counting.disableBloomFilter();
+		Database.getBufferPool().transactionComplete(tid);
+	}
+}
@@ -4,6 +4,8 @@ import java.io.*;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -32,6 +34,8 @@ public class BufferPool {
     private int maxPages;
     // map to hold current pages
     private HashMap<PageId,Page> pageMap;
+    // pages that are only evicted when every page in the pool is pinned
+    private HashSet<PageId> pinnedPages;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -41,6 +45,7 @@ public class BufferPool {
     public BufferPool(int numPages) {
         maxPages = numPages;
         pageMap = new HashMap<PageId,Page>();
+        pinnedPages = new HashSet<PageId>();
     }
     
     public static int getPageSize() {
@@ -67,6 +72,10 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * Pages are read from disk outside of the buffer pool lock, so that
+     * several threads can read pages at the same time; if two threads read the
+     * same page, the first copy added to the buffer pool is returned to both.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -74,18 +83,25 @@ public class BufferPool {
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-        if (pageMap.containsKey(pid))
-            return pageMap.get(pid);
-        else
-        {
+        synchronized (this) {
+            Page page = pageMap.get(pid);
+            if (page != null)
+                return page;
+        }
+
+        // get file to add using pid
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+
+        // get page from the dbfile using pid
+        Page npage = file.readPage(pid);
+
+        synchronized (this) {
+            Page page = pageMap.get(pid);
+            if (page != null)
+                return page;
             if (pageMap.size() >= this.maxPages)
                 this.evictPage();
 
-            // get file to add using pid
-            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-
-            // get page from the dbfile using pid
-            Page npage = file.readPage(pid);
             // add page to bufferpool and return it
             pageMap.put(pid,npage);
             return npage;
@@ -156,13 +172,11 @@ public class BufferPool {
 
         // insertTuple in table, get list of pages affected
         ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid,t);
+        updateDirtyPages(tid, pages);
 
-        // mark pages dirty, replace old versions
-        for (Page page : pages)
-        {
-            page.markDirty(true,tid);
-            pageMap.put(page.getId(),page);
-        }
+        // keep any covering indexes over the table in sync
+        for (CoveringIndex index : Database.getCatalog().getIndexes(tableId))
+            updateDirtyPages(tid, index.insertTuple(tid, t));
     }
 
     /**
@@ -182,8 +196,24 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
 
         // delete tuple in table, get pages changed
-        ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid,t);
+        int tableId = t.getRecordId().getPageId().getTableId();
+        ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid,t);
+        updateDirtyPages(tid, pages);
 
+        // keep any covering indexes over the table in sync
+        for (CoveringIndex index : Database.getCatalog().getIndexes(tableId))
+            updateDirtyPages(tid, index.deleteTuple(tid, t));
+    }
+
+    /**
+     * Marks the specified pages as dirtied by transaction tid and replaces any
+     * cached versions of them, so that future requests see up-to-date pages.
+     * Used by operations that modify pages outside of insertTuple and deleteTuple.
+     *
+     * @param tid the transaction that dirtied the pages
+     * @param pages the pages that were dirtied
+     */
+    public synchronized void updateDirtyPages(TransactionId tid, ArrayList<Page> pages) {
         // mark pages dirty, replace old versions
         for (Page page : pages)
         {
@@ -192,6 +222,45 @@ public class BufferPool {
         }
     }
 
+    /**
+     * Pin the specified page, so that it is not chosen for eviction while
+     * there is an unpinned page to evict instead. Used by access methods to keep
+     * frequently visited pages, such as the upper levels of a B+ tree, resident.
+     * The page does not have to be in the buffer pool yet.
+     *
+     * @param pid the ID of the page to pin
+     */
+    public synchronized void pinPage(PageId pid) {
+        pinnedPages.add(pid);
+    }
+
+    /**
+     * Unpin the specified page, so that it can be evicted again.
+     *
+     * @param pid the ID of the page to unpin
+     */
+    public synchronized void unpinPage(PageId pid) {
+        pinnedPages.remove(pid);
+    }
+
+    /**
+     * Unpin all pages of the specified table.
+     *
+     * @param tableId the table whose pages to unpin
+     */
+    public synchronized void unpinPages(int tableId) {
+        Iterator<PageId> it = pinnedPages.iterator();
+        while (it.hasNext()) {
+            if (it.next().getTableId() == tableId)
+                it.remove();
+        }
+    }
+
+    /** Return true if the specified page is pinned */
+    public synchronized boolean isPinned(PageId pid) {
+        return pinnedPages.contains(pid);
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
@@ -204,6 +273,29 @@ public class BufferPool {
             this.flushPage(pid);
         }
 
+        // save the Bloom filters of the B+ trees along with their pages
+        Iterator<Integer> tableIds = Database.getCatalog().tableIdIterator();
+        while (tableIds.hasNext()) {
+            DbFile file = Database.getCatalog().getDatabaseFile(tableIds.next());
+            if (file instanceof BTreeFile)
+                ((BTreeFile) file).saveBloomFilter();
+        }
+    }
+
+    /**
+     * Write all dirty pages of the specified table to disk, and save its Bloom
+     * filter if it is a B+ tree. Pages of other tables stay in the pool.
+     *
+     * @param tableId the table whose pages to flush
+     */
+    public synchronized void flushTablePages(int tableId) throws IOException {
+        for (PageId pid : this.pageMap.keySet()) {
+            if (pid.getTableId() == tableId)
+                this.flushPage(pid);
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (file instanceof BTreeFile)
+            ((BTreeFile) file).saveBloomFilter();
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -217,6 +309,7 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // remove page from the map
         this.pageMap.remove(pid);
+        this.pinnedPages.remove(pid);
     }
 
     /**
@@ -250,9 +343,30 @@ public class BufferPool {
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Pinned pages are only evicted if every page in the pool is pinned.
      */
     private synchronized  void evictPage() throws DbException {
 
+        PageId victim = null;
+        for (PageId pid : this.pageMap.keySet())
+        {
+            if (!this.pinnedPages.contains(pid))
+            {
+                victim = pid;
+                break;
+            }
+        }
+        if (victim != null)
+        {
+            try {
+                this.flushPage(victim);
+                this.pageMap.remove(victim);
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
         // wrap with loop to ensure page is selected
         for (PageId pid  : this.pageMap.keySet())
         {
@@ -49,12 +49,15 @@ public class Catalog {
 
     // hashmap for all tables in the catalog
     private HashMap<Integer,Table> tableMap;
+    // covering indexes, keyed on the id of the base table they cover
+    private HashMap<Integer,ArrayList<CoveringIndex>> indexMap;
     /**
      * Constructor.
      * Creates a new, empty catalog.
      */
     public Catalog() {
         tableMap = new HashMap<Integer,Table>();
+        indexMap = new HashMap<Integer,ArrayList<CoveringIndex>>();
     }
 
     /**
@@ -159,10 +162,39 @@ public class Catalog {
     public String getTableName(int id) {
         return tableMap.get(id).getTName();
     }
+
+    /**
+     * Register a covering index over a base table.  The index's BTreeFile is
+     * added to the catalog as a table with the name of the index so that its
+     * pages can be located by the BufferPool.
+     * @param index the index to add
+     */
+    public void addIndex(CoveringIndex index) {
+        addTable(index.getFile(), index.getName(), index.getKeyFieldName());
+        ArrayList<CoveringIndex> indexes = indexMap.get(index.getTableId());
+        if (indexes == null) {
+            indexes = new ArrayList<CoveringIndex>();
+            indexMap.put(index.getTableId(), indexes);
+        }
+        indexes.add(index);
+    }
+
+    /**
+     * Returns the covering indexes over the specified table
+     * @param tableid The id of the base table
+     * @return the indexes, or an empty list if the table has none
+     */
+    public List<CoveringIndex> getIndexes(int tableid) {
+        ArrayList<CoveringIndex> indexes = indexMap.get(tableid);
+        if (indexes == null)
+            return Collections.emptyList();
+        return indexes;
+    }
     
     /** Delete all tables from the catalog */
     public void clear() {
         tableMap.clear();
+        indexMap.clear();
     }
     
     /**
@@ -176,7 +208,8 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [hash]
+                //where hash stores the table in a HashFile on its primary key
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -207,7 +240,20 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                String storage = line.substring(line.indexOf(")") + 1).trim();
+                DbFile tabHf = null;
+                if (storage.equals("")) {
+                    tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                } else if (storage.toLowerCase().equals("hash")) {
+                    if (primaryKey.equals("")) {
+                        System.out.println("Hash table " + name + " needs a primary key");
+                        System.exit(0);
+                    }
+                    tabHf = new HashFile(new File(baseFolder+"/"+name + ".dat"), names.indexOf(primaryKey), t);
+                } else {
+                    System.out.println("Unknown storage " + storage);
+                    System.exit(0);
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -0,0 +1,207 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the key of a B+ tree keyed on an ordered
+ * list of fields, e.g. (tenant_id, ts). Keys are compared lexicographically,
+ * one component at a time.
+ * <p>
+ * A CompositeField with fewer components than the index key is a key prefix:
+ * comparisons only consider the leading components the two keys have in
+ * common, so an EQUALS search on the prefix (X) matches every key (X, *).
+ * A plain (non-composite) Field compared against a CompositeField is treated
+ * as a prefix of one component.
+ */
+public class CompositeField implements Field {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Field[] fields;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param fields
+	 *            the components of this key, most significant first
+	 */
+	public CompositeField(Field[] fields) {
+		if (fields == null || fields.length == 0)
+			throw new IllegalArgumentException("composite key must have at least one component");
+		this.fields = fields.clone();
+	}
+
+	/**
+	 * @return the number of components in this key
+	 */
+	public int numFields() {
+		return fields.length;
+	}
+
+	/**
+	 * @return the ith component of this key
+	 */
+	public Field getField(int i) {
+		return fields[i];
+	}
+
+	/**
+	 * Write the components of this key to dos, in order.
+	 */
+	public void serialize(DataOutputStream dos) throws IOException {
+		for (Field f : fields)
+			f.serialize(dos);
+	}
+
+	/**
+	 * Compare this key to the specified key or key prefix over the components
+	 * they have in common.
+	 *
+	 * @return a negative number, zero, or a positive number as this key sorts
+	 *         before, together with, or after val
+	 */
+	public int compareTo(Field val) {
+		if (!(val instanceof CompositeField))
+			return compareComponents(fields[0], val);
+		CompositeField other = (CompositeField) val;
+		int n = Math.min(fields.length, other.fields.length);
+		for (int i = 0; i < n; i++) {
+			int cmp = compareComponents(fields[i], other.fields[i]);
+			if (cmp != 0)
+				return cmp;
+		}
+		return 0;
+	}
+
+	private static int compareComponents(Field a, Field b) {
+		if (a.compare(Predicate.Op.LESS_THAN, b))
+			return -1;
+		if (a.compare(Predicate.Op.GREATER_THAN, b))
+			return 1;
+		return 0;
+	}
+
+	/**
+	 * Compare the specified key or key prefix to this key. LIKE is treated as
+	 * EQUALS.
+	 *
+	 * @see Field#compare
+	 */
+	public boolean compare(Predicate.Op op, Field val) {
+		int cmp = compareTo(val);
+		switch (op) {
+		case EQUALS:
+		case LIKE:
+			return cmp == 0;
+		case NOT_EQUALS:
+			return cmp != 0;
+		case GREATER_THAN:
+			return cmp > 0;
+		case GREATER_THAN_OR_EQ:
+			return cmp >= 0;
+		case LESS_THAN:
+			return cmp < 0;
+		case LESS_THAN_OR_EQ:
+			return cmp <= 0;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the type of the most significant component
+	 */
+	public Type getType() {
+		return fields[0].getType();
+	}
+
+	public boolean equals(Object field) {
+		if (!(field instanceof CompositeField))
+			return false;
+		return Arrays.equals(fields, ((CompositeField) field).fields);
+	}
+
+	public int hashCode() {
+		return Arrays.hashCode(fields);
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("(");
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(fields[i]);
+		}
+		return sb.append(")").toString();
+	}
+
+	/**
+	 * Extract the index key of a tuple.
+	 *
+	 * @param t - the tuple
+	 * @param keyFields - the fields the index is keyed on, most significant first
+	 * @return the key field itself if there is a single key field, otherwise a
+	 *         CompositeField of the key fields
+	 */
+	public static Field keyOf(Tuple t, int[] keyFields) {
+		if (keyFields.length == 1)
+			return t.getField(keyFields[0]);
+		Field[] key = new Field[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++)
+			key[i] = t.getField(keyFields[i]);
+		return new CompositeField(key);
+	}
+
+	/**
+	 * Convert a search key into the form stored in an index keyed on keyFields:
+	 * a plain field becomes a one-component prefix of a composite key.
+	 *
+	 * @return the search key, or null if f is null
+	 */
+	public static Field searchKey(Field f, int[] keyFields) {
+		if (f == null || keyFields.length == 1 || f instanceof CompositeField)
+			return f;
+		return new CompositeField(new Field[] { f });
+	}
+
+	/**
+	 * @return the number of bytes taken by a key of an index keyed on keyFields
+	 */
+	public static int keySize(TupleDesc td, int[] keyFields) {
+		int size = 0;
+		for (int k : keyFields)
+			size += td.getFieldType(k).getLen();
+		return size;
+	}
+
+	/**
+	 * Read a key of an index keyed on keyFields from dis.
+	 */
+	public static Field parseKey(TupleDesc td, int[] keyFields, DataInputStream dis)
+			throws java.text.ParseException {
+		if (keyFields.length == 1)
+			return td.getFieldType(keyFields[0]).parse(dis);
+		Field[] key = new Field[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++)
+			key[i] = td.getFieldType(keyFields[i]).parse(dis);
+		return new CompositeField(key);
+	}
+
+	/**
+	 * @return true if f is a complete key of an index keyed on keyFields
+	 */
+	public static boolean isKeyOf(Field f, TupleDesc td, int[] keyFields) {
+		if (keyFields.length == 1)
+			return f.getType().equals(td.getFieldType(keyFields[0]));
+		if (!(f instanceof CompositeField))
+			return false;
+		CompositeField c = (CompositeField) f;
+		if (c.fields.length != keyFields.length)
+			return false;
+		for (int i = 0; i < keyFields.length; i++) {
+			if (!c.fields[i].getType().equals(td.getFieldType(keyFields[i])))
+				return false;
+		}
+		return true;
+	}
+}
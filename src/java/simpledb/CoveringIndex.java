@@ -0,0 +1,211 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * CoveringIndex is a B+ tree that holds a projection of a base table: the
+ * index key column followed by any number of INCLUDE columns. Because the
+ * leaf entries carry the included values themselves, a query that only
+ * references covered columns can be answered entirely from the index
+ * without touching the base table (an index-only scan).
+ * <p>
+ * The index is kept in sync with its base table by the BufferPool, which
+ * calls {@link #insertTuple} and {@link #deleteTuple} for every tuple added
+ * to or removed from the base table.
+ *
+ * @see simpledb.Catalog#addIndex
+ * @see simpledb.LogicalPlan#physicalPlan
+ */
+public class CoveringIndex {
+
+	private final String name;
+	private final int tableid;
+	private final BTreeFile file;
+	private final int[] columns;
+
+	/**
+	 * Wraps an existing BTreeFile as a covering index over a base table.
+	 * Field i of the index corresponds to field columns[i] of the base table,
+	 * and the index must be keyed on its field 0.
+	 *
+	 * @param name - the name of the index
+	 * @param tableid - the id of the base table
+	 * @param file - the B+ tree storing the index entries
+	 * @param columns - the base table fields stored in the index, key first
+	 */
+	public CoveringIndex(String name, int tableid, BTreeFile file, int[] columns) {
+		if(file.keyField() != 0)
+			throw new IllegalArgumentException("a covering index must be keyed on its first field");
+		if(columns.length != file.getTupleDesc().numFields())
+			throw new IllegalArgumentException("column list does not match the index schema");
+		this.name = name;
+		this.tableid = tableid;
+		this.file = file;
+		this.columns = columns.clone();
+	}
+
+	/**
+	 * Builds a new covering index over the specified table, keyed on keyColumn
+	 * and including the includeColumns, and registers it with the Catalog.
+	 * The contents of the base table are copied into the index as part of
+	 * transaction tid. Any existing contents of f are overwritten.
+	 *
+	 * @param tid - the transaction building the index
+	 * @param name - the name of the index
+	 * @param f - the file to store the index in
+	 * @param tableid - the id of the base table
+	 * @param keyColumn - the base table field the index is keyed on
+	 * @param includeColumns - additional base table fields stored in the leaves
+	 * @return the new index
+	 */
+	public static CoveringIndex create(TransactionId tid, String name, File f, int tableid,
+			int keyColumn, int[] includeColumns)
+					throws DbException, IOException, TransactionAbortedException {
+		TupleDesc baseTd = Database.getCatalog().getTupleDesc(tableid);
+		int[] columns = new int[includeColumns.length + 1];
+		columns[0] = keyColumn;
+		System.arraycopy(includeColumns, 0, columns, 1, includeColumns.length);
+
+		Type[] types = new Type[columns.length];
+		String[] names = new String[columns.length];
+		for(int i = 0; i < columns.length; i++) {
+			types[i] = baseTd.getFieldType(columns[i]);
+			names[i] = baseTd.getFieldName(columns[i]);
+		}
+
+		// truncate any existing contents; BTreeFile initializes empty files lazily
+		FileOutputStream fos = new FileOutputStream(f);
+		fos.close();
+
+		CoveringIndex index = new CoveringIndex(name, tableid,
+				new BTreeFile(f, 0, new TupleDesc(types, names)), columns);
+		Database.getCatalog().addIndex(index);
+
+		DbFileIterator it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			Database.getBufferPool().updateDirtyPages(tid, index.insertTuple(tid, it.next()));
+		}
+		it.close();
+		return index;
+	}
+
+	/**
+	 * @return the name of this index
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the id of the base table this index covers
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the B+ tree storing the index entries
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the base table field the index is keyed on
+	 */
+	public int getKeyColumn() {
+		return columns[0];
+	}
+
+	/**
+	 * @return the name of the base table field the index is keyed on
+	 */
+	public String getKeyFieldName() {
+		return file.getTupleDesc().getFieldName(0);
+	}
+
+	/**
+	 * Returns true if every one of the given base table field names is stored
+	 * in this index.
+	 *
+	 * @param fieldNames - unqualified field names of the base table
+	 */
+	public boolean covers(Collection<String> fieldNames) {
+		TupleDesc itd = file.getTupleDesc();
+		for(String fname : fieldNames) {
+			boolean found = false;
+			for(int i = 0; i < itd.numFields(); i++) {
+				if(fname.equals(itd.getFieldName(i))) {
+					found = true;
+					break;
+				}
+			}
+			if(!found)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Project a base table tuple onto the fields stored in this index
+	 *
+	 * @param t - a tuple of the base table
+	 * @return the corresponding index entry
+	 */
+	public Tuple project(Tuple t) {
+		Tuple entry = new Tuple(file.getTupleDesc());
+		for(int i = 0; i < columns.length; i++) {
+			entry.setField(i, t.getField(columns[i]));
+		}
+		return entry;
+	}
+
+	/**
+	 * Add the index entry for a newly inserted base table tuple.
+	 *
+	 * @param tid - the transaction inserting the tuple
+	 * @param t - the base table tuple
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		return file.insertTuple(tid, project(t));
+	}
+
+	/**
+	 * Remove the index entry for a deleted base table tuple. The entry is located
+	 * with an equality search on the key and matched on all included fields.
+	 *
+	 * @param tid - the transaction deleting the tuple
+	 * @param t - the base table tuple
+	 * @return a list of all pages that were dirtied by this operation
+	 * @throws DbException if the index holds no entry for the tuple
+	 */
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Tuple entry = project(t);
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, entry.getField(0)));
+		it.open();
+		try {
+			while(it.hasNext()) {
+				Tuple candidate = it.next();
+				if(matches(candidate, entry)) {
+					return file.deleteTuple(tid, candidate);
+				}
+			}
+		} finally {
+			it.close();
+		}
+		throw new DbException("covering index " + name + " has no entry for tuple " + t);
+	}
+
+	private boolean matches(Tuple candidate, Tuple entry) {
+		for(int i = 0; i < columns.length; i++) {
+			if(!candidate.getField(i).equals(entry.getField(i)))
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * The range delete operator. DeleteRange removes the tuples of a B+ tree whose
+ * key lies in a range with {@link BTreeFile#deleteRange}, which releases the
+ * pages entirely inside the range instead of deleting their tuples one at a
+ * time.
+ */
+public class DeleteRange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private TransactionId tid;
+    private int tableid;
+    private Field lower;
+    private boolean lowerInclusive;
+    private Field upper;
+    private boolean upperInclusive;
+    private TupleDesc td;
+
+    private boolean finishedDeleting;
+
+    /**
+     * Constructor specifying the transaction that this delete belongs to, the
+     * table to delete from and the range of keys to delete.
+     * 
+     * @param t
+     *            The transaction this delete runs in
+     * @param tableid
+     *            The id of a table stored in a BTreeFile
+     * @param lower
+     *            The lower end of the range, or null if it is unbounded
+     * @param lowerInclusive
+     *            Whether tuples with key equal to lower are deleted
+     * @param upper
+     *            The upper end of the range, or null if it is unbounded
+     * @param upperInclusive
+     *            Whether tuples with key equal to upper are deleted
+     */
+    public DeleteRange(TransactionId t, int tableid, Field lower, boolean lowerInclusive,
+            Field upper, boolean upperInclusive) {
+        this.tid = t;
+        this.tableid = tableid;
+        this.lower = lower;
+        this.lowerInclusive = lowerInclusive;
+        this.upper = upper;
+        this.upperInclusive = upperInclusive;
+        this.td = new TupleDesc(new Type[]{Type.INT_TYPE},new String[]{"numRecordsDeleted"});
+        this.finishedDeleting = false;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        super.open();
+        this.finishedDeleting = false;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.close();
+        this.open();
+    }
+
+    /**
+     * Deletes the tuples in the range the first time it is called.
+     * 
+     * @return A 1-field tuple containing the number of deleted records, or
+     *         null if called more than once.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (this.finishedDeleting)
+            return null;
+
+        BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(this.tableid);
+        int deletions;
+        try {
+            deletions = f.deleteRange(this.tid, this.lower, this.lowerInclusive,
+                    this.upper, this.upperInclusive);
+        } catch (IOException e) {
+            throw new DbException("range delete failed: " + e.getMessage());
+        }
+
+        Tuple res = new Tuple(this.td);
+        res.setField(0,new IntField(deletions));
+        this.finishedDeleting = true;
+        return res;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[0];
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+    }
+
+}
@@ -11,6 +11,8 @@ public class Filter extends Operator {
 
     private Predicate pred;
     private DbIterator childOp;
+    // the filters pushed down by hash joins which could not be pushed further
+    private ArrayList<RuntimeFilter> runtimeFilters = new ArrayList<RuntimeFilter>();
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -34,6 +36,27 @@ public class Filter extends Operator {
         return this.childOp.getTupleDesc();
     }
 
+    /**
+     * Also drop the tuples a runtime filter rejects; see {@link RuntimeFilter}.
+     */
+    public void addRuntimeFilter(RuntimeFilter f) {
+        RuntimeFilter.add(runtimeFilters, f);
+    }
+
+    /**
+     * Stop applying the runtime filters pushed down by an operator
+     */
+    public void removeRuntimeFilters(Object source) {
+        RuntimeFilter.remove(runtimeFilters, source);
+    }
+
+    /**
+     * @return the runtime filters this filter applies besides its predicate
+     */
+    public List<RuntimeFilter> getRuntimeFilters() {
+        return Collections.unmodifiableList(runtimeFilters);
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         super.open();
@@ -66,7 +89,7 @@ public class Filter extends Operator {
         {
             Tuple t = childOp.next();
 
-            if (pred.filter(t))
+            if (pred.filter(t) && RuntimeFilter.acceptAll(runtimeFilters, t))
                 return t;
         }
 
@@ -81,7 +104,7 @@ public class Filter extends Operator {
 
     @Override
     public void setChildren(DbIterator[] children) {
-        children[0] = this.childOp;
+        this.childOp = children[0];
     }
 
 }
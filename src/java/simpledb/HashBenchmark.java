@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashBenchmark compares the I/O and running time of a HashFile and a
+ * BTreeFile on random-key inserts and point lookups, with a buffer pool much
+ * smaller than the table so that pages are read and written back as they
+ * would be on a large table.
+ *
+ * @see HashFile
+ * @see BTreeBenchmark
+ */
+public class HashBenchmark {
+
+	/**
+	 * Counts the pages read from and written to a hash file
+	 */
+	private static class CountingHashFile extends HashFile {
+		int reads = 0;
+		int writes = 0;
+
+		CountingHashFile(File f, TupleDesc td) {
+			super(f, 0, td);
+		}
+
+		public Page readPage(PageId pid) {
+			reads++;
+			return super.readPage(pid);
+		}
+
+		public void writePage(Page page) throws IOException {
+			writes++;
+			super.writePage(page);
+		}
+	}
+
+	/**
+	 * Counts the pages read from and written to a B+ tree file
+	 */
+	private static class CountingBTreeFile extends BTreeFile {
+		int reads = 0;
+		int writes = 0;
+
+		CountingBTreeFile(File f, TupleDesc td) {
+			super(f, 0, td);
+		}
+
+		public Page readPage(PageId pid) {
+			reads++;
+			return super.readPage(pid);
+		}
+
+		public void writePage(Page page) throws IOException {
+			writes++;
+			super.writePage(page);
+		}
+	}
+
+	private static int reads(DbFile f) {
+		return f instanceof CountingHashFile ? ((CountingHashFile) f).reads : ((CountingBTreeFile) f).reads;
+	}
+
+	private static int writes(DbFile f) {
+		return f instanceof CountingHashFile ? ((CountingHashFile) f).writes : ((CountingBTreeFile) f).writes;
+	}
+
+	private static DbFileIterator lookup(DbFile f, TransactionId tid, int key) {
+		IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS, new IntField(key));
+		if(f instanceof HashFile)
+			return ((HashFile) f).indexIterator(tid, ipred);
+		return ((BTreeFile) f).indexIterator(tid, ipred);
+	}
+
+	/**
+	 * Insert random keys into an empty hash file and an empty B+ tree, then
+	 * look up random keys with a cold buffer pool, and report the pages read
+	 * and written and the time taken by each phase.
+	 * Usage: HashBenchmark [rows [lookups [buffer pool pages]]]
+	 */
+	public static void main(String[] args) throws Exception {
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int poolPages = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+		// both files see the same keys in the same order
+		Random r = new Random(1);
+		int[] keys = new int[rows];
+		for(int i = 0; i < rows; i++)
+			keys[i] = r.nextInt(BTreeUtility.MAX_RAND_VALUE);
+		int[] probes = new int[lookups];
+		for(int i = 0; i < lookups; i++)
+			probes[i] = keys[r.nextInt(rows)];
+
+		TupleDesc td = Utility.getTupleDesc(2);
+		String[] names = new String[] {"hash", "btree"};
+		for(String name : names) {
+			File file = File.createTempFile("benchmark", ".dat");
+			file.deleteOnExit();
+			DbFile f = name.equals("hash") ? new CountingHashFile(file, td) : new CountingBTreeFile(file, td);
+			Database.getCatalog().addTable(f, name);
+			TransactionId tid = new TransactionId();
+
+			Database.resetBufferPool(poolPages);
+			long start = System.currentTimeMillis();
+			for(int i = 0; i < rows; i++)
+				Database.getBufferPool().insertTuple(tid, f.getId(),
+						BTreeUtility.getBTreeTuple(new int[] {keys[i], i}));
+			Database.getBufferPool().flushAllPages();
+			long millis = System.currentTimeMillis() - start;
+			System.out.println(name + " insert: " + reads(f) + " pages read, " + writes(f)
+					+ " pages written for " + rows + " inserts, " + millis + " ms");
+
+			Database.resetBufferPool(poolPages);
+			int readsBefore = reads(f);
+			start = System.currentTimeMillis();
+			int found = 0;
+			for(int key : probes) {
+				DbFileIterator it = lookup(f, tid, key);
+				it.open();
+				while(it.hasNext()) {
+					it.next();
+					found++;
+				}
+				it.close();
+			}
+			millis = System.currentTimeMillis() - start;
+			System.out.println(name + " lookup: " + (reads(f) - readsBefore) + " pages read for " + lookups
+					+ " lookups returning " + found + " tuples, " + millis + " ms");
+			Database.getBufferPool().transactionComplete(tid);
+		}
+	}
+}
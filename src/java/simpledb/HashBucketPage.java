@@ -0,0 +1,323 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * Each instance of HashBucketPage stores the tuples of one page of a bucket
+ * of a HashFile and implements the Page interface that is used by BufferPool.
+ * A bucket is a chain of bucket pages: the page the directory points to,
+ * followed by overflow pages that are only added once the bucket cannot be
+ * split any further.
+ *
+ * @see HashFile
+ * @see BufferPool
+ *
+ */
+public class HashBucketPage implements Page {
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	private final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+	private final HashPageId pid;
+	private final TupleDesc td;
+	private final byte header[];
+	private final Tuple tuples[];
+	private final int numSlots;
+
+	private int localDepth; // the number of low hash bits shared by the keys in this bucket
+	private int overflow; // the next page of this bucket, or 0
+
+	private byte[] oldData;
+	private final Byte oldDataLock = new Byte((byte)0);
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk.
+	 * The format of a HashBucketPage is the local depth of the bucket, the
+	 * page number of its next overflow page, a set of header bytes indicating
+	 * the slots of the page that are in use, and some number of tuple slots.
+	 *  Specifically, the number of tuples is equal to: <p>
+	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (tuple size * 8 + 1))
+	 * <p> where tuple size is the size of tuples in this database table.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashBucketPage(HashPageId id, byte[] data, TupleDesc td) throws IOException {
+		this.pid = id;
+		this.td = td;
+		this.numSlots = getMaxTuples();
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		localDepth = dis.readInt();
+		overflow = dis.readInt();
+
+		// allocate and read the header slots of this page
+		header = new byte[getHeaderSize()];
+		for (int i=0; i<header.length; i++)
+			header[i] = dis.readByte();
+
+		tuples = new Tuple[numSlots];
+		try {
+			for (int i=0; i<tuples.length; i++)
+				tuples[i] = readNextTuple(dis, i);
+		} catch (java.text.ParseException e) {
+			throw new IOException("parsing error: " + e.getMessage());
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * Retrieve the maximum number of tuples this page can hold.
+	 */
+	public int getMaxTuples() {
+		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		// extraBits are: local depth, overflow pointer
+		int extraBits = 2 * INDEX_SIZE * 8;
+		return (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
+	}
+
+	/**
+	 * Computes the number of bytes in the header of a bucket page
+	 */
+	private int getHeaderSize() {
+		return (getMaxTuples() + 7) / 8;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashBucketPage getBeforeImage(){
+		try {
+			byte[] oldDataRef = null;
+			synchronized(oldDataLock)
+			{
+				oldDataRef = oldData;
+			}
+			return new HashBucketPage(pid,oldDataRef,td);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Read the tuple in a slot, or skip over the slot and return null if it is empty.
+	 */
+	private Tuple readNextTuple(DataInputStream dis, int slotId) throws IOException, java.text.ParseException {
+		if (!isSlotUsed(slotId)) {
+			dis.skipBytes(td.getSize());
+			return null;
+		}
+
+		Tuple t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, slotId));
+		for (int j=0; j<td.numFields(); j++)
+			t.setField(j, td.getFieldType(j).parse(dis));
+		return t;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 *
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(localDepth);
+			dos.writeInt(overflow);
+			dos.write(header);
+			for (int i=0; i<tuples.length; i++) {
+				if (!isSlotUsed(i)) {
+					dos.write(new byte[td.getSize()]);
+					continue;
+				}
+				for (int j=0; j<td.numFields(); j++)
+					tuples[i].getField(j).serialize(dos);
+			}
+			dos.write(new byte[len - (2 * INDEX_SIZE + header.length + td.getSize() * tuples.length)]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashBucketPage, with a local depth of 0 and no overflow page.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	/**
+	 * @return the number of low hash bits shared by the keys in this bucket
+	 */
+	public int getLocalDepth() {
+		return localDepth;
+	}
+
+	/**
+	 * Set the local depth of this bucket
+	 */
+	public void setLocalDepth(int depth) {
+		this.localDepth = depth;
+	}
+
+	/**
+	 * @return the id of the next overflow page of this bucket, or null if there is none
+	 */
+	public HashPageId getOverflowId() {
+		if (overflow == 0)
+			return null;
+		return new HashPageId(pid.getTableId(), overflow, HashPageId.BUCKET);
+	}
+
+	/**
+	 * Set the next overflow page of this bucket
+	 * @param id - the id of the overflow page, or null if there is none
+	 * @throws DbException if the id is not valid
+	 */
+	public void setOverflowId(HashPageId id) throws DbException {
+		if (id == null) {
+			overflow = 0;
+		}
+		else {
+			if (id.getTableId() != pid.getTableId())
+				throw new DbException("table id mismatch in setOverflowId");
+			if (id.pgcateg() != HashPageId.BUCKET)
+				throw new DbException("overflow page must be a bucket page");
+			overflow = id.pageNumber();
+		}
+	}
+
+	/**
+	 * Delete the specified tuple from the page; the tuple should be updated to reflect
+	 *   that it is no longer stored on any page.
+	 * @throws DbException if this tuple is not on this page, or tuple slot is
+	 *         already empty.
+	 * @param t The tuple to delete
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if (rid == null)
+			throw new DbException("tried to delete tuple with null rid");
+		if (!pid.equals(rid.getPageId()))
+			throw new DbException("tried to delete tuple on invalid page or table");
+		if (!isSlotUsed(rid.tupleno()))
+			throw new DbException("tried to delete null tuple.");
+		markSlotUsed(rid.tupleno(), false);
+		tuples[rid.tupleno()] = null;
+		t.setRecordId(null);
+	}
+
+	/**
+	 * Adds the specified tuple to the first empty slot of the page; the tuple
+	 * should be updated to reflect that it is now stored on this page.
+	 * @throws DbException if the page is full (no empty slots) or tupledesc
+	 *         is mismatch.
+	 * @param t The tuple to add.
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in addTuple");
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				t.setRecordId(new RecordId(pid, i));
+				tuples[i] = t;
+				return;
+			}
+		}
+		throw new DbException("called addTuple on page with no empty slots.");
+	}
+
+	/**
+	 * Returns the number of tuples currently stored on this page
+	 */
+	public int getNumTuples() {
+		return numSlots - getNumEmptySlots();
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		int cnt = 0;
+		for (int i=0; i<numSlots; i++)
+			if (!isSlotUsed(i))
+				cnt++;
+		return cnt;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		return (header[i / 8] & (1 << (i % 8))) != 0;
+	}
+
+	/**
+	 * Abstraction to fill or clear a slot on this page.
+	 */
+	private void markSlotUsed(int i, boolean value) {
+		if (value)
+			header[i / 8] |= 1 << (i % 8);
+		else
+			header[i / 8] &= (0xFF ^ (1 << (i % 8)));
+	}
+
+	/**
+	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator() {
+		ArrayList<Tuple> used = new ArrayList<Tuple>();
+		for (int i=0; i<numSlots; i++)
+			if (isSlotUsed(i))
+				used.add(tuples[i]);
+		return Collections.unmodifiableList(used).iterator();
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+}
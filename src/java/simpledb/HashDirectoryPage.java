@@ -0,0 +1,182 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * Each instance of HashDirectoryPage stores a part of the directory of a
+ * HashFile and implements the Page interface that is used by BufferPool.
+ * Entry i of the directory is the page number of the bucket holding the
+ * keys whose hash ends in the low global depth bits of i. The directory
+ * starts on page 0 of the file and continues on a chain of directory pages.
+ *
+ * @see HashFile
+ * @see BufferPool
+ *
+ */
+public class HashDirectoryPage implements Page {
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	private final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+	private final HashPageId pid;
+	private int globalDepth; // only meaningful on the first directory page
+	private int next; // the next directory page, or 0
+	private final int[] entries;
+
+	private byte[] oldData;
+	private final Byte oldDataLock = new Byte((byte)0);
+
+	/**
+	 * Create a HashDirectoryPage from a set of bytes of data read from disk.
+	 * The format of a HashDirectoryPage is the global depth of the directory,
+	 * the page number of the next directory page, and as many bucket page
+	 * numbers as fit in the rest of the page.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashDirectoryPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		globalDepth = dis.readInt();
+		next = dis.readInt();
+		entries = new int[getNumEntries()];
+		for (int i=0; i<entries.length; i++)
+			entries[i] = dis.readInt();
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the number of directory entries stored on each directory page
+	 */
+	public static int getNumEntries() {
+		return BufferPool.getPageSize() / INDEX_SIZE - 2;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashDirectoryPage getBeforeImage(){
+		try {
+			byte[] oldDataRef = null;
+			synchronized(oldDataLock)
+			{
+				oldDataRef = oldData;
+			}
+			return new HashDirectoryPage(pid,oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 *
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(globalDepth);
+			dos.writeInt(next);
+			for (int i=0; i<entries.length; i++)
+				dos.writeInt(entries[i]);
+			dos.write(new byte[len - (entries.length + 2) * INDEX_SIZE]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashDirectoryPage, with a global depth of 0 and no next page.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; //all 0
+	}
+
+	/**
+	 * @return the global depth of the directory; only meaningful on page 0
+	 */
+	public int getGlobalDepth() {
+		return globalDepth;
+	}
+
+	/**
+	 * Set the global depth of the directory
+	 */
+	public void setGlobalDepth(int depth) {
+		this.globalDepth = depth;
+	}
+
+	/**
+	 * @return the page number of the next directory page, or 0 if this is the last one
+	 */
+	public int getNextPageNo() {
+		return next;
+	}
+
+	/**
+	 * Set the page number of the next directory page
+	 */
+	public void setNextPageNo(int pageNo) {
+		this.next = pageNo;
+	}
+
+	/**
+	 * @return the bucket page number stored in the ith entry of this page
+	 */
+	public int getEntry(int i) {
+		return entries[i];
+	}
+
+	/**
+	 * Store a bucket page number in the ith entry of this page
+	 */
+	public void setEntry(int i, int pageNo) {
+		entries[i] = pageNo;
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+}
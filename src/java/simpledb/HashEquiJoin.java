@@ -0,0 +1,208 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The HashEquiJoin operator implements an in-memory hash join on an equality
+ * predicate. When opened, it reads every tuple of one child, the build side,
+ * into a hash table keyed on its join field; it then reads the other child,
+ * the probe side, once, looking each tuple up in the table.
+ * <p>
+ * The build side should be the smaller of the two, since it is held in memory.
+ * Once it has been read, a Bloom filter over its keys is pushed down the
+ * probe side as a {@link RuntimeFilter}, before the probe side is opened.
+ * Whichever side is built, the output tuples are the concatenation of the
+ * left (child1) and right (child2) tuples, as for {@link Join}.
+ */
+public class HashEquiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate jpred;
+    private DbIterator child1;
+    private DbIterator child2;
+    private final boolean buildLeft;
+    private TupleDesc td;
+
+    // the tuples of the build side, by the value of their join field
+    private transient HashMap<Field, ArrayList<Tuple>> table = null;
+    // the probe tuple being joined, and the build tuples it still has to be joined with
+    private transient Tuple probeTuple = null;
+    private transient Iterator<Tuple> matches = null;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on, and builds the hash table on the right child.
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator
+     *            must be EQUALS
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator
+     *            must be EQUALS
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     * @param buildLeft
+     *            true to build the hash table on the left child and probe it
+     *            with the right one, false for the reverse
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, boolean buildLeft) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("a hash join needs an equality predicate");
+        this.jpred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.buildLeft = buildLeft;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return jpred;
+    }
+
+    /**
+     * @return true if the hash table is built on the left child
+     */
+    public boolean buildsLeft() {
+        return buildLeft;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(jpred.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(jpred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    private DbIterator buildChild() {
+        return buildLeft ? child1 : child2;
+    }
+
+    private DbIterator probeChild() {
+        return buildLeft ? child2 : child1;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        DbIterator build = buildChild();
+        build.open();
+
+        int buildField = buildLeft ? jpred.getField1() : jpred.getField2();
+        table = new HashMap<Field, ArrayList<Tuple>>();
+        while (build.hasNext()) {
+            Tuple t = build.next();
+            Field key = t.getField(buildField);
+            ArrayList<Tuple> bucket = table.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<Tuple>(1);
+                table.put(key, bucket);
+            }
+            bucket.add(t);
+        }
+
+        // the probe side is opened once the keys of the build side are known,
+        // so that its scans drop the tuples without a match
+        int probeField = buildLeft ? jpred.getField2() : jpred.getField1();
+        if (RuntimeFilter.canPushDown(probeChild(), probeField)) {
+            BloomFilter keys = new BloomFilter(table.size(), RuntimeFilter.BITS_PER_KEY);
+            for (Field key : table.keySet())
+                keys.add(key);
+            RuntimeFilter.pushDown(probeChild(), probeField, this, keys);
+        }
+        probeChild().open();
+        probeTuple = null;
+        matches = null;
+    }
+
+    public void close() {
+        super.close();
+        this.child1.close();
+        this.child2.close();
+        RuntimeFilter.withdraw(probeChild(), this);
+        table = null;
+        probeTuple = null;
+        matches = null;
+    }
+
+    /**
+     * Rewind the probe side; the hash table of the build side is kept.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        probeChild().rewind();
+        probeTuple = null;
+        matches = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Each probe tuple is joined with every build tuple whose
+     * join field is equal to its own, in the order the build tuples were read.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        int probeField = buildLeft ? jpred.getField2() : jpred.getField1();
+        DbIterator probe = probeChild();
+        while (matches == null || !matches.hasNext()) {
+            if (!probe.hasNext())
+                return null;
+            probeTuple = probe.next();
+            ArrayList<Tuple> bucket = table.get(probeTuple.getField(probeField));
+            matches = bucket == null ? null : bucket.iterator();
+        }
+
+        Tuple match = matches.next();
+        Tuple left = buildLeft ? match : probeTuple;
+        Tuple right = buildLeft ? probeTuple : match;
+        Tuple t = new Tuple(td);
+        int num = 0;
+        for (int i = 0; i < left.getTupleDesc().numFields(); i++)
+            t.setField(num++, left.getField(i));
+        for (int j = 0; j < right.getTupleDesc().numFields(); j++)
+            t.setField(num++, right.getField(j));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+}
@@ -0,0 +1,535 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashFile is an implementation of a DbFile that stores tuples in an
+ * extendible hash table on one key field. The directory maps the low global
+ * depth bits of the hash of a key to a bucket page, and is stored on a chain
+ * of directory pages starting at page 0. A bucket which fills up is split in
+ * two on the next bit of the hash, doubling the directory when the bucket
+ * already uses every bit of it, so that a point lookup or insert reads one
+ * directory page and one bucket page whatever the size of the table. Only a
+ * bucket whose keys all hash alike, or which has reached MAX_DEPTH, gets a
+ * chain of overflow pages instead.
+ * <p>
+ * Pages are never freed: buckets are not merged when tuples are deleted, and
+ * the space is reused by later inserts into the same bucket.
+ *
+ * @see HashDirectoryPage
+ * @see HashBucketPage
+ */
+public class HashFile implements DbFile {
+
+	// the directory never grows past this many bits; fuller buckets get overflow pages
+	public final static int MAX_DEPTH = 20;
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+
+	// page numbers of the directory pages, in directory order. Directory pages
+	// are never freed, so the list only grows
+	private final ArrayList<Integer> directoryPages = new ArrayList<Integer>();
+
+	/**
+	 * Constructs a hash file backed by the specified file, creating an empty
+	 * table with a single bucket if the file is empty.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this hash file
+	 * @param key - the field which the table is hashed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashFile(File f, int key, TupleDesc td) {
+		if(key < 0 || key >= td.numFields())
+			throw new IllegalArgumentException("invalid key field " + key);
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+		try {
+			if(f.length() == 0) {
+				// page 0 is a directory of global depth 0 pointing at the empty bucket on page 1
+				HashDirectoryPage dir = new HashDirectoryPage(directoryId(0), HashDirectoryPage.createEmptyPageData());
+				dir.setEntry(0, 1);
+				FileOutputStream out = new FileOutputStream(f, true);
+				out.write(dir.getPageData());
+				out.write(HashBucketPage.createEmptyPageData());
+				out.close();
+			}
+			int pageNo = 0;
+			do {
+				directoryPages.add(pageNo);
+				pageNo = ((HashDirectoryPage) readPage(directoryId(pageNo))).getNextPageNo();
+			} while(pageNo != 0);
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the File backing this HashFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this HashFile, the hash of the
+	 * absolute file name of the file underlying it.
+	 *
+	 * @return an ID uniquely identifying this HashFile.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 *
+	 * @return TupleDesc of this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the index of the field that this file is hashed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * Returns the number of pages in this HashFile, directory pages included.
+	 */
+	public int numPages() {
+		return (int) (f.length() / BufferPool.getPageSize());
+	}
+
+	/**
+	 * Read a page from the file on disk. This should not be called directly
+	 * but should be called from the BufferPool via getPage()
+	 *
+	 * @param pid - the id of the page to read from disk
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		byte[] data = new byte[BufferPool.getPageSize()];
+		try {
+			RandomAccessFile rf = new RandomAccessFile(f, "r");
+			try {
+				rf.seek((long) id.pageNumber() * BufferPool.getPageSize());
+				rf.readFully(data);
+			} finally {
+				rf.close();
+			}
+			Debug.log(1, "HashFile.readPage: read page %d", id.pageNumber());
+			if(id.pgcateg() == HashPageId.DIRECTORY)
+				return new HashDirectoryPage(id, data);
+			return new HashBucketPage(id, data, td);
+		} catch(EOFException e) {
+			throw new IllegalArgumentException("Read past end of table");
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a page to disk.  This should not be called directly but should
+	 * be called from the BufferPool when pages are flushed to disk
+	 *
+	 * @param page - the page to write to disk
+	 */
+	public void writePage(Page page) throws IOException {
+		RandomAccessFile rf = new RandomAccessFile(f, "rw");
+		rf.seek((long) page.getId().pageNumber() * BufferPool.getPageSize());
+		rf.write(page.getPageData());
+		rf.close();
+	}
+
+	/**
+	 * Mix the bits of the hash code of a key, since the hash codes of fields are
+	 * often their values and the directory is indexed by the low bits.
+	 */
+	static int hash(Field key) {
+		long h = key.hashCode() * 0x9e3779b97f4a7c15L;
+		return (int) (h >>> 32);
+	}
+
+	private HashPageId directoryId(int pageNo) {
+		return new HashPageId(tableid, pageNo, HashPageId.DIRECTORY);
+	}
+
+	private HashPageId bucketId(int pageNo) {
+		return new HashPageId(tableid, pageNo, HashPageId.BUCKET);
+	}
+
+	/**
+	 * Method to encapsulate the process of locking/fetching a page.  First the method checks the local
+	 * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.
+	 * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since
+	 * presumably they will soon be dirtied by this transaction.
+	 */
+	private Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid))
+			return dirtypages.get(pid);
+		Page p = Database.getBufferPool().getPage(tid, pid, perm);
+		if(perm == Permissions.READ_WRITE)
+			dirtypages.put(pid, p);
+		return p;
+	}
+
+	/**
+	 * Get the directory page holding the given directory entry. Directory
+	 * pages are pinned in the buffer pool, so that lookups only read buckets.
+	 */
+	private HashDirectoryPage getDirectoryPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			int entry, Permissions perm) throws DbException, TransactionAbortedException {
+		HashPageId pid = directoryId(directoryPages.get(entry / HashDirectoryPage.getNumEntries()));
+		Database.getBufferPool().pinPage(pid);
+		return (HashDirectoryPage) getPage(tid, dirtypages, pid, perm);
+	}
+
+	/**
+	 * Find the first page of the bucket that keys with the given hash belong to.
+	 */
+	private HashPageId findBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, int h)
+			throws DbException, TransactionAbortedException {
+		int depth = getDirectoryPage(tid, dirtypages, 0, Permissions.READ_ONLY).getGlobalDepth();
+		int entry = h & ((1 << depth) - 1);
+		HashDirectoryPage dir = getDirectoryPage(tid, dirtypages, entry, Permissions.READ_ONLY);
+		return bucketId(dir.getEntry(entry % HashDirectoryPage.getNumEntries()));
+	}
+
+	/**
+	 * Returns the global depth of the directory, the number of low bits of the
+	 * hash of a key used to find its bucket.
+	 */
+	public int getGlobalDepth(TransactionId tid) throws DbException, TransactionAbortedException {
+		return getDirectoryPage(tid, new HashMap<PageId, Page>(), 0, Permissions.READ_ONLY).getGlobalDepth();
+	}
+
+	/**
+	 * Append an empty page to the end of the file and return it, locked with
+	 * read-write permission.
+	 */
+	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
+			throws DbException, IOException, TransactionAbortedException {
+		int pageNo;
+		synchronized(this) {
+			FileOutputStream out = new FileOutputStream(f, true);
+			out.write(HashBucketPage.createEmptyPageData());
+			out.close();
+			pageNo = numPages() - 1;
+		}
+		return getPage(tid, dirtypages, new HashPageId(tableid, pageNo, pgcateg), Permissions.READ_WRITE);
+	}
+
+	/**
+	 * Insert a tuple into this HashFile, splitting its bucket, and doubling the
+	 * directory if need be, when the bucket is full.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		if(!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in insertTuple");
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		int h = hash(t.getField(keyField));
+		while(true) {
+			HashPageId bucketId = findBucket(tid, dirtypages, h);
+			HashBucketPage bucket = (HashBucketPage) getPage(tid, dirtypages, bucketId, Permissions.READ_ONLY);
+			if(insertIntoChain(tid, dirtypages, bucket, t, false))
+				break;
+
+			// the bucket is full. Splitting it only helps if some of its keys hash differently
+			boolean mixed = false;
+			for(HashBucketPage p = bucket; p != null && !mixed; p = nextPage(tid, dirtypages, p)) {
+				Iterator<Tuple> it = p.iterator();
+				while(it.hasNext() && !mixed)
+					mixed = hash(it.next().getField(keyField)) != h;
+			}
+			if(!mixed || bucket.getLocalDepth() >= MAX_DEPTH) {
+				insertIntoChain(tid, dirtypages, bucket, t, true);
+				break;
+			}
+			splitBucket(tid, dirtypages, bucketId, h);
+		}
+		return new ArrayList<Page>(dirtypages.values());
+	}
+
+	/**
+	 * @return the next page of the chain of a bucket, or null if p is the last one
+	 */
+	private HashBucketPage nextPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashBucketPage p)
+			throws DbException, TransactionAbortedException {
+		HashPageId next = p.getOverflowId();
+		if(next == null)
+			return null;
+		return (HashBucketPage) getPage(tid, dirtypages, next, Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Insert a tuple into the first page of a bucket with an empty slot.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param bucket - the first page of the bucket
+	 * @param t - the tuple to insert
+	 * @param grow - whether to add an overflow page to the bucket if it is full
+	 * @return true if the tuple was inserted
+	 */
+	private boolean insertIntoChain(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			HashBucketPage bucket, Tuple t, boolean grow)
+			throws DbException, IOException, TransactionAbortedException {
+		HashBucketPage p = bucket;
+		while(p.getNumEmptySlots() == 0) {
+			HashBucketPage next = nextPage(tid, dirtypages, p);
+			if(next == null) {
+				if(!grow)
+					return false;
+				p = (HashBucketPage) getPage(tid, dirtypages, p.getId(), Permissions.READ_WRITE);
+				next = (HashBucketPage) getEmptyPage(tid, dirtypages, HashPageId.BUCKET);
+				next.setLocalDepth(p.getLocalDepth());
+				p.setOverflowId(next.getId());
+			}
+			p = next;
+		}
+		p = (HashBucketPage) getPage(tid, dirtypages, p.getId(), Permissions.READ_WRITE);
+		p.insertTuple(t);
+		return true;
+	}
+
+	/**
+	 * Split a bucket on the next bit of the hash, moving the tuples with that
+	 * bit set to a new bucket. If the bucket already uses every bit of the
+	 * directory, the directory is doubled first.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param bucketId - the first page of the bucket to split
+	 * @param h - the hash of a key in the bucket
+	 */
+	private void splitBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId bucketId, int h)
+			throws DbException, IOException, TransactionAbortedException {
+		HashBucketPage bucket = (HashBucketPage) getPage(tid, dirtypages, bucketId, Permissions.READ_WRITE);
+		int depth = bucket.getLocalDepth();
+		HashDirectoryPage first = getDirectoryPage(tid, dirtypages, 0, Permissions.READ_WRITE);
+		if(depth == first.getGlobalDepth())
+			doubleDirectory(tid, dirtypages, first);
+
+		HashBucketPage sibling = (HashBucketPage) getEmptyPage(tid, dirtypages, HashPageId.BUCKET);
+		bucket.setLocalDepth(depth + 1);
+		sibling.setLocalDepth(depth + 1);
+
+		// the entries pointing to the bucket are those ending in its low depth bits;
+		// the ones with the next bit set now point to the sibling
+		int size = 1 << first.getGlobalDepth();
+		for(int i = (h & ((1 << depth) - 1)) | (1 << depth); i < size; i += 1 << (depth + 1)) {
+			HashDirectoryPage dir = getDirectoryPage(tid, dirtypages, i, Permissions.READ_WRITE);
+			dir.setEntry(i % HashDirectoryPage.getNumEntries(), sibling.getId().pageNumber());
+		}
+
+		for(HashBucketPage p = bucket; p != null; p = nextPage(tid, dirtypages, p)) {
+			Iterator<Tuple> it = p.iterator();
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				if((hash(t.getField(keyField)) >>> depth & 1) == 0)
+					continue;
+				p = (HashBucketPage) getPage(tid, dirtypages, p.getId(), Permissions.READ_WRITE);
+				p.deleteTuple(t);
+				insertIntoChain(tid, dirtypages, sibling, t, true);
+			}
+		}
+	}
+
+	/**
+	 * Double the directory, adding directory pages as needed, so that every
+	 * bucket is pointed to by twice as many entries.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param first - the first directory page, locked with read-write permission
+	 */
+	private void doubleDirectory(TransactionId tid, HashMap<PageId, Page> dirtypages, HashDirectoryPage first)
+			throws DbException, IOException, TransactionAbortedException {
+		int n = HashDirectoryPage.getNumEntries();
+		int size = 1 << first.getGlobalDepth();
+		while(directoryPages.size() * n < 2 * size) {
+			HashDirectoryPage last = getDirectoryPage(tid, dirtypages, (directoryPages.size() - 1) * n,
+					Permissions.READ_WRITE);
+			Page added = getEmptyPage(tid, dirtypages, HashPageId.DIRECTORY);
+			last.setNextPageNo(added.getId().pageNumber());
+			directoryPages.add(added.getId().pageNumber());
+		}
+		for(int i = 0; i < size; i++) {
+			int pageNo = getDirectoryPage(tid, dirtypages, i, Permissions.READ_ONLY).getEntry(i % n);
+			getDirectoryPage(tid, dirtypages, size + i, Permissions.READ_WRITE).setEntry((size + i) % n, pageNo);
+		}
+		first.setGlobalDepth(first.getGlobalDepth() + 1);
+	}
+
+	/**
+	 * Delete a tuple from this HashFile. The bucket is not merged with its
+	 * buddy, even if it becomes empty.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if(rid == null || !(rid.getPageId() instanceof HashPageId) || rid.getPageId().getTableId() != tableid)
+			throw new DbException("tried to delete tuple with invalid rid");
+		HashPageId pid = (HashPageId) rid.getPageId();
+		if(pid.pgcateg() != HashPageId.BUCKET)
+			throw new DbException("tried to delete tuple from a directory page");
+		HashBucketPage page = (HashBucketPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+		page.deleteTuple(t);
+		ArrayList<Page> dirtied = new ArrayList<Page>();
+		dirtied.add(page);
+		return dirtied;
+	}
+
+	/**
+	 * Get a read lock on the first page of the bucket of the key of ipred, and
+	 * return an iterator over the tuples of the bucket with that key. Only
+	 * EQUALS predicates can use the hash of the key; any other predicate is
+	 * answered by a scan of the whole file.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to search for
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new HashFileIterator(this, tid, ipred);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this file, in no particular order.
+	 *
+	 * @param tid - the transaction id
+	 * @return an iterator over every tuple in the file
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashFileIterator(this, tid, null);
+	}
+
+	/**
+	 * Returns the id of the first page of the bucket holding the given key.
+	 */
+	HashPageId findBucket(TransactionId tid, Field key) throws DbException, TransactionAbortedException {
+		return findBucket(tid, new HashMap<PageId, Page>(), hash(key));
+	}
+
+	/**
+	 * Returns true if the given page number holds a part of the directory.
+	 */
+	boolean isDirectoryPage(int pageNo) {
+		return directoryPages.contains(pageNo);
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for a HashFile. With an
+ * EQUALS predicate it reads the chain of pages of the key's bucket; otherwise
+ * it reads every bucket page of the file in page order.
+ */
+class HashFileIterator extends AbstractDbFileIterator {
+
+	private final HashFile f;
+	private final TransactionId tid;
+	private final IndexPredicate ipred;
+	private final boolean search;
+
+	private Iterator<Tuple> it = null;
+	private HashBucketPage curp = null;
+	// the next page number to read, when scanning the file
+	private int nextPageNo;
+	private int numPages;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the HashFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null for every tuple
+	 */
+	public HashFileIterator(HashFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+		this.search = ipred != null && ipred.getOp() == Predicate.Op.EQUALS;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if(search) {
+			curp = (HashBucketPage) Database.getBufferPool().getPage(tid,
+					f.findBucket(tid, ipred.getField()), Permissions.READ_ONLY);
+			it = curp.iterator();
+		}
+		else {
+			nextPageNo = 1;
+			numPages = f.numPages();
+			curp = null;
+			it = null;
+		}
+	}
+
+	/**
+	 * Read the next page of the bucket, or the next bucket page of the file.
+	 * @return false if there are no more pages
+	 */
+	private boolean advance() throws DbException, TransactionAbortedException {
+		HashPageId next = null;
+		if(search) {
+			next = curp == null ? null : curp.getOverflowId();
+		}
+		else {
+			while(nextPageNo < numPages && f.isDirectoryPage(nextPageNo))
+				nextPageNo++;
+			if(nextPageNo < numPages)
+				next = new HashPageId(f.getId(), nextPageNo++, HashPageId.BUCKET);
+		}
+		if(next == null) {
+			curp = null;
+			it = null;
+			return false;
+		}
+		curp = (HashBucketPage) Database.getBufferPool().getPage(tid, next, Permissions.READ_ONLY);
+		it = curp.iterator();
+		return true;
+	}
+
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while(true) {
+			while(it == null || !it.hasNext()) {
+				if((search && curp == null) || !advance())
+					return null;
+			}
+			Tuple t = it.next();
+			if(ipred == null || t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField()))
+				return t;
+		}
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
@@ -0,0 +1,507 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The HybridHashJoin operator implements a hash join on an equality predicate
+ * whose build side need not fit in memory. The build side is split by the
+ * hash of its join field into {@link #FANOUT} partitions, which are kept in
+ * memory until the build tuples exceed the memory budget; the largest
+ * partitions in memory are then written to {@link SpillFile}s until the rest
+ * fit. Probe tuples of the partitions still in memory are joined as they are
+ * read, and those of spilled partitions are written to spill files of their
+ * own.
+ * <p>
+ * Once the probe side has been read, each pair of spilled build and probe
+ * partitions is joined in turn. A build partition that fits in memory is
+ * loaded into a hash table and probed with its probe partition. One that
+ * does not is split again with a different hash function, up to
+ * {@link #MAX_DEPTH} times; a partition that cannot be split, because its
+ * tuples share a single join value, or that is still too large at the
+ * deepest level, is loaded one memory-sized chunk at a time, and its probe
+ * partition is read once per chunk.
+ * <p>
+ * A Bloom filter over the keys of the build side is pushed down the probe
+ * side as a {@link RuntimeFilter} before the probe side is opened, so probe
+ * tuples without a match are neither joined nor spilled.
+ * <p>
+ * Whichever side is built, the output tuples are the concatenation of the
+ * left (child1) and right (child2) tuples, as for {@link Join}.
+ *
+ * @see HashEquiJoin
+ */
+public class HybridHashJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** the number of partitions each side is split into */
+    public static final int FANOUT = 16;
+    /** the number of times a partition may be split again */
+    public static final int MAX_DEPTH = 4;
+    /** the number of pages of build tuples kept in memory by the planner's hash joins */
+    public static final int DEFAULT_MEMORY_PAGES = 1000;
+
+    private JoinPredicate jpred;
+    private DbIterator child1;
+    private DbIterator child2;
+    private final boolean buildLeft;
+    private final int memoryPages;
+    private TupleDesc td;
+
+    // the number of build tuples that fit in the memory budget
+    private int maxTuples;
+    // the partitions of the build side still in memory, or null if spilled
+    private transient ArrayList<HashMap<Field, ArrayList<Tuple>>> memory;
+    // the spill files of the spilled build and probe partitions
+    private transient SpillFile[] buildSpills;
+    private transient SpillFile[] probeSpills;
+    // the pairs of spilled partitions left to join
+    private transient LinkedList<Task> tasks;
+    // the pair being joined, or null while the probe child is being read
+    private transient Task task;
+    // the hash table probed by the current probe tuple
+    private transient HashMap<Field, ArrayList<Tuple>> table;
+    private transient Tuple probeTuple;
+    private transient Iterator<Tuple> matches;
+
+    private int spilledPartitions = 0;
+    private int spillPages = 0;
+
+    /**
+     * A pair of spilled build and probe partitions to be joined, split at the
+     * given depth
+     */
+    private static class Task {
+        final SpillFile build;
+        final SpillFile probe;
+        final int depth;
+        // the reader of the build partition when it is loaded in chunks
+        DbFileIterator chunks = null;
+        DbFileIterator probeIt = null;
+
+        Task(SpillFile build, SpillFile probe, int depth) {
+            this.build = build;
+            this.probe = probe;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator
+     *            must be EQUALS
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     * @param buildLeft
+     *            true to build the hash table on the left child and probe it
+     *            with the right one, false for the reverse
+     * @param memoryPages
+     *            the number of pages of build tuples to keep in memory
+     */
+    public HybridHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            boolean buildLeft, int memoryPages) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("a hash join needs an equality predicate");
+        if (memoryPages < 1)
+            throw new IllegalArgumentException("memory budget must be at least one page");
+        this.jpred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.buildLeft = buildLeft;
+        this.memoryPages = memoryPages;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return jpred;
+    }
+
+    /**
+     * @return true if the hash table is built on the left child
+     */
+    public boolean buildsLeft() {
+        return buildLeft;
+    }
+
+    /**
+     * @return the number of partitions of the build side spilled to disk the
+     *         last time the join was opened, not counting partitions split again
+     */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    /**
+     * @return the number of pages written to spill files since the join was
+     *         last opened, at every depth and on both sides
+     */
+    public int getSpillPages() {
+        return spillPages;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    private DbIterator buildChild() {
+        return buildLeft ? child1 : child2;
+    }
+
+    private DbIterator probeChild() {
+        return buildLeft ? child2 : child1;
+    }
+
+    private int buildField() {
+        return buildLeft ? jpred.getField1() : jpred.getField2();
+    }
+
+    private int probeField() {
+        return buildLeft ? jpred.getField2() : jpred.getField1();
+    }
+
+    /**
+     * @return the partition of a join value at a depth; each depth mixes the
+     *         hash code with a different seed, so that a partition is spread
+     *         out when it is split again
+     */
+    static int partition(Field key, int depth) {
+        long h = key.hashCode() * 0x9e3779b97f4a7c15L + depth * 0xc2b2ae3d27d4eb4fL;
+        h ^= h >>> 29;
+        h *= 0xbf58476d1ce4e5b9L;
+        h ^= h >>> 32;
+        return (int) ((h & Long.MAX_VALUE) % FANOUT);
+    }
+
+    private static void add(HashMap<Field, ArrayList<Tuple>> table, Field key, Tuple t) {
+        ArrayList<Tuple> bucket = table.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Tuple>(1);
+            table.put(key, bucket);
+        }
+        bucket.add(t);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        buildChild().open();
+        maxTuples = Math.max(1, (int) ((long) memoryPages * BufferPool.getPageSize()
+                / buildChild().getTupleDesc().getSize()));
+        spilledPartitions = 0;
+        spillPages = 0;
+        tasks = new LinkedList<Task>();
+        task = null;
+        table = null;
+        probeTuple = null;
+        matches = null;
+
+        memory = new ArrayList<HashMap<Field, ArrayList<Tuple>>>();
+        int[] sizes = new int[FANOUT];
+        for (int i = 0; i < FANOUT; i++)
+            memory.add(new HashMap<Field, ArrayList<Tuple>>());
+        buildSpills = new SpillFile[FANOUT];
+        probeSpills = new SpillFile[FANOUT];
+
+        // sized for the build tuples that fit in memory; a build side that
+        // spills overloads it, and it is turned off if it rejects too little
+        BloomFilter keys = null;
+        if (RuntimeFilter.canPushDown(probeChild(), probeField()))
+            keys = new BloomFilter(maxTuples, RuntimeFilter.BITS_PER_KEY);
+
+        try {
+            int inMemory = 0;
+            DbIterator build = buildChild();
+            while (build.hasNext()) {
+                Tuple t = build.next();
+                Field key = t.getField(buildField());
+                if (keys != null)
+                    keys.add(key);
+                int p = partition(key, 0);
+                if (memory.get(p) == null) {
+                    buildSpills[p].add(t);
+                    continue;
+                }
+                add(memory.get(p), key, t);
+                sizes[p]++;
+                inMemory++;
+                // spill the largest partitions in memory until the rest fit
+                while (inMemory > maxTuples) {
+                    int largest = -1;
+                    for (int i = 0; i < FANOUT; i++) {
+                        if (memory.get(i) != null && (largest == -1 || sizes[i] > sizes[largest]))
+                            largest = i;
+                    }
+                    buildSpills[largest] = new SpillFile(build.getTupleDesc());
+                    probeSpills[largest] = new SpillFile(probeChild().getTupleDesc());
+                    for (ArrayList<Tuple> bucket : memory.get(largest).values()) {
+                        for (Tuple s : bucket)
+                            buildSpills[largest].add(s);
+                    }
+                    memory.set(largest, null);
+                    inMemory -= sizes[largest];
+                    spilledPartitions++;
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("failed to spill hash join partition: " + e.getMessage());
+        }
+        if (keys != null)
+            RuntimeFilter.pushDown(probeChild(), probeField(), this, keys);
+        probeChild().open();
+    }
+
+    public void close() {
+        super.close();
+        this.child1.close();
+        this.child2.close();
+        RuntimeFilter.withdraw(probeChild(), this);
+        if (tasks != null) {
+            if (task != null)
+                deleteTask(task);
+            for (Task t : tasks)
+                deleteTask(t);
+        }
+        if (buildSpills != null) {
+            for (int i = 0; i < FANOUT; i++) {
+                if (buildSpills[i] != null)
+                    buildSpills[i].delete();
+                if (probeSpills[i] != null)
+                    probeSpills[i].delete();
+            }
+        }
+        memory = null;
+        buildSpills = null;
+        probeSpills = null;
+        tasks = null;
+        task = null;
+        table = null;
+        probeTuple = null;
+        matches = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.close();
+        this.open();
+    }
+
+    private void deleteTask(Task t) {
+        if (t.chunks != null)
+            t.chunks.close();
+        if (t.probeIt != null)
+            t.probeIt.close();
+        t.build.delete();
+        t.probe.delete();
+    }
+
+    /**
+     * Queue the pairs of spilled partitions once the probe child has been read
+     */
+    private void queueSpilledPartitions() throws IOException {
+        for (int i = 0; i < FANOUT; i++) {
+            if (buildSpills[i] == null)
+                continue;
+            buildSpills[i].finish();
+            probeSpills[i].finish();
+            spillPages += buildSpills[i].numPages() + probeSpills[i].numPages();
+            if (buildSpills[i].size() > 0 && probeSpills[i].size() > 0) {
+                tasks.add(new Task(buildSpills[i], probeSpills[i], 0));
+            } else {
+                buildSpills[i].delete();
+                probeSpills[i].delete();
+            }
+            buildSpills[i] = null;
+            probeSpills[i] = null;
+        }
+        memory = null;
+    }
+
+    /**
+     * Start joining the next pair of spilled partitions, splitting it again
+     * first if it is too large to load and can still be split
+     *
+     * @return false if there are no pairs left
+     */
+    private boolean startTask() throws DbException, TransactionAbortedException, IOException {
+        while (!tasks.isEmpty()) {
+            Task t = tasks.removeFirst();
+            if (t.build.size() > maxTuples && t.depth < MAX_DEPTH) {
+                Task[] parts = split(t);
+                if (parts != null) {
+                    deleteTask(t);
+                    for (int i = FANOUT - 1; i >= 0; i--) {
+                        if (parts[i] != null)
+                            tasks.addFirst(parts[i]);
+                    }
+                    continue;
+                }
+            }
+            task = t;
+            task.chunks = t.build.iterator();
+            task.chunks.open();
+            task.probeIt = t.probe.iterator();
+            if (!loadChunk())
+                throw new DbException("spilled partition has no tuples");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Split a pair of partitions with the hash function of the next depth
+     *
+     * @return the pairs which have tuples on both sides, or null if every
+     *         build tuple fell into the same partition again
+     */
+    private Task[] split(Task t) throws DbException, TransactionAbortedException, IOException {
+        int depth = t.depth + 1;
+        SpillFile[] build = new SpillFile[FANOUT];
+        SpillFile[] probe = new SpillFile[FANOUT];
+        DbFileIterator it = t.build.iterator();
+        it.open();
+        while (it.hasNext()) {
+            Tuple tuple = it.next();
+            int p = partition(tuple.getField(buildField()), depth);
+            if (build[p] == null)
+                build[p] = new SpillFile(t.build.getTupleDesc());
+            build[p].add(tuple);
+        }
+        it.close();
+        for (int i = 0; i < FANOUT; i++) {
+            if (build[i] != null && build[i].size() == t.build.size()) {
+                // the partition does not split, so chunk it instead
+                build[i].delete();
+                return null;
+            }
+        }
+
+        it = t.probe.iterator();
+        it.open();
+        while (it.hasNext()) {
+            Tuple tuple = it.next();
+            int p = partition(tuple.getField(probeField()), depth);
+            if (build[p] == null)
+                continue;
+            if (probe[p] == null)
+                probe[p] = new SpillFile(t.probe.getTupleDesc());
+            probe[p].add(tuple);
+        }
+        it.close();
+
+        Task[] parts = new Task[FANOUT];
+        for (int i = 0; i < FANOUT; i++) {
+            if (build[i] == null)
+                continue;
+            build[i].finish();
+            spillPages += build[i].numPages();
+            if (probe[i] == null) {
+                build[i].delete();
+                continue;
+            }
+            probe[i].finish();
+            spillPages += probe[i].numPages();
+            parts[i] = new Task(build[i], probe[i], depth);
+        }
+        return parts;
+    }
+
+    /**
+     * Load the next memory-sized chunk of the current build partition into
+     * the hash table and restart its probe partition
+     *
+     * @return false if the build partition has been read
+     */
+    private boolean loadChunk() throws DbException, TransactionAbortedException {
+        if (!task.chunks.hasNext())
+            return false;
+        table = new HashMap<Field, ArrayList<Tuple>>();
+        int n = 0;
+        while (n < maxTuples && task.chunks.hasNext()) {
+            Tuple t = task.chunks.next();
+            add(table, t.getField(buildField()), t);
+            n++;
+        }
+        task.probeIt.open();
+        return true;
+    }
+
+    /**
+     * @return the next probe tuple, with table set to the hash table it
+     *         should be looked up in, or null if every probe tuple has been joined
+     */
+    private Tuple nextProbe() throws DbException, TransactionAbortedException, IOException {
+        if (task == null && memory != null) {
+            DbIterator probe = probeChild();
+            while (probe.hasNext()) {
+                Tuple t = probe.next();
+                int p = partition(t.getField(probeField()), 0);
+                if (memory.get(p) != null) {
+                    table = memory.get(p);
+                    return t;
+                }
+                probeSpills[p].add(t);
+            }
+            queueSpilledPartitions();
+        }
+        while (true) {
+            if (task == null && !startTask())
+                return null;
+            if (task.probeIt.hasNext())
+                return task.probeIt.next();
+            if (!loadChunk()) {
+                deleteTask(task);
+                task = null;
+                table = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Tuples of the partitions kept in memory are returned while
+     * the probe child is read, followed by those of the spilled partitions.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        try {
+            while (matches == null || !matches.hasNext()) {
+                probeTuple = nextProbe();
+                if (probeTuple == null)
+                    return null;
+                ArrayList<Tuple> bucket = table.get(probeTuple.getField(probeField()));
+                matches = bucket == null ? null : bucket.iterator();
+            }
+        } catch (IOException e) {
+            throw new DbException("failed to spill hash join partition: " + e.getMessage());
+        }
+
+        Tuple match = matches.next();
+        Tuple left = buildLeft ? match : probeTuple;
+        Tuple right = buildLeft ? probeTuple : match;
+        Tuple t = new Tuple(td);
+        int num = 0;
+        for (int i = 0; i < left.getTupleDesc().numFields(); i++)
+            t.setField(num++, left.getField(i));
+        for (int j = 0; j < right.getTupleDesc().numFields(); j++)
+            t.setField(num++, right.getField(j));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+}
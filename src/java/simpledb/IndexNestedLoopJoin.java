@@ -0,0 +1,218 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator joins an outer child with a table stored
+ * in a {@link BTreeFile} keyed on its join field. Instead of scanning the
+ * whole table for every outer tuple, it looks the matching tuples up with
+ * {@link BTreeFile#indexIterator}.
+ * <p>
+ * The outer tuples are read in batches of {@link #BATCH_SIZE}, which are
+ * sorted on the join field. The tree is then probed once for each distinct
+ * key of the batch, in key order, so that outer tuples with the same key
+ * share a probe, and consecutive probes read neighbouring leaves that are
+ * likely still in the buffer pool.
+ * <p>
+ * The output tuples are the concatenation of the outer (left) and inner
+ * (right) tuples, as for {@link Join}; they are in key order within a batch.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of outer tuples sorted and probed together */
+    public static final int BATCH_SIZE = 1000;
+
+    private JoinPredicate jpred;
+    private DbIterator child1;
+    private final TransactionId tid;
+    private final BTreeFile inner;
+    private final String innerAlias;
+    private TupleDesc td;
+
+    // the batch of outer tuples being probed, sorted on the join field, and
+    // the group of them with the key being probed
+    private transient ArrayList<Tuple> batch = null;
+    private transient int groupStart = 0;
+    private transient int groupEnd = 0;
+    // the inner tuples matching the group, the inner tuple being joined, and
+    // the tuple of the group it is joined with next
+    private transient DbFileIterator probe = null;
+    private transient Tuple innerTuple = null;
+    private transient int groupPos = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the outer child with the table;
+     *            its operator must be EQUALS or one of the comparisons, and
+     *            its second field the key field of the table
+     * @param child1
+     *            Iterator for the outer relation to join
+     * @param tid
+     *            The transaction the table is read as a part of
+     * @param tableid
+     *            The table to look the inner tuples up in, which must be a
+     *            B+ tree keyed on a single field
+     * @param tableAlias
+     *            the alias of the table, which prefixes its field names as for
+     *            {@link SeqScan}
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, TransactionId tid,
+            int tableid, String tableAlias) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof BTreeFile) || ((BTreeFile) f).keyFields().length != 1
+                || ((BTreeFile) f).keyField() != p.getField2())
+            throw new IllegalArgumentException("the inner table must be a B+ tree keyed on the join field");
+        if (!SortMergeJoin.supports(p.getOperator()))
+            throw new IllegalArgumentException("an index join cannot evaluate " + p.getOperator());
+        this.jpred = p;
+        this.child1 = child1;
+        this.tid = tid;
+        this.inner = (BTreeFile) f;
+        this.innerAlias = tableAlias;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), innerTupleDesc());
+    }
+
+    private TupleDesc innerTupleDesc() {
+        TupleDesc innerTd = inner.getTupleDesc();
+        Type[] types = new Type[innerTd.numFields()];
+        String[] names = new String[innerTd.numFields()];
+        for (int i = 0; i < innerTd.numFields(); i++) {
+            types[i] = innerTd.getFieldType(i);
+            names[i] = innerAlias + "." + innerTd.getFieldName(i);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return jpred;
+    }
+
+    /**
+     * @return the id of the table the inner tuples are looked up in
+     */
+    public int getInnerTableId() {
+        return inner.getId();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the operator an inner key must satisfy against an outer key
+     *         for the two tuples to join
+     */
+    private Predicate.Op probeOp() {
+        switch (jpred.getOperator()) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return jpred.getOperator();
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        this.child1.open();
+        batch = new ArrayList<Tuple>(BATCH_SIZE);
+        groupStart = groupEnd = 0;
+        innerTuple = null;
+    }
+
+    private void closeProbe() {
+        if (probe != null) {
+            probe.close();
+            probe = null;
+        }
+        innerTuple = null;
+    }
+
+    public void close() {
+        super.close();
+        this.child1.close();
+        closeProbe();
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.child1.rewind();
+        closeProbe();
+        batch.clear();
+        groupStart = groupEnd = 0;
+    }
+
+    /**
+     * Read the next batch of outer tuples and sort it on the join field.
+     *
+     * @return false if there are no more outer tuples
+     */
+    private boolean readBatch() throws DbException, TransactionAbortedException {
+        batch.clear();
+        while (batch.size() < BATCH_SIZE && child1.hasNext())
+            batch.add(child1.next());
+        Collections.sort(batch, new TupleComparator(jpred.getField1(), true));
+        groupStart = groupEnd = 0;
+        return !batch.isEmpty();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (innerTuple == null || groupPos == groupEnd) {
+            if (probe != null && probe.hasNext()) {
+                innerTuple = probe.next();
+                groupPos = groupStart;
+                continue;
+            }
+
+            // probe the tree with the key of the next group of outer tuples
+            closeProbe();
+            if (groupEnd == batch.size() && !readBatch())
+                return null;
+            groupStart = groupEnd;
+            Field key = batch.get(groupStart).getField(jpred.getField1());
+            groupEnd = groupStart + 1;
+            while (groupEnd < batch.size()
+                    && batch.get(groupEnd).getField(jpred.getField1()).compare(Predicate.Op.EQUALS, key))
+                groupEnd++;
+            probe = inner.indexIterator(tid, new IndexPredicate(probeOp(), key));
+            probe.open();
+        }
+
+        Tuple left = batch.get(groupPos++);
+        Tuple t = new Tuple(td);
+        int num = 0;
+        for (int i = 0; i < left.getTupleDesc().numFields(); i++)
+            t.setField(num++, left.getField(i));
+        for (int j = 0; j < innerTuple.getTupleDesc().numFields(); j++)
+            t.setField(num++, innerTuple.getField(j));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.td = TupleDesc.merge(child1.getTupleDesc(), innerTupleDesc());
+    }
+
+}
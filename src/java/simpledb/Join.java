@@ -158,8 +158,8 @@ public class Join extends Operator {
 
     @Override
     public void setChildren(DbIterator[] children) {
-        children[0] = child1;
-        children[1] = child2;
+        this.child1 = children[0];
+        this.child2 = children[1];
     }
 
 }
@@ -44,6 +44,55 @@ public class JoinOptimizer {
      */
     public static DbIterator instantiateJoin(LogicalJoinNode lj,
             DbIterator plan1, DbIterator plan2) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, 0, 0);
+    }
+
+    /**
+     * Return best iterator for computing a given logical join, given the
+     * estimated cardinalities of its subplans, with the default memory budget
+     * of {@link HybridHashJoin#DEFAULT_MEMORY_PAGES}.
+     * 
+     * @see #instantiateJoin(LogicalJoinNode, DbIterator, DbIterator, int, int, int)
+     */
+    public static DbIterator instantiateJoin(LogicalJoinNode lj,
+            DbIterator plan1, DbIterator plan2, int card1, int card2)
+            throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, card1, card2, HybridHashJoin.DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Return best iterator for computing a given logical join, given the
+     * estimated cardinalities of its subplans. If both subplans return their
+     * tuples in order of the join fields (see {@link #sortedField}), equality
+     * and comparison joins merge them with a {@link SortMergeJoin}. If plan2
+     * scans a B+ tree keyed on its join field, comparison joins, and equality
+     * joins whose index probes are expected to cost less than a scan of the
+     * tree, look the inner tuples up with an {@link IndexNestedLoopJoin}.
+     * Other equality joins are computed with a hash join that builds its hash table
+     * on the smaller subplan, or on plan2 if either cardinality is unknown: a
+     * {@link HybridHashJoin} if either cardinality is unknown or the build side
+     * is expected not to fit in memoryPages, a {@link ParallelHashJoin} on
+     * every processor if both sides fit and together hold at least
+     * {@link ParallelHashJoin#MIN_PARALLEL_TUPLES}, and an in-memory
+     * {@link HashEquiJoin} otherwise. Other joins use a
+     * {@link BlockNestedLoopJoin} with blocks of memoryPages.
+     * 
+     * @param lj
+     *            The join being considered
+     * @param plan1
+     *            The left join node's child
+     * @param plan2
+     *            The right join node's child
+     * @param card1
+     *            The estimated cardinality of plan1, or 0 if it is unknown
+     * @param card2
+     *            The estimated cardinality of plan2, or 0 if it is unknown
+     * @param memoryPages
+     *            The number of pages of tuples the join may hold in memory
+     */
+    public static DbIterator instantiateJoin(LogicalJoinNode lj,
+            DbIterator plan1, DbIterator plan2, int card1, int card2, int memoryPages)
+            throws ParsingException {
 
         int t1id = 0, t2id = 0;
         DbIterator j;
@@ -68,12 +117,204 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        BTreeFile index = SortMergeJoin.supports(lj.p) ? probeIndex(plan2, t2id) : null;
+        if (SortMergeJoin.supports(lj.p) && sortedField(plan1) == t1id
+                && sortedField(plan2) == t2id) {
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (index != null && (lj.p != Predicate.Op.EQUALS || (card1 > 0
+                && card1 * indexProbeCost(index) < index.numPages() * TableStats.IOCOSTPERPAGE))) {
+            SeqScan inner = (SeqScan) plan2;
+            j = new IndexNestedLoopJoin(p, plan1, inner.getTransactionId(), inner.getTableId(), inner.getAlias());
+        } else if (lj.p == Predicate.Op.EQUALS) {
+            boolean buildLeft = card1 > 0 && card2 > 0 && card1 < card2;
+            long buildBytes = buildLeft ? (long) card1 * plan1.getTupleDesc().getSize()
+                    : (long) card2 * plan2.getTupleDesc().getSize();
+            long bytes = (long) card1 * plan1.getTupleDesc().getSize()
+                    + (long) card2 * plan2.getTupleDesc().getSize();
+            long memory = (long) memoryPages * BufferPool.getPageSize();
+            int processors = Runtime.getRuntime().availableProcessors();
+            // a join of unknown size spills what does not fit in memory, and
+            // only a join known to be small is kept wholly in memory
+            if (card1 <= 0 || card2 <= 0 || buildBytes > memory)
+                j = new HybridHashJoin(p, plan1, plan2, buildLeft, memoryPages);
+            else if (parallelHashJoin(card1, card2, bytes <= memory))
+                j = new ParallelHashJoin(p, plan1, plan2, buildLeft, processors);
+            else
+                j = new HashEquiJoin(p, plan1, plan2, buildLeft);
+        } else {
+            j = new BlockNestedLoopJoin(p, plan1, plan2, memoryPages);
+        }
 
         return j;
 
     }
 
+    /**
+     * @return true if an equality join of subplans with the given estimated
+     *         cardinalities is worth running on several threads
+     * @param fits
+     *            whether both subplans are expected to fit in memory together
+     */
+    private static boolean parallelHashJoin(int card1, int card2, boolean fits) {
+        return fits && card1 > 0 && card2 > 0
+                && (long) card1 + card2 >= ParallelHashJoin.MIN_PARALLEL_TUPLES
+                && Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    /**
+     * @return the B+ tree a plan scans in full, if it is keyed on the given
+     *         field alone and so can be probed by an {@link IndexNestedLoopJoin},
+     *         or null
+     */
+    private static BTreeFile probeIndex(DbIterator plan, int field) {
+        if (!(plan instanceof SeqScan))
+            return null;
+        DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) plan).getTableId());
+        if (!(f instanceof BTreeFile) || ((BTreeFile) f).keyFields().length != 1
+                || ((BTreeFile) f).keyField() != field)
+            return null;
+        return (BTreeFile) f;
+    }
+
+    /**
+     * Estimate the cost of one lookup in a B+ tree: a read of one page on
+     * each level of the tree, whose height is estimated from its size.
+     */
+    static double indexProbeCost(BTreeFile f) {
+        int keySize = f.getTupleDesc().getFieldType(f.keyField()).getLen();
+        double fanout = BufferPool.getPageSize() / (double) (keySize + BTreeInternalPage.INDEX_SIZE);
+        double levels = 1 + Math.ceil(Math.log(Math.max(f.numPages(), 2)) / Math.log(fanout));
+        return levels * TableStats.IOCOSTPERPAGE;
+    }
+
+    /**
+     * Find the order a plan returns its tuples in, from the key fields of the
+     * B+ trees it scans. Filters, projections and limits keep the order of
+     * their child, as do the joins that read one child once in order: the outer child of a
+     * nested loops join, the probe side of a {@link HashEquiJoin}, and the
+     * driving child of a {@link SortMergeJoin}.
+     * 
+     * @param plan
+     *            the plan
+     * @return the index of the field of plan's tuples that they are returned
+     *         in ascending order of, or -1 if their order is not known
+     */
+    public static int sortedField(DbIterator plan) {
+        if (plan instanceof BTreeScan)
+            return ((BTreeScan) plan).sortedField();
+        if (plan instanceof SeqScan) {
+            // a B+ tree file iterates over its leaves in key order
+            DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) plan).getTableId());
+            return f instanceof BTreeFile ? ((BTreeFile) f).keyField() : -1;
+        }
+        if (plan instanceof Filter || plan instanceof Limit)
+            return sortedField(((Operator) plan).getChildren()[0]);
+        if (plan instanceof Project)
+            return projectedField((Project) plan, sortedField(((Project) plan).getChildren()[0]));
+        if (plan instanceof OrderBy)
+            return ((OrderBy) plan).isASC() ? ((OrderBy) plan).getOrderByField() : -1;
+        if (plan instanceof TopN)
+            return ((TopN) plan).isASC() ? ((TopN) plan).getOrderByField() : -1;
+
+        DbIterator[] children;
+        boolean outerLeft;
+        int outerField;
+        if (plan instanceof Join) {
+            children = ((Join) plan).getChildren();
+            outerLeft = true;
+            outerField = sortedField(children[0]);
+        } else if (plan instanceof HashEquiJoin) {
+            children = ((HashEquiJoin) plan).getChildren();
+            outerLeft = !((HashEquiJoin) plan).buildsLeft();
+            outerField = sortedField(children[outerLeft ? 0 : 1]);
+        } else if (plan instanceof SortMergeJoin) {
+            SortMergeJoin smj = (SortMergeJoin) plan;
+            children = smj.getChildren();
+            outerLeft = smj.drivesLeft();
+            outerField = outerLeft ? smj.getJoinPredicate().getField1()
+                    : smj.getJoinPredicate().getField2();
+        } else {
+            return -1;
+        }
+        if (outerField < 0 || outerLeft)
+            return outerField;
+        return children[0].getTupleDesc().numFields() + outerField;
+    }
+
+    /**
+     * @return the index of a field of a projection's child among the fields
+     *         it projects out, or -1 if it is not projected out
+     */
+    private static int projectedField(Project p, int childField) {
+        if (childField < 0)
+            return -1;
+        for (int i = 0; i < p.numFields(); i++) {
+            if (p.childField(i) == childField)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Rewrite a plan that returns its tuples in ascending order of a field
+     * (see {@link #sortedField}) to return them in descending order of it, by
+     * reading the B+ tree that orders them in reverse. The order can be
+     * reversed through filters and projections, and through the outer child
+     * of a nested loops join or the probe side of a {@link HashEquiJoin}; a
+     * limit or a {@link SortMergeJoin} would return different tuples or need
+     * its input ascending, so it cannot be.
+     * 
+     * @param plan
+     *            the plan, which is changed in place if it can be rewritten
+     * @param field
+     *            the index of the field of plan's tuples that they are
+     *            returned in ascending order of
+     * @return the rewritten plan, or null if its order cannot be reversed,
+     *         in which case plan is unchanged
+     */
+    public static DbIterator reverseOrder(DbIterator plan, int field) {
+        if (field < 0)
+            return null;
+        if (plan instanceof BTreeScan) {
+            BTreeScan scan = (BTreeScan) plan;
+            return scan.sortedField() == field ? scan.reversed() : null;
+        }
+        if (plan instanceof SeqScan) {
+            SeqScan scan = (SeqScan) plan;
+            DbFile f = Database.getCatalog().getDatabaseFile(scan.getTableId());
+            if (!(f instanceof BTreeFile) || ((BTreeFile) f).keyField() != field)
+                return null;
+            return new BTreeScan(scan.getTransactionId(), scan.getTableId(), scan.getAlias(), null).reversed();
+        }
+
+        DbIterator[] children;
+        int outer;
+        int childField;
+        if (plan instanceof Filter) {
+            children = ((Filter) plan).getChildren();
+            outer = 0;
+            childField = field;
+        } else if (plan instanceof Project) {
+            Project p = (Project) plan;
+            children = p.getChildren();
+            outer = 0;
+            childField = field < p.numFields() ? p.childField(field) : -1;
+        } else if (plan instanceof Join || plan instanceof HashEquiJoin) {
+            children = ((Operator) plan).getChildren();
+            outer = plan instanceof HashEquiJoin && ((HashEquiJoin) plan).buildsLeft() ? 1 : 0;
+            int leftFields = children[0].getTupleDesc().numFields();
+            childField = outer == 0 ? (field < leftFields ? field : -1) : field - leftFields;
+        } else {
+            return null;
+        }
+        DbIterator child = reverseOrder(children[outer], childField);
+        if (child == null)
+            return null;
+        children[outer] = child;
+        ((Operator) plan).setChildren(children);
+        return plan;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -106,13 +347,54 @@ public class JoinOptimizer {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 5.
             return card1 + cost1 + cost2;
+        }
+        double cost;
+        if (j.p == Predicate.Op.EQUALS) {
+            // a hash join reads each side once, building a hash table on
+            // the smaller side and probing it with every tuple of the other.
+            // The part of the build side that does not fit in memory is
+            // written out and read back, along with the probe tuples that
+            // fall into the same partitions
+            double buildPages = (card1 <= card2 ? cost1 : cost2) / TableStats.IOCOSTPERPAGE;
+            double spilled = buildPages <= p.getMemoryPages() ? 0
+                    : 1 - p.getMemoryPages() / buildPages;
+            // large joins that fit in memory build and probe on every processor
+            double cpu = card1 + card2;
+            if (parallelHashJoin(card1, card2,
+                    (cost1 + cost2) / TableStats.IOCOSTPERPAGE <= p.getMemoryPages()))
+                cpu /= Runtime.getRuntime().availableProcessors();
+            cost = cost1 + cost2 + cpu + 2 * spilled * (cost1 + cost2);
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            // a block nested loops join rescans the inner side for every
+            // block of outer pages that fits in memory, and applies the
+            // predicate to every pair
+            double blocks = Math.max(1, Math.ceil(cost1 / TableStats.IOCOSTPERPAGE / p.getMemoryPages()));
+            cost = cost1 + blocks * cost2 + (double) card1 * card2;
         }
+
+        // an index nested loops join looks each outer tuple up in the inner
+        // table instead, if it is a B+ tree keyed on the join field
+        BTreeFile index = joinIndex(j);
+        if (index != null && SortMergeJoin.supports(j.p))
+            cost = Math.min(cost, cost1 + card1 * indexProbeCost(index));
+        return cost;
+    }
+
+    /**
+     * @return the B+ tree storing the inner table of a join, if it is keyed
+     *         on the inner join field alone, or null
+     */
+    private BTreeFile joinIndex(LogicalJoinNode j) {
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return null;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile) || ((BTreeFile) f).keyFields().length != 1)
+            return null;
+        TupleDesc td = f.getTupleDesc();
+        int keyField = ((BTreeFile) f).keyField();
+        return td.getFieldName(keyField) != null && td.getFieldName(keyField).equals(j.f2PureName)
+                ? (BTreeFile) f : null;
     }
 
     /**
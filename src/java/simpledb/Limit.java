@@ -0,0 +1,104 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit is an operator that implements LIMIT and OFFSET. It skips the first
+ * offset tuples of its child and returns at most limit of the tuples after
+ * them. Once it has returned limit tuples it stops reading its child, so
+ * the scans below it are not read to their end.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final int limit;
+    private final int offset;
+
+    // the number of tuples skipped and returned since the operator was opened
+    private transient int skipped = 0;
+    private transient int returned = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            the tuples to limit
+     * @param limit
+     *            the largest number of tuples to return
+     * @param offset
+     *            the number of tuples of the child to skip first
+     */
+    public Limit(DbIterator child, int limit, int offset) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("limit and offset must not be negative");
+        this.child = child;
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        child.open();
+        skipped = 0;
+        returned = 0;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        skipped = 0;
+        returned = 0;
+    }
+
+    /**
+     * Returns the next tuple after the offset, or null once limit tuples
+     * have been returned or the child has no more tuples.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (returned >= limit)
+            return null;
+        while (skipped < offset) {
+            if (!child.hasNext())
+                return null;
+            child.next();
+            skipped++;
+        }
+        if (!child.hasNext())
+            return null;
+        returned++;
+        return child.next();
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
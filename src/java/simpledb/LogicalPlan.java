@@ -1,5 +1,7 @@
 package simpledb;
 import java.util.Map;
+import java.util.Set;
+import java.util.HashSet;
 import java.util.Vector;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -35,7 +37,9 @@ public class LogicalPlan {
     private String aggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = -1, offset = 0;
     private String query;
+    private int memoryPages = HybridHashJoin.DEFAULT_MEMORY_PAGES;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -66,6 +70,25 @@ public class LogicalPlan {
         return query;
     }
 
+    /** Set the number of pages of tuples each join and sort of this plan may
+        hold in memory, which bounds the hash tables of hash joins, the blocks of
+        block nested loops joins and the sorted runs of the ORDER BY.  Defaults
+        to {@link HybridHashJoin#DEFAULT_MEMORY_PAGES}.
+
+        @param pages the memory budget of each join and sort, in pages
+    */
+    public void setMemoryPages(int pages) {
+        if (pages < 1)
+            throw new IllegalArgumentException("a query needs at least one page of memory");
+        this.memoryPages = pages;
+    }
+
+    /** Get the memory budget of the joins and sorts of this plan set with {@link #setMemoryPages}.
+     */
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
     /** Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDatabaseFile(int)}).
         Aliases are added as base tables are added via {@link #addScan}.
 
@@ -204,7 +227,9 @@ public class LogicalPlan {
     }
 
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+        a single ORDER BY field.  No sort is planned if the plan already returns tuples
+        in ascending order of the field from a B+ tree keyed on it (see {@link JoinOptimizer#sortedField}),
+        or, for a descending order, if that tree can be read in reverse instead.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
@@ -216,6 +241,31 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT to the plan: skip the first offset result tuples, and return
+        at most limit of the tuples after them.  With an ORDER BY, only the first
+        limit + offset tuples of the order are kept while sorting.
+        @param limit the largest number of tuples to return
+        @param offset the number of tuples to skip first
+    */
+    public void setLimit(int limit, int offset) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("limit and offset must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /** Get the limit set with {@link #setLimit}, or -1 if the plan has none.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** Get the offset set with {@link #setLimit}.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -271,6 +321,242 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Choose the access method for a base table.  If the table, or a
+     *  {@link CoveringIndex} over it that stores every column the query
+     *  references for this alias, is a B+ tree keyed on a field with a range
+     *  or equality filter, or a hash file with an equality filter on its key,
+     *  the table is read with an index scan; an index that
+     *  covers the query is preferred to the base table even without a usable
+     *  filter, since its entries are narrower.  Otherwise a sequential scan of
+     *  the base table is used.
+     *  @throws ParsingException if the table is unknown
+     */
+    private DbIterator scanTable(TransactionId t, LogicalScanNode table, boolean explain) throws ParsingException {
+        DbFile base;
+        try {
+            base = Database.getCatalog().getDatabaseFile(table.t);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown table " + table.t);
+        }
+
+        DbFile best = base;
+        IndexPredicate bestPred = keyPredicate(table.alias, base);
+        Set<String> used = referencedFields(table.alias);
+        if (used != null) {
+            for (CoveringIndex index : Database.getCatalog().getIndexes(table.t)) {
+                if (!index.covers(used))
+                    continue;
+                BTreeFile f = index.getFile();
+                IndexPredicate ipred = keyPredicate(table.alias, f);
+                boolean better;
+                if ((ipred == null) != (bestPred == null))
+                    better = ipred != null;
+                else
+                    better = best == base || f.numPages() < ((BTreeFile) best).numPages();
+                if (better) {
+                    best = f;
+                    bestPred = ipred;
+                }
+            }
+        }
+
+        if (best == base && bestPred == null) {
+            if (!aggregateFromMetadata(table.alias, base))
+                return new SeqScan(t, base.getId(), table.alias);
+            if (explain) {
+                System.out.println("Using the tuple count and key bounds of "
+                        + Database.getCatalog().getTableName(base.getId()) + " for " + aggOp);
+            }
+            return new BTreeScan(t, base.getId(), table.alias, null);
+        }
+        if (explain) {
+            System.out.println("Using " + (best == base ? "index" : "index-only") + " scan of "
+                    + Database.getCatalog().getTableName(best.getId()) + " for " + table.alias
+                    + (bestPred == null ? "" : " with key " + bestPred.getOp() + " " + bestPred.getField()));
+        }
+        if (best instanceof HashFile)
+            return new HashScan(t, best.getId(), table.alias, bestPred);
+        return new BTreeScan(t, best.getId(), table.alias, bestPred);
+    }
+
+    /** @return true if this plan is an ungrouped COUNT over a single B+ tree,
+     *  or an ungrouped MIN or MAX of its most significant key field, without
+     *  filters or joins.  {@link Aggregate} answers these from the tuple count
+     *  and key bounds the tree keeps, without reading it, when given a
+     *  {@link BTreeScan} of the tree.
+     */
+    private boolean aggregateFromMetadata(String alias, DbFile f) throws ParsingException {
+        if (!(f instanceof BTreeFile) || !hasAgg || groupByField != null
+                || tables.size() != 1 || !joins.isEmpty() || !filters.isEmpty())
+            return false;
+        BTreeFile bf = (BTreeFile) f;
+        Aggregator.Op op = getAggOp(aggOp);
+        if (op == Aggregator.Op.COUNT)
+            return true;
+        return (op == Aggregator.Op.MIN || op == Aggregator.Op.MAX)
+                && aggField.equals(alias + "." + bf.getTupleDesc().getFieldName(bf.keyField()));
+    }
+
+    /** Find a filter on the specified alias that can be answered by a search
+     *  of f's key.  Equality filters are preferred to range filters.  If f is
+     *  keyed on several fields, equality filters on a leading run of its key
+     *  fields are combined into an equality search on that key prefix;
+     *  otherwise only filters on the most significant key field are used.
+     *  A {@link HashFile} can only answer an equality filter on its key.
+     *  @return the corresponding IndexPredicate, or null if f is not an index
+     *  or no filter on its key can use the index
+     */
+    private IndexPredicate keyPredicate(String alias, DbFile f) {
+        if (f instanceof HashFile) {
+            HashFile hf = (HashFile) f;
+            String keyName = hf.getTupleDesc().getFieldName(hf.keyField());
+            for (LogicalFilterNode lf : filters) {
+                if (lf.tableAlias.equals(alias) && lf.p == Predicate.Op.EQUALS
+                        && lf.fieldPureName.equals(keyName))
+                    return new IndexPredicate(Predicate.Op.EQUALS,
+                            constant(hf.getTupleDesc().getFieldType(hf.keyField()), lf.c));
+            }
+            return null;
+        }
+        if (!(f instanceof BTreeFile))
+            return null;
+        BTreeFile bf = (BTreeFile) f;
+        int[] keyFields = bf.keyFields();
+        if (keyFields.length > 1) {
+            ArrayList<Field> prefix = new ArrayList<Field>();
+            for (int k : keyFields) {
+                LogicalFilterNode eq = null;
+                for (LogicalFilterNode lf : filters) {
+                    if (lf.tableAlias.equals(alias) && lf.p == Predicate.Op.EQUALS
+                            && lf.fieldPureName.equals(bf.getTupleDesc().getFieldName(k))) {
+                        eq = lf;
+                        break;
+                    }
+                }
+                if (eq == null)
+                    break;
+                prefix.add(constant(bf.getTupleDesc().getFieldType(k), eq.c));
+            }
+            if (prefix.size() > 0)
+                return new IndexPredicate(Predicate.Op.EQUALS,
+                        new CompositeField(prefix.toArray(new Field[prefix.size()])));
+        }
+
+        String keyName = bf.getTupleDesc().getFieldName(keyFields[0]);
+        Type keyType = bf.getTupleDesc().getFieldType(keyFields[0]);
+        IndexPredicate ipred = null;
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(alias) || !lf.fieldPureName.equals(keyName))
+                continue;
+            if (lf.p == Predicate.Op.NOT_EQUALS || lf.p == Predicate.Op.LIKE)
+                continue;
+            if (ipred == null || lf.p == Predicate.Op.EQUALS)
+                ipred = new IndexPredicate(lf.p, constant(keyType, lf.c));
+        }
+        return ipred;
+    }
+
+    /** Plan this logical plan as the WHERE clause of a DELETE that can be
+     *  answered by a range delete: a single B+ tree without covering
+     *  indexes, whose filters all compare the most significant key field with
+     *  a constant (e.g. DELETE FROM t WHERE t.key &lt; 10).  The filters are
+     *  intersected into a single range of keys.
+     *  @return a {@link DeleteRange} operator, or null if the delete has to
+     *  read and delete the tuples one at a time
+     */
+    public DbIterator rangeDelete(TransactionId t) throws ParsingException {
+        if (tables.size() != 1 || !joins.isEmpty())
+            return null;
+        LogicalScanNode table = tables.get(0);
+        DbFile f;
+        try {
+            f = Database.getCatalog().getDatabaseFile(table.t);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown table " + table.t);
+        }
+        if (!(f instanceof BTreeFile) || !Database.getCatalog().getIndexes(table.t).isEmpty())
+            return null;
+
+        BTreeFile bf = (BTreeFile) f;
+        String keyName = bf.getTupleDesc().getFieldName(bf.keyFields()[0]);
+        Type keyType = bf.getTupleDesc().getFieldType(bf.keyFields()[0]);
+        Field lower = null, upper = null;
+        boolean lowerInclusive = false, upperInclusive = false;
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias) || !lf.fieldPureName.equals(keyName))
+                return null;
+            if (lf.p == Predicate.Op.NOT_EQUALS || lf.p == Predicate.Op.LIKE)
+                return null;
+            Field c = constant(keyType, lf.c);
+            if (lf.p == Predicate.Op.EQUALS || lf.p == Predicate.Op.GREATER_THAN
+                    || lf.p == Predicate.Op.GREATER_THAN_OR_EQ) {
+                boolean inclusive = lf.p != Predicate.Op.GREATER_THAN;
+                if (lower == null || c.compare(Predicate.Op.GREATER_THAN, lower)
+                        || (c.compare(Predicate.Op.EQUALS, lower) && !inclusive)) {
+                    lower = c;
+                    lowerInclusive = inclusive;
+                }
+            }
+            if (lf.p == Predicate.Op.EQUALS || lf.p == Predicate.Op.LESS_THAN
+                    || lf.p == Predicate.Op.LESS_THAN_OR_EQ) {
+                boolean inclusive = lf.p != Predicate.Op.LESS_THAN;
+                if (upper == null || c.compare(Predicate.Op.LESS_THAN, upper)
+                        || (c.compare(Predicate.Op.EQUALS, upper) && !inclusive)) {
+                    upper = c;
+                    upperInclusive = inclusive;
+                }
+            }
+        }
+        return new DeleteRange(t, table.t, lower, lowerInclusive, upper, upperInclusive);
+    }
+
+    /** Parse the constant of a filter as a field of the specified type */
+    private static Field constant(Type type, String c) {
+        if (type == Type.INT_TYPE)
+            return new IntField(new Integer(c).intValue());
+        return new StringField(c, Type.STRING_LEN);
+    }
+
+    /** Collect the unqualified names of all fields of the specified alias that
+     *  the query references, in the select list, filters, joins, aggregate,
+     *  group by or order by.
+     *  @return the field names, or null if the query selects all columns
+     */
+    private Set<String> referencedFields(String alias) {
+        HashSet<String> used = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.endsWith(".*") || !addReference(used, alias, si.fname))
+                return null;
+        }
+        if ((hasAgg && !addReference(used, alias, aggField))
+                || (groupByField != null && !addReference(used, alias, groupByField))
+                || (hasOrderBy && !addReference(used, alias, oByField)))
+            return null;
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias))
+                used.add(lf.fieldPureName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            if (alias.equals(lj.t1Alias))
+                used.add(lj.f1PureName);
+            if (alias.equals(lj.t2Alias))
+                used.add(lj.f2PureName);
+        }
+        return used;
+    }
+
+    /** Add the pure name of a qualified field reference to used if it refers to alias.
+     *  @return false if the reference is not of the form alias.field
+     */
+    private static boolean addReference(Set<String> used, String alias, String qualifiedName) {
+        String[] parts = qualifiedName.split("[.]");
+        if (parts.length != 2 || parts[1].equals("*"))
+            return false;
+        if (parts[0].equals(alias))
+            used.add(parts[1]);
+        return true;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned DbIterator will run as a part of
@@ -292,12 +578,7 @@ public class LogicalPlan {
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
-            try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown table " + table.t);
-            }
+            DbIterator ss = scanTable(t, table, explain);
             
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
@@ -348,6 +629,14 @@ public class LogicalPlan {
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
+        // the estimated cardinality of each subplan, or 0 if it is unknown,
+        // used to choose the build side of hash joins
+        HashMap<String,Integer> cardMap = new HashMap<String,Integer>();
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            cardMap.put(table.alias, s == null ? 0 : s.estimateTableCardinality(filterSelectivities.get(table.alias)));
+        }
+
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
             LogicalJoinNode lj = joinIt.next();
@@ -381,9 +670,13 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
+            int card1 = cardMap.get(t1name);
+            int card2 = isSubqueryJoin ? 0 : cardMap.get(t2name);
             DbIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
+            j = JoinOptimizer.instantiateJoin(lj,plan1,plan2,card1,card2,memoryPages);
             subplanMap.put(t1name, j);
+            cardMap.put(t1name, card1 > 0 && card2 > 0
+                    ? jo.estimateJoinCardinality(lj, card1, card2, false, false, statsMap) : 0);
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -475,9 +768,30 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int oByIndex = node.getTupleDesc().fieldNameToIndex(oByField);
+            boolean sorted = JoinOptimizer.sortedField(node) == oByIndex;
+            DbIterator reversed = null;
+            if (oByAsc && sorted) {
+                if (explain)
+                    System.out.println("Not sorting on " + oByField + ", which the plan returns in order");
+            } else if (!oByAsc && sorted
+                    && (reversed = JoinOptimizer.reverseOrder(node, oByIndex)) != null) {
+                // read the B+ tree that orders the plan backwards instead
+                node = reversed;
+                if (explain)
+                    System.out.println("Not sorting on " + oByField + ", which a reverse index scan returns in descending order");
+            } else if (limit >= 0) {
+                // only the tuples up to the end of the limit need be sorted
+                node = new TopN(oByIndex, oByAsc, node,
+                        (int) Math.min((long) limit + offset, Integer.MAX_VALUE));
+            } else {
+                node = new OrderBy(oByIndex, oByAsc, node, memoryPages);
+            }
         }
 
+        if (limit >= 0)
+            node = new Limit(node, limit, offset);
+
         return new Project(outFields, outTypes, node);
     }
 
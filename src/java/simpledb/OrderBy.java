@@ -1,23 +1,46 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * It sorts its child with an external merge sort under a memory budget.
+ * The child is read into runs of as many tuples as fit in the budget, and
+ * each run is sorted; integer keys are sorted as primitives, packed with the
+ * position of their tuple, rather than through a comparator. If the child
+ * fits in a single run, it is returned from memory. Otherwise each run is
+ * written to a {@link SpillFile}, and the runs are merged with a loser tree,
+ * in as many passes as it takes for the runs left to fit in the budget with
+ * a page each; the last pass is merged as the tuples are returned.
+ * <p>
+ * The sort is stable: tuples with equal keys are returned in the order the
+ * child returned them.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
     private int orderByField;
     private String orderByFieldName;
-    private Iterator<Tuple> it;
     private boolean asc;
+    private final int memoryPages;
+
+    // the sorted tuples, if the child fit in memory, and the next one to return
+    private transient Tuple[] sorted = null;
+    private transient int sortedSize = 0;
+    private transient int pos = 0;
+    // otherwise the sorted runs left after the merge passes, and their merge
+    private transient ArrayList<SpillFile> runs = null;
+    private transient Merge merge = null;
+    private transient int spilledRuns = 0;
+    private transient int mergePasses = 0;
 
     /**
-     * Creates a new OrderBy node over the tuples from the iterator.
+     * Creates a new OrderBy node over the tuples from the iterator, which
+     * sorts with the planner's default memory budget.
      * 
      * @param orderbyField
      *            the field to which the sort is applied.
@@ -27,11 +50,30 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(orderbyField, asc, child, HybridHashJoin.DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Creates a new OrderBy node over the tuples from the iterator.
+     * 
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param memoryPages
+     *            the number of pages of tuples to sort in memory at a time
+     */
+    public OrderBy(int orderbyField, boolean asc, DbIterator child, int memoryPages) {
+        if (memoryPages < 1)
+            throw new IllegalArgumentException("a sort needs at least one page of memory");
         this.child = child;
         td = child.getTupleDesc();
         this.orderByField = orderbyField;
         this.orderByFieldName = td.getFieldName(orderbyField);
         this.asc = asc;
+        this.memoryPages = memoryPages;
     }
     
     public boolean isASC()
@@ -48,29 +90,194 @@ public class OrderBy extends Operator {
     {
 	return this.orderByFieldName;
     }
+
+    /**
+     * @return the number of pages of tuples sorted in memory at a time
+     */
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    /**
+     * @return the number of sorted runs written to disk the last time the
+     *         operator was opened, or 0 if the child was sorted in memory
+     */
+    public int numSpilledRuns() {
+        return spilledRuns;
+    }
+
+    /**
+     * @return the number of merge passes written to disk the last time the
+     *         operator was opened, not counting the pass merged as the tuples
+     *         are returned
+     */
+    public int numMergePasses() {
+        return mergePasses;
+    }
     
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /**
+     * @return the number of tuples sorted in memory at a time
+     */
+    private int maxRunTuples() {
+        long tuples = (long) memoryPages * BufferPool.getPageSize() / td.getSize();
+        return (int) Math.max(1, Math.min(tuples, Integer.MAX_VALUE - 8));
+    }
+
+    /**
+     * @return the number of runs merged at a time, each read through a page
+     *         of the budget, with one page left for the merged output
+     */
+    private int mergeFanout() {
+        return Math.max(2, memoryPages - 1);
+    }
+
+    private boolean intKeys() {
+        return td.getFieldType(orderByField) == Type.INT_TYPE;
+    }
+
+    /**
+     * @return the key of an integer field, negated bitwise for a descending
+     *         sort, so that keys always sort in ascending order
+     */
+    private int intKey(Tuple t) {
+        int key = ((IntField) t.getField(orderByField)).getValue();
+        return asc ? key : ~key;
+    }
+
+    /**
+     * Sort the first n tuples of a run, keeping tuples with equal keys in order
+     */
+    private void sortRun(Tuple[] run, int n) {
+        if (!intKeys()) {
+            Arrays.sort(run, 0, n, new TupleComparator(orderByField, asc));
+            return;
+        }
+        // the key, made unsigned, in the high half and the position in the
+        // low half, so the primitive sort breaks ties by position
+        long[] packed = new long[n];
+        for (int i = 0; i < n; i++)
+            packed[i] = ((intKey(run[i]) ^ Integer.MIN_VALUE) & 0xffffffffL) << 32 | i;
+        Arrays.sort(packed);
+        Tuple[] copy = Arrays.copyOf(run, n);
+        for (int i = 0; i < n; i++)
+            run[i] = copy[(int) packed[i]];
+    }
+
+    private SpillFile spill(Tuple[] run, int n) throws IOException {
+        SpillFile f = new SpillFile(td);
+        for (int i = 0; i < n; i++)
+            f.add(run[i]);
+        f.finish();
+        spilledRuns++;
+        return f;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        closeSort();
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        spilledRuns = 0;
+        mergePasses = 0;
+        runs = new ArrayList<SpillFile>();
+        int maxTuples = maxRunTuples();
+        // grown as the child is read, up to a run
+        Tuple[] run = new Tuple[Math.min(maxTuples, 1024)];
+        int n = 0;
+        try {
+            while (child.hasNext()) {
+                if (n == maxTuples) {
+                    sortRun(run, n);
+                    runs.add(spill(run, n));
+                    n = 0;
+                }
+                if (n == run.length)
+                    run = Arrays.copyOf(run, (int) Math.min(2L * run.length, maxTuples));
+                run[n++] = child.next();
+            }
+            sortRun(run, n);
+            if (runs.isEmpty()) {
+                sorted = run;
+                sortedSize = n;
+                pos = 0;
+            } else {
+                if (n > 0)
+                    runs.add(spill(run, n));
+                run = null;
+                mergeRuns();
+                merge = new Merge(runs);
+            }
+        } catch (IOException e) {
+            throw new DbException("failed to spill sorted run: " + e.getMessage());
+        }
         super.open();
     }
 
+    /**
+     * Merge the spilled runs, a fanout at a time, until they can be merged
+     * in a single pass
+     */
+    private void mergeRuns() throws IOException, DbException, TransactionAbortedException {
+        int fanout = mergeFanout();
+        while (runs.size() > fanout) {
+            ArrayList<SpillFile> next = new ArrayList<SpillFile>();
+            // consecutive runs are merged, so that the sort stays stable
+            for (int i = 0; i < runs.size(); i += fanout) {
+                List<SpillFile> group = runs.subList(i, Math.min(i + fanout, runs.size()));
+                if (group.size() == 1) {
+                    next.add(group.get(0));
+                    continue;
+                }
+                SpillFile out = new SpillFile(td);
+                Merge m = new Merge(group);
+                Tuple t;
+                while ((t = m.next()) != null)
+                    out.add(t);
+                m.close();
+                out.finish();
+                for (SpillFile f : group)
+                    f.delete();
+                next.add(out);
+            }
+            runs = next;
+            mergePasses++;
+        }
+    }
+
+    /**
+     * Drop the sorted tuples and remove the spilled runs
+     */
+    private void closeSort() {
+        if (merge != null)
+            merge.close();
+        merge = null;
+        if (runs != null) {
+            for (SpillFile f : runs)
+                f.delete();
+        }
+        runs = null;
+        sorted = null;
+        sortedSize = 0;
+    }
+
     public void close() {
         super.close();
-        it = null;
+        closeSort();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        pos = 0;
+        if (runs != null && !runs.isEmpty()) {
+            merge.close();
+            try {
+                merge = new Merge(runs);
+            } catch (IOException e) {
+                throw new DbException("failed to read sorted run: " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -82,10 +289,115 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
-            return null;
+        if (merge != null)
+            return merge.next();
+        if (sorted != null && pos < sortedSize)
+            return sorted[pos++];
+        return null;
+    }
+
+    /**
+     * A merge of sorted runs with a loser tree. Each internal node of the
+     * tree holds the run that lost the comparison at that node, and the root
+     * the run whose head is the smallest, so that replacing the smallest head
+     * takes one comparison per level of the tree.
+     */
+    private class Merge {
+        private final int k;
+        private final DbFileIterator[] sources;
+        // the next tuple of each run, or null once a run has been read, and
+        // its key when the keys are integers
+        private final Tuple[] heads;
+        private final int[] keys;
+        // tree[0] is the winner; tree[1..k-1] are the losers of the internal nodes
+        private final int[] tree;
+
+        Merge(List<SpillFile> runs) throws IOException, DbException, TransactionAbortedException {
+            k = runs.size();
+            sources = new DbFileIterator[k];
+            heads = new Tuple[k];
+            keys = intKeys() ? new int[k] : null;
+            tree = new int[Math.max(k, 1)];
+            for (int i = 0; i < k; i++) {
+                sources[i] = runs.get(i).iterator();
+                sources[i].open();
+                advance(i);
+            }
+            // play the leaves k..2k-1 up the tree, keeping each node's winner
+            int[] winners = new int[2 * k];
+            for (int i = 0; i < k; i++)
+                winners[k + i] = i;
+            for (int node = k - 1; node >= 1; node--) {
+                int a = winners[2 * node];
+                int b = winners[2 * node + 1];
+                if (before(a, b)) {
+                    winners[node] = a;
+                    tree[node] = b;
+                } else {
+                    winners[node] = b;
+                    tree[node] = a;
+                }
+            }
+            if (k > 0)
+                tree[0] = winners[1];
+        }
+
+        private void advance(int run) throws DbException, TransactionAbortedException {
+            if (sources[run].hasNext()) {
+                heads[run] = sources[run].next();
+                if (keys != null)
+                    keys[run] = intKey(heads[run]);
+            } else {
+                heads[run] = null;
+            }
+        }
+
+        /**
+         * @return true if the head of run a comes before the head of run b;
+         *         runs that have been read come last, and equal heads are
+         *         ordered by run, so that the merge is stable
+         */
+        private boolean before(int a, int b) {
+            if (heads[a] == null)
+                return false;
+            if (heads[b] == null)
+                return true;
+            int c;
+            if (keys != null) {
+                c = keys[a] < keys[b] ? -1 : (keys[a] == keys[b] ? 0 : 1);
+            } else {
+                c = TupleComparator.compareFields(heads[a].getField(orderByField),
+                        heads[b].getField(orderByField));
+                if (!asc)
+                    c = -c;
+            }
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        Tuple next() throws DbException, TransactionAbortedException {
+            int w = tree[0];
+            if (k == 0 || heads[w] == null)
+                return null;
+            Tuple t = heads[w];
+            advance(w);
+            // replay the winner's path, leaving the loser at each node
+            for (int node = (w + k) / 2; node >= 1; node /= 2) {
+                if (before(tree[node], w)) {
+                    int loser = w;
+                    w = tree[node];
+                    tree[node] = loser;
+                }
+            }
+            tree[0] = w;
+            return t;
+        }
+
+        void close() {
+            for (DbFileIterator it : sources) {
+                if (it != null)
+                    it.close();
+            }
+        }
     }
 
     @Override
@@ -99,25 +411,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
@@ -0,0 +1,376 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ParallelHashJoin operator computes an equality join on several threads.
+ * When opened, it reads both children and partitions their tuples by a hash
+ * of the join field. The partitions are radix partitions: a partition is
+ * chosen by the high bits of the hash, and there are enough of them for the
+ * build side of each to take about {@link #PARTITION_BYTES}, so that the hash
+ * table built over it stays in the processor caches. Tasks on a fork-join
+ * pool then take the partitions one at a time, build a hash table over the
+ * build side of each and probe it with the probe side.
+ * <p>
+ * The joined tuples are handed to the reading thread in chunks, through a
+ * bounded queue, so that the tasks stay a few chunks ahead of the reader.
+ * The build side is read first, and a Bloom filter over its keys is pushed
+ * down the probe side as a {@link RuntimeFilter} before the probe side is read.
+ * Both children are held in memory while the join is open, and rewinding it
+ * joins the partitions again without reading the children.
+ * <p>
+ * The output tuples are the concatenation of the left (child1) and right
+ * (child2) tuples, as for {@link Join}, in no particular order.
+ */
+public class ParallelHashJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of tuples in both inputs above which the planner joins on several threads */
+    public static final int MIN_PARALLEL_TUPLES = 100000;
+    /** The size of the build side of a partition to aim for */
+    public static final int PARTITION_BYTES = 256 * 1024;
+    // the number of partitions to aim for per thread, to balance uneven partitions
+    private static final int PARTITIONS_PER_THREAD = 4;
+    // the number of joined tuples handed to the reader at a time
+    private static final int CHUNK_TUPLES = 1024;
+    // the number of chunks each thread may join ahead of the reader
+    private static final int QUEUE_CHUNKS = 4;
+    // how often blocked threads check whether the join has been closed or has failed
+    private static final long POLL_MILLIS = 100;
+    // marks the end of the partitions joined by one thread
+    private static final ArrayList<Tuple> END = new ArrayList<Tuple>();
+
+    private JoinPredicate jpred;
+    private DbIterator child1;
+    private DbIterator child2;
+    private final boolean buildLeft;
+    private final int parallelism;
+    private TupleDesc td;
+
+    // the tuples of each side, by partition
+    private transient ArrayList<ArrayList<Tuple>> buildParts = null;
+    private transient ArrayList<ArrayList<Tuple>> probeParts = null;
+    // the partitions being joined, and the chunk of joined tuples being read
+    private transient Run run = null;
+    private transient Iterator<Tuple> it = null;
+
+    /**
+     * The state shared by the reader and the tasks of one pass over the
+     * partitions. The tasks of a pass that has been stopped may still be
+     * finishing, so they never see the state of a later pass.
+     */
+    private static class Run {
+        final BlockingQueue<ArrayList<Tuple>> results;
+        final AtomicInteger nextPartition = new AtomicInteger();
+        final int threads;
+        int finished = 0;
+        volatile boolean closed = false;
+        volatile Exception error = null;
+        ForkJoinPool pool = null;
+
+        Run(int threads) {
+            this.threads = threads;
+            this.results = new ArrayBlockingQueue<ArrayList<Tuple>>(QUEUE_CHUNKS * threads);
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator
+     *            must be EQUALS
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     * @param buildLeft
+     *            true to build the hash tables on the left child and probe
+     *            them with the right one, false for the reverse
+     * @param parallelism
+     *            the number of threads to join with
+     */
+    public ParallelHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            boolean buildLeft, int parallelism) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("a hash join needs an equality predicate");
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.jpred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.buildLeft = buildLeft;
+        this.parallelism = parallelism;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return jpred;
+    }
+
+    /**
+     * @return true if the hash tables are built on the left child
+     */
+    public boolean buildsLeft() {
+        return buildLeft;
+    }
+
+    /**
+     * @return the number of threads the join runs on
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return the number of partitions the children were split into when the
+     *         join was opened, or 0 if it is closed
+     */
+    public int numPartitions() {
+        return buildParts == null ? 0 : buildParts.size();
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(jpred.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(jpred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the partition of a key, among 2^bits partitions. The high bits
+     *         of the hash are used, since the hash tables of the partitions
+     *         index their buckets with the low bits.
+     */
+    private static int partitionOf(Field key, int bits) {
+        if (bits == 0)
+            return 0;
+        return (key.hashCode() * 0x9E3779B9) >>> (32 - bits);
+    }
+
+    private static ArrayList<ArrayList<Tuple>> emptyPartitions(int bits) {
+        ArrayList<ArrayList<Tuple>> parts = new ArrayList<ArrayList<Tuple>>(1 << bits);
+        for (int i = 0; i < 1 << bits; i++)
+            parts.add(new ArrayList<Tuple>());
+        return parts;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+
+        DbIterator build = buildLeft ? child1 : child2;
+        DbIterator probe = buildLeft ? child2 : child1;
+        int buildField = buildLeft ? jpred.getField1() : jpred.getField2();
+        int probeField = buildLeft ? jpred.getField2() : jpred.getField1();
+
+        // the build side is read before it is partitioned, since its size
+        // decides the number of partitions
+        build.open();
+        ArrayList<Tuple> buildTuples = new ArrayList<Tuple>();
+        while (build.hasNext())
+            buildTuples.add(build.next());
+        if (RuntimeFilter.canPushDown(probe, probeField)) {
+            BloomFilter keys = new BloomFilter(buildTuples.size(), RuntimeFilter.BITS_PER_KEY);
+            for (Tuple t : buildTuples)
+                keys.add(t.getField(buildField));
+            RuntimeFilter.pushDown(probe, probeField, this, keys);
+        }
+        long buildBytes = (long) buildTuples.size() * build.getTupleDesc().getSize();
+        long partitions = Math.max(parallelism * PARTITIONS_PER_THREAD, buildBytes / PARTITION_BYTES);
+        int bits = 0;
+        while ((1L << bits) < partitions && bits < 16)
+            bits++;
+
+        buildParts = emptyPartitions(bits);
+        for (Tuple t : buildTuples)
+            buildParts.get(partitionOf(t.getField(buildField), bits)).add(t);
+        buildTuples = null;
+        probe.open();
+        probeParts = emptyPartitions(bits);
+        while (probe.hasNext()) {
+            Tuple t = probe.next();
+            probeParts.get(partitionOf(t.getField(probeField), bits)).add(t);
+        }
+        start();
+    }
+
+    /**
+     * Start joining the partitions on the pool
+     */
+    private void start() {
+        final Run r = new Run(Math.min(parallelism, buildParts.size()));
+        run = r;
+        it = null;
+        r.pool = new ForkJoinPool(r.threads);
+        final ArrayList<ArrayList<Tuple>> build = buildParts;
+        final ArrayList<ArrayList<Tuple>> probe = probeParts;
+        for (int i = 0; i < r.threads; i++) {
+            r.pool.execute(new Runnable() {
+                public void run() {
+                    joinPartitions(r, build, probe);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop joining the partitions, if they are being joined
+     */
+    private void stop() {
+        if (run != null) {
+            run.closed = true;
+            run.pool.shutdownNow();
+            run = null;
+        }
+        it = null;
+    }
+
+    /**
+     * Join partitions until none are left; run by each task of a pass.
+     */
+    private void joinPartitions(Run r, ArrayList<ArrayList<Tuple>> build,
+            ArrayList<ArrayList<Tuple>> probe) {
+        int buildField = buildLeft ? jpred.getField1() : jpred.getField2();
+        int probeField = buildLeft ? jpred.getField2() : jpred.getField1();
+        try {
+            ArrayList<Tuple> chunk = new ArrayList<Tuple>(CHUNK_TUPLES);
+            int p;
+            while (!r.closed && (p = r.nextPartition.getAndIncrement()) < build.size()) {
+                if (build.get(p).isEmpty() || probe.get(p).isEmpty())
+                    continue;
+                HashMap<Field, ArrayList<Tuple>> table = new HashMap<Field, ArrayList<Tuple>>();
+                for (Tuple t : build.get(p)) {
+                    Field key = t.getField(buildField);
+                    ArrayList<Tuple> bucket = table.get(key);
+                    if (bucket == null) {
+                        bucket = new ArrayList<Tuple>(1);
+                        table.put(key, bucket);
+                    }
+                    bucket.add(t);
+                }
+                for (Tuple probeTuple : probe.get(p)) {
+                    ArrayList<Tuple> bucket = table.get(probeTuple.getField(probeField));
+                    if (bucket == null)
+                        continue;
+                    for (Tuple match : bucket) {
+                        chunk.add(buildLeft ? merge(match, probeTuple) : merge(probeTuple, match));
+                        if (chunk.size() == CHUNK_TUPLES) {
+                            if (!put(r, chunk))
+                                return;
+                            chunk = new ArrayList<Tuple>(CHUNK_TUPLES);
+                        }
+                    }
+                }
+            }
+            if (!chunk.isEmpty())
+                put(r, chunk);
+        } catch (Exception e) {
+            r.error = e;
+        } finally {
+            try {
+                put(r, END);
+            } catch (InterruptedException e) {
+                // the join has been closed
+            }
+        }
+    }
+
+    private Tuple merge(Tuple left, Tuple right) {
+        Tuple t = new Tuple(td);
+        int num = 0;
+        for (int i = 0; i < left.getTupleDesc().numFields(); i++)
+            t.setField(num++, left.getField(i));
+        for (int j = 0; j < right.getTupleDesc().numFields(); j++)
+            t.setField(num++, right.getField(j));
+        return t;
+    }
+
+    /**
+     * Hand a chunk of joined tuples to the reader, waiting while the queue is full.
+     *
+     * @return false if the pass was stopped before the chunk could be handed over
+     */
+    private static boolean put(Run r, ArrayList<Tuple> chunk) throws InterruptedException {
+        while (!r.closed) {
+            if (r.results.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS))
+                return true;
+        }
+        return false;
+    }
+
+    public void close() {
+        super.close();
+        stop();
+        this.child1.close();
+        this.child2.close();
+        RuntimeFilter.withdraw(buildLeft ? child2 : child1, this);
+        buildParts = null;
+        probeParts = null;
+    }
+
+    /**
+     * Join the partitions again; the children are not read again.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        stop();
+        start();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (it == null || !it.hasNext()) {
+            if (run.finished == run.threads)
+                return null;
+            ArrayList<Tuple> chunk;
+            try {
+                chunk = run.results.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while waiting for joined tuples");
+            }
+            if (run.error != null)
+                throw new DbException("parallel hash join failed: " + run.error);
+            if (chunk == END)
+                run.finished++;
+            else if (chunk != null)
+                it = chunk.iterator();
+        }
+        return it.next();
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+}
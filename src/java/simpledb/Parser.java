@@ -4,6 +4,7 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.*;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -11,6 +12,7 @@ import jline.SimpleCompletor;
 
 public class Parser {
     static boolean explain = false;
+    static int memoryPages = HybridHashJoin.DEFAULT_MEMORY_PAGES;
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -138,6 +140,7 @@ public class Parser {
         Vector<ZFromItem> from = q.getFrom();
         LogicalPlan lp = new LogicalPlan();
         lp.setQuery(q.toString());
+        lp.setMemoryPages(memoryPages);
         // walk through tables in the FROM clause
         for (int i = 0; i < from.size(); i++) {
             ZFromItem fromIt = from.elementAt(i);
@@ -273,12 +276,53 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    // the LIMIT and OFFSET of the statement being processed, which Zql does
+    // not parse; limit is -1 if the statement has none
+    private int limit = -1;
+    private int offset = 0;
+    private static final Pattern LIMIT = Pattern.compile(
+            "(?is)^(.*\\S)\\s+limit\\s+(\\d+)(?:\\s+offset\\s+(\\d+))?\\s*(;?)\\s*$");
+
+    /**
+     * Remove a trailing LIMIT n [OFFSET m] clause from a statement, since Zql
+     * cannot parse it, and remember it for the query plan of the statement.
+     * Only queries take the clause; see {@link #checkLimit(ZStatement)}.
+     *
+     * @return the statement without the clause
+     */
+    String stripLimit(String s) throws simpledb.ParsingException {
+        limit = -1;
+        offset = 0;
+        Matcher m = LIMIT.matcher(s);
+        if (!m.matches())
+            return s;
+        try {
+            limit = Integer.parseInt(m.group(2));
+            offset = m.group(3) == null ? 0 : Integer.parseInt(m.group(3));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT or OFFSET out of range");
+        }
+        return m.group(1) + m.group(4);
+    }
+
+    /**
+     * Reject a LIMIT clause taken off a statement other than a query, such as
+     * an INSERT ... SELECT or a DELETE, which would otherwise be run without it.
+     */
+    void checkLimit(ZStatement s) throws simpledb.ParsingException {
+        if (limit >= 0 && !(s instanceof ZQuery))
+            throw new simpledb.ParsingException(
+                    "LIMIT is only supported in SELECT statements");
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0)
+            lp.setLimit(limit, offset);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -419,8 +463,11 @@ public class Parser {
             processExpression(tid, (ZExpression) s.getWhere(), lp);
         lp.addProjectField("null.*", null);
 
-        DbIterator op = new Delete(tid, lp.physicalPlan(tid,
-                TableStats.getStatsMap(), false));
+        // a range of a B+ tree's keys is deleted without reading its tuples
+        DbIterator op = lp.rangeDelete(tid);
+        if (op == null)
+            op = new Delete(tid, lp.physicalPlan(tid,
+                    TableStats.getStatsMap(), false));
         sdbq.setPhysicalPlan(op);
 
         return sdbq;
@@ -465,12 +512,14 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limit >= 0)
+                    lp.setLimit(limit, offset);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -503,8 +552,16 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            // read the statement as text, to take off the LIMIT clause
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0)
+                text.write(buf, 0, n);
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    stripLimit(text.toString("UTF-8")).getBytes("UTF-8")));
             ZStatement s = p.readStatement();
+            checkLimit(s);
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -581,7 +638,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "order by", "limit", "offset" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -595,7 +652,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-memory pages] [-f queryFile]";
 
     protected void shutdown() {
         System.out.println("Bye");
@@ -615,6 +672,13 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-memory")) {
+                    if (++i == argv.length || !argv[i].matches("[1-9][0-9]{0,8}")) {
+                        System.out.println("Expected a number of pages after -memory\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    memoryPages = Integer.parseInt(argv[i]);
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
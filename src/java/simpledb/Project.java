@@ -45,6 +45,20 @@ public class Project extends Operator {
         return td;
     }
 
+    /**
+     * @return the number of fields this operator projects out
+     */
+    public int numFields() {
+        return outFieldIds.size();
+    }
+
+    /**
+     * @return the index in the child's tuples of the i-th field projected out
+     */
+    public int childField(int i) {
+        return outFieldIds.get(i);
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
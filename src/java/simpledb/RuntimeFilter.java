@@ -0,0 +1,199 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * A RuntimeFilter is a Bloom filter over the join keys of the build side of
+ * a hash join, applied to one field of the tuples of its probe side. The join
+ * builds it once it has read its build side, and pushes it down the probe
+ * side, through filters and other joins, to the {@link SeqScan} or
+ * {@link BTreeScan} the field comes from, or to the nearest {@link Filter}
+ * if the field cannot be followed down to a scan. There, tuples whose key
+ * the build side does not have are dropped before they travel up the plan.
+ * <p>
+ * A filter which rejects few of the tuples it is shown only costs a hash per
+ * tuple, so after {@link #SAMPLE_PROBES} probes a filter which rejected less
+ * than a tenth of them stops being applied.
+ */
+public class RuntimeFilter {
+
+    /** The number of bits per build key of the Bloom filters of hash joins */
+    public static final int BITS_PER_KEY = 10;
+    /** The number of probes after which an unselective filter is turned off */
+    public static final int SAMPLE_PROBES = 1024;
+
+    private final Object source;
+    private final int field;
+    private final BloomFilter filter;
+    private boolean sampled = false;
+    private boolean enabled = true;
+
+    private RuntimeFilter(Object source, int field, BloomFilter filter) {
+        this.source = source;
+        this.field = field;
+        this.filter = filter;
+    }
+
+    /**
+     * @return the operator which built the filter
+     */
+    public Object getSource() {
+        return source;
+    }
+
+    /**
+     * @return the index of the field the filter is applied to, in the tuples
+     *         of the operator it was pushed to
+     */
+    public int getField() {
+        return field;
+    }
+
+    public BloomFilter getBloomFilter() {
+        return filter;
+    }
+
+    /**
+     * @return false once the filter has been turned off for rejecting too few tuples
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return false if the build side of the join has no tuple with the key of t
+     */
+    public boolean accept(Tuple t) {
+        if (!enabled)
+            return true;
+        boolean pass = filter.mightContain(t.getField(field));
+        if (!sampled && filter.getProbes() >= SAMPLE_PROBES) {
+            sampled = true;
+            enabled = filter.getNegatives() * 10 >= filter.getProbes();
+        }
+        return pass;
+    }
+
+    /**
+     * @return false if any of the filters rejects t
+     */
+    static boolean acceptAll(ArrayList<RuntimeFilter> filters, Tuple t) {
+        for (int i = 0; i < filters.size(); i++) {
+            if (!filters.get(i).accept(t))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Add a filter to those of an operator, replacing any it already has from
+     * the same source
+     */
+    static void add(ArrayList<RuntimeFilter> filters, RuntimeFilter f) {
+        remove(filters, f.source);
+        filters.add(f);
+    }
+
+    static void remove(ArrayList<RuntimeFilter> filters, Object source) {
+        for (Iterator<RuntimeFilter> it = filters.iterator(); it.hasNext();) {
+            if (it.next().source == source)
+                it.remove();
+        }
+    }
+
+    /**
+     * @return true if the output of plan is the concatenation of the tuples
+     *         of its children, in the order getChildren returns them
+     */
+    private static boolean concatenatesChildren(DbIterator plan) {
+        return plan instanceof Join || plan instanceof HashEquiJoin || plan instanceof HybridHashJoin
+                || plan instanceof SortMergeJoin || plan instanceof IndexNestedLoopJoin
+                || plan instanceof BlockNestedLoopJoin || plan instanceof ParallelHashJoin;
+    }
+
+    /**
+     * Find the operator a filter on a field of plan should be pushed to.
+     *
+     * @param field
+     *            the index of the field in the tuples of plan; replaced by its
+     *            index in the tuples of the operator found
+     * @return the operator, or null if there is none
+     */
+    private static DbIterator target(DbIterator plan, int[] field) {
+        if (plan instanceof SeqScan || plan instanceof BTreeScan)
+            return plan;
+        if (plan instanceof Filter) {
+            int f = field[0];
+            DbIterator t = target(((Filter) plan).getChildren()[0], field);
+            if (t != null)
+                return t;
+            field[0] = f;
+            return plan;
+        }
+        if (concatenatesChildren(plan)) {
+            for (DbIterator child : ((Operator) plan).getChildren()) {
+                int n = child.getTupleDesc().numFields();
+                if (field[0] < n)
+                    return target(child, field);
+                field[0] -= n;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if a filter on a field of plan can be pushed down
+     */
+    public static boolean canPushDown(DbIterator plan, int field) {
+        return target(plan, new int[] { field }) != null;
+    }
+
+    /**
+     * Push a filter on a field of a join's probe side down to the operator
+     * that produces the field.
+     *
+     * @param plan
+     *            the probe side of the join, which has not been read yet
+     * @param field
+     *            the index of the join field in the tuples of plan
+     * @param source
+     *            the join, which withdraws the filter when it is closed
+     * @param filter
+     *            a Bloom filter with the join keys of the build side
+     * @return false if there is no operator to push the filter to
+     */
+    public static boolean pushDown(DbIterator plan, int field, Object source, BloomFilter filter) {
+        int[] f = new int[] { field };
+        DbIterator t = target(plan, f);
+        if (t == null)
+            return false;
+        RuntimeFilter rf = new RuntimeFilter(source, f[0], filter);
+        if (t instanceof SeqScan)
+            ((SeqScan) t).addRuntimeFilter(rf);
+        else if (t instanceof BTreeScan)
+            ((BTreeScan) t).addRuntimeFilter(rf);
+        else
+            ((Filter) t).addRuntimeFilter(rf);
+        return true;
+    }
+
+    /**
+     * Remove the filters a join pushed down its probe side
+     */
+    public static void withdraw(DbIterator plan, Object source) {
+        if (plan instanceof SeqScan)
+            ((SeqScan) plan).removeRuntimeFilters(source);
+        else if (plan instanceof BTreeScan)
+            ((BTreeScan) plan).removeRuntimeFilters(source);
+        else if (plan instanceof Filter)
+            ((Filter) plan).removeRuntimeFilters(source);
+        if (plan instanceof Filter || concatenatesChildren(plan)) {
+            for (DbIterator child : ((Operator) plan).getChildren())
+                withdraw(child, source);
+        }
+    }
+
+    public String toString() {
+        return "runtime filter on field " + field + (enabled ? "" : " (off)") + ": " + filter;
+    }
+}
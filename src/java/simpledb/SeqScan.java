@@ -16,6 +16,9 @@ public class SeqScan implements DbIterator {
     private TransactionId tid;
     private int tableid;
     private String tableAlias;
+    // the filters pushed down by hash joins, and the next tuple that passed them
+    private ArrayList<RuntimeFilter> runtimeFilters = new ArrayList<RuntimeFilter>();
+    private Tuple nextTuple = null;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -50,6 +53,20 @@ public class SeqScan implements DbIterator {
         return Database.getCatalog().getTableName(tableid);
     }
     
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans. 
      * */
@@ -75,12 +92,34 @@ public class SeqScan implements DbIterator {
         this.tableid = tableid;
     }
 
+    /**
+     * Drop the tuples a runtime filter rejects; see {@link RuntimeFilter}.
+     */
+    public void addRuntimeFilter(RuntimeFilter f) {
+        RuntimeFilter.add(runtimeFilters, f);
+    }
+
+    /**
+     * Stop applying the runtime filters pushed down by an operator
+     */
+    public void removeRuntimeFilters(Object source) {
+        RuntimeFilter.remove(runtimeFilters, source);
+    }
+
+    /**
+     * @return the runtime filters this scan applies
+     */
+    public List<RuntimeFilter> getRuntimeFilters() {
+        return Collections.unmodifiableList(runtimeFilters);
+    }
+
     public SeqScan(TransactionId tid, int tableid) {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
     public void open() throws DbException, TransactionAbortedException {
         iterator.open();
+        nextTuple = null;
     }
 
     /**
@@ -105,7 +144,7 @@ public class SeqScan implements DbIterator {
         // loop through td, adding alias to field names
         for (int i=0; i < size; i++)
         {
-            fields[i] = tableAlias + td.getFieldName(i);
+            fields[i] = tableAlias + "." + td.getFieldName(i);
             types[i] = td.getFieldType(i);
         }
 
@@ -114,20 +153,31 @@ public class SeqScan implements DbIterator {
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
-        return iterator.hasNext();
+        while (nextTuple == null && iterator.hasNext()) {
+            Tuple t = iterator.next();
+            if (RuntimeFilter.acceptAll(runtimeFilters, t))
+                nextTuple = t;
+        }
+        return nextTuple != null;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        return iterator.next();
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = nextTuple;
+        nextTuple = null;
+        return t;
     }
 
     public void close() {
         iterator.close();
+        nextTuple = null;
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         iterator.rewind();
+        nextTuple = null;
     }
 }
@@ -0,0 +1,227 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two children that return their tuples in
+ * ascending order of their join fields, such as {@link BTreeScan}s of B+
+ * trees keyed on those fields. It reads each child once, and never rewinds
+ * either of them.
+ * <p>
+ * One child drives the join, and the tuples of the other are kept in a
+ * window: each tuple of the driving child is joined with every tuple in the
+ * window, after the window has been extended with the tuples of the other
+ * child that join with it. For an equality predicate the left child drives,
+ * and the window holds the group of right tuples with the current key, so
+ * duplicate keys on both sides are joined pairwise and only one group is held
+ * in memory. For a band predicate ({@code <}, {@code <=}, {@code >},
+ * {@code >=}) the child on the greater side of the comparison drives; every
+ * tuple that joins with one driving tuple also joins with the ones after it,
+ * so the window only grows.
+ * <p>
+ * The output tuples are the concatenation of the left (child1) and right
+ * (child2) tuples, as for {@link Join}, in the order of the driving child.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate jpred;
+    private DbIterator child1;
+    private DbIterator child2;
+    private final boolean driveLeft;
+    private TupleDesc td;
+
+    // the tuples of the other child joined with each driving tuple
+    private transient ArrayList<Tuple> window = null;
+    // the next tuple of the other child, which is not yet in the window
+    private transient Tuple pending = null;
+    // the driving tuple being joined, and the window position it is joined with next
+    private transient Tuple driveTuple = null;
+    private transient int windowPos = 0;
+
+    /**
+     * @return true if a sort-merge join can evaluate a predicate with the given operator
+     */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator must
+     *            be EQUALS or one of the comparisons
+     * @param child1
+     *            Iterator for the left relation to join, in ascending order of
+     *            the first field of p
+     * @param child2
+     *            Iterator for the right relation to join, in ascending order
+     *            of the second field of p
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("a sort-merge join cannot evaluate " + p.getOperator());
+        this.jpred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.driveLeft = p.getOperator() != Predicate.Op.LESS_THAN
+                && p.getOperator() != Predicate.Op.LESS_THAN_OR_EQ;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return jpred;
+    }
+
+    /**
+     * @return true if the left child drives the join, so that the output is in
+     *         the order of the left child
+     */
+    public boolean drivesLeft() {
+        return driveLeft;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(jpred.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(jpred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    private DbIterator driveChild() {
+        return driveLeft ? child1 : child2;
+    }
+
+    private DbIterator otherChild() {
+        return driveLeft ? child2 : child1;
+    }
+
+    private Tuple nextOther() throws DbException, TransactionAbortedException {
+        DbIterator other = otherChild();
+        return other.hasNext() ? other.next() : null;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        this.child1.open();
+        this.child2.open();
+        window = new ArrayList<Tuple>();
+        pending = nextOther();
+        driveTuple = null;
+        windowPos = 0;
+    }
+
+    public void close() {
+        super.close();
+        this.child1.close();
+        this.child2.close();
+        window = null;
+        pending = null;
+        driveTuple = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.child1.rewind();
+        this.child2.rewind();
+        window.clear();
+        pending = nextOther();
+        driveTuple = null;
+        windowPos = 0;
+    }
+
+    /**
+     * Move the tuples of the other child that join with the current driving
+     * tuple into the window, dropping those that are too small to join with
+     * it or any later driving tuple.
+     */
+    private void extendWindow() throws DbException, TransactionAbortedException {
+        if (jpred.getOperator() == Predicate.Op.EQUALS) {
+            Field key = driveTuple.getField(jpred.getField1());
+            if (!window.isEmpty()
+                    && !window.get(0).getField(jpred.getField2()).compare(Predicate.Op.EQUALS, key))
+                window.clear();
+            while (pending != null
+                    && pending.getField(jpred.getField2()).compare(Predicate.Op.LESS_THAN_OR_EQ, key)) {
+                if (pending.getField(jpred.getField2()).compare(Predicate.Op.EQUALS, key))
+                    window.add(pending);
+                pending = nextOther();
+            }
+        } else {
+            while (pending != null
+                    && (driveLeft ? jpred.filter(driveTuple, pending) : jpred.filter(pending, driveTuple))) {
+                window.add(pending);
+                pending = nextOther();
+            }
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (driveTuple == null || windowPos == window.size()) {
+            // once the other child is exhausted, the window holds every tuple
+            // that can still join, and an empty one will stay empty
+            DbIterator drive = driveChild();
+            if ((pending == null && window.isEmpty()) || !drive.hasNext())
+                return null;
+            driveTuple = drive.next();
+            windowPos = 0;
+            extendWindow();
+        }
+
+        Tuple match = window.get(windowPos++);
+        Tuple left = driveLeft ? driveTuple : match;
+        Tuple right = driveLeft ? match : driveTuple;
+        Tuple t = new Tuple(td);
+        int num = 0;
+        for (int i = 0; i < left.getTupleDesc().numFields(); i++)
+            t.setField(num++, left.getField(i));
+        for (int j = 0; j < right.getTupleDesc().numFields(); j++)
+            t.setField(num++, right.getField(j));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+}
@@ -0,0 +1,188 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SpillFile is a temporary file of tuples written by operators whose input
+ * does not fit in memory. Tuples are appended one after another in a compact
+ * binary format: integers take four bytes, and strings are written with
+ * their length instead of being padded to {@link Type#STRING_LEN}. Record ids
+ * are not kept.
+ * <p>
+ * A spill file is written once and may then be read any number of times.
+ * It is removed by {@link #delete()}. Spill files are created in a directory
+ * of their own, which is removed with any files left in it when the JVM exits.
+ */
+public class SpillFile {
+
+    // the directory of the spill files of this process, created with the first
+    // of them
+    private static File directory = null;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int tuples = 0;
+    private long bytes = 0;
+
+    /**
+     * Create an empty spill file for tuples of the given type
+     *
+     * @param td the TupleDesc of the tuples written to the file
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".tmp", directory());
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    /**
+     * Get the directory of the spill files of this process, creating it with a
+     * single hook that removes it, and any spill files left in it, when the JVM
+     * exits. Files registered one by one with {@link File#deleteOnExit()} would
+     * stay on that list for the life of the process.
+     */
+    private static synchronized File directory() throws IOException {
+        if (directory == null) {
+            final File dir = File.createTempFile("spill", "");
+            if (!dir.delete() || !dir.mkdir())
+                throw new IOException("could not create spill directory " + dir);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    File[] files = dir.listFiles();
+                    if (files != null) {
+                        for (File f : files)
+                            f.delete();
+                    }
+                    dir.delete();
+                }
+            });
+            directory = dir;
+        }
+        return directory;
+    }
+
+    /**
+     * Append a tuple to the file
+     */
+    public void add(Tuple t) throws IOException {
+        if (out == null)
+            throw new IllegalStateException("spill file is no longer being written");
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                out.writeInt(((IntField) f).getValue());
+            else
+                out.writeUTF(((StringField) f).getValue());
+        }
+        tuples++;
+    }
+
+    /**
+     * Finish writing the file; no more tuples may be added. Called by
+     * {@link #iterator()} if it has not been called already.
+     */
+    public void finish() throws IOException {
+        if (out == null)
+            return;
+        out.close();
+        bytes = file.length();
+        out = null;
+    }
+
+    /**
+     * @return the number of tuples in the file
+     */
+    public int size() {
+        return tuples;
+    }
+
+    /**
+     * @return the number of pages of {@link BufferPool#getPageSize()} bytes the
+     *         finished file takes up
+     */
+    public int numPages() {
+        return (int) ((bytes + BufferPool.getPageSize() - 1) / BufferPool.getPageSize());
+    }
+
+    /**
+     * @return the TupleDesc of the tuples in the file
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return an iterator over the tuples of the file, in the order they were added
+     */
+    public DbFileIterator iterator() throws IOException {
+        finish();
+        return new SpillFileIterator();
+    }
+
+    /**
+     * Remove the file
+     */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is being removed anyway
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    private class SpillFileIterator extends AbstractDbFileIterator {
+        private DataInputStream in = null;
+        private int read;
+
+        public void open() throws DbException {
+            close();
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                        BufferPool.getPageSize()));
+            } catch (FileNotFoundException e) {
+                throw new DbException("spill file is missing: " + e.getMessage());
+            }
+            read = 0;
+        }
+
+        protected Tuple readNext() throws DbException {
+            if (in == null || read == tuples)
+                return null;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    if (td.getFieldType(i) == Type.INT_TYPE)
+                        t.setField(i, new IntField(in.readInt()));
+                    else
+                        t.setField(i, new StringField(in.readUTF(), Type.STRING_LEN));
+                }
+            } catch (IOException e) {
+                throw new DbException("failed to read spill file: " + e.getMessage());
+            }
+            read++;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing more is read from the file
+                }
+                in = null;
+            }
+        }
+    }
+}
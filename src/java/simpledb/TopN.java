@@ -0,0 +1,217 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements an ORDER BY followed by a LIMIT of n
+ * tuples. Rather than sorting its whole child, as {@link OrderBy} does, it
+ * reads the child once and keeps the first n tuples of the order seen so far
+ * in a bounded binary heap, whose root is the last of them; a tuple that
+ * comes before the root replaces it. It takes O(N log n) time for N child
+ * tuples and holds only n of them.
+ * <p>
+ * Like OrderBy, it is stable: of tuples with equal keys, those the child
+ * returned first are kept and returned first.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final int orderByField;
+    private final boolean asc;
+    private final int n;
+
+    // the heap: its tuples, the integer keys of its tuples if the keys are
+    // integers, and the position of each tuple in the child
+    private transient Tuple[] heap = null;
+    private transient int[] keys = null;
+    private transient long[] seqs = null;
+    private transient int size = 0;
+    // the tuples kept, in order, and the next one to return
+    private transient Tuple[] sorted = null;
+    private transient int pos = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param n
+     *            the number of tuples to return
+     */
+    public TopN(int orderbyField, boolean asc, DbIterator child, int n) {
+        if (n < 0)
+            throw new IllegalArgumentException("n must not be negative");
+        this.child = child;
+        this.orderByField = orderbyField;
+        this.asc = asc;
+        this.n = n;
+    }
+
+    public boolean isASC() {
+        return asc;
+    }
+
+    public int getOrderByField() {
+        return orderByField;
+    }
+
+    /**
+     * @return the number of tuples returned
+     */
+    public int getN() {
+        return n;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /**
+     * @return true if the tuple at heap position i comes after the one at j
+     *         in the order returned
+     */
+    private boolean after(int i, int j) {
+        int c;
+        if (keys != null) {
+            c = keys[i] < keys[j] ? -1 : (keys[i] == keys[j] ? 0 : 1);
+        } else {
+            c = TupleComparator.compareFields(heap[i].getField(orderByField), heap[j].getField(orderByField));
+            if (!asc)
+                c = -c;
+        }
+        return c > 0 || (c == 0 && seqs[i] > seqs[j]);
+    }
+
+    private void swap(int i, int j) {
+        Tuple t = heap[i];
+        heap[i] = heap[j];
+        heap[j] = t;
+        if (keys != null) {
+            int k = keys[i];
+            keys[i] = keys[j];
+            keys[j] = k;
+        }
+        long s = seqs[i];
+        seqs[i] = seqs[j];
+        seqs[j] = s;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0 && after(i, (i - 1) / 2)) {
+            swap(i, (i - 1) / 2);
+            i = (i - 1) / 2;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int last = i;
+            int l = 2 * i + 1;
+            if (l < size && after(l, last))
+                last = l;
+            if (l + 1 < size && after(l + 1, last))
+                last = l + 1;
+            if (last == i)
+                return;
+            swap(i, last);
+            i = last;
+        }
+    }
+
+    /**
+     * Put a tuple at heap position i
+     */
+    private void set(int i, Tuple t, long seq) {
+        heap[i] = t;
+        if (keys != null) {
+            int key = ((IntField) t.getField(orderByField)).getValue();
+            // negated bitwise for a descending sort, so keys always compare ascending
+            keys[i] = asc ? key : ~key;
+        }
+        seqs[i] = seq;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        // grown as the child is read, up to n and a spare slot
+        int capacity = Math.min(n, 1024) + 1;
+        heap = new Tuple[capacity];
+        keys = child.getTupleDesc().getFieldType(orderByField) == Type.INT_TYPE ? new int[capacity] : null;
+        seqs = new long[capacity];
+        size = 0;
+        long seq = 0;
+        while (n > 0 && child.hasNext()) {
+            if (size == heap.length) {
+                capacity = (int) Math.min(2L * heap.length, Math.min(n + 1L, Integer.MAX_VALUE - 8));
+                heap = Arrays.copyOf(heap, capacity);
+                if (keys != null)
+                    keys = Arrays.copyOf(keys, capacity);
+                seqs = Arrays.copyOf(seqs, capacity);
+            }
+            set(size, child.next(), seq++);
+            if (size < n) {
+                size++;
+                siftUp(size - 1);
+            } else if (after(0, size)) {
+                // the new tuple, in the spare slot past the heap, comes
+                // before the last tuple kept, so it replaces it
+                swap(0, size);
+                siftDown(0);
+            }
+        }
+
+        // take the last tuple off the heap until it is empty
+        sorted = new Tuple[size];
+        for (int i = size - 1; i >= 0; i--) {
+            sorted[i] = heap[0];
+            swap(0, size - 1);
+            size--;
+            siftDown(0);
+        }
+        heap = null;
+        keys = null;
+        seqs = null;
+        pos = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        sorted = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        pos = 0;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the tuples kept, in order.
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (sorted != null && pos < sorted.length)
+            return sorted[pos++];
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -0,0 +1,44 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * TupleComparator orders tuples on the value of one field, ascending or
+ * descending. It is shared by the operators which sort or rank tuples.
+ *
+ * @see OrderBy
+ * @see TopN
+ * @see IndexNestedLoopJoin
+ */
+class TupleComparator implements Comparator<Tuple> {
+    int field;
+    boolean asc;
+
+    public TupleComparator(int field, boolean asc) {
+        this.field = field;
+        this.asc = asc;
+    }
+
+    /**
+     * Compare two fields of the same type without going through
+     * {@link Field#compare}, which takes a comparison per predicate tried
+     */
+    static int compareFields(Field f1, Field f2) {
+        if (f1 instanceof IntField && f2 instanceof IntField) {
+            int v1 = ((IntField) f1).getValue();
+            int v2 = ((IntField) f2).getValue();
+            return v1 < v2 ? -1 : (v1 == v2 ? 0 : 1);
+        }
+        if (f1 instanceof StringField && f2 instanceof StringField)
+            return ((StringField) f1).getValue().compareTo(((StringField) f2).getValue());
+        if (f1.compare(Predicate.Op.EQUALS, f2))
+            return 0;
+        return f1.compare(Predicate.Op.GREATER_THAN, f2) ? 1 : -1;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        int c = compareFields(o1.getField(field), o2.getField(field));
+        return asc ? c : -c;
+    }
+    
+}
@@ -172,6 +172,58 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().pageNumber() == 2 || otherPage.getId().pageNumber() == 2);
 	}
 
+	@Test
+	public void testExtentAllocation() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 1);
+		empty.setExtentPages(8);
+
+		// the file grows a whole extent at a time, and the rest of the extent
+		// is handed out before the file grows again
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		int first = empty.getEmptyPageNo(tid, dirtypages);
+		assertEquals(2, first);
+		int pages = empty.numPages();
+		assertTrue(pages >= first + 7);
+		for(int i = 1; i < 8; i++)
+			assertEquals(first + i, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(pages, empty.numPages());
+
+		// freed pages are reused lowest first
+		empty.setEmptyPage(tid, dirtypages, first + 5);
+		empty.setEmptyPage(tid, dirtypages, first + 2);
+		assertEquals(first + 2, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(first + 5, empty.getEmptyPageNo(tid, dirtypages));
+		assertTrue(empty.getEmptyPageNo(tid, dirtypages) >= pages);
+	}
+
+	@Test
+	public void testExtentAcrossHeaderPages() throws Exception {
+		// small pages, so that an extent spans more than one header page
+		BufferPool.setPageSize(256);
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 1);
+		int extent = BTreeHeaderPage.getNumSlots() + 100;
+		empty.setExtentPages(extent);
+
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		int first = empty.getEmptyPageNo(tid, dirtypages);
+		Database.getBufferPool().updateDirtyPages(tid, new ArrayList<Page>(dirtypages.values()));
+		Database.getBufferPool().flushAllPages();
+
+		// the header pages on disk mark the rest of the extent empty
+		Database.reset();
+		BTreeFile reopened = BTreeUtility.openBTreeFile(2, emptyFile, 0);
+		dirtypages = new HashMap<PageId, Page>();
+		for(int i = 1; i < extent; i++)
+			assertEquals(first + i, reopened.getEmptyPageNo(tid, dirtypages));
+		assertTrue(reopened.getEmptyPageNo(tid, dirtypages) > first + extent);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -105,6 +105,10 @@ public class BTreeHeaderPageTest extends SimpleDbTestBase {
 		assertEquals(-1, page.getEmptySlot());
 		page.markSlotUsed(50, false);
 		assertEquals(50, page.getEmptySlot());
+		page.markSlotUsed(4000, false);
+		assertEquals(50, page.getEmptySlot(50));
+		assertEquals(4000, page.getEmptySlot(51));
+		assertEquals(-1, page.getEmptySlot(4001));
 	}
 
 	/**
@@ -0,0 +1,151 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeMemtableRecoveryTest extends SimpleDbTestBase {
+	private static final Random r = new Random();
+
+	private File file;
+	private TransactionId tid;
+	// the tuples the tree should hold, with repeats
+	private ArrayList<ArrayList<Integer>> expected;
+
+	/**
+	 * A B+ tree whose inserts into its pages fail once a number of them succeeded
+	 */
+	private static class FailingBTreeFile extends BTreeFile {
+		int insertsLeft = -1;
+
+		FailingBTreeFile(File f) {
+			super(f, new int[] {0}, Utility.getTupleDesc(2));
+		}
+
+		@Override
+		ArrayList<Page> insertIntoTree(TransactionId tid, Tuple t)
+				throws DbException, IOException, TransactionAbortedException {
+			if(insertsLeft == 0)
+				throw new DbException("injected failure");
+			if(insertsLeft > 0)
+				insertsLeft--;
+			return super.insertIntoTree(tid, t);
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		Database.reset();
+		file = File.createTempFile("recovery", ".dat");
+		file.deleteOnExit();
+		new File(file.getPath() + ".memlog").deleteOnExit();
+		new File(file.getPath() + ".memlog.frozen").deleteOnExit();
+		tid = new TransactionId();
+		expected = new ArrayList<ArrayList<Integer>>();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.reset();
+	}
+
+	/** @return a tuple from a small domain, so that many tuples are equal */
+	private ArrayList<Integer> randomTuple() {
+		ArrayList<Integer> tuple = new ArrayList<Integer>();
+		tuple.add(r.nextInt(100));
+		tuple.add(r.nextInt(3));
+		return tuple;
+	}
+
+	private ArrayList<ArrayList<Integer>> contents(BTreeFile f) throws Exception {
+		ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		while(it.hasNext())
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		it.close();
+		return result;
+	}
+
+	private void assertContents(BTreeFile f) throws Exception {
+		ArrayList<ArrayList<Integer>> actual = contents(f);
+		Comparator<ArrayList<Integer>> order = new Comparator<ArrayList<Integer>>() {
+			public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+				return a.get(0).equals(b.get(0)) ? a.get(1) - b.get(1) : a.get(0) - b.get(0);
+			}
+		};
+		Collections.sort(actual, order);
+		Collections.sort(expected, order);
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testResumeStoppedMerge() throws Exception {
+		FailingBTreeFile f = new FailingBTreeFile(file);
+		Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+		for(int i = 0; i < 500; i++) {
+			ArrayList<Integer> tuple = randomTuple();
+			expected.add(tuple);
+			Database.getBufferPool().insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(tuple));
+		}
+		Database.getBufferPool().flushAllPages();
+
+		// inserts and tombstones, some of them for tuples which are not there
+		f.enableMemtable(100000);
+		RecordId inTree = new RecordId(new BTreePageId(f.getId(), 1, BTreePageId.LEAF), 0);
+		for(int i = 0; i < 2000; i++) {
+			ArrayList<Integer> tuple = randomTuple();
+			Tuple t = BTreeUtility.getBTreeTuple(tuple);
+			if(r.nextInt(3) == 0) {
+				expected.remove(tuple);
+				t.setRecordId(inTree);
+				Database.getBufferPool().deleteTuple(tid, t);
+			}
+			else {
+				expected.add(tuple);
+				Database.getBufferPool().insertTuple(tid, f.getId(), t);
+			}
+		}
+
+		// stop the merge part of the way through a batch, and let every page it
+		// changed reach the file, as if they had been evicted before a crash
+		f.insertsLeft = 700;
+		try {
+			f.flushMemtable();
+			fail("expected DbException");
+		} catch(DbException e) {
+			// expected
+		}
+		Database.getBufferPool().flushAllPages();
+		assertTrue(new File(file.getPath() + ".memlog.frozen").exists());
+
+		// reopening the file finishes the merge without applying a change twice
+		Database.reset();
+		BTreeFile reopened = new BTreeFile(file, new int[] {0}, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+		assertNotNull(reopened.getMemtable());
+		reopened.flushMemtable();
+		assertEquals(0, reopened.getMemtable().size());
+		assertFalse(new File(file.getPath() + ".memlog.frozen").exists());
+		assertContents(reopened);
+		reopened.disableMemtable();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeMemtableRecoveryTest.class);
+	}
+}
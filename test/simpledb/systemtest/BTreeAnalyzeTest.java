@@ -0,0 +1,149 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class BTreeAnalyzeTest extends SimpleDbTestBase {
+    private final static Random r = new Random();
+
+    private BTreeFile f;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        // small pages, so that the tree has several levels of internal pages
+        BufferPool.setPageSize(1024);
+        Database.reset();
+        Database.resetBufferPool(1000);
+        tid = new TransactionId();
+        File file = File.createTempFile("analyze", ".dat");
+        file.deleteOnExit();
+        f = new BTreeFile(file, 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    private void insert(int n) throws Exception {
+        for (int i = 0; i < n; i++)
+            Database.getBufferPool().insertTuple(tid, f.getId(),
+                    BTreeUtility.getBTreeTuple(new int[] {r.nextInt(100000), i}));
+    }
+
+    /** Check the statistics against a scan of the leaves and the parallel walk against a serial one */
+    private BTreeStats check() throws Exception {
+        BTreeStats stats = f.analyze(tid, 4);
+        BTreeStats serial = f.analyze(tid, 1);
+        assertEquals(serial.toString(), stats.toString());
+
+        HashSet<PageId> leaves = new HashSet<PageId>();
+        int tuples = 0;
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            leaves.add(it.next().getRecordId().getPageId());
+            tuples++;
+        }
+        it.close();
+        assertEquals(tuples, stats.tuples());
+        assertTrue(stats.leafPages() >= leaves.size());
+
+        // every page of the file is a tree page, a header page or free
+        assertEquals(f.numPages(), stats.leafPages() + stats.internalPages()
+                + stats.headerPages + stats.freePages);
+        for (int level = 1; level < stats.height; level++) {
+            assertTrue(stats.minFill[level] <= stats.averageFill(level));
+            assertTrue(stats.averageFill(level) <= 1.0);
+        }
+        return stats;
+    }
+
+    @Test public void emptyTree() throws Exception {
+        BTreeStats stats = f.analyze(tid, 4);
+        assertEquals(0, stats.height);
+        assertEquals(0, stats.tuples());
+        assertFalse(stats.worthCompacting(0.5));
+    }
+
+    @Test public void shapeOfGrowingTree() throws Exception {
+        insert(50);
+        BTreeStats stats = check();
+        assertEquals(1, stats.height);
+        insert(20000);
+        stats = check();
+        assertTrue(stats.height >= 3);
+        assertEquals(1, stats.pages[0]);
+        // random inserts split leaves, which leaves them between half and completely full
+        int leaf = stats.height - 1;
+        assertTrue(stats.averageFill(leaf) > 0.5);
+        assertTrue(stats.minFill[leaf] >= 0.4);
+        assertEquals(stats.height - 1 + stats.leafPages(), stats.scanPages());
+    }
+
+    @Test public void encodedTreeIsSequential() throws Exception {
+        f = BTreeUtility.createRandomBTreeFile(2, 20000, null, null, 0);
+        BTreeStats stats = check();
+        assertEquals(0, stats.backwardJumps);
+        assertEquals(0, stats.freePages);
+        assertFalse(stats.worthCompacting(0.2));
+    }
+
+    @Test public void compactionIsWorthwhileAfterDeletes() throws Exception {
+        insert(20000);
+        ArrayList<Tuple> victims = new ArrayList<Tuple>();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (r.nextInt(10) < 8)
+                victims.add(t);
+        }
+        it.close();
+        Collections.shuffle(victims);
+        for (Tuple t : victims) {
+            // look the tuple up again, since deletions move tuples between pages
+            it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, f.keyOf(t)));
+            it.open();
+            Tuple found = it.next();
+            it.close();
+            Database.getBufferPool().deleteTuple(tid, found);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        BTreeStats before = check();
+        assertTrue(before.backwardJumps > 0);
+        assertTrue(before.reclaimablePages() > before.filePages / 2);
+        assertTrue(before.worthCompacting(0.3));
+
+        Database.getBufferPool().transactionComplete(tid);
+        new BTreeCompactor(f, 1.0, 64).run();
+        tid = new TransactionId();
+        BTreeStats after = check();
+        // leaves are only repacked with siblings under the same parent, so a few jumps may remain
+        assertTrue(after.backwardJumps < before.backwardJumps);
+        assertTrue(after.reclaimablePages() < before.reclaimablePages());
+        assertTrue(after.filePages < before.filePages);
+        assertFalse(after.worthCompacting(0.3));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeAnalyzeTest.class);
+    }
+}
@@ -0,0 +1,157 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class BTreeBloomFilterTest extends SimpleDbTestBase {
+
+    /** Counts the number of readPage operations. */
+    class InstrumentedBTreeFile extends BTreeFile {
+        public InstrumentedBTreeFile(File f, int keyField, TupleDesc td) {
+            super(f, keyField, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            reads += 1;
+            return super.readPage(pid);
+        }
+
+        public int reads = 0;
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.reset();
+    }
+
+    private int lookup(BTreeFile f, TransactionId tid, int key) throws Exception {
+        DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    @Test public void absentKeysReadNoPages() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, 0);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), 0, Utility.getTupleDesc(2));
+        table.getFile().deleteOnExit();
+        new File(table.getFile().getPath() + ".bloom").deleteOnExit();
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HashSet<Integer> keys = new HashSet<Integer>();
+        for (ArrayList<Integer> t : tuples)
+            keys.add(t.get(0));
+
+        TransactionId tid = new TransactionId();
+        table.enableBloomFilter(tid, 10);
+        BloomFilter filter = table.getBloomFilter();
+
+        // every key in the tree passes the filter
+        for (ArrayList<Integer> t : tuples)
+            assertTrue(table.mightContain(new IntField(t.get(0))));
+
+        // absent keys are rejected before any page is read, except for false positives
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.reads = 0;
+        int absent = 0;
+        for (int key = 0; absent < 5000; key++) {
+            if (keys.contains(key))
+                continue;
+            assertEquals(0, lookup(table, tid, key));
+            absent++;
+        }
+        assertTrue(filter.getNegatives() > 0);
+        assertEquals(absent, filter.getNegatives() + filter.getFalsePositives());
+        assertTrue(filter.observedFalsePositiveRate() < 0.05);
+        assertTrue(table.reads <= 3 * filter.getFalsePositives());
+
+        // without the filter every lookup searches the tree
+        table.disableBloomFilter();
+        assertFalse(new File(table.getFile().getPath() + ".bloom").exists());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.reads = 0;
+        for (int key = 0; key < 100; key++)
+            lookup(table, tid, BTreeUtility.MAX_RAND_VALUE + key);
+        assertTrue(table.reads > 0);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void filterFollowsInsertsAndIsSaved() throws Exception {
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+        File bloomFile = new File(f.getFile().getPath() + ".bloom");
+        bloomFile.deleteOnExit();
+        TransactionId tid = new TransactionId();
+        f.enableBloomFilter(tid, 10);
+        assertTrue(bloomFile.exists());
+
+        // inserted keys are found, and the saved filter no longer covers every key
+        int key = BTreeUtility.MAX_RAND_VALUE + 7;
+        Database.getBufferPool().insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(new int[] {key, 1}));
+        assertFalse(bloomFile.exists());
+        assertEquals(1, lookup(f, tid, key));
+
+        // flushing saves the filter, and reopening the file loads it
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(bloomFile.exists());
+        BTreeFile reopened = new BTreeFile(f.getFile(), 0, Utility.getTupleDesc(2));
+        assertNotNull(reopened.getBloomFilter());
+        assertTrue(reopened.mightContain(new IntField(key)));
+        assertEquals(f.getBloomFilter().getNumKeys(), reopened.getBloomFilter().getNumKeys());
+    }
+
+    @Test public void compactionRebuildsFilter() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 10000, null, tuples, 0);
+        new File(f.getFile().getPath() + ".bloom").deleteOnExit();
+        TransactionId tid = new TransactionId();
+        f.enableBloomFilter(tid, 10);
+        long before = f.getBloomFilter().getNumKeys();
+
+        // delete every key below the middle of the key range
+        int threshold = BTreeUtility.MAX_RAND_VALUE / 2;
+        DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.LESS_THAN, new IntField(threshold)));
+        it.open();
+        ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+        while (it.hasNext())
+            deleted.add(it.next());
+        it.close();
+        for (Tuple t : deleted)
+            Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+
+        new BTreeCompactor(f, 1.0, 10).run();
+        assertTrue(f.getBloomFilter().getNumKeys() < before);
+        int passed = 0;
+        for (Tuple t : deleted) {
+            if (f.mightContain(t.getField(0)))
+                passed++;
+        }
+        assertTrue(passed < deleted.size() / 10);
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) >= threshold)
+                assertTrue(f.mightContain(new IntField(t.get(0))));
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeBloomFilterTest.class);
+    }
+}
@@ -0,0 +1,189 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class BTreeBufferedTest extends SimpleDbTestBase {
+    private final static Random r = new Random();
+    private final static int MAX_KEY = 5000;
+
+    private BTreeFile f;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+    private int leafWrites;
+
+    @Before public void setUp() throws Exception {
+        // small pages, so that the tree has several levels of internal pages
+        BufferPool.setPageSize(1024);
+        Database.reset();
+        Database.resetBufferPool(1000);
+        File file = File.createTempFile("buffered", ".dat");
+        file.deleteOnExit();
+        f = new BTreeFile(file, new int[] {0}, Utility.getTupleDesc(2), false, true);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+
+        tid = new TransactionId();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        leafWrites = 0;
+        for (int i = 0; i < 20000; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(r.nextInt(MAX_KEY));
+            tuple.add(i);
+            tuples.add(tuple);
+            ArrayList<Page> dirtied = f.insertTuple(tid, BTreeUtility.getBTreeTuple(tuple));
+            for (Page p : dirtied) {
+                if (((BTreePageId) p.getId()).pgcateg() == BTreePageId.LEAF)
+                    leafWrites++;
+            }
+            Database.getBufferPool().updateDirtyPages(tid, dirtied);
+        }
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    private ArrayList<ArrayList<Integer>> read(DbFileIterator it) throws Exception {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return result;
+    }
+
+    private ArrayList<Integer> keys(ArrayList<ArrayList<Integer>> tuples) {
+        ArrayList<Integer> result = new ArrayList<Integer>();
+        for (ArrayList<Integer> t : tuples)
+            result.add(t.get(0));
+        return result;
+    }
+
+    private ArrayList<ArrayList<Integer>> sorted(ArrayList<ArrayList<Integer>> tuples) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(result, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> t1, ArrayList<Integer> t2) {
+                int cmp = t1.get(0).compareTo(t2.get(0));
+                return cmp != 0 ? cmp : t1.get(1).compareTo(t2.get(1));
+            }
+        });
+        return result;
+    }
+
+    private ArrayList<ArrayList<Integer>> matching(Op op, int key) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (new IntField(t.get(0)).compare(op, new IntField(key)))
+                result.add(t);
+        }
+        return result;
+    }
+
+    private int bufferedTuples() throws Exception {
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+        BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+                tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+        assertEquals(BTreePageId.INTERNAL, root.iterator().next().getLeftChild().pgcateg());
+        return root.getNumMessages();
+    }
+
+    private void checkContents() throws Exception {
+        // scans return every tuple in key order, whether it is in a leaf or a buffer
+        ArrayList<ArrayList<Integer>> scanned = read(f.iterator(tid));
+        assertEquals(keys(sorted(tuples)), keys(scanned));
+        assertEquals(sorted(tuples), sorted(scanned));
+
+        Op[] ops = new Op[] {Op.EQUALS, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ,
+                Op.LESS_THAN, Op.LESS_THAN_OR_EQ};
+        for (int i = 0; i < 20; i++) {
+            for (Op op : ops) {
+                int key = r.nextInt(MAX_KEY);
+                ArrayList<ArrayList<Integer>> found = read(f.indexIterator(tid, new IndexPredicate(op, new IntField(key))));
+                assertEquals(keys(sorted(matching(op, key))), keys(found));
+                assertEquals(sorted(matching(op, key)), sorted(found));
+            }
+        }
+        assertEquals(sorted(tuples), sorted(read(f.parallelIterator(tid, null, 3, false))));
+    }
+
+    @Test public void insertsAreBufferedAndFound() throws Exception {
+        assertTrue(f.isBuffered());
+        assertTrue(bufferedTuples() > 0);
+        // leaves are written once per batch of tuples instead of once per tuple
+        assertTrue(leafWrites < tuples.size() / 4);
+        checkContents();
+    }
+
+    @Test public void deletesFromLeavesAndBuffers() throws Exception {
+        Collections.shuffle(tuples);
+        ArrayList<ArrayList<Integer>> remaining = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < tuples.size(); i++) {
+            ArrayList<Integer> tuple = tuples.get(i);
+            if (i % 3 == 0) {
+                remaining.add(tuple);
+                continue;
+            }
+            DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(tuple.get(0))));
+            it.open();
+            Tuple t = null;
+            while (it.hasNext()) {
+                t = it.next();
+                if (SystemTestUtil.tupleToList(t).equals(tuple))
+                    break;
+            }
+            it.close();
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        tuples = remaining;
+        checkContents();
+
+        // a tuple moved down after it was read can still be deleted
+        ArrayList<Integer> tuple = tuples.remove(0);
+        Tuple t = BTreeUtility.getBTreeTuple(tuple);
+        t.setRecordId(new RecordId(new BTreePageId(f.getId(), 1, BTreePageId.INTERNAL), 0));
+        Database.getBufferPool().deleteTuple(tid, t);
+        checkContents();
+    }
+
+    @Test public void bufferedAndCountedAreExclusive() throws Exception {
+        try {
+            new BTreeFile(f.getFile(), new int[] {0}, Utility.getTupleDesc(2), true, true);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test public void bufferedFlagIsPersisted() throws Exception {
+        Database.getBufferPool().flushAllPages();
+        try {
+            new BTreeFile(f.getFile(), new int[] {0}, Utility.getTupleDesc(2));
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        f = new BTreeFile(f.getFile(), new int[] {0}, Utility.getTupleDesc(2), false, true);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        checkContents();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeBufferedTest.class);
+    }
+}
@@ -0,0 +1,208 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class BTreeCompactionTest extends SimpleDbTestBase {
+    private final static Random r = new Random();
+
+    @After public void tearDown() throws Exception {
+        Database.reset();
+    }
+
+    /** Delete a random fraction of the tuples of f, and return the remaining ones in key order */
+    private ArrayList<ArrayList<Integer>> deleteRandom(BTreeFile f, ArrayList<ArrayList<Integer>> tuples,
+            double fraction) throws Exception {
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> remaining = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> tuple : tuples) {
+            if (r.nextDouble() >= fraction) {
+                remaining.add(tuple);
+                continue;
+            }
+            // look the tuple up again, since deletions move tuples between pages
+            DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(tuple.get(0))));
+            it.open();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (BTreeUtility.tupleToList(t).equals(tuple)) {
+                    Database.getBufferPool().deleteTuple(tid, t);
+                    break;
+                }
+            }
+            it.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(remaining, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> t1, ArrayList<Integer> t2) {
+                return t1.get(0).compareTo(t2.get(0));
+            }
+        });
+        return remaining;
+    }
+
+    @Test public void compactAfterDeletes() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, 0);
+        ArrayList<ArrayList<Integer>> remaining = deleteRandom(f, tuples, 0.8);
+
+        BTreeCompactor.ScanStats before = BTreeCompactor.measureScan(f);
+        assertEquals(remaining.size(), before.tuples);
+
+        // compact a few pages at a time
+        BTreeCompactor compactor = new BTreeCompactor(f, 1.0, 3);
+        int steps = 0;
+        while (compactor.step())
+            steps++;
+        assertTrue(steps > 1);
+        assertTrue(compactor.isDone());
+
+        BTreeCompactor.ScanStats after = BTreeCompactor.measureScan(f);
+        assertEquals(remaining.size(), after.tuples);
+        assertTrue(after.leafPages < before.leafPages);
+        assertTrue(after.filePages < before.filePages);
+        assertTrue(after.seeks <= before.seeks);
+
+        // all leaves share the root as their parent, so all but the last are full
+        int maxTuples = BTreeUtility.getNumTuplesPerPage(2);
+        assertEquals((remaining.size() + maxTuples - 1) / maxTuples, after.leafPages);
+        assertEquals(0, after.seeks);
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        for (ArrayList<Integer> tuple : remaining) {
+            assertTrue(it.hasNext());
+            assertEquals(tuple.get(0), BTreeUtility.tupleToList(it.next()).get(0));
+        }
+        assertFalse(it.hasNext());
+        it.close();
+
+        // the compacted tree still supports searches, inserts and deletes
+        int key = remaining.get(remaining.size() / 2).get(0);
+        it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+        it.open();
+        assertTrue(it.hasNext());
+        it.close();
+        for (int i = 0; i < 1000; i++)
+            Database.getBufferPool().insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(new int[] {i, i}));
+        assertEquals(remaining.size() + 1000, BTreeCompactor.measureScan(f).tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void compactNearlyEmptyTree() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, null, tuples, 0);
+        int pages = f.numPages();
+
+        // delete everything but the first few tuples
+        Collections.sort(tuples, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> t1, ArrayList<Integer> t2) {
+                return t1.get(0).compareTo(t2.get(0));
+            }
+        });
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        for (int i = 0; i < 10; i++)
+            it.next();
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        while (it.hasNext())
+            keys.add(BTreeUtility.tupleToList(it.next()).get(0));
+        it.close();
+        Collections.reverse(keys);
+        for (int k : keys) {
+            it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(k)));
+            it.open();
+            Tuple t = it.next();
+            it.close();
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(f.numPages() >= pages);
+
+        // only the root leaf and the header page are left
+        new BTreeCompactor(f, 1.0, 1).run();
+        assertEquals(2, f.numPages());
+        assertEquals(10, BTreeCompactor.measureScan(f).tuples);
+
+        // pages are appended again once the free ones run out
+        tid = new TransactionId();
+        for (int i = 0; i < 2000; i++)
+            Database.getBufferPool().insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(new int[] {i, i}));
+        assertEquals(2010, BTreeCompactor.measureScan(f).tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void compactWithDeletesBetweenSteps() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, 0);
+        ArrayList<ArrayList<Integer>> remaining = deleteRandom(f, tuples, 0.5);
+
+        // the first step fills the first leaf, and the compaction goes on from
+        // the leaf after it; release that leaf and every one after it
+        BTreeCompactor compactor = new BTreeCompactor(f, 1.0, 1);
+        assertTrue(compactor.step());
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        PageId first = it.next().getRecordId().getPageId();
+        int lastKey = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (!t.getRecordId().getPageId().equals(first))
+                break;
+            lastKey = ((IntField) t.getField(0)).getValue();
+        }
+        it.close();
+        f.deleteRange(tid, new IntField(lastKey), false, null, false);
+        Database.getBufferPool().transactionComplete(tid);
+        while (remaining.get(remaining.size() - 1).get(0) > lastKey)
+            remaining.remove(remaining.size() - 1);
+
+        // then delete and insert between the next steps, so that the pages
+        // released are used again
+        int key = BTreeUtility.MAX_RAND_VALUE;
+        tid = new TransactionId();
+        for (int step = 0; step < 20 && compactor.step(); step++) {
+            int from = r.nextInt(remaining.size() - 50);
+            ArrayList<ArrayList<Integer>> doomed = new ArrayList<ArrayList<Integer>>(remaining.subList(from, from + 50));
+            remaining.subList(from, from + 50).clear();
+            deleteRandom(f, doomed, 1.0);
+            for (int i = 0; i < 100; i++, key++) {
+                Database.getBufferPool().insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(new int[] {key, key}));
+                remaining.add(new ArrayList<Integer>(Arrays.asList(key, key)));
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        compactor.run();
+        assertTrue(compactor.isDone());
+
+        tid = new TransactionId();
+        it = f.iterator(tid);
+        it.open();
+        for (ArrayList<Integer> tuple : remaining) {
+            assertTrue(it.hasNext());
+            assertEquals(tuple.get(0), BTreeUtility.tupleToList(it.next()).get(0));
+        }
+        assertFalse(it.hasNext());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeCompactionTest.class);
+    }
+}
@@ -0,0 +1,177 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class BTreeCompositeKeyTest extends SimpleDbTestBase {
+    private final static Random r = new Random();
+
+    // comparator to sort tuples lexicographically on several key fields
+    private static class CompositeComparator implements Comparator<ArrayList<Integer>> {
+        private final int[] keyFields;
+
+        public CompositeComparator(int[] keyFields) {
+            this.keyFields = keyFields;
+        }
+
+        public int compare(ArrayList<Integer> t1, ArrayList<Integer> t2) {
+            for (int k : keyFields) {
+                int cmp = t1.get(k).compareTo(t2.get(k));
+                if (cmp != 0)
+                    return cmp;
+            }
+            return 0;
+        }
+    }
+
+    private ArrayList<ArrayList<Integer>> keys(DbFileIterator it, int[] keyFields) throws Exception {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            ArrayList<Integer> key = new ArrayList<Integer>();
+            for (int k : keyFields)
+                key.add(((IntField) t.getField(k)).getValue());
+            result.add(key);
+        }
+        it.close();
+        return result;
+    }
+
+    private ArrayList<ArrayList<Integer>> keys(ArrayList<ArrayList<Integer>> tuples, int[] keyFields) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            ArrayList<Integer> key = new ArrayList<Integer>();
+            for (int k : keyFields)
+                key.add(t.get(k));
+            result.add(key);
+        }
+        return result;
+    }
+
+    @Test public void insertSortsLexicographically() throws Exception {
+        int[] keyFields = new int[] {0, 1};
+        File f = File.createTempFile("composite", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = BTreeUtility.openBTreeFile(3, f, keyFields);
+
+        // few distinct tenants, so the second key field decides most comparisons
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 2000; i++) {
+            int[] row = new int[] {r.nextInt(8), r.nextInt(100000), i};
+            tuples.add(new ArrayList<Integer>(Arrays.asList(row[0], row[1], row[2])));
+            Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(row));
+        }
+        assertTrue(bf.numPages() > 3);
+
+        Collections.sort(tuples, new CompositeComparator(keyFields));
+        assertEquals(keys(tuples, keyFields), keys(bf.iterator(tid), keyFields));
+
+        // an equality search on a key prefix returns every entry with that prefix
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) == 3)
+                expected.add(t);
+        }
+        Field prefix = new CompositeField(new Field[] {new IntField(3)});
+        assertEquals(keys(expected, keyFields),
+                keys(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, prefix)), keyFields));
+
+        // a plain field is treated as a one-component prefix
+        assertEquals(keys(expected, keyFields),
+                keys(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(3))), keyFields));
+
+        // an equality search on the full key
+        ArrayList<Integer> target = tuples.get(tuples.size() / 2);
+        Field full = new CompositeField(new Field[] {new IntField(target.get(0)), new IntField(target.get(1))});
+        ArrayList<ArrayList<Integer>> found = keys(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, full)), keyFields);
+        assertFalse(found.isEmpty());
+        for (ArrayList<Integer> key : found)
+            assertEquals(target.subList(0, 2), key);
+
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void encoderBuildsCompositeTree() throws Exception {
+        int[] keyFields = new int[] {1, 0};
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 5000; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(r.nextInt(100000), r.nextInt(20))));
+
+        File hFile = File.createTempFile("table", ".dat");
+        hFile.deleteOnExit();
+        File bFile = File.createTempFile("table_index", ".dat");
+        bFile.deleteOnExit();
+        BTreeFile bf = BTreeFileEncoder.convert(tuples, hFile, bFile, BufferPool.getPageSize(),
+                2, new Type[] {Type.INT_TYPE, Type.INT_TYPE}, ',', keyFields);
+
+        TransactionId tid = new TransactionId();
+        Collections.sort(tuples, new CompositeComparator(keyFields));
+        assertEquals(keys(tuples, keyFields), keys(bf.iterator(tid), keyFields));
+
+        // a range search on the most significant key field
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) >= 15)
+                expected.add(t);
+        }
+        assertEquals(keys(expected, keyFields), keys(bf.indexIterator(tid,
+                new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(15))), keyFields));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void plannerSearchesKeyPrefix() throws Exception {
+        File f = File.createTempFile("composite", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = new BTreeFile(f, new int[] {0, 1}, Utility.getTupleDesc(3, "k"));
+        Database.getCatalog().addTable(bf, "composite");
+
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 3000; i++) {
+            int[] row = new int[] {r.nextInt(10), r.nextInt(10), i};
+            tuples.add(new ArrayList<Integer>(Arrays.asList(row[0], row[1], row[2])));
+            Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(row));
+        }
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(Database.getCatalog().getTableName(bf.getId()), new TableStats(bf.getId(), 1000));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(bf.getId(), "t");
+        lp.addProjectField("t.k2", null);
+        lp.addFilter("t.k0", Op.EQUALS, "4");
+        lp.addFilter("t.k1", Op.EQUALS, "7");
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+
+        DbIterator scan = plan;
+        while (scan instanceof Operator)
+            scan = ((Operator) scan).getChildren()[0];
+        assertTrue(scan instanceof BTreeScan);
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) == 4 && t.get(1) == 7)
+                expected.add(new ArrayList<Integer>(Collections.singletonList(t.get(2))));
+        }
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeCompositeKeyTest.class);
+    }
+}
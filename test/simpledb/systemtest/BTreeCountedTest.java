@@ -0,0 +1,198 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class BTreeCountedTest extends SimpleDbTestBase {
+    private final static Random r = new Random();
+    private final static int MAX_KEY = 3000;
+
+    private BTreeFile f;
+    private ArrayList<Integer> keys;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        // small pages, so that the tree has several levels of internal pages
+        BufferPool.setPageSize(1024);
+        Database.reset();
+        Database.resetBufferPool(1000);
+        File file = File.createTempFile("counted", ".dat");
+        file.deleteOnExit();
+        f = new BTreeFile(file, new int[] {0}, Utility.getTupleDesc(2), true);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+
+        tid = new TransactionId();
+        keys = new ArrayList<Integer>();
+        for (int i = 0; i < 15000; i++) {
+            int key = r.nextInt(MAX_KEY);
+            keys.add(key);
+            Database.getBufferPool().insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(new int[] {key, i}));
+        }
+        Collections.sort(keys);
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    /** Check that every subtree count matches the subtree, and return the number of tuples below pid */
+    private int checkCounts(BTreePageId pid) throws Exception {
+        if (pid.pgcateg() == BTreePageId.LEAF)
+            return ((BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY)).getNumTuples();
+        BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        int[] counts = page.getChildCounts();
+        Iterator<BTreeEntry> it = page.iterator();
+        int i = 0;
+        BTreeEntry e = null;
+        while (it.hasNext()) {
+            e = it.next();
+            assertEquals(counts[i++], checkCounts(e.getLeftChild()));
+        }
+        assertEquals(counts[i], checkCounts(e.getRightChild()));
+        return page.getTotalCount();
+    }
+
+    private int depth() throws Exception {
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+        BTreePageId pid = rootPtr.getRootId();
+        int depth = 0;
+        while (pid.pgcateg() == BTreePageId.INTERNAL) {
+            BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            pid = page.iterator().next().getLeftChild();
+            depth++;
+        }
+        assertEquals(keys.size(), checkCounts(rootPtr.getRootId()));
+        return depth;
+    }
+
+    private int countBelow(int key, boolean inclusive) {
+        int n = 0;
+        for (int k : keys) {
+            if (k < key || (inclusive && k == key))
+                n++;
+        }
+        return n;
+    }
+
+    private void checkQueries() throws Exception {
+        assertEquals(keys.size(), f.countTuples(tid));
+        for (int i = 0; i < 50; i++) {
+            int a = r.nextInt(MAX_KEY + 2) - 1;
+            int b = a + r.nextInt(MAX_KEY / 4);
+            assertEquals(countBelow(a, false), f.rank(tid, new IntField(a)));
+            assertEquals(countBelow(b, true) - countBelow(a, false),
+                    f.countRange(tid, new IntField(a), true, new IntField(b), true));
+            assertEquals(Math.max(0, countBelow(b, false) - countBelow(a, true)),
+                    f.countRange(tid, new IntField(a), false, new IntField(b), false));
+            assertEquals(countBelow(a, true) - countBelow(a, false),
+                    f.count(tid, new IndexPredicate(Op.EQUALS, new IntField(a))));
+            assertEquals(keys.size() - countBelow(a, false),
+                    f.count(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(a))));
+
+            int k = r.nextInt(keys.size());
+            assertEquals((int) keys.get(k), ((IntField) f.selectKth(tid, k).getField(0)).getValue());
+        }
+        assertEquals((int) keys.get(keys.size() - 1),
+                ((IntField) f.selectKth(tid, keys.size() - 1).getField(0)).getValue());
+        try {
+            f.selectKth(tid, keys.size());
+            fail("expected NoSuchElementException");
+        } catch (java.util.NoSuchElementException e) {
+            // expected
+        }
+    }
+
+    @Test public void countsFollowInserts() throws Exception {
+        assertTrue(depth() >= 2);
+        checkQueries();
+    }
+
+    @Test public void countsFollowDeletes() throws Exception {
+        // delete most of the tuples, so that leaf and internal pages steal and merge
+        Collections.shuffle(keys);
+        ArrayList<Integer> remaining = new ArrayList<Integer>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (i % 5 == 0) {
+                remaining.add(keys.get(i));
+                continue;
+            }
+            DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(keys.get(i))));
+            it.open();
+            Tuple t = it.next();
+            it.close();
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        Collections.sort(remaining);
+        keys = remaining;
+        depth();
+        checkQueries();
+    }
+
+    @Test public void aggregateCountUsesSubtreeCounts() throws Exception {
+        int threshold = MAX_KEY / 3;
+        BTreeScan scan = new BTreeScan(tid, f.getId(), "t",
+                new IndexPredicate(Op.LESS_THAN, new IntField(threshold)));
+        assertEquals(countBelow(threshold, false), scan.count());
+        Aggregate count = new Aggregate(scan, 1, Aggregator.NO_GROUPING, Aggregator.Op.COUNT);
+        count.open();
+        assertEquals(countBelow(threshold, false), ((IntField) count.next().getField(0)).getValue());
+        assertFalse(count.hasNext());
+        count.close();
+
+        // a tree without counts falls back to scanning
+        File file = File.createTempFile("uncounted", ".dat");
+        file.deleteOnExit();
+        BTreeFile plain = BTreeUtility.openBTreeFile(2, file, 0);
+        Database.getBufferPool().insertTuple(tid, plain.getId(), BTreeUtility.getBTreeTuple(new int[] {1, 1}));
+        scan = new BTreeScan(tid, plain.getId(), "p", null);
+        assertEquals(-1, scan.count());
+        count = new Aggregate(scan, 1, Aggregator.NO_GROUPING, Aggregator.Op.COUNT);
+        count.open();
+        assertEquals(1, ((IntField) count.next().getField(0)).getValue());
+        count.close();
+    }
+
+    @Test public void countedFlagIsPersisted() throws Exception {
+        Database.getBufferPool().flushAllPages();
+        BTreeFile reopened = new BTreeFile(f.getFile(), new int[] {0}, Utility.getTupleDesc(2), true);
+        assertTrue(reopened.isCounted());
+        try {
+            new BTreeFile(f.getFile(), new int[] {0}, Utility.getTupleDesc(2));
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // nor can a plain tree be opened as a counted one
+        File file = File.createTempFile("uncounted", ".dat");
+        file.deleteOnExit();
+        BTreeFile plain = BTreeUtility.openBTreeFile(2, file, 0);
+        Database.getBufferPool().insertTuple(tid, plain.getId(), BTreeUtility.getBTreeTuple(new int[] {1, 1}));
+        try {
+            new BTreeFile(file, new int[] {0}, Utility.getTupleDesc(2), true);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeCountedTest.class);
+    }
+}
@@ -0,0 +1,236 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class BTreeDeleteRangeTest extends SimpleDbTestBase {
+    // seeded per test, so that every run builds and deletes the same trees
+    private final Random r = new Random(37);
+    private final static int MAX_KEY = 5000;
+
+    private BTreeFile f;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        // small pages, so that the tree has several levels of internal pages
+        BufferPool.setPageSize(1024);
+        Database.reset();
+        Database.resetBufferPool(1000);
+        tid = new TransactionId();
+        f = create(false);
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    private BTreeFile create(boolean counted) throws Exception {
+        File file = File.createTempFile("range", ".dat");
+        file.deleteOnExit();
+        BTreeFile bf = new BTreeFile(file, new int[] {0}, Utility.getTupleDesc(2, "c"), counted);
+        Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+        tuples = new ArrayList<ArrayList<Integer>>();
+        insert(bf, 20000);
+        return bf;
+    }
+
+    private void insert(BTreeFile bf, int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(r.nextInt(MAX_KEY));
+            tuple.add(tuples.size());
+            tuples.add(tuple);
+            Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(tuple));
+        }
+    }
+
+    private ArrayList<ArrayList<Integer>> sorted(ArrayList<ArrayList<Integer>> tuples) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(result, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> t1, ArrayList<Integer> t2) {
+                int cmp = t1.get(0).compareTo(t2.get(0));
+                return cmp != 0 ? cmp : t1.get(1).compareTo(t2.get(1));
+            }
+        });
+        return result;
+    }
+
+    /** Delete a range from the tree and from the expected tuples */
+    private void deleteRange(Integer lower, boolean lowerInclusive, Integer upper, boolean upperInclusive)
+            throws Exception {
+        ArrayList<ArrayList<Integer>> remaining = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            int key = t.get(0);
+            boolean above = lower == null || (lowerInclusive ? key >= lower : key > lower);
+            boolean below = upper == null || (upperInclusive ? key <= upper : key < upper);
+            if (!above || !below)
+                remaining.add(t);
+        }
+        int deleted = f.deleteRange(tid, lower == null ? null : new IntField(lower), lowerInclusive,
+                upper == null ? null : new IntField(upper), upperInclusive);
+        assertEquals(tuples.size() - remaining.size(), deleted);
+        tuples = remaining;
+    }
+
+    private void checkContents() throws Exception {
+        ArrayList<ArrayList<Integer>> scanned = new ArrayList<ArrayList<Integer>>();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            scanned.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        assertEquals(sorted(tuples), sorted(scanned));
+        checkStructure();
+    }
+
+    private BTreePage getPage(BTreePageId pid) throws Exception {
+        return (BTreePage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+    }
+
+    /** Check that the tree is balanced, ordered, linked and at least half full */
+    private void checkStructure() throws Exception {
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+        ArrayList<BTreeLeafPage> leaves = new ArrayList<BTreeLeafPage>();
+        ArrayList<Integer> depths = new ArrayList<Integer>();
+        checkSubtree(rootPtr.getRootId(), rootPtr.getId(), null, null, 0, leaves, depths);
+        for (int depth : depths)
+            assertEquals(depths.get(0), (Integer) depth);
+        assertNull(leaves.get(0).getLeftSiblingId());
+        assertNull(leaves.get(leaves.size() - 1).getRightSiblingId());
+        for (int i = 1; i < leaves.size(); i++) {
+            assertEquals(leaves.get(i).getId(), leaves.get(i - 1).getRightSiblingId());
+            assertEquals(leaves.get(i - 1).getId(), leaves.get(i).getLeftSiblingId());
+        }
+    }
+
+    private void checkSubtree(BTreePageId pid, PageId parentId, Field lower, Field upper, int depth,
+            ArrayList<BTreeLeafPage> leaves, ArrayList<Integer> depths) throws Exception {
+        BTreePage page = getPage(pid);
+        assertEquals(parentId, page.getParentId());
+        boolean root = parentId instanceof BTreePageId
+                && ((BTreePageId) parentId).pgcateg() == BTreePageId.ROOT_PTR;
+        if (page instanceof BTreeLeafPage) {
+            BTreeLeafPage leaf = (BTreeLeafPage) page;
+            if (!root)
+                assertTrue(leaf.getNumTuples() >= leaf.getMaxTuples() / 2);
+            Iterator<Tuple> it = leaf.iterator();
+            while (it.hasNext()) {
+                Field key = it.next().getField(0);
+                assertTrue(lower == null || key.compare(Op.GREATER_THAN_OR_EQ, lower));
+                assertTrue(upper == null || key.compare(Op.LESS_THAN_OR_EQ, upper));
+            }
+            leaves.add(leaf);
+            depths.add(depth);
+            return;
+        }
+        BTreeInternalPage internal = (BTreeInternalPage) page;
+        // splitting a full internal page pushes its middle key up, so either
+        // half may be left one entry short of half full by an insert
+        assertTrue(internal.getNumEntries() >= (root ? 1 : internal.getMaxEntries() / 2 - 1));
+        Iterator<BTreeEntry> it = internal.iterator();
+        BTreeEntry e = null;
+        Field left = lower;
+        while (it.hasNext()) {
+            e = it.next();
+            assertTrue(left == null || e.getKey().compare(Op.GREATER_THAN_OR_EQ, left));
+            checkSubtree(e.getLeftChild(), pid, left, e.getKey(), depth + 1, leaves, depths);
+            left = e.getKey();
+        }
+        assertTrue(upper == null || left.compare(Op.LESS_THAN_OR_EQ, upper));
+        checkSubtree(e.getRightChild(), pid, left, upper, depth + 1, leaves, depths);
+    }
+
+    @Test public void deletesRandomRanges() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            int a = r.nextInt(MAX_KEY);
+            int b = a + r.nextInt(MAX_KEY / 10);
+            deleteRange(i % 5 == 0 ? null : a, r.nextBoolean(), i % 7 == 0 ? null : b, r.nextBoolean());
+            checkContents();
+            insert(f, 500);
+        }
+        checkContents();
+    }
+
+    @Test public void deletesWholeTree() throws Exception {
+        deleteRange(null, false, null, false);
+        assertTrue(tuples.isEmpty());
+        checkContents();
+        insert(f, 3000);
+        checkContents();
+    }
+
+    @Test public void releasedPagesAreReused() throws Exception {
+        deleteRange(MAX_KEY / 10, true, MAX_KEY * 9 / 10, false);
+        checkContents();
+        int pages = f.numPages();
+        // the released pages take the new tuples, so that the file does not grow
+        insert(f, 8000);
+        checkContents();
+        assertEquals(pages, f.numPages());
+    }
+
+    @Test public void countedTreeKeepsCounts() throws Exception {
+        f = create(true);
+        for (int i = 0; i < 10; i++) {
+            int a = r.nextInt(MAX_KEY);
+            int expected = f.countRange(tid, new IntField(a), false, new IntField(a + 300), true);
+            int before = f.countTuples(tid);
+            assertEquals(expected, f.deleteRange(tid, new IntField(a), false, new IntField(a + 300), true));
+            assertEquals(before - expected, f.countTuples(tid));
+            assertEquals(0, f.countRange(tid, new IntField(a), false, new IntField(a + 300), true));
+        }
+    }
+
+    @Test public void plannerDeletesKeyRanges() throws Exception {
+        String name = Database.getCatalog().getTableName(f.getId());
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(f.getId(), name);
+        lp.addFilter(name + ".c0", Op.LESS_THAN, "1000");
+        lp.addFilter(name + ".c0", Op.GREATER_THAN_OR_EQ, "200");
+        DbIterator plan = lp.rangeDelete(tid);
+        assertTrue(plan instanceof DeleteRange);
+
+        int expected = 0;
+        ArrayList<ArrayList<Integer>> remaining = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) >= 200 && t.get(0) < 1000)
+                expected++;
+            else
+                remaining.add(t);
+        }
+        plan.open();
+        assertEquals(expected, ((IntField) plan.next().getField(0)).getValue());
+        assertFalse(plan.hasNext());
+        plan.close();
+        tuples = remaining;
+        checkContents();
+
+        // filters on other fields need the tuples to be read
+        lp = new LogicalPlan();
+        lp.addScan(f.getId(), name);
+        lp.addFilter(name + ".c1", Op.LESS_THAN, "1000");
+        assertNull(lp.rangeDelete(tid));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeDeleteRangeTest.class);
+    }
+}
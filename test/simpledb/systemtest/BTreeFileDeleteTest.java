@@ -334,6 +334,156 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		it.close();
 	}    
 
+	@Test
+	public void testMergeThreshold() throws Exception {
+		// This should create a B+ tree with two partially full leaf pages
+		BTreeFile twoLeafPageFile = BTreeUtility.createRandomBTreeFile(2, 600,
+				null, null, 0);
+		twoLeafPageFile.setMergeThreshold(0.25);
+
+		// with a threshold of 1/4, the first page can drain well past half full
+		// (at most 502 tuples, minimum occupancy is now 125 tuples)
+		DbFileIterator it = twoLeafPageFile.iterator(tid);
+		it.open();
+		int count = 0;
+		while(it.hasNext() && count < 175) {
+			Tuple t = it.next();
+			BTreePageId pid = (BTreePageId) t.getRecordId().getPageId();
+			BTreeLeafPage p = (BTreeLeafPage) Database.getBufferPool().getPage(
+					tid, pid, Permissions.READ_ONLY);
+			assertEquals(202 + count, p.getNumEmptySlots());
+			twoLeafPageFile.deleteTuple(tid, t);
+			count++;
+		}
+
+		// deleting a tuple now should bring the page below the threshold and cause 
+		// the tuples to be redistributed rather than merged
+		Tuple t = it.next();
+		it.close();
+		BTreePageId pid = (BTreePageId) t.getRecordId().getPageId();
+		BTreeLeafPage p = (BTreeLeafPage) Database.getBufferPool().getPage(
+				tid, pid, Permissions.READ_ONLY);
+		assertEquals(377, p.getNumEmptySlots());
+		twoLeafPageFile.deleteTuple(tid, t);
+		assertTrue(p.getNumEmptySlots() < 377);
+		assertNotNull(p.getRightSiblingId());
+		assertEquals(3, twoLeafPageFile.numPages());
+	}
+
+	@Test
+	public void testDeferredRebalance() throws Exception {
+		// This should create a B+ tree with two partially full leaf pages
+		BTreeFile twoLeafPageFile = BTreeUtility.createRandomBTreeFile(2, 600,
+				null, null, 0);
+		twoLeafPageFile.setDeferredRebalance(true);
+
+		// delete tuples from the first page until it is well below minimum occupancy
+		DbFileIterator it = twoLeafPageFile.iterator(tid);
+		it.open();
+		BTreePageId pid = null;
+		for(int count = 0; count < 95; count++) {
+			Tuple t = it.next();
+			pid = (BTreePageId) t.getRecordId().getPageId();
+			twoLeafPageFile.deleteTuple(tid, t);
+		}
+		it.close();
+
+		// nothing should have been redistributed yet
+		BTreeLeafPage p = (BTreeLeafPage) Database.getBufferPool().getPage(
+				tid, pid, Permissions.READ_ONLY);
+		assertEquals(297, p.getNumEmptySlots());
+		assertEquals(1, twoLeafPageFile.numUnderFullPages());
+
+		// the maintenance pass should steal tuples from the right sibling
+		Database.getBufferPool().updateDirtyPages(tid, twoLeafPageFile.rebalance(tid));
+		assertEquals(0, twoLeafPageFile.numUnderFullPages());
+		BTreeLeafPage rightSibling = (BTreeLeafPage) Database.getBufferPool().getPage(
+				tid, p.getRightSiblingId(), Permissions.READ_ONLY);
+		assertEquals(252, p.getNumTuples());
+		assertEquals(253, rightSibling.getNumTuples());
+	}
+
+	@Test
+	public void testDeferredRebalanceAfterReopen() throws Exception {
+		BTreeFile twoLeafPageFile = BTreeUtility.createRandomBTreeFile(2, 600,
+				null, null, 0);
+		twoLeafPageFile.setDeferredRebalance(true);
+		DbFileIterator it = twoLeafPageFile.iterator(tid);
+		it.open();
+		BTreePageId pid = null;
+		for(int count = 0; count < 95; count++) {
+			Tuple t = it.next();
+			pid = (BTreePageId) t.getRecordId().getPageId();
+			twoLeafPageFile.deleteTuple(tid, t);
+		}
+		it.close();
+		Database.getBufferPool().flushAllPages();
+
+		// the record of under-full pages is lost with the file, and found again
+		// by scanning the leaves when deferred rebalancing is enabled
+		BTreeFile reopened = BTreeUtility.openBTreeFile(2, twoLeafPageFile.getFile(), 0);
+		assertEquals(0, reopened.numUnderFullPages());
+		reopened.setDeferredRebalance(true);
+		assertEquals(1, reopened.numUnderFullPages());
+		Database.getBufferPool().updateDirtyPages(tid, reopened.rebalance(tid));
+		assertEquals(0, reopened.numUnderFullPages());
+		BTreeLeafPage p = (BTreeLeafPage) Database.getBufferPool().getPage(
+				tid, new BTreePageId(reopened.getId(), pid.pageNumber(), BTreePageId.LEAF), 
+				Permissions.READ_ONLY);
+		assertEquals(252, p.getNumTuples());
+	}
+
+	@Test
+	public void testBackgroundRebalance() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 5000,
+				null, null, 0);
+		bigFile.setDeferredRebalance(true);
+		bigFile.startBackgroundRebalance(10);
+		try {
+			// no pass runs while an iterator is open
+			DbFileIterator it = bigFile.iterator(tid);
+			it.open();
+			int count = 0;
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				if(count++ % 3 != 0)
+					bigFile.deleteTuple(tid, t);
+			}
+			int underFull = bigFile.numUnderFullPages();
+			assertTrue(underFull > 1);
+			Thread.sleep(100);
+			assertEquals(underFull, bigFile.numUnderFullPages());
+			it.close();
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while(bigFile.numUnderFullPages() > 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(0, bigFile.numUnderFullPages());
+			assertTrue(bigFile.numRebalancePasses() > 0);
+		} finally {
+			bigFile.stopBackgroundRebalance();
+		}
+
+		// every tuple left is still there once, and the leaves are no longer under-full
+		DbFileIterator it = bigFile.iterator(tid);
+		it.open();
+		int count = 0;
+		Field prev = null;
+		BTreePageId pid = null;
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			assertTrue(prev == null || !t.getField(0).compare(Op.LESS_THAN, prev));
+			prev = t.getField(0);
+			count++;
+			pid = (BTreePageId) t.getRecordId().getPageId();
+			BTreeLeafPage p = (BTreeLeafPage) Database.getBufferPool().getPage(
+					tid, pid, Permissions.READ_ONLY);
+			assertTrue(p.getNumTuples() >= p.getMaxTuples() / 2);
+		}
+		it.close();
+		assertEquals(1667, count);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
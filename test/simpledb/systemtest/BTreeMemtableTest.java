@@ -0,0 +1,196 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class BTreeMemtableTest extends SimpleDbTestBase {
+    private final static Random r = new Random();
+    private final static int MAX_KEY = 2000;
+
+    private File file;
+    private BTreeFile f;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = File.createTempFile("memtable", ".dat");
+        file.deleteOnExit();
+        new File(file.getPath() + ".memlog").deleteOnExit();
+        new File(file.getPath() + ".memlog.frozen").deleteOnExit();
+        f = new BTreeFile(file, new int[] {0}, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        tid = new TransactionId();
+        tuples = new ArrayList<ArrayList<Integer>>();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        Database.reset();
+    }
+
+    private void insert(int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(r.nextInt(MAX_KEY));
+            tuple.add(tuples.size());
+            tuples.add(tuple);
+            Database.getBufferPool().insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(tuple));
+        }
+    }
+
+    private ArrayList<ArrayList<Integer>> read(DbFileIterator it) throws Exception {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return result;
+    }
+
+    private ArrayList<Integer> keys(ArrayList<ArrayList<Integer>> tuples) {
+        ArrayList<Integer> result = new ArrayList<Integer>();
+        for (ArrayList<Integer> t : tuples)
+            result.add(t.get(0));
+        return result;
+    }
+
+    private ArrayList<ArrayList<Integer>> sorted(ArrayList<ArrayList<Integer>> tuples) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(result, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> t1, ArrayList<Integer> t2) {
+                int cmp = t1.get(0).compareTo(t2.get(0));
+                return cmp != 0 ? cmp : t1.get(1).compareTo(t2.get(1));
+            }
+        });
+        return result;
+    }
+
+    private ArrayList<ArrayList<Integer>> matching(Op op, int key) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (new IntField(t.get(0)).compare(op, new IntField(key)))
+                result.add(t);
+        }
+        return result;
+    }
+
+    private void checkContents() throws Exception {
+        // scans return every tuple in key order, whether it is in the tree or a memtable
+        ArrayList<ArrayList<Integer>> scanned = read(f.iterator(tid));
+        assertEquals(keys(sorted(tuples)), keys(scanned));
+        assertEquals(sorted(tuples), sorted(scanned));
+
+        Op[] ops = new Op[] {Op.EQUALS, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ,
+                Op.LESS_THAN, Op.LESS_THAN_OR_EQ};
+        for (int i = 0; i < 10; i++) {
+            for (Op op : ops) {
+                int key = r.nextInt(MAX_KEY);
+                ArrayList<ArrayList<Integer>> found = read(f.indexIterator(tid, new IndexPredicate(op, new IntField(key))));
+                assertEquals(keys(sorted(matching(op, key))), keys(found));
+                assertEquals(sorted(matching(op, key)), sorted(found));
+            }
+        }
+        assertEquals(sorted(tuples), sorted(read(f.parallelIterator(tid, null, 3, false))));
+    }
+
+    private void delete(ArrayList<Integer> tuple) throws Exception {
+        DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(tuple.get(0))));
+        it.open();
+        Tuple t = null;
+        while (it.hasNext()) {
+            t = it.next();
+            if (SystemTestUtil.tupleToList(t).equals(tuple))
+                break;
+        }
+        it.close();
+        Database.getBufferPool().deleteTuple(tid, t);
+    }
+
+    @Test public void insertsAreMergedInBatches() throws Exception {
+        f.enableMemtable(1000);
+        insert(5500);
+        checkContents();
+        f.flushMemtable();
+        BTreeMemtable memtable = f.getMemtable();
+        assertEquals(0, memtable.size());
+        assertTrue(memtable.getMerges() > 1);
+        assertEquals(5500, memtable.getMergedEntries());
+        checkContents();
+
+        // the tuples are in the pages of the tree once the memtable is gone
+        f.disableMemtable();
+        assertFalse(new File(file.getPath() + ".memlog").exists());
+        assertNull(f.getMemtable());
+        checkContents();
+    }
+
+    @Test public void deletesAreAppliedByMerges() throws Exception {
+        insert(2000);
+        f.enableMemtable(700);
+        insert(1000);
+
+        // delete tuples in the tree, in the memtable and in frozen memtables
+        Collections.shuffle(tuples);
+        ArrayList<ArrayList<Integer>> remaining = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < tuples.size(); i++) {
+            if (i % 2 == 0)
+                remaining.add(tuples.get(i));
+            else
+                delete(tuples.get(i));
+        }
+        tuples = remaining;
+        checkContents();
+        f.flushMemtable();
+        assertEquals(0, f.getMemtable().size());
+        checkContents();
+        f.disableMemtable();
+        checkContents();
+    }
+
+    @Test public void logIsReplayedOnReopen() throws Exception {
+        insert(500);
+        f.enableMemtable(100000);
+        insert(2500);
+        delete(tuples.remove(tuples.size() - 1));
+
+        // a file reopened with unmerged changes gets its memtable back
+        BTreeFile reopened = new BTreeFile(file, new int[] {0}, Utility.getTupleDesc(2));
+        assertNotNull(reopened.getMemtable());
+        assertEquals(2499, reopened.getMemtable().size());
+        f = reopened;
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        checkContents();
+        insert(10);
+        f.flushMemtable();
+        checkContents();
+    }
+
+    @Test public void countedTreesHaveNoMemtable() throws Exception {
+        File counted = File.createTempFile("counted", ".dat");
+        counted.deleteOnExit();
+        try {
+            new BTreeFile(counted, new int[] {0}, Utility.getTupleDesc(2), true).enableMemtable(100);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeMemtableTest.class);
+    }
+}
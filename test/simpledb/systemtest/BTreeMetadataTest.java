@@ -0,0 +1,278 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class BTreeMetadataTest extends SimpleDbTestBase {
+    private final static Random r = new Random();
+    private final static int MAX_KEY = 5000;
+
+    private File file;
+    private BTreeFile f;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        // small pages, so that the tree has several levels of internal pages
+        BufferPool.setPageSize(1024);
+        Database.reset();
+        Database.resetBufferPool(1000);
+        tid = new TransactionId();
+        tuples = new ArrayList<ArrayList<Integer>>();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    private BTreeFile create(boolean counted, boolean buffered) throws Exception {
+        file = File.createTempFile("metadata", ".dat");
+        file.deleteOnExit();
+        new File(file.getPath() + ".meta").deleteOnExit();
+        BTreeFile bf = new BTreeFile(file, new int[] {0}, Utility.getTupleDesc(2, "c"), counted, buffered);
+        Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+        return bf;
+    }
+
+    private void insert(int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(r.nextInt(MAX_KEY));
+            tuple.add(tuples.size());
+            tuples.add(tuple);
+            Database.getBufferPool().insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(tuple));
+        }
+    }
+
+    /** Delete every tuple with the given key from the tree and from the expected tuples */
+    private void deleteKey(int key) throws Exception {
+        ArrayList<Tuple> found = new ArrayList<Tuple>();
+        DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+        it.open();
+        while (it.hasNext())
+            found.add(it.next());
+        it.close();
+        for (Tuple t : found)
+            Database.getBufferPool().deleteTuple(tid, t);
+        ArrayList<ArrayList<Integer>> remaining = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) != key)
+                remaining.add(t);
+        }
+        tuples = remaining;
+    }
+
+    private int minKey() {
+        int min = Integer.MAX_VALUE;
+        for (ArrayList<Integer> t : tuples)
+            min = Math.min(min, t.get(0));
+        return min;
+    }
+
+    private int maxKey() {
+        int max = Integer.MIN_VALUE;
+        for (ArrayList<Integer> t : tuples)
+            max = Math.max(max, t.get(0));
+        return max;
+    }
+
+    private void checkMetadata() throws Exception {
+        assertEquals(tuples.size(), f.getTupleCount(tid));
+        if (tuples.isEmpty()) {
+            assertNull(f.getMinKey(tid));
+            assertNull(f.getMaxKey(tid));
+            return;
+        }
+        assertEquals(new IntField(minKey()), f.getMinKey(tid));
+        assertEquals(new IntField(maxKey()), f.getMaxKey(tid));
+    }
+
+    private void insertsAndDeletes() throws Exception {
+        checkMetadata();
+        insert(5000);
+        checkMetadata();
+        // deleting the boundary keys forces the bounds to be found again
+        for (int i = 0; i < 10; i++) {
+            deleteKey(minKey());
+            checkMetadata();
+            deleteKey(maxKey());
+            checkMetadata();
+        }
+        for (int i = 0; i < 200; i++)
+            deleteKey(tuples.get(r.nextInt(tuples.size())).get(0));
+        checkMetadata();
+
+        int lower = MAX_KEY / 4;
+        int upper = MAX_KEY / 2;
+        int deleted = f.deleteRange(tid, null, false, new IntField(lower), true);
+        deleted += f.deleteRange(tid, new IntField(upper), false, null, false);
+        ArrayList<ArrayList<Integer>> remaining = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) > lower && t.get(0) <= upper)
+                remaining.add(t);
+        }
+        assertEquals(tuples.size() - remaining.size(), deleted);
+        tuples = remaining;
+        checkMetadata();
+
+        insert(1000);
+        checkMetadata();
+        f.deleteRange(tid, null, false, null, false);
+        tuples.clear();
+        checkMetadata();
+        insert(10);
+        checkMetadata();
+    }
+
+    @Test public void maintainedByInsertsAndDeletes() throws Exception {
+        f = create(false, false);
+        insertsAndDeletes();
+    }
+
+    @Test public void maintainedInCountedTrees() throws Exception {
+        f = create(true, false);
+        insertsAndDeletes();
+    }
+
+    @Test public void maintainedInBufferedTrees() throws Exception {
+        f = create(false, true);
+        insertsAndDeletes();
+    }
+
+    @Test public void encodedFilesComputeMetadataLazily() throws Exception {
+        ArrayList<ArrayList<Integer>> encoded = new ArrayList<ArrayList<Integer>>();
+        f = BTreeUtility.createRandomBTreeFile(2, 10000, MAX_KEY, null, encoded, 0);
+        tuples = encoded;
+        BTreeMetadataPage meta = (BTreeMetadataPage) Database.getBufferPool().getPage(tid,
+                BTreeMetadataPage.getId(f.getId()), Permissions.READ_ONLY);
+        assertFalse(meta.hasCount());
+        assertFalse(meta.hasKeyBounds());
+        checkMetadata();
+        // the scan may have evicted the page, so it is fetched again
+        meta = (BTreeMetadataPage) Database.getBufferPool().getPage(tid,
+                BTreeMetadataPage.getId(f.getId()), Permissions.READ_ONLY);
+        assertTrue(meta.hasCount());
+        assertTrue(meta.hasKeyBounds());
+        insert(100);
+        checkMetadata();
+    }
+
+    @Test public void survivesReopen() throws Exception {
+        f = create(false, false);
+        insert(5000);
+        checkMetadata();
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(1000);
+        f = new BTreeFile(file, 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        BTreeMetadataPage meta = (BTreeMetadataPage) Database.getBufferPool().getPage(tid,
+                BTreeMetadataPage.getId(f.getId()), Permissions.READ_ONLY);
+        assertTrue(meta.hasCount());
+        assertTrue(meta.hasKeyBounds());
+        checkMetadata();
+    }
+
+    @Test public void opensFilesWithNineByteRootPointer() throws Exception {
+        // a file as written before the metadata was kept: a 9-byte root pointer
+        // page followed by whole pages, with no metadata file next to it
+        f = create(false, false);
+        insert(5000);
+        Database.getBufferPool().flushAllPages();
+        assertEquals(9, BTreeRootPtrPage.getPageSize());
+        assertEquals(0, (file.length() - 9) % BufferPool.getPageSize());
+        assertTrue(new File(file.getPath() + ".meta").delete());
+
+        Database.resetBufferPool(1000);
+        f = new BTreeFile(file, 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        BTreeMetadataPage meta = (BTreeMetadataPage) Database.getBufferPool().getPage(tid,
+                BTreeMetadataPage.getId(f.getId()), Permissions.READ_ONLY);
+        assertFalse(meta.hasCount());
+        assertFalse(meta.hasKeyBounds());
+        int found = 0;
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            found++;
+        }
+        it.close();
+        assertEquals(tuples.size(), found);
+        checkMetadata();
+
+        // writing to it keeps the layout of the file
+        insert(100);
+        checkMetadata();
+        Database.getBufferPool().flushAllPages();
+        assertEquals(0, (file.length() - 9) % BufferPool.getPageSize());
+    }
+
+    private DbIterator plan(String aggOp, String field, HashMap<String, TableStats> stats) throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(f.getId(), "t");
+        lp.addProjectField(field, aggOp);
+        lp.addAggregate(aggOp, field, null);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    @Test public void plannerAnswersAggregatesFromMetadata() throws Exception {
+        f = create(false, false);
+        insert(5000);
+        String name = Database.getCatalog().getTableName(f.getId());
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(f.getId(), 1000));
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(1000);
+
+        // with the metadata on its own page, no other page is read
+        final int[] reads = new int[1];
+        f = new BTreeFile(file, 0, Utility.getTupleDesc(2, "c")) {
+            public Page readPage(PageId pid) {
+                reads[0]++;
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(f, name);
+        String[] ops = new String[] {"min", "max", "count"};
+        int[] expected = new int[] {minKey(), maxKey(), tuples.size()};
+        for (int i = 0; i < ops.length; i++) {
+            DbIterator plan = plan(ops[i], "t.c0", stats);
+            DbIterator scan = plan;
+            while (scan instanceof Operator)
+                scan = ((Operator) scan).getChildren()[0];
+            assertTrue(scan instanceof BTreeScan);
+            ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(expected[i]);
+            result.add(row);
+            SystemTestUtil.matchTuples(plan, result);
+        }
+        assertEquals(1, reads[0]);
+
+        // the bounds of a non-key field are not kept
+        DbIterator plan = plan("max", "t.c1", stats);
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        ArrayList<Integer> row = new ArrayList<Integer>();
+        row.add(tuples.size() - 1);
+        result.add(row);
+        SystemTestUtil.matchTuples(plan, result);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeMetadataTest.class);
+    }
+}
@@ -0,0 +1,132 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class BTreeParallelScanTest extends SimpleDbTestBase {
+    private final static Random r = new Random();
+
+    @After public void tearDown() throws Exception {
+        Database.reset();
+    }
+
+    private ArrayList<ArrayList<Integer>> read(DbFileIterator it) throws Exception {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return result;
+    }
+
+    private ArrayList<Integer> keys(ArrayList<ArrayList<Integer>> tuples) {
+        ArrayList<Integer> result = new ArrayList<Integer>();
+        for (ArrayList<Integer> t : tuples)
+            result.add(t.get(0));
+        return result;
+    }
+
+    private ArrayList<ArrayList<Integer>> sorted(ArrayList<ArrayList<Integer>> tuples) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(result, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> t1, ArrayList<Integer> t2) {
+                int cmp = t1.get(0).compareTo(t2.get(0));
+                return cmp != 0 ? cmp : t1.get(1).compareTo(t2.get(1));
+            }
+        });
+        return result;
+    }
+
+    @Test public void scanMatchesSerialScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 60000, null, tuples, 0);
+        TransactionId tid = new TransactionId();
+
+        // ordered scans return the tuples in key order
+        BTreeParallelScan scan = new BTreeParallelScan(f, tid, null, 4, true);
+        ArrayList<ArrayList<Integer>> ordered = read(scan);
+        assertEquals(keys(read(f.iterator(tid))), keys(ordered));
+        assertEquals(sorted(tuples), sorted(ordered));
+
+        // unordered scans return the same tuples
+        assertEquals(sorted(tuples), sorted(read(new BTreeParallelScan(f, tid, null, 4, false))));
+
+        // every predicate returns the same tuples as a serial index scan
+        Op[] ops = new Op[] {Op.EQUALS, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ,
+                Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.NOT_EQUALS};
+        for (Op op : ops) {
+            IndexPredicate ipred = new IndexPredicate(op, new IntField(tuples.get(r.nextInt(tuples.size())).get(0)));
+            ArrayList<ArrayList<Integer>> expected = read(f.indexIterator(tid, ipred));
+            assertEquals(keys(expected), keys(read(new BTreeParallelScan(f, tid, ipred, 3, true))));
+            assertEquals(sorted(expected), sorted(read(new BTreeParallelScan(f, tid, ipred, 3, false))));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void rewindAndClose() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, 0);
+        TransactionId tid = new TransactionId();
+
+        // stop reading part way through, while the tasks are blocked on full queues
+        BTreeParallelScan scan = new BTreeParallelScan(f, tid, null, 4, true);
+        scan.open();
+        assertTrue(scan.numPartitions() > 1);
+        for (int i = 0; i < 100; i++)
+            scan.next();
+        scan.rewind();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        assertEquals(tuples.size(), count);
+        scan.close();
+        assertFalse(scan.hasNext());
+
+        // a tree with a single leaf page is one partition
+        BTreeFile small = BTreeUtility.createRandomBTreeFile(2, 100, null, null, 0);
+        scan = new BTreeParallelScan(small, tid, null, 4, false);
+        scan.open();
+        assertEquals(1, scan.numPartitions());
+        scan.close();
+        assertEquals(100, read(scan).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void parallelBTreeScanFeedsAggregate() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 30000, null, tuples, 0);
+        int threshold = BTreeUtility.MAX_RAND_VALUE / 2;
+        int expected = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) >= threshold)
+                expected++;
+        }
+
+        TransactionId tid = new TransactionId();
+        BTreeScan scan = new BTreeScan(tid, f.getId(), "t",
+                new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(threshold)), 4, false);
+        Aggregate count = new Aggregate(scan, 1, Aggregator.NO_GROUPING, Aggregator.Op.COUNT);
+        count.open();
+        assertTrue(count.hasNext());
+        assertEquals(expected, ((IntField) count.next().getField(0)).getValue());
+        count.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeParallelScanTest.class);
+    }
+}
@@ -0,0 +1,125 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class BTreePinnedPagesTest extends SimpleDbTestBase {
+    private final static Random r = new Random();
+
+    /** Counts the number of readPage operations on leaf and non-leaf pages. */
+    class InstrumentedBTreeFile extends BTreeFile {
+        public InstrumentedBTreeFile(File f, int keyField, TupleDesc td) {
+            super(f, keyField, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            if (((BTreePageId) pid).pgcateg() == BTreePageId.LEAF)
+                leafReads += 1;
+            else
+                upperReads += 1;
+            return super.readPage(pid);
+        }
+
+        public int leafReads = 0;
+        public int upperReads = 0;
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.reset();
+    }
+
+    private int lookup(BTreeFile f, TransactionId tid, int key) throws Exception {
+        DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    @Test public void warmLookupReadsOnlyLeaves() throws Exception {
+        final int LEAF_PAGES = 200;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES * 502, null, tuples, 0);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        // the first lookup reads the root pointer, the root and a leaf
+        TransactionId tid = new TransactionId();
+        lookup(table, tid, tuples.get(0).get(0));
+        assertEquals(2, table.upperReads);
+        assertTrue(Database.getBufferPool().isPinned(BTreeRootPtrPage.getId(table.getId())));
+
+        // a full scan pushes every unpinned page out of the buffer pool
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        int scanned = 0;
+        while (it.hasNext()) {
+            it.next();
+            scanned++;
+        }
+        it.close();
+        assertEquals(tuples.size(), scanned);
+        assertEquals(2, table.upperReads);
+
+        // so each lookup costs one leaf read, or two if the key spans a page boundary
+        for (int i = 0; i < 100; i++) {
+            ArrayList<Integer> tuple = tuples.get(r.nextInt(tuples.size()));
+            int before = table.leafReads;
+            assertTrue(lookup(table, tid, tuple.get(0)) > 0);
+            assertTrue(table.leafReads - before <= 2);
+        }
+        assertEquals(2, table.upperReads);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void pinnedPagesFollowRootChanges() throws Exception {
+        File file = File.createTempFile("pinned", ".dat");
+        file.deleteOnExit();
+        BTreeFile f = BTreeUtility.openBTreeFile(2, file, 0);
+        TransactionId tid = new TransactionId();
+
+        // grow the tree from a single leaf to two levels
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < 3000; i++) {
+            int key = r.nextInt(100000);
+            keys.add(key);
+            Database.getBufferPool().insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(new int[] {key, i}));
+        }
+        for (int i = 0; i < 20; i++)
+            assertTrue(lookup(f, tid, keys.get(r.nextInt(keys.size()))) > 0);
+
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+        assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+        assertTrue(Database.getBufferPool().isPinned(rootPtr.getRootId()));
+
+        // pinning can be turned off
+        f.setPinnedLevels(0);
+        assertFalse(Database.getBufferPool().isPinned(rootPtr.getRootId()));
+        assertTrue(lookup(f, tid, keys.get(0)) > 0);
+        assertFalse(Database.getBufferPool().isPinned(rootPtr.getRootId()));
+        assertFalse(Database.getBufferPool().isPinned(rootPtr.getId()));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreePinnedPagesTest.class);
+    }
+}
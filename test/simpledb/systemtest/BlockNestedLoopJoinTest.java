@@ -0,0 +1,161 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class BlockNestedLoopJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private ArrayList<ArrayList<Integer>> t1Tuples;
+    private ArrayList<ArrayList<Integer>> t2Tuples;
+    private HeapFile table1;
+    private HeapFile table2;
+    private int innerScans;
+
+    private void createTables(int table1Rows, int table2Rows, int maxValue) throws Exception {
+        t1Tuples = new ArrayList<ArrayList<Integer>>();
+        t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile[] tables = SystemTestUtil.createRandomJoinTables(COLUMNS, table1Rows, table2Rows,
+                maxValue, t1Tuples, t2Tuples);
+        table1 = tables[0];
+        table2 = tables[1];
+    }
+
+    /** A scan of the inner table that counts how often it is read */
+    private DbIterator countingScan(TransactionId tid) {
+        innerScans = 0;
+        return new SeqScan(tid, table2.getId(), "") {
+            private static final long serialVersionUID = 1L;
+
+            public void open() throws DbException, TransactionAbortedException {
+                innerScans++;
+                super.open();
+            }
+
+            public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
+                innerScans++;
+                super.rewind();
+            }
+        };
+    }
+
+    private BlockNestedLoopJoin validateJoin(Predicate.Op op, int memoryPages) throws Exception {
+        TransactionId tid = new TransactionId();
+        BlockNestedLoopJoin join = new BlockNestedLoopJoin(new JoinPredicate(0, op, 0),
+                new SeqScan(tid, table1.getId(), ""), countingScan(tid), memoryPages);
+        SystemTestUtil.matchTuples(join, SystemTestUtil.expectedJoin(t1Tuples, t2Tuples, op));
+        Database.getBufferPool().transactionComplete(tid);
+        return join;
+    }
+
+    @Test public void allPredicates() throws Exception {
+        createTables(100, 80, 100);
+        Predicate.Op[] ops = new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.NOT_EQUALS,
+                Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ, Predicate.Op.LIKE };
+        for (Predicate.Op op : ops)
+            validateJoin(op, 1);
+    }
+
+    @Test public void innerScannedOncePerBlock() throws Exception {
+        createTables(2000, 500, 1000);
+        BlockNestedLoopJoin join = validateJoin(Predicate.Op.EQUALS, 1);
+        int blocks = (2000 + join.getBlockTuples() - 1) / join.getBlockTuples();
+        assertTrue(blocks > 1);
+        assertEquals(blocks, innerScans);
+
+        // a block large enough for the whole outer table reads the inner table once
+        validateJoin(Predicate.Op.EQUALS, 100);
+        assertEquals(1, innerScans);
+    }
+
+    @Test public void stringKeys() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE }, new String[] { "s" });
+        ArrayList<Tuple> words = new ArrayList<Tuple>();
+        ArrayList<Tuple> parts = new ArrayList<Tuple>();
+        String[] w = new String[] { "apple", "banana", "cherry", "grape" };
+        String[] p = new String[] { "an", "e", "x" };
+        for (String s : w) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField(s, Type.STRING_LEN));
+            words.add(t);
+        }
+        for (String s : p) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField(s, Type.STRING_LEN));
+            parts.add(t);
+        }
+        // string fields are compared through Field.compare
+        BlockNestedLoopJoin join = new BlockNestedLoopJoin(new JoinPredicate(0, Predicate.Op.LIKE, 0),
+                new TupleIterator(td, words), new TupleIterator(td, parts), 1);
+        int n = 0;
+        join.open();
+        while (join.hasNext()) {
+            Tuple t = join.next();
+            String word = ((StringField) t.getField(0)).getValue();
+            String part = ((StringField) t.getField(1)).getValue();
+            assertTrue(word.contains(part));
+            n++;
+        }
+        join.close();
+        // banana/an, apple/e, cherry/e, grape/e
+        assertEquals(4, n);
+    }
+
+    @Test public void rewind() throws Exception {
+        createTables(1500, 300, 500);
+        TransactionId tid = new TransactionId();
+        BlockNestedLoopJoin join = new BlockNestedLoopJoin(new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0),
+                new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""), 1);
+        join.open();
+        for (int i = 0; i < 10 && join.hasNext(); i++)
+            join.next();
+        join.rewind();
+        int n = 0;
+        while (join.hasNext()) {
+            join.next();
+            n++;
+        }
+        join.close();
+        assertEquals(SystemTestUtil.expectedJoin(t1Tuples, t2Tuples, Predicate.Op.GREATER_THAN).size(), n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void plannerUsesQueryMemoryBudget() throws Exception {
+        createTables(10, 10, 10);
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table1.getId(), "a");
+        lp.addScan(table2.getId(), "b");
+        lp.addJoin("a.c0", "b.c0", Predicate.Op.GREATER_THAN);
+        lp.addProjectField("a.c1", null);
+        lp.setMemoryPages(3);
+        java.util.HashMap<String, TableStats> stats = new java.util.HashMap<String, TableStats>();
+        stats.put(Database.getCatalog().getTableName(table1.getId()), new TableStats(table1.getId(), 1000));
+        stats.put(Database.getCatalog().getTableName(table2.getId()), new TableStats(table2.getId(), 1000));
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        BlockNestedLoopJoin join = (BlockNestedLoopJoin) ((Operator) plan).getChildren()[0];
+        assertEquals(3 * BufferPool.getPageSize() / join.getChildren()[0].getTupleDesc().getSize(),
+                join.getBlockTuples());
+
+        // the inner side is scanned once per block of outer pages
+        LogicalJoinNode gt = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.GREATER_THAN);
+        JoinOptimizer jo = new JoinOptimizer(lp, new java.util.Vector<LogicalJoinNode>());
+        double outer = 30 * 1000.0; // 30 pages at TableStats.IOCOSTPERPAGE
+        assertEquals(outer + 10 * 5000 + 100, jo.estimateJoinCost(gt, 10, 10, outer, 5000), 1e-6);
+        lp.setMemoryPages(30);
+        assertEquals(outer + 5000 + 100, jo.estimateJoinCost(gt, 10, 10, outer, 5000), 1e-6);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BlockNestedLoopJoinTest.class);
+    }
+}
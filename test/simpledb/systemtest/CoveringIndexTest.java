@@ -0,0 +1,125 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class CoveringIndexTest extends SimpleDbTestBase {
+    private static final int ROWS = 1000;
+    private static final int MAX_VALUE = 50;
+
+    private HeapFile table;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HashMap<String, TableStats> stats;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        table = SystemTestUtil.createRandomHeapFile(3, ROWS, MAX_VALUE, null, tuples, "c");
+        stats = new HashMap<String, TableStats>();
+        stats.put(Database.getCatalog().getTableName(table.getId()),
+                new TableStats(table.getId(), 1000));
+        tid = new TransactionId();
+    }
+
+    private CoveringIndex createIndex() throws Exception {
+        File f = File.createTempFile("covering", ".dat");
+        f.deleteOnExit();
+        return CoveringIndex.create(tid, "c1_idx", f, table.getId(), 1, new int[]{2});
+    }
+
+    /** Returns the scan at the bottom of a single-table plan */
+    private DbIterator findScan(DbIterator plan) {
+        while (plan instanceof Operator)
+            plan = ((Operator) plan).getChildren()[0];
+        return plan;
+    }
+
+    private LogicalPlan selectC2WhereC1Equals(int value) throws ParsingException {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addProjectField("t.c2", null);
+        lp.addFilter("t.c1", Predicate.Op.EQUALS, Integer.toString(value));
+        return lp;
+    }
+
+    @Test public void indexOnlyScanWhenCovered() throws Exception {
+        CoveringIndex index = createIndex();
+        DbIterator plan = selectC2WhereC1Equals(7).physicalPlan(tid, stats, false);
+
+        DbIterator scan = findScan(plan);
+        assertTrue(scan instanceof BTreeScan);
+        assertEquals(index.getName(), ((BTreeScan) scan).getTableName());
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) == 7) {
+                ArrayList<Integer> row = new ArrayList<Integer>();
+                row.add(t.get(2));
+                expected.add(row);
+            }
+        }
+        SystemTestUtil.matchTuples(plan, expected);
+    }
+
+    @Test public void baseTableWhenNotCovered() throws Exception {
+        createIndex();
+        LogicalPlan lp = selectC2WhereC1Equals(7);
+        lp.addProjectField("t.c0", null);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(findScan(plan) instanceof SeqScan);
+    }
+
+    @Test public void indexMaintained() throws Exception {
+        CoveringIndex index = createIndex();
+
+        // delete every tuple with c1 == 3 and add a new one
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        ArrayList<Tuple> victims = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(1)).getValue() == 3)
+                victims.add(t);
+        }
+        it.close();
+        for (Tuple t : victims)
+            Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[]{1, 3, 99}));
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) != 3) {
+                ArrayList<Integer> row = new ArrayList<Integer>();
+                row.add(t.get(1));
+                row.add(t.get(2));
+                expected.add(row);
+            }
+        }
+        ArrayList<Integer> added = new ArrayList<Integer>();
+        added.add(3);
+        added.add(99);
+        expected.add(added);
+        SystemTestUtil.matchTuples(index.getFile(), tid, expected);
+
+        DbIterator plan = selectC2WhereC1Equals(3).physicalPlan(tid, stats, false);
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        ArrayList<Integer> row = new ArrayList<Integer>();
+        row.add(99);
+        rows.add(row);
+        SystemTestUtil.matchTuples(plan, rows);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(CoveringIndexTest.class);
+    }
+}
@@ -0,0 +1,138 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private ArrayList<ArrayList<Integer>> t1Tuples;
+    private ArrayList<ArrayList<Integer>> t2Tuples;
+    private HeapFile table1;
+    private HeapFile table2;
+
+    private void createTables(int table1Rows, int table2Rows, int maxValue) throws Exception {
+        t1Tuples = new ArrayList<ArrayList<Integer>>();
+        t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile[] tables = SystemTestUtil.createRandomJoinTables(COLUMNS, table1Rows, table2Rows,
+                maxValue, t1Tuples, t2Tuples);
+        table1 = tables[0];
+        table2 = tables[1];
+    }
+
+    private void validateJoin(boolean buildLeft) throws Exception {
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin join = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), ""), buildLeft);
+        ArrayList<ArrayList<Integer>> expected = SystemTestUtil.expectedJoin(t1Tuples, t2Tuples);
+        SystemTestUtil.matchTuples(join, expected);
+
+        // a rewound join returns the same tuples again
+        join.open();
+        join.rewind();
+        int n = 0;
+        while (join.hasNext()) {
+            join.next();
+            n++;
+        }
+        join.close();
+        assertEquals(expected.size(), n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void buildOnEitherSide() throws Exception {
+        // small values, so that keys repeat on both sides
+        createTables(1000, 300, 100);
+        validateJoin(false);
+        validateJoin(true);
+    }
+
+    @Test public void noMatches() throws Exception {
+        t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HashMap<Integer, Integer> spec = new HashMap<Integer, Integer>();
+        spec.put(0, 1);
+        table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, spec, t1Tuples);
+        spec.put(0, 2);
+        t2Tuples = new ArrayList<ArrayList<Integer>>();
+        table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 20, spec, t2Tuples);
+        validateJoin(false);
+        validateJoin(true);
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void equalityOnly() throws Exception {
+        createTables(1, 1, 10);
+        TransactionId tid = new TransactionId();
+        new HashEquiJoin(new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0),
+                new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+    }
+
+    private DbIterator plan(TransactionId tid, Predicate.Op op) throws Exception {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(Database.getCatalog().getTableName(table1.getId()), new TableStats(table1.getId(), 1000));
+        stats.put(Database.getCatalog().getTableName(table2.getId()), new TableStats(table2.getId(), 1000));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table1.getId(), "a");
+        lp.addScan(table2.getId(), "b");
+        lp.addJoin("a.c0", "b.c0", op);
+        lp.addProjectField("a.c1", null);
+        lp.addProjectField("b.c1", null);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    @Test public void plannerUsesHashJoinForEquality() throws Exception {
+        // large enough that a nested loops join would take minutes
+        createTables(100000, 100000, 1000000);
+        TransactionId tid = new TransactionId();
+        DbIterator plan = plan(tid, Predicate.Op.EQUALS);
+        assertTrue(plan.getClass() == Project.class);
+        // the table statistics give no cardinalities, so the join may spill
+        assertTrue(((Operator) plan).getChildren()[0] instanceof HybridHashJoin);
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : SystemTestUtil.expectedJoin(t1Tuples, t2Tuples)) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(t.get(1));
+            row.add(t.get(3));
+            expected.add(row);
+        }
+        SystemTestUtil.matchTuples(plan, expected);
+
+        plan = plan(tid, Predicate.Op.GREATER_THAN);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof BlockNestedLoopJoin);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void buildOnSmallerSide() throws Exception {
+        createTables(10, 10, 10);
+        TransactionId tid = new TransactionId();
+        LogicalJoinNode lj = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        DbIterator a = new SeqScan(tid, table1.getId(), "a");
+        DbIterator b = new SeqScan(tid, table2.getId(), "b");
+        assertTrue(((HashEquiJoin) JoinOptimizer.instantiateJoin(lj, a, b, 10, 1000)).buildsLeft());
+        assertFalse(((HashEquiJoin) JoinOptimizer.instantiateJoin(lj, a, b, 1000, 10)).buildsLeft());
+        // without estimates the right side is built, by a join which may spill
+        assertFalse(((HybridHashJoin) JoinOptimizer.instantiateJoin(lj, a, b, 0, 0)).buildsLeft());
+    }
+
+    @Test public void costOfJoins() throws Exception {
+        LogicalJoinNode eq = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        LogicalJoinNode gt = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.GREATER_THAN);
+        JoinOptimizer jo = new JoinOptimizer(new LogicalPlan(), new java.util.Vector<LogicalJoinNode>());
+        double hash = jo.estimateJoinCost(eq, 100000, 100000, 1000, 1000);
+        double nested = jo.estimateJoinCost(gt, 100000, 100000, 1000, 1000);
+        assertTrue(hash < nested / 1000);
+        // the hash join cost is linear in the size of its inputs
+        assertEquals(2 * hash, jo.estimateJoinCost(eq, 200000, 200000, 2000, 2000), 1e-6);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
@@ -0,0 +1,243 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class HashFileTest extends SimpleDbTestBase {
+    private final static Random r = new Random();
+    private final static int MAX_KEY = 5000;
+
+    private File file;
+    private HashFile f;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        // small pages, so that the directory spans several pages
+        BufferPool.setPageSize(256);
+        Database.reset();
+        Database.resetBufferPool(5000);
+        file = File.createTempFile("hash", ".dat");
+        file.deleteOnExit();
+        f = new HashFile(file, 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        tid = new TransactionId();
+        tuples = new ArrayList<ArrayList<Integer>>();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    private void insert(int key) throws Exception {
+        ArrayList<Integer> tuple = new ArrayList<Integer>();
+        tuple.add(key);
+        tuple.add(tuples.size());
+        tuples.add(tuple);
+        Database.getBufferPool().insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(tuple));
+    }
+
+    private ArrayList<ArrayList<Integer>> read(DbFileIterator it) throws Exception {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return result;
+    }
+
+    private ArrayList<ArrayList<Integer>> sorted(ArrayList<ArrayList<Integer>> tuples) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(result, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> t1, ArrayList<Integer> t2) {
+                int cmp = t1.get(0).compareTo(t2.get(0));
+                return cmp != 0 ? cmp : t1.get(1).compareTo(t2.get(1));
+            }
+        });
+        return result;
+    }
+
+    private ArrayList<ArrayList<Integer>> matching(Op op, int key) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (new IntField(t.get(0)).compare(op, new IntField(key)))
+                result.add(t);
+        }
+        return result;
+    }
+
+    private void checkContents() throws Exception {
+        assertEquals(sorted(tuples), sorted(read(f.iterator(tid))));
+        for (int i = 0; i < 50; i++) {
+            int key = i % 2 == 0 ? tuples.get(r.nextInt(tuples.size())).get(0) : r.nextInt(MAX_KEY);
+            assertEquals(sorted(matching(Op.EQUALS, key)),
+                    sorted(read(f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key))))));
+        }
+        int key = r.nextInt(MAX_KEY);
+        assertEquals(sorted(matching(Op.LESS_THAN, key)),
+                sorted(read(f.indexIterator(tid, new IndexPredicate(Op.LESS_THAN, new IntField(key))))));
+    }
+
+    @Test public void bucketsSplitAndDirectoryGrows() throws Exception {
+        for (int i = 0; i < 20000; i++)
+            insert(r.nextInt(MAX_KEY));
+        checkContents();
+        // the directory no longer fits on one page
+        int depth = f.getGlobalDepth(tid);
+        assertTrue((1 << depth) > HashDirectoryPage.getNumEntries());
+        assertTrue(depth <= HashFile.MAX_DEPTH);
+
+        // a point lookup reads one bucket page, besides the directory pages
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(5000);
+        final int[] reads = new int[1];
+        f = new HashFile(file, 0, Utility.getTupleDesc(2, "c")) {
+            public Page readPage(PageId pid) {
+                reads[0]++;
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        reads[0] = 0;
+        int lookups = 200;
+        for (int i = 0; i < lookups; i++) {
+            int key = tuples.get(r.nextInt(tuples.size())).get(0);
+            assertEquals(sorted(matching(Op.EQUALS, key)),
+                    sorted(read(f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key))))));
+        }
+        int directoryPages = (1 << depth) / HashDirectoryPage.getNumEntries() + 1;
+        assertTrue(reads[0] <= lookups + directoryPages);
+    }
+
+    @Test public void duplicateKeysGetOverflowPages() throws Exception {
+        // identical keys cannot be told apart by splitting, so they do not deepen the directory
+        for (int i = 0; i < 500; i++)
+            insert(42);
+        assertEquals(0, f.getGlobalDepth(tid));
+        assertTrue(f.numPages() > 2);
+        checkContents();
+
+        for (int i = 0; i < 2000; i++)
+            insert(i % 3 == 0 ? 42 : r.nextInt(MAX_KEY));
+        checkContents();
+        assertTrue(f.getGlobalDepth(tid) <= HashFile.MAX_DEPTH);
+    }
+
+    @Test public void deletesAndReinserts() throws Exception {
+        for (int i = 0; i < 5000; i++)
+            insert(r.nextInt(MAX_KEY));
+        int pages = f.numPages();
+
+        Collections.shuffle(tuples);
+        ArrayList<ArrayList<Integer>> remaining = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> deleted = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < tuples.size(); i++) {
+            ArrayList<Integer> tuple = tuples.get(i);
+            if (i % 2 == 0) {
+                remaining.add(tuple);
+                continue;
+            }
+            deleted.add(tuple);
+            DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(tuple.get(0))));
+            it.open();
+            Tuple t = null;
+            while (it.hasNext()) {
+                t = it.next();
+                if (SystemTestUtil.tupleToList(t).equals(tuple))
+                    break;
+            }
+            it.close();
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        tuples = remaining;
+        checkContents();
+
+        // the freed slots are reused when the same keys are inserted again
+        for (ArrayList<Integer> t : deleted)
+            insert(t.get(0));
+        checkContents();
+        assertEquals(pages, f.numPages());
+    }
+
+    @Test public void reopenKeepsContents() throws Exception {
+        for (int i = 0; i < 5000; i++)
+            insert(r.nextInt(MAX_KEY));
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(5000);
+        f = new HashFile(file, 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        checkContents();
+    }
+
+    @Test public void plannerUsesHashForEquality() throws Exception {
+        for (int i = 0; i < 3000; i++)
+            insert(r.nextInt(MAX_KEY));
+        String name = Database.getCatalog().getTableName(f.getId());
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(f.getId(), 1000));
+        int key = tuples.get(0).get(0);
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(f.getId(), "t");
+        lp.addProjectField("t.c1", null);
+        lp.addFilter("t.c0", Op.EQUALS, Integer.toString(key));
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        DbIterator scan = plan;
+        while (scan instanceof Operator)
+            scan = ((Operator) scan).getChildren()[0];
+        assertTrue(scan instanceof HashScan);
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : matching(Op.EQUALS, key)) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(t.get(1));
+            expected.add(row);
+        }
+        SystemTestUtil.matchTuples(plan, expected);
+
+        // a range cannot use the hash of the key
+        lp = new LogicalPlan();
+        lp.addScan(f.getId(), "t");
+        lp.addProjectField("t.c1", null);
+        lp.addFilter("t.c0", Op.LESS_THAN, Integer.toString(key));
+        scan = lp.physicalPlan(tid, stats, false);
+        while (scan instanceof Operator)
+            scan = ((Operator) scan).getChildren()[0];
+        assertTrue(scan instanceof SeqScan);
+    }
+
+    @Test public void catalogLoadsHashTables() throws Exception {
+        File dir = file.getParentFile();
+        File catalog = File.createTempFile("catalog", ".txt", dir);
+        catalog.deleteOnExit();
+        String name = "hashed" + Math.abs(r.nextInt());
+        new File(dir, name + ".dat").deleteOnExit();
+        FileWriter w = new FileWriter(catalog);
+        w.write(name + " (k int pk, v int) hash\n");
+        w.close();
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+        DbFile loaded = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(name));
+        assertTrue(loaded instanceof HashFile);
+        assertEquals(0, ((HashFile) loaded).keyField());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(HashFileTest.class);
+    }
+}
@@ -0,0 +1,128 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class HybridHashJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private ArrayList<ArrayList<Integer>> t1Tuples;
+    private ArrayList<ArrayList<Integer>> t2Tuples;
+    private HeapFile table1;
+    private HeapFile table2;
+
+    private void createTables(int table1Rows, int table2Rows, int maxValue,
+            Map<Integer, Integer> spec1, Map<Integer, Integer> spec2) throws Exception {
+        t1Tuples = new ArrayList<ArrayList<Integer>>();
+        t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile[] tables = SystemTestUtil.createRandomJoinTables(COLUMNS, table1Rows, table2Rows,
+                maxValue, spec1, spec2, t1Tuples, t2Tuples);
+        table1 = tables[0];
+        table2 = tables[1];
+    }
+
+    /** Run the join, check its result, and return it for inspection */
+    private HybridHashJoin validateJoin(boolean buildLeft, int memoryPages) throws Exception {
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HybridHashJoin join = new HybridHashJoin(p, new SeqScan(tid, table1.getId(), ""),
+                new SeqScan(tid, table2.getId(), ""), buildLeft, memoryPages);
+        SystemTestUtil.matchTuples(join, SystemTestUtil.expectedJoin(t1Tuples, t2Tuples));
+        Database.getBufferPool().transactionComplete(tid);
+        return join;
+    }
+
+    @Test public void fitsInMemory() throws Exception {
+        createTables(5000, 3000, 2000, null, null);
+        HybridHashJoin join = validateJoin(false, 1000);
+        assertEquals(0, join.getSpilledPartitions());
+        assertEquals(0, join.getSpillPages());
+    }
+
+    @Test public void spillsPartitions() throws Exception {
+        createTables(20000, 15000, 20000, null, null);
+        // 2 pages hold about a thousand build tuples, so most partitions spill
+        HybridHashJoin join = validateJoin(false, 2);
+        assertTrue(join.getSpilledPartitions() > HybridHashJoin.FANOUT / 2);
+        assertTrue(join.getSpillPages() > 0);
+        join = validateJoin(true, 2);
+        assertTrue(join.getSpilledPartitions() > HybridHashJoin.FANOUT / 2);
+
+        // spilling only what does not fit keeps some partitions in memory
+        join = validateJoin(false, 10);
+        assertTrue(join.getSpilledPartitions() > 0);
+        assertTrue(join.getSpilledPartitions() < HybridHashJoin.FANOUT);
+    }
+
+    @Test public void repartitionsLargePartitions() throws Exception {
+        // with a single page of memory, spilled partitions must be split again
+        createTables(30000, 2000, 1000000, null, null);
+        HybridHashJoin join = validateJoin(true, 1);
+        assertEquals(HybridHashJoin.FANOUT, join.getSpilledPartitions());
+    }
+
+    @Test public void skewedKeysAreChunked() throws Exception {
+        // every build tuple has the same key, so no partition can be split
+        HashMap<Integer, Integer> spec = new HashMap<Integer, Integer>();
+        spec.put(0, 7);
+        createTables(10, 1000, 10, spec, spec);
+        HybridHashJoin join = validateJoin(false, 1);
+        assertTrue(join.getSpilledPartitions() > 0);
+    }
+
+    @Test public void rewind() throws Exception {
+        createTables(5000, 5000, 3000, null, null);
+        TransactionId tid = new TransactionId();
+        HybridHashJoin join = new HybridHashJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""), false, 2);
+        join.open();
+        for (int i = 0; i < 10 && join.hasNext(); i++)
+            join.next();
+        join.rewind();
+        int n = 0;
+        while (join.hasNext()) {
+            join.next();
+            n++;
+        }
+        join.close();
+        assertEquals(SystemTestUtil.expectedJoin(t1Tuples, t2Tuples).size(), n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void plannerSpillsLargeBuildSides() throws Exception {
+        createTables(10, 10, 10, null, null);
+        TransactionId tid = new TransactionId();
+        LogicalJoinNode lj = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        DbIterator a = new SeqScan(tid, table1.getId(), "a");
+        DbIterator b = new SeqScan(tid, table2.getId(), "b");
+        int fits = HybridHashJoin.DEFAULT_MEMORY_PAGES * BufferPool.getPageSize() / b.getTupleDesc().getSize();
+        assertTrue(JoinOptimizer.instantiateJoin(lj, a, b, 10 * fits, fits) instanceof HashEquiJoin);
+        DbIterator j = JoinOptimizer.instantiateJoin(lj, a, b, 10 * fits, 2 * fits);
+        assertTrue(j instanceof HybridHashJoin);
+        assertFalse(((HybridHashJoin) j).buildsLeft());
+        // a join whose size is not known is never held wholly in memory
+        assertTrue(JoinOptimizer.instantiateJoin(lj, a, b, 0, fits) instanceof HybridHashJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, a, b, 10 * fits, 0) instanceof HybridHashJoin);
+
+        // the spill I/O makes a join with a build side larger than memory cost more than two scans
+        JoinOptimizer jo = new JoinOptimizer(new LogicalPlan(), new java.util.Vector<LogicalJoinNode>());
+        int pages = 4 * HybridHashJoin.DEFAULT_MEMORY_PAGES;
+        double cost = pages * 1000.0; // TableStats.IOCOSTPERPAGE
+        double inMemory = jo.estimateJoinCost(lj, 100, 100, cost / 8, cost / 8);
+        double spilled = jo.estimateJoinCost(lj, 100, 100, cost, cost);
+        assertEquals(2 * cost / 8 + 200, inMemory, 1e-6);
+        assertEquals(2 * cost + 200 + 2 * 0.75 * 2 * cost, spilled, 1e-6);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(HybridHashJoinTest.class);
+    }
+}
@@ -0,0 +1,130 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private ArrayList<ArrayList<Integer>> t1Tuples;
+    private ArrayList<ArrayList<Integer>> t2Tuples;
+    private HeapFile table1;
+    private BTreeFile table2;
+
+    private void createTables(int table1Rows, int table2Rows, int maxValue) throws Exception {
+        t1Tuples = new ArrayList<ArrayList<Integer>>();
+        table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, table1Rows, maxValue, null, t1Tuples, "c");
+        t2Tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(COLUMNS, table2Rows, maxValue, null, t2Tuples, 0);
+        // reopen the tree with column names the planner can refer to
+        table2 = BTreeUtility.openBTreeFile(COLUMNS, "c", f.getFile(), 0);
+    }
+
+    private void validateJoin(Predicate.Op op) throws Exception {
+        TransactionId tid = new TransactionId();
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(new JoinPredicate(0, op, 0),
+                new SeqScan(tid, table1.getId(), ""), tid, table2.getId(), "");
+        SystemTestUtil.matchTuples(join, SystemTestUtil.expectedJoin(t1Tuples, t2Tuples, op));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void equalityAcrossBatches() throws Exception {
+        // more outer tuples than fit in a batch, with keys repeating on both sides
+        createTables(IndexNestedLoopJoin.BATCH_SIZE * 5 / 2, 2000, 1000);
+        validateJoin(Predicate.Op.EQUALS);
+    }
+
+    @Test public void bandJoins() throws Exception {
+        createTables(60, 100, 100);
+        validateJoin(Predicate.Op.LESS_THAN);
+        validateJoin(Predicate.Op.LESS_THAN_OR_EQ);
+        validateJoin(Predicate.Op.GREATER_THAN);
+        validateJoin(Predicate.Op.GREATER_THAN_OR_EQ);
+    }
+
+    @Test public void probesReadFewPages() throws Exception {
+        createTables(20, 100000, 1000000);
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(1000);
+        final int[] reads = new int[1];
+        BTreeFile counting = new BTreeFile(table2.getFile(), 0, Utility.getTupleDesc(COLUMNS, "c")) {
+            public Page readPage(PageId pid) {
+                reads[0]++;
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(counting, SystemTestUtil.getUUID());
+        table2 = counting;
+        validateJoin(Predicate.Op.EQUALS);
+        // a few pages for each of the 20 probes, rather than the whole tree
+        assertTrue(reads[0] <= 20 * 4);
+        assertTrue(reads[0] < table2.numPages() / 4);
+    }
+
+    @Test public void rewind() throws Exception {
+        createTables(1500, 1500, 500);
+        TransactionId tid = new TransactionId();
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId(), ""), tid, table2.getId(), "");
+        join.open();
+        for (int i = 0; i < 10 && join.hasNext(); i++)
+            join.next();
+        join.rewind();
+        int n = 0;
+        while (join.hasNext()) {
+            join.next();
+            n++;
+        }
+        join.close();
+        assertEquals(SystemTestUtil.expectedJoin(t1Tuples, t2Tuples, Predicate.Op.EQUALS).size(), n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void innerMustBeKeyedOnJoinField() throws Exception {
+        createTables(1, 1, 10);
+        TransactionId tid = new TransactionId();
+        new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+                new SeqScan(tid, table1.getId(), ""), tid, table2.getId(), "");
+    }
+
+    @Test public void plannerProbesIndexedTables() throws Exception {
+        createTables(10, 10, 10);
+        TransactionId tid = new TransactionId();
+        LogicalJoinNode eq = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        LogicalJoinNode lt = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.LESS_THAN);
+        DbIterator a = new SeqScan(tid, table1.getId(), "a");
+        DbIterator b = new SeqScan(tid, table2.getId(), "b");
+
+        // a comparison is always looked up rather than computed with nested loops
+        assertTrue(JoinOptimizer.instantiateJoin(lt, a, b) instanceof IndexNestedLoopJoin);
+        // an equality join is looked up only when few probes are expected
+        assertTrue(JoinOptimizer.instantiateJoin(eq, a, b) instanceof HybridHashJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(eq, a, b, 1, 10) instanceof HashEquiJoin);
+        LogicalJoinNode keyless = new LogicalJoinNode("b", "a", "c0", "c0", Predicate.Op.LESS_THAN);
+        assertTrue(JoinOptimizer.instantiateJoin(keyless, b, a) instanceof BlockNestedLoopJoin);
+
+        // the cost of probing is proportional to the number of outer tuples
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table1.getId(), "a");
+        lp.addScan(table2.getId(), "b");
+        JoinOptimizer jo = new JoinOptimizer(lp, new java.util.Vector<LogicalJoinNode>());
+        double scan = 1000000;
+        double few = jo.estimateJoinCost(eq, 10, 100000, 1000, scan);
+        double more = jo.estimateJoinCost(eq, 20, 100000, 1000, scan);
+        assertTrue(few < scan);
+        assertEquals(2 * (few - 1000), more - 1000, 1e-6);
+        // with many outer tuples, a hash join is cheaper
+        assertEquals(1000 + scan + 100000 + 100000, jo.estimateJoinCost(eq, 100000, 100000, 1000, scan), 1e-6);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
@@ -0,0 +1,195 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class LimitTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile table;
+    private int pulled;
+
+    private void createTable(int rows, int maxValue) throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        table = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, maxValue, null, tuples, "c");
+    }
+
+    /** A scan of the table that counts the tuples read from it */
+    private DbIterator countingScan(TransactionId tid) {
+        pulled = 0;
+        return new SeqScan(tid, table.getId(), "t") {
+            private static final long serialVersionUID = 1L;
+
+            public Tuple next() throws TransactionAbortedException, DbException {
+                pulled++;
+                return super.next();
+            }
+        };
+    }
+
+    /** The tuples of the table, stably sorted on their first field */
+    private ArrayList<ArrayList<Integer>> expectedOrder(final boolean asc) {
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(expected, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                int c = a.get(0).compareTo(b.get(0));
+                return asc ? c : -c;
+            }
+        });
+        return expected;
+    }
+
+    private ArrayList<ArrayList<Integer>> read(DbIterator it) throws Exception {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            out.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return out;
+    }
+
+    @Test public void limitStopsReadingChild() throws Exception {
+        createTable(10000, 1000);
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> out = read(new Limit(countingScan(tid), 20, 5));
+        assertEquals(new ArrayList<ArrayList<Integer>>(tuples.subList(5, 25)), out);
+        assertEquals(25, pulled);
+
+        // an offset past the end of the child returns nothing
+        assertEquals(0, read(new Limit(countingScan(tid), 20, 20000)).size());
+        assertEquals(0, read(new Limit(countingScan(tid), 0, 0)).size());
+        assertEquals(0, pulled);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void topN() throws Exception {
+        // keys repeat, so the order of equal keys is checked too
+        createTable(20000, 500);
+        TransactionId tid = new TransactionId();
+        for (boolean asc : new boolean[] { true, false }) {
+            for (int n : new int[] { 1, 20, 1500, 20000, 30000 }) {
+                ArrayList<ArrayList<Integer>> out = read(new TopN(0, asc, countingScan(tid), n));
+                ArrayList<ArrayList<Integer>> expected = expectedOrder(asc);
+                assertEquals(new ArrayList<ArrayList<Integer>>(expected.subList(0, Math.min(n, 20000))), out);
+                assertEquals(20000, pulled);
+            }
+        }
+        assertEquals(0, read(new TopN(0, true, countingScan(tid), 0)).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void topNStringKeys() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE }, new String[] { "s" });
+        ArrayList<Tuple> in = new ArrayList<Tuple>();
+        ArrayList<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            String s = "k" + ((i * 7919) % 1000);
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField(s, Type.STRING_LEN));
+            in.add(t);
+            expected.add(s);
+        }
+        Collections.sort(expected, Collections.reverseOrder());
+        TopN top = new TopN(0, false, new TupleIterator(td, in), 10);
+        top.open();
+        for (String s : expected.subList(0, 10))
+            assertEquals(s, ((StringField) top.next().getField(0)).getValue());
+        assertFalse(top.hasNext());
+        top.rewind();
+        assertEquals(expected.get(0), ((StringField) top.next().getField(0)).getValue());
+        top.close();
+    }
+
+    private DbIterator parse(String sql) throws Exception {
+        String name = "limit_t";
+        Database.getCatalog().addTable(table, name);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(table.getId(), 1000));
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    @Test public void parsedLimit() throws Exception {
+        createTable(5000, 100000);
+        DbIterator plan = parse("SELECT t.c0, t.c1 FROM limit_t t ORDER BY t.c0 DESC LIMIT 10 OFFSET 3;");
+        Limit limit = (Limit) ((Operator) plan).getChildren()[0];
+        assertEquals(10, limit.getLimit());
+        assertEquals(3, limit.getOffset());
+        TopN top = (TopN) limit.getChildren()[0];
+        assertEquals(13, top.getN());
+        assertEquals(new ArrayList<ArrayList<Integer>>(expectedOrder(false).subList(3, 13)), read(plan));
+
+        // without an ORDER BY, the limit reads only as much as it returns
+        plan = parse("select t.c1 from limit_t t where t.c0 > 0 limit 7;");
+        limit = (Limit) ((Operator) plan).getChildren()[0];
+        assertEquals(7, limit.getLimit());
+        assertEquals(0, limit.getOffset());
+        assertTrue(limit.getChildren()[0] instanceof Filter);
+        assertEquals(7, read(plan).size());
+
+        // a query without a limit is planned as before
+        plan = parse("SELECT t.c0 FROM limit_t t ORDER BY t.c0;");
+        assertTrue(((Operator) plan).getChildren()[0] instanceof OrderBy);
+    }
+
+    private int countTuples(DbFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    @Test public void limitOnlyInQueries() throws Exception {
+        createTable(1000, 1000);
+        Database.getCatalog().addTable(table, "limit_t");
+        File file = File.createTempFile("limit", ".dat");
+        file.deleteOnExit();
+        BTreeFile tree = BTreeUtility.openBTreeFile(2, "c", file, 0);
+        Database.getCatalog().addTable(tree, "limit_bt");
+        TransactionId tid = new TransactionId();
+        for (ArrayList<Integer> tuple : tuples)
+            Database.getBufferPool().insertTuple(tid, tree.getId(), BTreeUtility.getBTreeTuple(tuple));
+        Database.getBufferPool().transactionComplete(tid);
+
+        // a LIMIT on anything but a query is rejected, not dropped
+        Parser p = new Parser();
+        p.processNextStatement("INSERT INTO limit_t SELECT * FROM limit_bt LIMIT 3;");
+        p.processNextStatement("DELETE FROM limit_t WHERE limit_t.c1 > 0 LIMIT 5;");
+        // a key range of a B+ tree is deleted without a scan
+        p.processNextStatement("DELETE FROM limit_bt WHERE limit_bt.c0 < 500 LIMIT 1;");
+        assertEquals(tuples.size(), countTuples(table));
+        assertEquals(tuples.size(), countTuples(tree));
+
+        // without the clause, the same statements run
+        p.processNextStatement("DELETE FROM limit_bt WHERE limit_bt.c0 < 500;");
+        int below = 0;
+        for (ArrayList<Integer> tuple : tuples) {
+            if (tuple.get(0) < 500)
+                below++;
+        }
+        assertEquals(tuples.size() - below, countTuples(tree));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LimitTest.class);
+    }
+}
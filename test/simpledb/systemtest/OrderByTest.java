@@ -0,0 +1,146 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class OrderByTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile table;
+
+    private void createTable(int rows, int maxValue) throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        table = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, maxValue, null, tuples, "c");
+    }
+
+    /** The tuples of the table, stably sorted on their first field */
+    private ArrayList<ArrayList<Integer>> expectedOrder(final boolean asc) {
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(expected, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                int c = a.get(0).compareTo(b.get(0));
+                return asc ? c : -c;
+            }
+        });
+        return expected;
+    }
+
+    private ArrayList<ArrayList<Integer>> read(DbIterator it) throws Exception {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext())
+            out.add(SystemTestUtil.tupleToList(it.next()));
+        return out;
+    }
+
+    private OrderBy validateSort(boolean asc, int memoryPages) throws Exception {
+        TransactionId tid = new TransactionId();
+        OrderBy sort = new OrderBy(0, asc, new SeqScan(tid, table.getId(), ""), memoryPages);
+        sort.open();
+        // the sort is stable, so the whole tuples come back in a single order
+        assertEquals(expectedOrder(asc), read(sort));
+        sort.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return sort;
+    }
+
+    @Test public void inMemory() throws Exception {
+        createTable(5000, 100);
+        OrderBy sort = validateSort(true, 100);
+        assertEquals(0, sort.numSpilledRuns());
+        validateSort(false, 100);
+    }
+
+    @Test public void spilledRuns() throws Exception {
+        createTable(20000, 1000);
+        // a run of a page at a time, merged two runs at a time
+        OrderBy sort = validateSort(true, 1);
+        int runTuples = BufferPool.getPageSize() / (COLUMNS * Type.INT_TYPE.getLen());
+        assertEquals((20000 + runTuples - 1) / runTuples, sort.numSpilledRuns());
+        assertTrue(sort.numMergePasses() > 1);
+
+        // runs which can be merged in a single pass
+        sort = validateSort(false, 10);
+        assertTrue(sort.numSpilledRuns() > 1);
+        assertEquals(0, sort.numMergePasses());
+    }
+
+    @Test public void stringKeys() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE }, new String[] { "s", "i" });
+        ArrayList<Tuple> in = new ArrayList<Tuple>();
+        ArrayList<String> expected = new ArrayList<String>();
+        Random r = new Random();
+        for (int i = 0; i < 3000; i++) {
+            String s = "k" + r.nextInt(1000);
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField(s, Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            in.add(t);
+            expected.add(s);
+        }
+        Collections.sort(expected, Collections.reverseOrder());
+
+        OrderBy sort = new OrderBy(0, false, new TupleIterator(td, in), 2);
+        sort.open();
+        assertTrue(sort.numSpilledRuns() > 1);
+        Tuple prev = null;
+        for (String s : expected) {
+            assertTrue(sort.hasNext());
+            Tuple t = sort.next();
+            assertEquals(s, ((StringField) t.getField(0)).getValue());
+            // equal keys keep the order they were read in
+            if (prev != null && ((StringField) prev.getField(0)).getValue().equals(s))
+                assertTrue(((IntField) prev.getField(1)).getValue() < ((IntField) t.getField(1)).getValue());
+            prev = t;
+        }
+        assertFalse(sort.hasNext());
+        sort.close();
+    }
+
+    @Test public void rewindAndReopen() throws Exception {
+        createTable(5000, 500);
+        TransactionId tid = new TransactionId();
+        for (int memoryPages : new int[] { 1, 100 }) {
+            OrderBy sort = new OrderBy(0, true, new SeqScan(tid, table.getId(), ""), memoryPages);
+            sort.open();
+            for (int i = 0; i < 10; i++)
+                sort.next();
+            sort.rewind();
+            assertEquals(expectedOrder(true), read(sort));
+            sort.close();
+            sort.open();
+            assertEquals(expectedOrder(true), read(sort));
+            sort.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void plannerUsesQueryMemoryBudget() throws Exception {
+        createTable(10, 10);
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addProjectField("t.c1", null);
+        lp.addOrderBy("t.c1", false);
+        lp.setMemoryPages(7);
+        java.util.HashMap<String, TableStats> stats = new java.util.HashMap<String, TableStats>();
+        stats.put(Database.getCatalog().getTableName(table.getId()), new TableStats(table.getId(), 1000));
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        OrderBy sort = (OrderBy) ((Operator) plan).getChildren()[0];
+        assertEquals(7, sort.getMemoryPages());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OrderByTest.class);
+    }
+}
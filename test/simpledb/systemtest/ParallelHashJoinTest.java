@@ -0,0 +1,126 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class ParallelHashJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private ArrayList<ArrayList<Integer>> t1Tuples;
+    private ArrayList<ArrayList<Integer>> t2Tuples;
+    private HeapFile table1;
+    private HeapFile table2;
+
+    private void createTables(int table1Rows, int table2Rows, int maxValue) throws Exception {
+        t1Tuples = new ArrayList<ArrayList<Integer>>();
+        t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile[] tables = SystemTestUtil.createRandomJoinTables(COLUMNS, table1Rows, table2Rows,
+                maxValue, t1Tuples, t2Tuples);
+        table1 = tables[0];
+        table2 = tables[1];
+    }
+
+    private ParallelHashJoin join(TransactionId tid, boolean buildLeft, int parallelism) {
+        return new ParallelHashJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""),
+                buildLeft, parallelism);
+    }
+
+    private void validateJoin(boolean buildLeft, int parallelism) throws Exception {
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(join(tid, buildLeft, parallelism), SystemTestUtil.expectedJoin(t1Tuples, t2Tuples));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void matchesOnAnyNumberOfThreads() throws Exception {
+        // small values, so that keys repeat on both sides
+        createTables(3000, 2000, 1000);
+        for (int threads : new int[] { 1, 2, 4, 7 }) {
+            validateJoin(false, threads);
+            validateJoin(true, threads);
+        }
+    }
+
+    @Test public void radixPartitions() throws Exception {
+        createTables(20000, 200000, 4000000);
+        TransactionId tid = new TransactionId();
+        ParallelHashJoin join = join(tid, false, 2);
+        SystemTestUtil.matchTuples(join, SystemTestUtil.expectedJoin(t1Tuples, t2Tuples));
+        // enough partitions for the build side of each to stay in the cache
+        join.open();
+        int partitions = join.numPartitions();
+        join.close();
+        assertEquals(0, partitions & (partitions - 1));
+        assertTrue(partitions >= 200000 * 8 / ParallelHashJoin.PARTITION_BYTES);
+        assertTrue(partitions >= 2 * 4);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void closeWhileJoining() throws Exception {
+        // more joined tuples than the threads can queue up before they block
+        createTables(5000, 5000, 50);
+        TransactionId tid = new TransactionId();
+        ParallelHashJoin join = join(tid, false, 4);
+        for (int i = 0; i < 3; i++) {
+            join.open();
+            for (int j = 0; j < 100; j++)
+                join.next();
+            join.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void rewind() throws Exception {
+        createTables(5000, 5000, 3000);
+        TransactionId tid = new TransactionId();
+        ParallelHashJoin join = join(tid, false, 4);
+        join.open();
+        for (int i = 0; i < 10 && join.hasNext(); i++)
+            join.next();
+        join.rewind();
+        int n = 0;
+        while (join.hasNext()) {
+            join.next();
+            n++;
+        }
+        join.close();
+        assertEquals(SystemTestUtil.expectedJoin(t1Tuples, t2Tuples).size(), n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void equalityOnly() throws Exception {
+        createTables(1, 1, 10);
+        TransactionId tid = new TransactionId();
+        new ParallelHashJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0),
+                new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""), false, 2);
+    }
+
+    @Test public void plannerJoinsLargeInputsInParallel() throws Exception {
+        createTables(10, 10, 10);
+        TransactionId tid = new TransactionId();
+        LogicalJoinNode lj = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        DbIterator a = new SeqScan(tid, table1.getId(), "a");
+        DbIterator b = new SeqScan(tid, table2.getId(), "b");
+        int n = ParallelHashJoin.MIN_PARALLEL_TUPLES;
+        DbIterator j = JoinOptimizer.instantiateJoin(lj, a, b, n, n / 2);
+        if (Runtime.getRuntime().availableProcessors() > 1) {
+            assertTrue(j instanceof ParallelHashJoin);
+            assertFalse(((ParallelHashJoin) j).buildsLeft());
+        } else {
+            assertTrue(j instanceof HashEquiJoin);
+        }
+        // small inputs are not worth the threads
+        assertTrue(JoinOptimizer.instantiateJoin(lj, a, b, 100, 100) instanceof HashEquiJoin);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelHashJoinTest.class);
+    }
+}
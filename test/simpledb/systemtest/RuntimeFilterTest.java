@@ -0,0 +1,210 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class RuntimeFilterTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private ArrayList<ArrayList<Integer>> factTuples;
+    private ArrayList<ArrayList<Integer>> dimTuples;
+    private HeapFile fact;
+    private HeapFile dim;
+
+    private void createTables(int factRows, int dimRows, int maxValue) throws Exception {
+        factTuples = new ArrayList<ArrayList<Integer>>();
+        fact = SystemTestUtil.createRandomHeapFile(COLUMNS, factRows, maxValue, null, factTuples, "c");
+        dimTuples = new ArrayList<ArrayList<Integer>>();
+        dim = SystemTestUtil.createRandomHeapFile(COLUMNS, dimRows, maxValue, null, dimTuples, "c");
+    }
+
+    /** The dimension tuples whose second field is less than bound */
+    private DbIterator filteredDim(TransactionId tid, int bound) {
+        return new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(bound)),
+                new SeqScan(tid, dim.getId(), "d"));
+    }
+
+    /** The join of the dimension tuples whose second field is less than bound with the fact tuples */
+    private ArrayList<ArrayList<Integer>> expectedJoin(int bound) {
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> d : dimTuples) {
+            if (d.get(1) >= bound)
+                continue;
+            for (ArrayList<Integer> f : factTuples) {
+                if (!d.get(0).equals(f.get(0)))
+                    continue;
+                ArrayList<Integer> out = new ArrayList<Integer>(d);
+                out.addAll(f);
+                expected.add(out);
+            }
+        }
+        return expected;
+    }
+
+    /** Read a join to the end, and return the filter it pushed to a scan */
+    private RuntimeFilter drain(DbIterator join, DbIterator scan) throws Exception {
+        join.open();
+        RuntimeFilter rf = scan instanceof SeqScan ? ((SeqScan) scan).getRuntimeFilters().get(0)
+                : ((BTreeScan) scan).getRuntimeFilters().get(0);
+        while (join.hasNext())
+            join.next();
+        join.close();
+        return rf;
+    }
+
+    @Test public void hashJoinFiltersProbeScan() throws Exception {
+        createTables(20000, 1000, 10000);
+        TransactionId tid = new TransactionId();
+        SeqScan factScan = new SeqScan(tid, fact.getId(), "f");
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                filteredDim(tid, 1000), factScan, true);
+        SystemTestUtil.matchTuples(join, expectedJoin(1000));
+        join.open();
+        assertEquals(1, factScan.getRuntimeFilters().size());
+        join.close();
+        // the filter lasts while the join is open
+        assertEquals(0, factScan.getRuntimeFilters().size());
+
+        RuntimeFilter rf = drain(join, factScan);
+        assertSame(join, rf.getSource());
+        assertEquals(0, rf.getField());
+        // about 10 of the 10000 keys are in the filtered dimension, so
+        // nearly every fact tuple is dropped by the scan
+        BloomFilter keys = rf.getBloomFilter();
+        assertEquals(20000, keys.getProbes());
+        assertTrue(keys.getNegatives() > 19000);
+        assertTrue(rf.isEnabled());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void pushedThroughFiltersAndJoins() throws Exception {
+        createTables(5000, 500, 2000);
+        TransactionId tid = new TransactionId();
+        SeqScan factScan = new SeqScan(tid, fact.getId(), "f");
+        // (fact where c1 >= 0) join dim1, probed with the fact key
+        DbIterator lower = new Join(new JoinPredicate(1, Predicate.Op.EQUALS, 1),
+                new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)), factScan),
+                new SeqScan(tid, dim.getId(), "d1"));
+        HashEquiJoin upper = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                filteredDim(tid, 200), lower, true);
+        upper.open();
+        assertEquals(1, factScan.getRuntimeFilters().size());
+        assertEquals(0, factScan.getRuntimeFilters().get(0).getField());
+        int n = 0;
+        while (upper.hasNext()) {
+            Tuple t = upper.next();
+            assertEquals(t.getField(0), t.getField(2));
+            assertEquals(t.getField(3), t.getField(5));
+            n++;
+        }
+        upper.close();
+        assertEquals(0, factScan.getRuntimeFilters().size());
+
+        int expected = 0;
+        for (ArrayList<Integer> d : dimTuples) {
+            if (d.get(1) >= 200)
+                continue;
+            for (ArrayList<Integer> f : factTuples) {
+                if (!d.get(0).equals(f.get(0)))
+                    continue;
+                for (ArrayList<Integer> d1 : dimTuples) {
+                    if (f.get(1).equals(d1.get(1)))
+                        expected++;
+                }
+            }
+        }
+        assertEquals(expected, n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void nearestFilter() throws Exception {
+        createTables(3000, 300, 1000);
+        TransactionId tid = new TransactionId();
+        // the key cannot be followed through the aggregate, so the filter
+        // above it applies the runtime filter
+        Filter above = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(0)),
+                new Aggregate(new SeqScan(tid, fact.getId(), "f"), 1, 0, Aggregator.Op.COUNT));
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                filteredDim(tid, 100), above, true);
+        join.open();
+        assertEquals(1, above.getRuntimeFilters().size());
+        int n = 0;
+        while (join.hasNext()) {
+            join.next();
+            n++;
+        }
+        join.close();
+        assertEquals(0, above.getRuntimeFilters().size());
+
+        int expected = 0;
+        java.util.HashSet<Integer> keys = new java.util.HashSet<Integer>();
+        for (ArrayList<Integer> f : factTuples)
+            keys.add(f.get(0));
+        for (ArrayList<Integer> d : dimTuples) {
+            if (d.get(1) < 100 && keys.contains(d.get(0)))
+                expected++;
+        }
+        assertEquals(expected, n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void unselectiveFilterTurnsOff() throws Exception {
+        createTables(5000, 5000, 100);
+        TransactionId tid = new TransactionId();
+        SeqScan factScan = new SeqScan(tid, fact.getId(), "f");
+        // every key of the fact table is on the build side
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, dim.getId(), "d"), factScan, true);
+        RuntimeFilter rf = drain(join, factScan);
+        assertFalse(rf.isEnabled());
+        assertEquals(RuntimeFilter.SAMPLE_PROBES, rf.getBloomFilter().getProbes());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void otherHashJoins() throws Exception {
+        createTables(10000, 1000, 5000);
+        ArrayList<ArrayList<Integer>> expected = expectedJoin(500);
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+        // a hybrid hash join filters the probe tuples before spilling them
+        SeqScan factScan = new SeqScan(tid, fact.getId(), "f");
+        HybridHashJoin hybrid = new HybridHashJoin(p, filteredDim(tid, 500), factScan, true, 1);
+        SystemTestUtil.matchTuples(hybrid, expected);
+        RuntimeFilter rf = drain(hybrid, factScan);
+        assertTrue(rf.getBloomFilter().getNegatives() > 0);
+
+        factScan = new SeqScan(tid, fact.getId(), "f");
+        ParallelHashJoin parallel = new ParallelHashJoin(p, filteredDim(tid, 500), factScan, true, 2);
+        SystemTestUtil.matchTuples(parallel, expected);
+        rf = drain(parallel, factScan);
+        assertTrue(rf.getBloomFilter().getNegatives() > 0);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void btreeProbeScan() throws Exception {
+        createTables(10, 1000, 5000);
+        ArrayList<ArrayList<Integer>> btreeTuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(COLUMNS, 10000, 5000, null, btreeTuples, 0);
+        BTreeFile tree = BTreeUtility.openBTreeFile(COLUMNS, "c", f.getFile(), 0);
+        factTuples = btreeTuples;
+        TransactionId tid = new TransactionId();
+        BTreeScan scan = new BTreeScan(tid, tree.getId(), "f", null);
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                filteredDim(tid, 500), scan, true);
+        SystemTestUtil.matchTuples(join, expectedJoin(500));
+        RuntimeFilter rf = drain(join, scan);
+        assertTrue(rf.getBloomFilter().getNegatives() > 9000);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RuntimeFilterTest.class);
+    }
+}
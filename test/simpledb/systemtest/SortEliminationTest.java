@@ -0,0 +1,196 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class SortEliminationTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private BTreeFile tree;
+
+    private void createTree(int rows, int maxValue) throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(COLUMNS, rows, maxValue, null, tuples, 0);
+        tree = BTreeUtility.openBTreeFile(COLUMNS, "c", f.getFile(), 0);
+    }
+
+    /** The first fields of the tuples of the tree which satisfy a predicate, in descending order */
+    private ArrayList<Integer> expectedKeys(Op op, int key) {
+        ArrayList<Integer> expected = new ArrayList<Integer>();
+        for (ArrayList<Integer> t : tuples) {
+            if (op == null || new IntField(t.get(0)).compare(op, new IntField(key)))
+                expected.add(t.get(0));
+        }
+        Collections.sort(expected, Collections.reverseOrder());
+        return expected;
+    }
+
+    private ArrayList<Integer> readKeys(DbIterator it, int field) throws Exception {
+        ArrayList<Integer> out = new ArrayList<Integer>();
+        it.open();
+        while (it.hasNext())
+            out.add(((IntField) it.next().getField(field)).getValue());
+        it.close();
+        return out;
+    }
+
+    @Test public void reverseScan() throws Exception {
+        // keys repeat across leaves
+        createTree(20000, 2000);
+        TransactionId tid = new TransactionId();
+        assertTrue(tree.isReversible());
+        BTreeScan scan = new BTreeScan(tid, tree.getId(), "t", null, true);
+        assertTrue(scan.isDescending());
+        assertEquals(-1, scan.sortedField());
+        assertEquals(expectedKeys(null, 0), readKeys(scan, 0));
+
+        int[] keys = { -1, 0, 1, 999, 1000, 1999, 2000, tuples.get(0).get(0) };
+        Op[] ops = { Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN,
+                Op.GREATER_THAN_OR_EQ, Op.NOT_EQUALS };
+        for (int key : keys) {
+            for (Op op : ops) {
+                scan = new BTreeScan(tid, tree.getId(), "t", new IndexPredicate(op, new IntField(key)), true);
+                assertEquals(op + " " + key, expectedKeys(op, key), readKeys(scan, 0));
+            }
+        }
+
+        // rewinding starts from the largest key again
+        scan = new BTreeScan(tid, tree.getId(), "t", new IndexPredicate(Op.LESS_THAN, new IntField(500)), true);
+        scan.open();
+        scan.next();
+        scan.rewind();
+        assertEquals((int) expectedKeys(Op.LESS_THAN, 500).get(0), ((IntField) scan.next().getField(0)).getValue());
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private DbIterator parse(DbFile table, String sql) throws Exception {
+        String name = "sorted_t";
+        Database.getCatalog().addTable(table, name);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(table.getId(), 1000));
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    /** @return the operator below the projection at the top of a plan */
+    private DbIterator belowProject(DbIterator plan) {
+        return ((Operator) plan).getChildren()[0];
+    }
+
+    @Test public void plannerReadsIndexInOrder() throws Exception {
+        createTree(5000, 100000);
+
+        // an ascending order needs no sort
+        DbIterator plan = parse(tree, "SELECT t.c0, t.c1 FROM sorted_t t ORDER BY t.c0;");
+        assertEquals(0, JoinOptimizer.sortedField(belowProject(plan)));
+        ArrayList<Integer> expected = expectedKeys(null, 0);
+        Collections.reverse(expected);
+        assertEquals(expected, readKeys(plan, 0));
+
+        // a descending one reads the tree backwards
+        plan = parse(tree, "SELECT t.c1, t.c0 FROM sorted_t t ORDER BY t.c0 DESC;");
+        BTreeScan scan = (BTreeScan) belowProject(plan);
+        assertTrue(scan.isDescending());
+        assertEquals(expectedKeys(null, 0), readKeys(plan, 1));
+
+        // through a filter on the key, which the scan answers, and one on
+        // another field, with a limit that stops the scan early
+        plan = parse(tree, "SELECT t.c0 FROM sorted_t t WHERE t.c0 < 50000 AND t.c1 > 10000 "
+                + "ORDER BY t.c0 DESC LIMIT 10 OFFSET 2;");
+        Limit limit = (Limit) belowProject(plan);
+        DbIterator child = limit.getChildren()[0];
+        while (child instanceof Filter)
+            child = ((Filter) child).getChildren()[0];
+        assertTrue(((BTreeScan) child).isDescending());
+        expected = new ArrayList<Integer>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < 50000 && t.get(1) > 10000)
+                expected.add(t.get(0));
+        }
+        Collections.sort(expected, Collections.reverseOrder());
+        assertEquals(new ArrayList<Integer>(expected.subList(2, 12)), readKeys(plan, 0));
+    }
+
+    @Test public void sortWhenOrderIsUnknown() throws Exception {
+        createTree(1000, 1000);
+        // the tree is not ordered on the second field
+        DbIterator plan = parse(tree, "SELECT t.c0, t.c1 FROM sorted_t t ORDER BY t.c1 DESC;");
+        assertTrue(belowProject(plan) instanceof OrderBy);
+
+        // nor is a heap file on any field
+        ArrayList<ArrayList<Integer>> heapTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile heap = SystemTestUtil.createRandomHeapFile(COLUMNS, 1000, 1000, null, heapTuples, "c");
+        plan = parse(heap, "SELECT t.c0 FROM sorted_t t ORDER BY t.c0 DESC;");
+        assertTrue(belowProject(plan) instanceof OrderBy);
+
+        // a tree with a memtable returns its changes merged in ascending
+        // order only, so a descending order is sorted
+        tree.enableMemtable(1000);
+        try {
+            assertFalse(tree.isReversible());
+            plan = parse(tree, "SELECT t.c0 FROM sorted_t t ORDER BY t.c0 DESC;");
+            assertTrue(belowProject(plan) instanceof OrderBy);
+            assertEquals(expectedKeys(null, 0), readKeys(plan, 0));
+            plan = parse(tree, "SELECT t.c0 FROM sorted_t t ORDER BY t.c0;");
+            assertEquals(0, JoinOptimizer.sortedField(belowProject(plan)));
+        } finally {
+            tree.disableMemtable();
+        }
+    }
+
+    @Test public void reversedThroughJoinsAndProjections() throws Exception {
+        createTree(3000, 1000);
+        ArrayList<ArrayList<Integer>> dimTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile dim = SystemTestUtil.createRandomHeapFile(COLUMNS, 200, 1000, null, dimTuples, "c");
+        TransactionId tid = new TransactionId();
+
+        // the tree is probed with the dimension keys, so the join returns
+        // the order of the tree on the right-hand fields
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(1, Op.EQUALS, 0),
+                new SeqScan(tid, dim.getId(), "d"), new SeqScan(tid, tree.getId(), "t"), true);
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        fields.add(3);
+        fields.add(2);
+        ArrayList<Type> types = new ArrayList<Type>();
+        types.add(Type.INT_TYPE);
+        types.add(Type.INT_TYPE);
+        Project project = new Project(fields, types, join);
+        assertEquals(1, JoinOptimizer.sortedField(project));
+        // the order of a field which is not projected out is unknown
+        assertEquals(-1, JoinOptimizer.sortedField(new Project(
+                new ArrayList<Integer>(fields.subList(0, 1)), new ArrayList<Type>(types.subList(0, 1)), join)));
+        assertNull(JoinOptimizer.reverseOrder(project, 0));
+
+        assertSame(project, JoinOptimizer.reverseOrder(project, 1));
+        assertTrue(((BTreeScan) join.getChildren()[1]).isDescending());
+        assertEquals(-1, JoinOptimizer.sortedField(project));
+        ArrayList<Integer> keys = readKeys(project, 1);
+        int expected = 0;
+        for (ArrayList<Integer> d : dimTuples) {
+            for (ArrayList<Integer> t : tuples) {
+                if (d.get(1).equals(t.get(0)))
+                    expected++;
+            }
+        }
+        assertEquals(expected, keys.size());
+        for (int i = 1; i < keys.size(); i++)
+            assertTrue(keys.get(i - 1) >= keys.get(i));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SortEliminationTest.class);
+    }
+}
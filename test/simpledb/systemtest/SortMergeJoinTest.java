@@ -0,0 +1,171 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private ArrayList<ArrayList<Integer>> t1Tuples;
+    private ArrayList<ArrayList<Integer>> t2Tuples;
+    private BTreeFile table1;
+    private BTreeFile table2;
+
+    private BTreeFile createTable(int rows, int maxValue, ArrayList<ArrayList<Integer>> tuples)
+            throws Exception {
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(COLUMNS, rows, maxValue, null, tuples, 0);
+        // reopen the tree with column names the planner can refer to
+        return BTreeUtility.openBTreeFile(COLUMNS, "c", f.getFile(), 0);
+    }
+
+    private void createTables(int table1Rows, int table2Rows, int maxValue) throws Exception {
+        t1Tuples = new ArrayList<ArrayList<Integer>>();
+        table1 = createTable(table1Rows, maxValue, t1Tuples);
+        t2Tuples = new ArrayList<ArrayList<Integer>>();
+        table2 = createTable(table2Rows, maxValue, t2Tuples);
+    }
+
+    /** A scan of a B+ tree that fails if it is rewound */
+    private DbIterator scanOnce(TransactionId tid, BTreeFile f) {
+        return new BTreeScan(tid, f.getId(), "", null) {
+            private static final long serialVersionUID = 1L;
+
+            public void rewind() {
+                fail("a merge join should read its children once");
+            }
+        };
+    }
+
+    private void validateJoin(Predicate.Op op) throws Exception {
+        TransactionId tid = new TransactionId();
+        SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                scanOnce(tid, table1), scanOnce(tid, table2));
+        SystemTestUtil.matchTuples(join, SystemTestUtil.expectedJoin(t1Tuples, t2Tuples, op));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void equalityWithDuplicateKeys() throws Exception {
+        // small values, so that keys repeat on both sides
+        createTables(1000, 300, 100);
+        validateJoin(Predicate.Op.EQUALS);
+    }
+
+    @Test public void bandJoins() throws Exception {
+        createTables(100, 80, 100);
+        validateJoin(Predicate.Op.LESS_THAN);
+        validateJoin(Predicate.Op.LESS_THAN_OR_EQ);
+        validateJoin(Predicate.Op.GREATER_THAN);
+        validateJoin(Predicate.Op.GREATER_THAN_OR_EQ);
+    }
+
+    @Test public void noMatches() throws Exception {
+        t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HashMap<Integer, Integer> spec = new HashMap<Integer, Integer>();
+        spec.put(0, 5);
+        table1 = BTreeUtility.createRandomBTreeFile(COLUMNS, 10, spec, t1Tuples, 0);
+        spec.put(0, 2);
+        t2Tuples = new ArrayList<ArrayList<Integer>>();
+        table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 20, spec, t2Tuples, 0);
+        validateJoin(Predicate.Op.EQUALS);
+        validateJoin(Predicate.Op.LESS_THAN);
+        validateJoin(Predicate.Op.GREATER_THAN);
+    }
+
+    @Test public void rewind() throws Exception {
+        createTables(500, 500, 50);
+        TransactionId tid = new TransactionId();
+        SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new BTreeScan(tid, table1.getId(), "", null), new BTreeScan(tid, table2.getId(), "", null));
+        join.open();
+        for (int i = 0; i < 10 && join.hasNext(); i++)
+            join.next();
+        join.rewind();
+        int n = 0;
+        while (join.hasNext()) {
+            join.next();
+            n++;
+        }
+        join.close();
+        assertEquals(SystemTestUtil.expectedJoin(t1Tuples, t2Tuples, Predicate.Op.EQUALS).size(), n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void unsupportedPredicate() throws Exception {
+        createTables(1, 1, 10);
+        TransactionId tid = new TransactionId();
+        new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+                new BTreeScan(tid, table1.getId(), "", null), new BTreeScan(tid, table2.getId(), "", null));
+    }
+
+    private DbIterator plan(TransactionId tid, String field1, Predicate.Op op, String orderBy)
+            throws Exception {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(Database.getCatalog().getTableName(table1.getId()), new TableStats(table1.getId(), 1000));
+        stats.put(Database.getCatalog().getTableName(table2.getId()), new TableStats(table2.getId(), 1000));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table1.getId(), "a");
+        lp.addScan(table2.getId(), "b");
+        lp.addJoin(field1, "b.c0", op);
+        lp.addProjectField("a.c0", null);
+        lp.addProjectField("b.c1", null);
+        if (orderBy != null)
+            lp.addOrderBy(orderBy, true);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    @Test public void plannerMergesOrderedScans() throws Exception {
+        createTables(2000, 1000, 500);
+        TransactionId tid = new TransactionId();
+
+        // both trees are keyed on the join field, so they are merged, and the
+        // result is already in order of the left key
+        DbIterator plan = plan(tid, "a.c0", Predicate.Op.EQUALS, "a.c0");
+        DbIterator join = ((Operator) plan).getChildren()[0];
+        assertTrue(join instanceof SortMergeJoin);
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : SystemTestUtil.expectedJoin(t1Tuples, t2Tuples, Predicate.Op.EQUALS)) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(t.get(0));
+            row.add(t.get(3));
+            expected.add(row);
+        }
+        plan.open();
+        int n = 0;
+        int last = Integer.MIN_VALUE;
+        while (plan.hasNext()) {
+            int key = ((IntField) plan.next().getField(0)).getValue();
+            assertTrue(key >= last);
+            last = key;
+            n++;
+        }
+        plan.close();
+        assertEquals(expected.size(), n);
+        SystemTestUtil.matchTuples(plan, expected);
+
+        // a band join is merged too, in the order of the right child
+        plan = plan(tid, "a.c0", Predicate.Op.LESS_THAN, null);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof SortMergeJoin);
+        assertEquals(table1.getTupleDesc().numFields(),
+                JoinOptimizer.sortedField(((Operator) plan).getChildren()[0]));
+
+        // an order the plan does not return is still sorted
+        plan = plan(tid, "a.c0", Predicate.Op.EQUALS, "b.c1");
+        assertTrue(((Operator) plan).getChildren()[0] instanceof OrderBy);
+
+        // a join on a field that is not a key cannot be merged
+        plan = plan(tid, "a.c1", Predicate.Op.EQUALS, null);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof HybridHashJoin);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
@@ -6,6 +6,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 import java.util.UUID;
 
 import org.junit.Assert;
@@ -146,6 +148,86 @@ public class SystemTestUtil {
         }
     }
 
+    /**
+     * Create two tables of random tuples, with columns named c0, c1, ..., for
+     * tests of joins on their first columns.
+     *
+     * @param t1Tuples the list to fill with the tuples of the first table
+     * @param t2Tuples the list to fill with the tuples of the second table
+     * @return the first and second tables
+     */
+    public static HeapFile[] createRandomJoinTables(int columns, int table1Rows, int table2Rows,
+            int maxValue, ArrayList<ArrayList<Integer>> t1Tuples, ArrayList<ArrayList<Integer>> t2Tuples)
+            throws IOException, DbException, TransactionAbortedException {
+        return createRandomJoinTables(columns, table1Rows, table2Rows, maxValue, null, null, t1Tuples, t2Tuples);
+    }
+
+    /**
+     * @param spec1 Mapping between column index and value in the first table.
+     * @param spec2 Mapping between column index and value in the second table.
+     * @see #createRandomJoinTables(int, int, int, int, ArrayList, ArrayList)
+     */
+    public static HeapFile[] createRandomJoinTables(int columns, int table1Rows, int table2Rows,
+            int maxValue, Map<Integer, Integer> spec1, Map<Integer, Integer> spec2,
+            ArrayList<ArrayList<Integer>> t1Tuples, ArrayList<ArrayList<Integer>> t2Tuples)
+            throws IOException, DbException, TransactionAbortedException {
+        return new HeapFile[] {
+                createRandomHeapFile(columns, table1Rows, maxValue, spec1, t1Tuples, "c"),
+                createRandomHeapFile(columns, table2Rows, maxValue, spec2, t2Tuples, "c") };
+    }
+
+    /**
+     * Compute the equality join of two lists of tuples on their first fields.
+     *
+     * @see #expectedJoin(ArrayList, ArrayList, Predicate.Op)
+     */
+    public static ArrayList<ArrayList<Integer>> expectedJoin(ArrayList<ArrayList<Integer>> t1Tuples,
+            ArrayList<ArrayList<Integer>> t2Tuples) {
+        return expectedJoin(t1Tuples, t2Tuples, Predicate.Op.EQUALS);
+    }
+
+    /**
+     * Compute the join of two lists of tuples on their first fields, as nested
+     * loops over them would: every pair of tuples whose first fields satisfy
+     * the predicate, concatenated. The tuples of the second list are looked up
+     * by key, so that joins of large lists stay quick.
+     *
+     * @param op the predicate, applied to the field of t1Tuples on its left
+     */
+    public static ArrayList<ArrayList<Integer>> expectedJoin(ArrayList<ArrayList<Integer>> t1Tuples,
+            ArrayList<ArrayList<Integer>> t2Tuples, Predicate.Op op) {
+        TreeMap<Integer, ArrayList<ArrayList<Integer>>> byKey = new TreeMap<Integer, ArrayList<ArrayList<Integer>>>();
+        for (ArrayList<Integer> t2 : t2Tuples) {
+            if (!byKey.containsKey(t2.get(0)))
+                byKey.put(t2.get(0), new ArrayList<ArrayList<Integer>>());
+            byKey.get(t2.get(0)).add(t2);
+        }
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            int key = t1.get(0);
+            // the keys which may match; the predicate decides
+            NavigableMap<Integer, ArrayList<ArrayList<Integer>>> candidates;
+            if (op == Predicate.Op.EQUALS)
+                candidates = byKey.subMap(key, true, key, true);
+            else if (op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ)
+                candidates = byKey.tailMap(key, true);
+            else if (op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ)
+                candidates = byKey.headMap(key, true);
+            else
+                candidates = byKey;
+            for (Map.Entry<Integer, ArrayList<ArrayList<Integer>>> e : candidates.entrySet()) {
+                if (!new IntField(key).compare(op, new IntField(e.getKey())))
+                    continue;
+                for (ArrayList<Integer> t2 : e.getValue()) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expected.add(out);
+                }
+            }
+        }
+        return expected;
+    }
+
     /**
      * Returns number of bytes of RAM used by JVM after calling System.gc many times.
      * @return amount of RAM (in bytes) used by JVM